@@ -0,0 +1,182 @@
+package cert.forensics.gpt;
+
+/*
+ * Crc32.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+
+/**
+ * Crc32 CRC32 (as used by GPT) of a buffer, computed in parallel chunks
+ *
+ * Buffers larger than {@link #CHUNK_SIZE} are split, the chunks are checksummed
+ * concurrently and the partial CRCs are joined with the zlib crc32_combine
+ * algorithm, so the result is identical to a sequential CRC32.
+ *
+ * @author Tasos "Zapotek" Laskos
+ * @version 0.1, 2010
+ */
+
+public class Crc32 {
+
+    static final int                  CHUNK_SIZE = 64 * 1024;
+
+    private static final ForkJoinPool POOL       = new ForkJoinPool( );
+
+    private static final int          POLY       = 0xedb88320;   // reflected
+
+    private Crc32( ) {
+
+    }
+
+    /**
+     * computes the CRC32 of the bytes between position and limit of a buffer,
+     * the buffer itself is not modified
+     *
+     * @param buf
+     *            the bytes to checksum
+     * @return the CRC32 as an unsigned value
+     */
+    public static long of( ByteBuffer buf ) {
+
+        ByteBuffer bytes = buf.duplicate( );
+        if( bytes.remaining( ) <= CHUNK_SIZE )
+            return sequential( bytes );
+
+        return POOL.invoke( new Chunk( bytes ) );
+    }
+
+    private static long sequential( ByteBuffer bytes ) {
+
+        CRC32 crc = new CRC32( );
+        if( bytes.hasArray( ) ) {
+            crc.update( bytes.array( ), bytes.arrayOffset( ) + bytes.position( ),
+                    bytes.remaining( ) );
+        } else {
+            byte[] copy = new byte[ bytes.remaining( ) ];
+            bytes.duplicate( ).get( copy );
+            crc.update( copy );
+        }
+        return crc.getValue( );
+    }
+
+    /**
+     * a range of the buffer, split in halves until small enough
+     */
+    private static class Chunk extends RecursiveTask<Long> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer  bytes;
+
+        Chunk( ByteBuffer bytes ) {
+
+            this.bytes = bytes;
+        }
+
+        protected Long compute( ) {
+
+            if( bytes.remaining( ) <= CHUNK_SIZE )
+                return sequential( bytes );
+
+            int half = bytes.remaining( ) / 2;
+
+            ByteBuffer first = bytes.duplicate( );
+            first.limit( first.position( ) + half );
+            ByteBuffer second = bytes.duplicate( );
+            second.position( second.position( ) + half );
+
+            Chunk right = new Chunk( second );
+            right.fork( );
+            long left = new Chunk( first ).compute( );
+
+            return combine( left, right.join( ), second.remaining( ) );
+        }
+    }
+
+    /**
+     * combines the CRCs of two consecutive blocks into the CRC of both
+     * (port of zlib's crc32_combine)
+     *
+     * @param crc1
+     *            CRC of the first block
+     * @param crc2
+     *            CRC of the second block
+     * @param len2
+     *            length of the second block in bytes
+     * @return the CRC of the concatenation
+     */
+    public static long combine( long crc1, long crc2, long len2 ) {
+
+        if( len2 <= 0 )
+            return crc1;
+
+        int[] even = new int[ 32 ]; // even-power-of-two zeros operator
+        int[] odd = new int[ 32 ]; // odd-power-of-two zeros operator
+
+        // put operator for one zero bit in odd
+        odd[0] = POLY;
+        int row = 1;
+        for( int n = 1; n < 32; n++ ) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        gf2MatrixSquare( even, odd ); // put operator for two zero bits in even
+        gf2MatrixSquare( odd, even ); // put operator for four zero bits in odd
+
+        // apply len2 zeros to crc1 (first square will put the operator for
+        // one zero byte, eight zero bits, in even)
+        int crc = (int) crc1;
+        do {
+            gf2MatrixSquare( even, odd );
+            if( ( len2 & 1 ) != 0 )
+                crc = gf2MatrixTimes( even, crc );
+            len2 >>= 1;
+
+            if( len2 == 0 )
+                break;
+
+            gf2MatrixSquare( odd, even );
+            if( ( len2 & 1 ) != 0 )
+                crc = gf2MatrixTimes( odd, crc );
+            len2 >>= 1;
+        } while( len2 != 0 );
+
+        return ( crc ^ (int) crc2 ) & 0xFFFFFFFFL;
+    }
+
+    private static int gf2MatrixTimes( int[] mat, int vec ) {
+
+        int sum = 0;
+        for( int i = 0; vec != 0; i++, vec >>>= 1 ) {
+            if( ( vec & 1 ) != 0 )
+                sum ^= mat[i];
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare( int[] square, int[] mat ) {
+
+        for( int n = 0; n < 32; n++ )
+            square[n] = gf2MatrixTimes( mat, mat[n] );
+    }
+}
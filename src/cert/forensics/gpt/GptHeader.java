@@ -0,0 +1,240 @@
+package cert.forensics.gpt;
+
+/*
+ * GptHeader.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+/**
+ * GptHeader Represents a GUID Partition Table header (primary or backup)
+ *
+ * @author Tasos "Zapotek" Laskos
+ * @version 0.1, 2010
+ */
+
+public class GptHeader {
+
+    static final long          SIGNATURE        = 0x5452415020494645L; // "EFI PART"
+
+    static final int           MIN_HEADER_SIZE  = 92;
+
+    private static final int   HEADER_CRC       = 16;
+
+    private final long         signature;
+
+    private final int          revision;
+
+    private final int          headerSize;
+
+    private final long         headerCrc32;
+
+    private final long         currentLBA;
+
+    private final long         backupLBA;
+
+    private final long         firstUsableLBA;
+
+    private final long         lastUsableLBA;
+
+    private final UUID         diskGuid;
+
+    private final long         partitionEntryLBA;
+
+    private final long         numEntries;
+
+    private final long         entrySize;
+
+    private final long         entriesCrc32;
+
+    private final boolean      headerCrcValid;
+
+    /**
+     * constructor
+     *
+     * @param sector
+     *            the sector holding the header, from position 0 to its limit
+     */
+    public GptHeader( ByteBuffer sector ) {
+
+        ByteBuffer buf = sector.duplicate( ).order( ByteOrder.LITTLE_ENDIAN );
+
+        signature = buf.getLong( 0 );
+        revision = buf.getInt( 8 );
+        headerSize = buf.getInt( 12 );
+        headerCrc32 = buf.getInt( HEADER_CRC ) & 0xFFFFFFFFL;
+        currentLBA = buf.getLong( 24 );
+        backupLBA = buf.getLong( 32 );
+        firstUsableLBA = buf.getLong( 40 );
+        lastUsableLBA = buf.getLong( 48 );
+        diskGuid = GptPartitionEntry.guid( buf, 56 );
+        partitionEntryLBA = buf.getLong( 72 );
+        numEntries = buf.getInt( 80 ) & 0xFFFFFFFFL;
+        entrySize = buf.getInt( 84 ) & 0xFFFFFFFFL;
+        entriesCrc32 = buf.getInt( 88 ) & 0xFFFFFFFFL;
+
+        headerCrcValid = hasSignature( ) && headerSize >= MIN_HEADER_SIZE
+                && headerSize <= buf.limit( ) && computeHeaderCrc( buf ) == headerCrc32;
+    }
+
+    /**
+     * CRC32 of the header bytes with the CRC field itself zeroed
+     */
+    private long computeHeaderCrc( ByteBuffer buf ) {
+
+        ByteBuffer header = ByteBuffer.allocate( headerSize );
+        ByteBuffer src = buf.duplicate( );
+        src.position( 0 ).limit( headerSize );
+        header.put( src );
+        header.putInt( HEADER_CRC, 0 );
+        header.flip( );
+
+        return Crc32.of( header );
+    }
+
+    /**
+     * @return true if the header starts with "EFI PART"
+     */
+    public boolean hasSignature( ) {
+
+        return signature == SIGNATURE;
+    }
+
+    /**
+     * @return true if the signature and header CRC32 check out
+     */
+    public boolean isHeaderCrcValid( ) {
+
+        return headerCrcValid;
+    }
+
+    /**
+     * @return the revision, 0x00010000 for 1.0
+     */
+    public int getRevision( ) {
+
+        return revision;
+    }
+
+    /**
+     * @return the stored CRC32 of the header
+     */
+    public long getHeaderCrc32( ) {
+
+        return headerCrc32;
+    }
+
+    /**
+     * @return the sector holding this header
+     */
+    public long getCurrentLBA( ) {
+
+        return currentLBA;
+    }
+
+    /**
+     * @return the sector holding the other copy of the header
+     */
+    public long getBackupLBA( ) {
+
+        return backupLBA;
+    }
+
+    /**
+     * @return the first sector partitions may use
+     */
+    public long getFirstUsableLBA( ) {
+
+        return firstUsableLBA;
+    }
+
+    /**
+     * @return the last sector partitions may use
+     */
+    public long getLastUsableLBA( ) {
+
+        return lastUsableLBA;
+    }
+
+    /**
+     * @return the disk GUID
+     */
+    public UUID getDiskGuid( ) {
+
+        return diskGuid;
+    }
+
+    /**
+     * @return the first sector of the partition entry array
+     */
+    public long getPartitionEntryLBA( ) {
+
+        return partitionEntryLBA;
+    }
+
+    /**
+     * @return the number of slots in the partition entry array
+     */
+    public long getNumEntries( ) {
+
+        return numEntries;
+    }
+
+    /**
+     * @return the size of one partition entry in bytes
+     */
+    public long getEntrySize( ) {
+
+        return entrySize;
+    }
+
+    /**
+     * @return the stored CRC32 of the partition entry array
+     */
+    public long getEntriesCrc32( ) {
+
+        return entriesCrc32;
+    }
+
+    /**
+     * @return the size of the partition entry array in bytes
+     */
+    public long getEntriesSize( ) {
+
+        return numEntries * entrySize;
+    }
+
+    /**
+     * generic toString method that assembles datamembers
+     *
+     * @return a formated string
+     */
+    public String toString( ) {
+
+        String eol = System.getProperty( "line.separator" );
+
+        return "Disk GUID: " + diskGuid + eol + "Header LBA: " + currentLBA
+                + eol + "Backup LBA: " + backupLBA + eol + "Usable LBAs: "
+                + firstUsableLBA + "-" + lastUsableLBA + eol + "Entries: "
+                + numEntries + " x " + entrySize + " bytes at LBA "
+                + partitionEntryLBA + eol + "Header CRC valid: " + headerCrcValid
+                + eol;
+    }
+}
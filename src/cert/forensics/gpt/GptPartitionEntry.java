@@ -0,0 +1,196 @@
+package cert.forensics.gpt;
+
+/*
+ * GptPartitionEntry.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * GptPartitionEntry Represents one entry of a GUID Partition Table
+ *
+ * @author Tasos "Zapotek" Laskos
+ * @version 0.1, 2010
+ */
+
+public class GptPartitionEntry {
+
+    /**
+     * type GUID of the EFI system partition
+     */
+    public static final UUID    EFI_SYSTEM = UUID.fromString( "c12a7328-f81f-11d2-ba4b-00a0c93ec93b" );
+
+    private static final int    NAME_BYTES = 72;
+
+    private final int           index;
+
+    private final UUID          typeGuid;
+
+    private final UUID          uniqueGuid;
+
+    private final long          firstLBA;
+
+    private final long          lastLBA;
+
+    private final long          attributes;
+
+    private final String        name;
+
+    /**
+     * constructor
+     *
+     * @param entries
+     *            the partition entry array
+     * @param offset
+     *            the absolute index of the entry in entries
+     * @param index
+     *            the slot number of the entry (0 based)
+     */
+    public GptPartitionEntry( ByteBuffer entries, int offset, int index ) {
+
+        ByteBuffer buf = entries.duplicate( ).order( ByteOrder.LITTLE_ENDIAN );
+
+        this.index = index;
+        typeGuid = guid( buf, offset );
+        uniqueGuid = guid( buf, offset + 16 );
+        firstLBA = buf.getLong( offset + 32 );
+        lastLBA = buf.getLong( offset + 40 );
+        attributes = buf.getLong( offset + 48 );
+
+        byte[] nameBytes = new byte[ NAME_BYTES ];
+        for( int i = 0; i < NAME_BYTES; i++ )
+            nameBytes[i] = buf.get( offset + 56 + i );
+
+        String raw = new String( nameBytes, Charset.forName( "UTF-16LE" ) );
+        int nul = raw.indexOf( '\0' );
+        name = nul >= 0 ? raw.substring( 0, nul ) : raw;
+    }
+
+    /**
+     * reads a GUID in its mixed endian on-disk form
+     *
+     * @param buf
+     *            a little endian buffer
+     * @param offset
+     *            the absolute index of the GUID in buf
+     * @return the GUID
+     */
+    static UUID guid( ByteBuffer buf, int offset ) {
+
+        long data1 = buf.getInt( offset ) & 0xFFFFFFFFL;
+        long data2 = buf.getShort( offset + 4 ) & 0xFFFFL;
+        long data3 = buf.getShort( offset + 6 ) & 0xFFFFL;
+
+        long low = 0;
+        for( int i = 8; i < 16; i++ )
+            low = ( low << 8 ) | ( buf.get( offset + i ) & 0xFF );
+
+        return new UUID( ( data1 << 32 ) | ( data2 << 16 ) | data3, low );
+    }
+
+    /**
+     * @return true if the slot is in use (non zero type GUID)
+     */
+    public boolean isUsed( ) {
+
+        return typeGuid.getMostSignificantBits( ) != 0
+                || typeGuid.getLeastSignificantBits( ) != 0;
+    }
+
+    /**
+     * @return the slot number of the entry (0 based)
+     */
+    public int getIndex( ) {
+
+        return index;
+    }
+
+    /**
+     * @return the partition type GUID
+     */
+    public UUID getTypeGuid( ) {
+
+        return typeGuid;
+    }
+
+    /**
+     * @return the unique partition GUID
+     */
+    public UUID getUniqueGuid( ) {
+
+        return uniqueGuid;
+    }
+
+    /**
+     * @return the first sector of the partition
+     */
+    public long getFirstLBA( ) {
+
+        return firstLBA;
+    }
+
+    /**
+     * @return the last sector of the partition (inclusive)
+     */
+    public long getLastLBA( ) {
+
+        return lastLBA;
+    }
+
+    /**
+     * @return the number of sectors of the partition
+     */
+    public long getNumSectors( ) {
+
+        return lastLBA - firstLBA + 1;
+    }
+
+    /**
+     * @return the attribute flags
+     */
+    public long getAttributes( ) {
+
+        return attributes;
+    }
+
+    /**
+     * @return the partition name
+     */
+    public String getName( ) {
+
+        return name;
+    }
+
+    /**
+     * generic toString method that assembles datamembers
+     *
+     * @return a formated string
+     */
+    public String toString( ) {
+
+        String eol = System.getProperty( "line.separator" );
+
+        return "Name: " + name + eol + "Type GUID: " + typeGuid + eol
+                + "Unique GUID: " + uniqueGuid + eol + "First LBA: " + firstLBA
+                + eol + "Last LBA: " + lastLBA + eol + "Attributes: 0x"
+                + Long.toHexString( attributes ) + eol;
+    }
+}
@@ -0,0 +1,286 @@
+package cert.forensics.gpt;
+
+/*
+ * GuidPartitionTable.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * GuidPartitionTable Represents the GUID Partition Table of a disk
+ *
+ * Reads the primary and backup headers and their partition entry arrays,
+ * verifying the header and array CRC32s (see {@link Crc32}). Partitions are
+ * taken from the primary table when it checks out and from the backup table
+ * otherwise. Both 512 and 4096 byte logical sectors are recognised.
+ *
+ * @author Tasos "Zapotek" Laskos
+ * @version 0.1, 2010
+ */
+
+public class GuidPartitionTable {
+
+    /**
+     * MBR partition type of the protective entry covering a GPT disk
+     */
+    public static final int          PROTECTIVE_MBR_TYPE = 0xEE;
+
+    // refuse absurd entry arrays found in corrupted headers
+    private static final long        MAX_ENTRIES_SIZE    = 4 * 1024 * 1024;
+
+    private static final int         MIN_ENTRY_SIZE      = 128;
+
+    private static final int[]       SECTOR_SIZES        = { 512, 4096 };
+
+    private final int                sectorSize;
+
+    private final GptHeader          primary;
+
+    private final GptHeader          backup;
+
+    private final boolean            primaryEntriesValid;
+
+    private final boolean            backupEntriesValid;
+
+    private final List<GptPartitionEntry> partitions;
+
+    private GuidPartitionTable( int sectorSize, GptHeader primary,
+            boolean primaryEntriesValid, GptHeader backup,
+            boolean backupEntriesValid, List<GptPartitionEntry> partitions ) {
+
+        this.sectorSize = sectorSize;
+        this.primary = primary;
+        this.primaryEntriesValid = primaryEntriesValid;
+        this.backup = backup;
+        this.backupEntriesValid = backupEntriesValid;
+        this.partitions = Collections.unmodifiableList( partitions );
+    }
+
+    /**
+     * reads the GPT of a disk image
+     *
+     * @param reader
+     *            the disk image, left open
+     * @return the partition table or null if neither header has an
+     *         "EFI PART" signature
+     * @throws IOException
+     *             on read errors
+     */
+    public static GuidPartitionTable read( ImageReader reader ) throws IOException {
+
+        for( int sectorSize: SECTOR_SIZES ) {
+            long lastSector = reader.size( ) / sectorSize - 1;
+            if( lastSector < 2 )
+                continue;
+
+            GptHeader primary = readHeader( reader, 1, sectorSize );
+            long backupLBA = primary != null && primary.isHeaderCrcValid( )
+                    && primary.getBackupLBA( ) > 1 && primary.getBackupLBA( ) <= lastSector
+                    ? primary.getBackupLBA( ) : lastSector;
+            GptHeader backup = readHeader( reader, backupLBA, sectorSize );
+
+            if( primary == null && backup == null )
+                continue;
+
+            ByteBuffer primaryEntries = readEntries( reader, primary, sectorSize );
+            ByteBuffer backupEntries = readEntries( reader, backup, sectorSize );
+
+            boolean primaryValid = primaryEntries != null && primary.isHeaderCrcValid( )
+                    && Crc32.of( primaryEntries ) == primary.getEntriesCrc32( );
+            boolean backupValid = backupEntries != null && backup.isHeaderCrcValid( )
+                    && Crc32.of( backupEntries ) == backup.getEntriesCrc32( );
+
+            // prefer whichever table checks out, primary first
+            List<GptPartitionEntry> partitions;
+            if( primaryValid || !backupValid && primaryEntries != null )
+                partitions = parseEntries( primary, primaryEntries );
+            else if( backupEntries != null )
+                partitions = parseEntries( backup, backupEntries );
+            else
+                partitions = new ArrayList<GptPartitionEntry>( );
+
+            return new GuidPartitionTable( sectorSize, primary, primaryValid,
+                    backup, backupValid, partitions );
+        }
+
+        return null;
+    }
+
+    /**
+     * reads a header, null if the sector has no "EFI PART" signature
+     */
+    private static GptHeader readHeader( ImageReader reader, long lba,
+            int sectorSize ) throws IOException {
+
+        ByteBuffer sector = reader.read( lba * sectorSize, sectorSize );
+        try {
+            if( sector.limit( ) < GptHeader.MIN_HEADER_SIZE )
+                return null;
+
+            GptHeader header = new GptHeader( sector );
+            return header.hasSignature( ) ? header : null;
+        } finally {
+            ImageReader.release( sector );
+        }
+    }
+
+    /**
+     * reads the partition entry array of a header into a buffer of its own,
+     * null if the header is missing or describes an implausible array
+     */
+    private static ByteBuffer readEntries( ImageReader reader, GptHeader header,
+            int sectorSize ) throws IOException {
+
+        if( header == null || header.getEntrySize( ) < MIN_ENTRY_SIZE
+                || header.getEntrySize( ) % 8 != 0
+                || header.getEntriesSize( ) > MAX_ENTRIES_SIZE )
+            return null;
+
+        int size = (int) header.getEntriesSize( );
+        long offset = header.getPartitionEntryLBA( ) * sectorSize;
+        if( offset <= 0 || offset + size > reader.size( ) )
+            return null;
+
+        ByteBuffer pooled = reader.read( offset, size );
+        ByteBuffer entries = ByteBuffer.allocate( pooled.limit( ) );
+        entries.put( pooled );
+        entries.flip( );
+        ImageReader.release( pooled );
+
+        return entries;
+    }
+
+    private static List<GptPartitionEntry> parseEntries( GptHeader header,
+            ByteBuffer entries ) {
+
+        List<GptPartitionEntry> used = new ArrayList<GptPartitionEntry>( );
+        int entrySize = (int) header.getEntrySize( );
+
+        for( int i = 0; i < header.getNumEntries( ); i++ ) {
+            GptPartitionEntry entry = new GptPartitionEntry( entries, i * entrySize, i );
+            if( entry.isUsed( ) )
+                used.add( entry );
+        }
+
+        return used;
+    }
+
+    /**
+     * @return the logical sector size the table was found with
+     */
+    public int getSectorSize( ) {
+
+        return sectorSize;
+    }
+
+    /**
+     * @return the primary header, null if missing
+     */
+    public GptHeader getPrimaryHeader( ) {
+
+        return primary;
+    }
+
+    /**
+     * @return the backup header, null if missing
+     */
+    public GptHeader getBackupHeader( ) {
+
+        return backup;
+    }
+
+    /**
+     * @return true if the primary header and entry array CRC32s check out
+     */
+    public boolean isPrimaryValid( ) {
+
+        return primaryEntriesValid;
+    }
+
+    /**
+     * @return true if the backup header and entry array CRC32s check out
+     */
+    public boolean isBackupValid( ) {
+
+        return backupEntriesValid;
+    }
+
+    /**
+     * @return true if either copy of the table checks out
+     */
+    public boolean isValid( ) {
+
+        return primaryEntriesValid || backupEntriesValid;
+    }
+
+    /**
+     * @return the header partitions were taken from
+     */
+    public GptHeader getHeader( ) {
+
+        return primaryEntriesValid || !backupEntriesValid && primary != null
+                ? primary : backup;
+    }
+
+    /**
+     * @return the used partition entries
+     */
+    public List<GptPartitionEntry> getPartitions( ) {
+
+        return partitions;
+    }
+
+    /**
+     * @return the last sector used by any partition, 0 if there are none
+     */
+    public long getLastPartitionLBA( ) {
+
+        long last = 0;
+        for( GptPartitionEntry pe: partitions )
+            last = Math.max( last, pe.getLastLBA( ) );
+        return last;
+    }
+
+    /**
+     * generic toString method that assembles datamembers
+     *
+     * @return a formated string
+     */
+    public String toString( ) {
+
+        String eol = System.getProperty( "line.separator" );
+        StringBuffer sb = new StringBuffer( );
+
+        sb.append( "Primary valid: " + primaryEntriesValid + eol );
+        sb.append( "Backup valid: " + backupEntriesValid + eol );
+        sb.append( getHeader( ) );
+        for( GptPartitionEntry pe: partitions ) {
+            sb.append( "Partition " + ( pe.getIndex( ) + 1 ) + ":" + eol );
+            sb.append( "====================" + eol );
+            sb.append( pe );
+        }
+
+        return sb.toString( );
+    }
+}
@@ -0,0 +1,251 @@
+package cert.forensics.mbr;
+
+/*
+ * EBRChain.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * EBRChain Walks the chain of Extended Boot Records of an extended partition
+ *
+ * Every EBR holds the logical partition that follows it (relative to the EBR)
+ * and a link to the next EBR (relative to the start of the extended
+ * partition). Sectors are read in windows of {@link #WINDOW_SECTORS} so EBRs
+ * packed close together cost a single read, and once two links have been seen
+ * the window at the same stride past the current link is prefetched in the
+ * background, hiding the seek of evenly sized chains. The walk stops on
+ * loops, links outside the image, missing boot signatures and after
+ * {@link #MAX_LINKS} records.
+ *
+ * @author Tasos "Zapotek" Laskos
+ * @version 0.1, 2010
+ */
+
+class EBRChain {
+
+    static final int                     WINDOW_SECTORS = 64;
+
+    static final int                     MAX_LINKS      = 4096;
+
+    private static final int             SECTOR_SIZE    = ImageReader.BYTES_PER_SECTOR;
+
+    private static final int             MAX_WINDOWS    = 8;
+
+    private static final ExecutorService PREFETCHER     = Executors.newCachedThreadPool( new DaemonThreads( ) );
+
+    private final ImageReader            reader;
+
+    private final long                   totalSectors;
+
+    // most recent windows read (or being prefetched), searched linearly as
+    // only a handful are kept
+    private final List<Window>           windows        = new ArrayList<Window>( );
+
+    /**
+     * a run of consecutive sectors read with one positional read
+     */
+    private static class Window {
+
+        final long               firstSector;
+
+        final Future<ByteBuffer> bytes;
+
+        Window( long firstSector, Future<ByteBuffer> bytes ) {
+
+            this.firstSector = firstSector;
+            this.bytes = bytes;
+        }
+
+        boolean contains( long sector ) {
+
+            return sector >= firstSector && sector < firstSector + WINDOW_SECTORS;
+        }
+    }
+
+    /**
+     * constructor
+     *
+     * @param reader
+     *            the disk image, left open
+     */
+    EBRChain( ImageReader reader ) {
+
+        this.reader = reader;
+        this.totalSectors = reader.size( ) / SECTOR_SIZE;
+    }
+
+    /**
+     * collects the logical partitions of an extended partition
+     *
+     * @param extended
+     *            the primary extended partition entry
+     * @param logical
+     *            where to add the logical partitions found
+     * @throws IOException
+     *             on read errors
+     */
+    void walk( PartitionEntry extended, List<PartitionEntry> logical )
+            throws IOException {
+
+        long extendedStart = extended.getAbsoluteSector( );
+        long ebrSector = extendedStart;
+        long previous = -1;
+        Set<Long> visited = new HashSet<Long>( );
+
+        while( visited.size( ) < MAX_LINKS ) {
+            if( ebrSector <= 0 || ebrSector >= totalSectors || !visited.add( ebrSector ) )
+                break; // outside the image or a loop
+
+            Window cached = sectorWindow( ebrSector );
+            ByteBuffer window = bytes( cached, ebrSector );
+            int index = (int) ( ebrSector - cached.firstSector ) * SECTOR_SIZE;
+            if( window.limit( ) < index + SECTOR_SIZE )
+                break; // truncated image
+
+            MasterBootRecord ebr = new MasterBootRecord( window, index );
+            if( !ebr.hasBootSignature( ) )
+                break;
+
+            // first entry: the logical partition, relative to this EBR; its
+            // 16 bytes are copied so the window can be dropped
+            PartitionEntry partition = ebr.getPartitionEntry1( );
+            if( partition.getPartitionType( ) != 0 && partition.getNumSectors( ) > 0 ) {
+                ByteBuffer entry = ByteBuffer.allocate( 16 );
+                for( int i = 0; i < 16; i++ )
+                    entry.put( i, window.get( index + 446 + i ) );
+                logical.add( new PartitionEntry( entry, 0, ebrSector ) );
+            }
+
+            // second entry: the next EBR, relative to the extended partition
+            PartitionEntry link = ebr.getPartitionEntry2( );
+            if( !link.isExtended( ) || link.getRelativeSector( ) == 0 )
+                break;
+
+            long next = extendedStart + link.getRelativeSector( );
+            if( previous >= 0 && next - ebrSector == ebrSector - previous )
+                prefetch( next + ( next - ebrSector ) );
+
+            previous = ebrSector;
+            ebrSector = next;
+        }
+    }
+
+    /**
+     * gets the window holding a sector, reading it if not already cached
+     */
+    private Window sectorWindow( long sector ) {
+
+        Window window = find( sector );
+        if( window == null ) {
+            FutureTask<ByteBuffer> read = new FutureTask<ByteBuffer>( readTask( sector ) );
+            read.run( );
+
+            window = new Window( sector, read );
+            cache( window );
+        }
+
+        return window;
+    }
+
+    /**
+     * waits for the bytes of a window
+     */
+    private static ByteBuffer bytes( Window window, long sector ) throws IOException {
+
+        try {
+            return window.bytes.get( );
+        } catch( InterruptedException e ) {
+            Thread.currentThread( ).interrupt( );
+            throw new IOException( "interrupted while reading EBR at sector " + sector );
+        } catch( ExecutionException e ) {
+            throw new IOException( "could not read EBR at sector " + sector, e.getCause( ) );
+        }
+    }
+
+    private Window find( long sector ) {
+
+        for( Window w: windows )
+            if( w.contains( sector ) )
+                return w;
+        return null;
+    }
+
+    /**
+     * starts reading the window at a sector in the background
+     */
+    private void prefetch( long sector ) {
+
+        if( sector <= 0 || sector >= totalSectors || find( sector ) != null )
+            return;
+
+        cache( new Window( sector, PREFETCHER.submit( readTask( sector ) ) ) );
+    }
+
+    private void cache( Window window ) {
+
+        if( windows.size( ) == MAX_WINDOWS )
+            windows.remove( 0 );
+        windows.add( window );
+    }
+
+    /**
+     * creates the read of a window into a buffer of its own
+     */
+    private Callable<ByteBuffer> readTask( final long sector ) {
+
+        return new Callable<ByteBuffer>( ) {
+
+            public ByteBuffer call( ) throws IOException {
+
+                ByteBuffer pooled = reader.readSectors( sector, WINDOW_SECTORS );
+                ByteBuffer copy = ByteBuffer.allocate( pooled.limit( ) );
+                copy.put( pooled );
+                copy.flip( );
+
+                ImageReader.release( pooled );
+                return copy;
+            }
+        };
+    }
+
+    /**
+     * prefetch threads must not keep the JVM alive
+     */
+    private static class DaemonThreads implements ThreadFactory {
+
+        public Thread newThread( Runnable r ) {
+
+            Thread t = new Thread( r, "ebr-prefetch" );
+            t.setDaemon( true );
+            return t;
+        }
+    }
+}
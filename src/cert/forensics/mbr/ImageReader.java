@@ -0,0 +1,475 @@
+package cert.forensics.mbr;
+
+/*
+ * ImageReader.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ImageReader Reads sectors of a disk image with positional FileChannel reads
+ *
+ * Every read is a single positional read (looped only on short reads) into a
+ * pooled ByteBuffer, so analysing an image costs one round trip per region
+ * instead of one per byte. Buffers obtained from {@link #read(long, int)}
+ * should be handed back with {@link #release(ByteBuffer)}. Positional reads
+ * don't touch the channel position, so one reader may be shared by threads.
+ *
+ * An image split into segments (i.e. image.001, image.002, ...) is read as
+ * one device; the segments are opened and sized concurrently, as on network
+ * storage every open and stat is a round trip of its own.
+ *
+ * Any other SeekableByteChannel, i.e. the virtual disk of a sparse VMDK, can
+ * be read as an image too; reads of such channels are serialized on the
+ * channel and regions are read instead of mapped.
+ *
+ * @author Tasos "Zapotek" Laskos
+ * @version 0.1, 2010
+ */
+
+public class ImageReader implements Closeable {
+
+    public static final int                         BYTES_PER_SECTOR = 512;
+
+    // buffers up to this size come from (and go back to) the pool
+    private static final int                        POOLED_SIZE      = 64 * 1024;
+
+    private static final int                        MAX_POOLED       = 32;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL      = new ConcurrentLinkedQueue<ByteBuffer>( );
+
+    private static final AtomicInteger              pooled           = new AtomicInteger( );
+
+    // at most this many segments are opened at the same time
+    private static final int                        MAX_OPENERS      = 16;
+
+    private final List<File>                        segments;
+
+    private final SeekableByteChannel[]             channels;
+
+    // byte offset of every segment in the image, plus the image size
+    private final long[]                            starts;
+
+    private final long                              size;
+
+    /**
+     * constructor for ImageReader
+     *
+     * @param image
+     *            the disk image to read
+     * @throws IOException
+     *             if the image can not be opened
+     */
+    public ImageReader( File image ) throws IOException {
+
+        this( Collections.singletonList( image ) );
+    }
+
+    /**
+     * constructor for ImageReader of an image split into segments
+     *
+     * @param segments
+     *            the segments of the disk image, in order
+     * @throws IOException
+     *             if a segment can not be opened
+     */
+    public ImageReader( List<File> segments ) throws IOException {
+
+        if( segments.isEmpty( ) )
+            throw new IOException( "no image segments given" );
+
+        long[] sizes = new long[segments.size( )];
+
+        this.segments = Collections.unmodifiableList( new ArrayList<File>( segments ) );
+        this.channels = open( this.segments, sizes );
+        this.starts = new long[sizes.length + 1];
+
+        for( int i = 0; i < sizes.length; i++ )
+            starts[i + 1] = starts[i] + sizes[i];
+
+        size = starts[sizes.length];
+    }
+
+    /**
+     * constructor for ImageReader of an image read through a channel, the
+     * reader takes ownership of the channel
+     *
+     * @param image
+     *            the file the channel reads, reported as the only segment
+     * @param channel
+     *            the channel, its size is the size of the image
+     * @throws IOException
+     *             if the size of the channel can not be read
+     */
+    public ImageReader( File image, SeekableByteChannel channel ) throws IOException {
+
+        this.segments = Collections.singletonList( image );
+        this.channels = new SeekableByteChannel[] { channel };
+        this.size = channel.size( );
+        this.starts = new long[] { 0, size };
+    }
+
+    /**
+     * inspector for size
+     *
+     * @return the size of the image in bytes
+     */
+    public long size( ) {
+
+        return size;
+    }
+
+    /**
+     * inspector for segments
+     *
+     * @return the files making up the image, in order
+     */
+    public List<File> getSegments( ) {
+
+        return segments;
+    }
+
+    /**
+     * gets the size of a segment
+     *
+     * @param index
+     *            the index of the segment
+     * @return the size of the segment in bytes
+     */
+    public long getSegmentSize( int index ) {
+
+        return starts[index + 1] - starts[index];
+    }
+
+    /**
+     * reads consecutive sectors of the image
+     *
+     * @param lba
+     *            the first sector to read
+     * @param count
+     *            the number of sectors
+     * @return a buffer positioned at 0 and limited to the bytes actually read
+     * @throws IOException
+     *             on read errors
+     */
+    public ByteBuffer readSectors( long lba, int count ) throws IOException {
+
+        return read( lba * BYTES_PER_SECTOR, count * BYTES_PER_SECTOR );
+    }
+
+    /**
+     * reads a region of the image with one positional read
+     *
+     * @param offset
+     *            the byte offset to read from
+     * @param length
+     *            the number of bytes to read
+     * @return a buffer positioned at 0 and limited to the bytes actually read
+     *         (less than length only at the end of the image)
+     * @throws IOException
+     *             on read errors
+     */
+    public ByteBuffer read( long offset, int length ) throws IOException {
+
+        ByteBuffer buf = acquire( length );
+
+        read( buf, offset );
+
+        buf.flip( );
+        return buf;
+    }
+
+    /**
+     * reads a region of the image into a caller supplied buffer, crossing
+     * segment boundaries as needed
+     *
+     * @param dst
+     *            the buffer to fill from its position up to its limit
+     * @param offset
+     *            the byte offset to read from
+     * @return the number of bytes read (less than requested only at the end
+     *         of the image)
+     * @throws IOException
+     *             on read errors
+     */
+    public int read( ByteBuffer dst, long offset ) throws IOException {
+
+        int start = dst.position( );
+        int limit = dst.limit( );
+
+        try {
+            while( dst.hasRemaining( ) ) {
+                long pos = offset + dst.position( ) - start;
+                int segment = segmentAt( pos );
+                if( segment < 0 )
+                    break; // end of image
+
+                // don't run past the end of the segment
+                long left = starts[segment + 1] - pos;
+                if( dst.remaining( ) > left )
+                    dst.limit( dst.position( ) + (int) left );
+
+                int n = read( channels[segment], dst, pos - starts[segment] );
+                dst.limit( limit );
+                if( n < 0 )
+                    break; // segment shrank under us
+            }
+        } finally {
+            dst.limit( limit );
+        }
+
+        return dst.position( ) - start;
+    }
+
+    /**
+     * memory-maps a region of the image read-only. A mapping can't span
+     * segments, so the region is cut short at the end of the segment
+     * holding offset; map the rest with another call. Regions of channels
+     * other than files are read into a heap buffer instead.
+     *
+     * @param offset
+     *            the byte offset of the region
+     * @param length
+     *            the number of bytes wanted
+     * @return a little endian buffer of at most length bytes, empty past the
+     *         end of the image
+     * @throws IOException
+     *             if the region can not be mapped
+     */
+    public ByteBuffer map( long offset, int length ) throws IOException {
+
+        int segment = segmentAt( offset );
+        long within = segment < 0 ? 0 : offset - starts[segment];
+        long mapped = segment < 0 ? 0 : Math.min( length, starts[segment + 1] - offset );
+        SeekableByteChannel channel = channels[segment < 0 ? 0 : segment];
+
+        ByteBuffer buf;
+        if( channel instanceof FileChannel ) {
+            buf = ( (FileChannel) channel ).map( FileChannel.MapMode.READ_ONLY, within, mapped );
+        } else {
+            buf = ByteBuffer.allocate( (int) mapped );
+            while( buf.hasRemaining( ) && read( channel, buf, within + buf.position( ) ) > 0 )
+                ;
+            buf.flip( );
+        }
+        buf.order( ByteOrder.LITTLE_ENDIAN );
+        return buf;
+    }
+
+    /**
+     * reads from a position of a channel, positionally for files and with
+     * the channel locked for others
+     */
+    private static int read( SeekableByteChannel channel, ByteBuffer dst, long pos )
+            throws IOException {
+
+        if( channel instanceof FileChannel )
+            return ( (FileChannel) channel ).read( dst, pos );
+
+        synchronized( channel ) {
+            channel.position( pos );
+            return channel.read( dst );
+        }
+    }
+
+    /**
+     * finds the segment holding a byte of the image
+     *
+     * @return the segment index or -1 past the end of the image
+     */
+    private int segmentAt( long pos ) {
+
+        if( pos < 0 || pos >= size )
+            return -1;
+        if( channels.length == 1 )
+            return 0;
+
+        int i = Arrays.binarySearch( starts, pos );
+        // skip empty segments starting at the same offset
+        if( i >= 0 ) {
+            while( starts[i + 1] == pos )
+                i++;
+            return i;
+        }
+        return -i - 2;
+    }
+
+    /**
+     * closes the underlying channels
+     */
+    public void close( ) throws IOException {
+
+        IOException failure = null;
+
+        for( SeekableByteChannel channel: channels ) {
+            try {
+                if( channel != null )
+                    channel.close( );
+            } catch( IOException e ) {
+                failure = e;
+            }
+        }
+
+        if( failure != null )
+            throw failure;
+    }
+
+    /**
+     * opens and sizes the segments concurrently
+     *
+     * @param segments
+     *            the segment files
+     * @param sizes
+     *            filled with the size of every segment
+     * @return the channels, in segment order
+     * @throws IOException
+     *             if any segment can not be opened, no channel is left open
+     */
+    private static FileChannel[] open( List<File> segments, final long[] sizes )
+            throws IOException {
+
+        FileChannel[] channels = new FileChannel[segments.size( )];
+
+        if( channels.length == 1 ) {
+            channels[0] = FileChannel.open( segments.get( 0 ).toPath( ), StandardOpenOption.READ );
+            try {
+                sizes[0] = channels[0].size( );
+            } catch( IOException e ) {
+                channels[0].close( );
+                throw e;
+            }
+            return channels;
+        }
+
+        ExecutorService openers = Executors.newFixedThreadPool( Math.min( channels.length, MAX_OPENERS ) );
+        List<Future<FileChannel>> opened = new ArrayList<Future<FileChannel>>( );
+        IOException failure = null;
+
+        for( int i = 0; i < channels.length; i++ ) {
+            final File segment = segments.get( i );
+            final int index = i;
+
+            opened.add( openers.submit( new Callable<FileChannel>( ) {
+
+                public FileChannel call( ) throws IOException {
+
+                    FileChannel channel = FileChannel.open( segment.toPath( ), StandardOpenOption.READ );
+                    try {
+                        sizes[index] = channel.size( );
+                    } catch( IOException e ) {
+                        channel.close( );
+                        throw e;
+                    }
+                    return channel;
+                }
+            } ) );
+        }
+        openers.shutdown( );
+
+        // wait for every opener, even when interrupted, so no channel leaks
+        boolean interrupted = false;
+        for( int i = 0; i < channels.length; i++ ) {
+            while( true ) {
+                try {
+                    channels[i] = opened.get( i ).get( );
+                } catch( ExecutionException e ) {
+                    failure = e.getCause( ) instanceof IOException ? (IOException) e.getCause( )
+                            : new IOException( "could not open " + segments.get( i ), e.getCause( ) );
+                } catch( InterruptedException e ) {
+                    interrupted = true;
+                    continue;
+                }
+                break;
+            }
+        }
+
+        if( interrupted )
+            Thread.currentThread( ).interrupt( );
+
+        if( failure != null ) {
+            for( FileChannel channel: channels )
+                if( channel != null )
+                    channel.close( );
+            throw failure;
+        }
+
+        return channels;
+    }
+
+    /**
+     * gets a little endian buffer of at least length bytes, limited to length
+     *
+     * @param length
+     *            the number of bytes needed
+     * @return the buffer
+     */
+    private static ByteBuffer acquire( int length ) {
+
+        ByteBuffer buf = null;
+
+        if( length <= POOLED_SIZE ) {
+            buf = POOL.poll( );
+            if( buf != null )
+                pooled.decrementAndGet( );
+            else
+                buf = ByteBuffer.allocateDirect( POOLED_SIZE );
+        } else {
+            buf = ByteBuffer.allocate( length );
+        }
+
+        buf.clear( );
+        buf.limit( length );
+        buf.order( ByteOrder.LITTLE_ENDIAN );
+        return buf;
+    }
+
+    /**
+     * returns a buffer obtained from read or readSectors to the pool
+     *
+     * @param buf
+     *            the buffer, must not be used afterwards
+     */
+    public static void release( ByteBuffer buf ) {
+
+        if( buf == null || buf.capacity( ) != POOLED_SIZE || !buf.isDirect( ) )
+            return;
+
+        if( pooled.incrementAndGet( ) <= MAX_POOLED )
+            POOL.offer( buf );
+        else
+            pooled.decrementAndGet( );
+    }
+}
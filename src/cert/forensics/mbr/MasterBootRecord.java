@@ -23,13 +23,20 @@ package cert.forensics.mbr;
  */
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * MasterBootRecord Represents a 512 byte Master Boot Record for a disk
  * 
+ * The record is a view over 512 bytes of a ByteBuffer: fields and partition
+ * entries are decoded on demand at fixed offsets, so wrapping a candidate
+ * sector (see {@link #MasterBootRecord(ByteBuffer, int)} and
+ * {@link #reset(ByteBuffer, int)}) allocates nothing per field.
+ * 
  * @author Tim Vidas
  * @author Brian Kaplan
  * @version 0.7, Jan 2009
@@ -43,7 +50,9 @@ public class MasterBootRecord {
 
     private static final int BYTES_PER_SECTOR = 512;
 
-    private int[]            bootCode;
+    private ByteBuffer       mbr;
+
+    private int              offset;
 
     public PartitionEntry    partitionEntry1;
 
@@ -53,11 +62,9 @@ public class MasterBootRecord {
 
     private PartitionEntry   partitionEntry4;
 
-    private int[]            marker;
-
     private long             fileSizeBytes;
 
-    private int[]            mbrUnsignedBytes;
+    private List<PartitionEntry> logicalPartitions = Collections.emptyList( );
 
     /**
      * constructor for MasterBootRecord
@@ -67,22 +74,41 @@ public class MasterBootRecord {
      */
     public MasterBootRecord( File image ) {
 
-        mbrUnsignedBytes = new int[ 512 ];
+        ByteBuffer mbrBytes = ByteBuffer.allocate( BYTES_PER_SECTOR );
 
         setFileSizeBytes( image.length( ) );
 
-        // read contents of mbr into a 512b mbr buffer
-        try {
-            InputStream imageStream = new FileInputStream( image );
+        // read contents of mbr into a 512b mbr buffer, the reader is closed
+        // before returning
+        reset( mbrBytes, 0 );
 
-            /** read mbr into buffer **/
-            for( int i = 0; i < mbrUnsignedBytes.length; i++ )
-                mbrUnsignedBytes[i] = imageStream.read( );
+        try( ImageReader reader = new ImageReader( image ) ) {
+            readMBR( reader, mbrBytes );
+            readLogicalPartitions( reader );
         } catch( IOException ioe ) {
             System.out.println( "Problem: " + ioe );
         }
+    }
+
+    /**
+     * constructor for MasterBootRecord, for callers that go on to read more
+     * sectors of the same image
+     * 
+     * @param reader
+     *            an open reader of the disk image to obtain the mbr from, it
+     *            is left open
+     * @throws IOException
+     *             if the mbr can not be read
+     */
+    public MasterBootRecord( ImageReader reader ) throws IOException {
+
+        ByteBuffer mbrBytes = ByteBuffer.allocate( BYTES_PER_SECTOR );
 
-        initialize( mbrUnsignedBytes );
+        setFileSizeBytes( reader.size( ) );
+        reset( mbrBytes, 0 );
+
+        readMBR( reader, mbrBytes );
+        readLogicalPartitions( reader );
     }
 
     /**
@@ -93,86 +119,177 @@ public class MasterBootRecord {
      */
     public MasterBootRecord( int[] mbrUnsignedBytes ) {
 
-        initialize( mbrUnsignedBytes );
+        byte[] mbrBytes = new byte[ BYTES_PER_SECTOR ];
+        for( int i = 0; i < mbrBytes.length && i < mbrUnsignedBytes.length; i++ )
+            mbrBytes[i] = (byte) mbrUnsignedBytes[i];
+
+        reset( ByteBuffer.wrap( mbrBytes ), 0 );
     }
 
     /**
-     * initializes datamembers from bytes representing an MBR
+     * constructor for a MasterBootRecord view, the bytes are not copied so
+     * the buffer must not change while the record is in use
      * 
-     * @param mbrUnsignedBytes
-     *            a boot record as bytes
+     * @param buf
+     *            a buffer holding a boot record
+     * @param offset
+     *            the absolute index of the boot record in buf
+     */
+    public MasterBootRecord( ByteBuffer buf, int offset ) {
+
+        reset( buf, offset );
+    }
+
+    /**
+     * reads the first sector of an image with a single positional read, bytes
+     * past the end of the image are left zero
+     * 
+     * @param reader
+     *            the disk image
+     * @param mbrBytes
+     *            where to copy the sector
+     * @throws IOException
+     *             on read errors
+     */
+    private static void readMBR( ImageReader reader, ByteBuffer mbrBytes )
+            throws IOException {
+
+        ByteBuffer sector = reader.readSectors( 0, 1 );
+        mbrBytes.put( sector );
+        mbrBytes.clear( );
+
+        ImageReader.release( sector );
+    }
+
+    /**
+     * walks the EBR chain of every extended partition of this record and
+     * collects the logical partitions, see {@link #getLogicalPartitions()}
+     * 
+     * @param reader
+     *            the disk image this record was read from, left open
+     * @throws IOException
+     *             on read errors
      */
-    private void initialize( int[] mbrUnsignedBytes ) {
-
-        this.mbrUnsignedBytes = mbrUnsignedBytes;
-        // carve out CODE_SIZE bytes from image
-        bootCode = new int[ BOOT_CODE_SIZE ];
-        for( int i = 0; i < BOOT_CODE_SIZE; i++ )
-            bootCode[i] = mbrUnsignedBytes[i];
-
-        // carve out Partition Entries from image
-        int[] pe1 = new int[ 16 ];
-        int[] pe2 = new int[ 16 ];
-        int[] pe3 = new int[ 16 ];
-        int[] pe4 = new int[ 16 ];
-
-        for( int i = BOOT_CODE_SIZE; i < BOOT_CODE_SIZE + 16; i++ ) // loop
-        // through 4
-        // partition
-        // tables
-        // (16 bytes
-        // each)
-        {
-            pe1[i - BOOT_CODE_SIZE] = mbrUnsignedBytes[i]; // copy byte from mbr
-            // to partition entry
-            // buffer 1
-            pe2[i - BOOT_CODE_SIZE] = mbrUnsignedBytes[i + 16]; // copy byte
-            // from mbr to
-            // partition
-            // entry buffer
-            // 2
-            pe3[i - BOOT_CODE_SIZE] = mbrUnsignedBytes[i + 32]; // copy byte
-            // from mbr to
-            // partition
-            // entry buffer
-            // 3
-            pe4[i - BOOT_CODE_SIZE] = mbrUnsignedBytes[i + 48]; // copy byte
-            // from mbr to
-            // partition
-            // entry buffer
-            // 4
+    public void readLogicalPartitions( ImageReader reader ) throws IOException {
+
+        List<PartitionEntry> logical = new ArrayList<PartitionEntry>( );
+        EBRChain chain = new EBRChain( reader );
+
+        for( PartitionEntry pe: getPrimaryPartitions( ) ) {
+            if( pe.isExtended( ) )
+                chain.walk( pe, logical );
         }
-        partitionEntry1 = new PartitionEntry( pe1 );
-        partitionEntry2 = new PartitionEntry( pe2 );
-        partitionEntry3 = new PartitionEntry( pe3 );
-        partitionEntry4 = new PartitionEntry( pe4 );
 
-        // carve out marker from image
-        marker = new int[ MARKER_SIZE ];
+        logicalPartitions = Collections.unmodifiableList( logical );
+    }
+
+    /**
+     * inspector for logicalPartitions, only filled in for records read from
+     * an image or after {@link #readLogicalPartitions(ImageReader)}
+     * 
+     * @return the logical partitions inside extended partitions, in chain
+     *         order
+     */
+    public List<PartitionEntry> getLogicalPartitions( ) {
 
-        for( int i = BOOT_CODE_SIZE + 64; i < BOOT_CODE_SIZE + 64 + 2; i++ ) {
-            marker[i - BOOT_CODE_SIZE - 64] = mbrUnsignedBytes[i];
+        return logicalPartitions;
+    }
+
+    /**
+     * @return the four primary partition entries
+     */
+    private PartitionEntry[] getPrimaryPartitions( ) {
+
+        return new PartitionEntry[] { partitionEntry1, partitionEntry2,
+                partitionEntry3, partitionEntry4 };
+    }
+
+    /**
+     * points this record (and its partition entries) to another 512 bytes,
+     * allowing a single instance to be reused when scanning many candidates;
+     * the logical partitions of the previous record are dropped
+     * 
+     * @param buf
+     *            a buffer holding a boot record
+     * @param offset
+     *            the absolute index of the boot record in buf
+     * @return this record
+     */
+    public MasterBootRecord reset( ByteBuffer buf, int offset ) {
+
+        if( offset < 0 || offset + BYTES_PER_SECTOR > buf.limit( ) )
+            throw new IndexOutOfBoundsException( "boot record at " + offset
+                    + " exceeds buffer" );
+
+        this.mbr = buf;
+        this.offset = offset;
+        this.logicalPartitions = Collections.emptyList( );
+
+        // partition entries are views into the same bytes (16 bytes each)
+        int pe = offset + BOOT_CODE_SIZE;
+        if( partitionEntry1 == null ) {
+            partitionEntry1 = new PartitionEntry( buf, pe );
+            partitionEntry2 = new PartitionEntry( buf, pe + 16 );
+            partitionEntry3 = new PartitionEntry( buf, pe + 32 );
+            partitionEntry4 = new PartitionEntry( buf, pe + 48 );
+        } else {
+            partitionEntry1.reset( buf, pe );
+            partitionEntry2.reset( buf, pe + 16 );
+            partitionEntry3.reset( buf, pe + 32 );
+            partitionEntry4.reset( buf, pe + 48 );
         }
+
+        return this;
+    }
+
+    /**
+     * unsigned byte of the record
+     */
+    private int u8( int i ) {
+
+        return mbr.get( offset + i ) & 0xFF;
+    }
+
+    /**
+     * copies a range of the record as unsigned bytes
+     */
+    private int[] unsignedBytes( int from, int length ) {
+
+        int[] bytes = new int[ length ];
+        for( int i = 0; i < length; i++ )
+            bytes[i] = u8( from + i );
+        return bytes;
     }
 
     /**
      * inspector for bootCode
      * 
-     * @return the bootCode datamember
+     * @return a copy of the boot code bytes
      */
     public int[] getBootCode( ) {
 
-        return bootCode;
+        return unsignedBytes( 0, BOOT_CODE_SIZE );
     }
 
     /**
      * inspector for marker
      * 
-     * @return the marker datamember
+     * @return a copy of the marker bytes
      */
     public int[] getMarker( ) {
 
-        return marker;
+        return unsignedBytes( BOOT_CODE_SIZE + 64, MARKER_SIZE );
+    }
+
+    /**
+     * checks for the 55 AA boot signature that ends every valid boot record
+     * 
+     * @return true if the signature is present, false otherwise
+     */
+    public boolean hasBootSignature( ) {
+
+        return u8( BOOT_CODE_SIZE + 64 ) == 0x55
+                && u8( BOOT_CODE_SIZE + 65 ) == 0xAA;
     }
 
     /**
@@ -254,7 +371,8 @@ public class MasterBootRecord {
     }
 
     /**
-     * get total sectors reported by all partitions on disk
+     * get total sectors reported by all partitions on disk, logical
+     * partitions are counted instead of the extended partitions holding them
      * 
      * Note on some drives the Vista installer may actually set this value too
      * large It has been observed on 13.5 GB drives
@@ -263,10 +381,17 @@ public class MasterBootRecord {
      */
     public long totalSectorsFromPartitions( ) {
 
-        return partitionEntry1.getNumSectors( )
-                + partitionEntry2.getNumSectors( )
-                + partitionEntry3.getNumSectors( )
-                + partitionEntry4.getNumSectors( );
+        long total = 0;
+
+        for( PartitionEntry pe: getPrimaryPartitions( ) ) {
+            if( !pe.isExtended( ) || logicalPartitions.isEmpty( ) )
+                total += pe.getNumSectors( );
+        }
+
+        for( PartitionEntry pe: logicalPartitions )
+            total += pe.getNumSectors( );
+
+        return total;
     }
 
     /**
@@ -287,9 +412,15 @@ public class MasterBootRecord {
     public long largestCylinderValOnDisk( ) {
 
         // return the maximum end cylinder value for the four partitions
-        return Math.max( Math.max( partitionEntry1.getEndCylinder( ),
+        long largest = Math.max( Math.max( partitionEntry1.getEndCylinder( ),
                 partitionEntry2.getEndCylinder( ) ), Math.max( partitionEntry3
                 .getEndCylinder( ), partitionEntry4.getEndCylinder( ) ) );
+
+        // and the logical partitions
+        for( PartitionEntry pe: logicalPartitions )
+            largest = Math.max( largest, pe.getEndCylinder( ) );
+
+        return largest;
     }
 
     /**
@@ -318,7 +449,7 @@ public class MasterBootRecord {
      */
     public boolean hasWindowsBootcode( ) {
 
-        return( bootCode[0] == 0x33 && bootCode[1] == 0xC0 && bootCode[2] == 0x8E );
+        return( u8( 0 ) == 0x33 && u8( 1 ) == 0xC0 && u8( 2 ) == 0x8E );
     }
 
     /**
@@ -329,14 +460,14 @@ public class MasterBootRecord {
     public String toString( ) {
 
         StringBuffer sb = new StringBuffer( );
-        for( int i = 0; i < mbrUnsignedBytes.length; i++ ) {
+        for( int i = 0; i < BYTES_PER_SECTOR; i++ ) {
             if( i % 16 == 0 )
                 sb.append( System.getProperty( "line.separator" ) );
-            if( mbrUnsignedBytes[i] < 16 )
-                sb.append( "0" + Integer.toHexString( mbrUnsignedBytes[i] )
+            if( u8( i ) < 16 )
+                sb.append( "0" + Integer.toHexString( u8( i ) )
                         + " " ); // pad 0-F with leading 0
             else
-                sb.append( Integer.toHexString( mbrUnsignedBytes[i] ) + " " ); // print
+                sb.append( Integer.toHexString( u8( i ) ) + " " ); // print
             // two
             // char
             // hex
@@ -360,6 +491,13 @@ public class MasterBootRecord {
         sb.append( "===================="
                 + System.getProperty( "line.separator" ) );
         sb.append( partitionEntry4.toString( ) );
+        for( int i = 0; i < logicalPartitions.size( ); i++ ) {
+            sb.append( "Logical Partition " + ( i + 5 ) + ":"
+                    + System.getProperty( "line.separator" ) );
+            sb.append( "===================="
+                    + System.getProperty( "line.separator" ) );
+            sb.append( logicalPartitions.get( i ).toString( ) );
+        }
         sb.append( System.getProperty( "line.separator" )
                 + System.getProperty( "line.separator" ) );
 
@@ -21,9 +21,15 @@
 
 package cert.forensics.mbr;
 
+import java.nio.ByteBuffer;
+
 /**
  * ParitionEntry Represents one of the four partition entries in an MBR
  * 
+ * Fields are decoded on demand from the 16 entry bytes, which may be a view
+ * into a buffer shared with the enclosing MasterBootRecord; nothing is copied
+ * or allocated per field.
+ * 
  * @author Tim Vidas
  * @author Brian Kaplan
  * @version 0.7, Jan 2009
@@ -31,13 +37,11 @@ package cert.forensics.mbr;
 
 public class PartitionEntry {
 
-    private static final int PARTITION_ENTRY_SIZE = 16;
-
-    private int[]            entryBytes;
+    private static final int   PARTITION_ENTRY_SIZE = 16;
 
     // known type signatures to sanity check validity of the partition entry and
     // mbr
-    private int[]            validPartitionTypes  = { 0x00, 0x10, 0x02, 0x03,
+    private static final int[] validPartitionTypes  = { 0x00, 0x10, 0x02, 0x03,
             0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0e, 0x0f,
             0x10, 0x11, 0x12, 0x14, 0x16, 0x17, 0x18, 0x1b, 0x1c, 0x1e, 0x24,
             0x39, 0x3c, 0x40, 0x41, 0x42, 0x4d, 0x4e, 0x4f, 0x50, 0x51, 0x52,
@@ -46,32 +50,39 @@ public class PartitionEntry {
             0x94, 0x9f, 0xa0, 0xa5, 0xa6, 0xa7, 0xa8, 0xa9, 0xab, 0xb7, 0xb8,
             0xbb, 0xbe, 0xbf, 0xc1, 0xc4, 0xc6, 0xc7, 0xda, 0xdb, 0xde, 0xdf,
             0xe1, 0xe3, 0xe4, 0xeb, 0xee, 0xef, 0xf0, 0xf1, 0xf4, 0xf2, 0xfd,
-            0xfe, 0xff                           };
-
-    // structure of parititon table
-    private int              state;                    // byte 1
+            0xfe, 0xff                             };
 
-    private int              beginHead;                // byte 2
+    // structure of parititon table (offsets into the entry)
+    private static final int   STATE                = 0;  // byte 1
 
-    private int              beginCylinderSector;      // byte 3+4
+    private static final int   BEGIN_HEAD           = 1;  // byte 2
 
-    private int              partitionType;            // byte 5
+    private static final int   BEGIN_CYL_SECTOR     = 2;  // byte 3+4
 
-    private int              endHead;                  // byte 6
+    private static final int   PARTITION_TYPE       = 4;  // byte 5
 
-    private int              numHeads;
+    private static final int   END_HEAD             = 5;  // byte 6
 
-    private int              numCylinders;
+    private static final int   END_CYL_SECTOR       = 6;  // byte 7+8
 
-    private int              endCylinderSector;        // byte 7+8
-
-    private long             relativeSector;           // byte 9+10+11+12
+    private static final int   RELATIVE_SECTOR      = 8;  // byte 9+10+11+12
 
     // (sectors between mbr
     // and 1st sector of
     // parition)
 
-    private long             numSectors;               // byte 13+14+15+16
+    private static final int   NUM_SECTORS          = 12; // byte 13+14+15+16
+
+    private ByteBuffer         entry;
+
+    private int                offset;
+
+    private int                numHeads;
+
+    private boolean            numHeadsSet;
+
+    // sector that relativeSector counts from (non zero for logical partitions)
+    private long               baseSector;
 
     /**
      * constructor
@@ -81,39 +92,92 @@ public class PartitionEntry {
      */
     public PartitionEntry( int[] pe ) {
 
+        byte[] entryBytes = new byte[ PARTITION_ENTRY_SIZE ];
+
         if( pe.length == PARTITION_ENTRY_SIZE )
-            entryBytes = pe;
-        else
-            entryBytes = new int[ PARTITION_ENTRY_SIZE ];
-
-        state = entryBytes[0];
-        beginHead = entryBytes[1];
-        beginCylinderSector = ( ( entryBytes[3] << 8 ) | entryBytes[2] ); // combine
-        // bytes
-        // 3 +
-        // 2
-        // (backwards)
-        partitionType = entryBytes[4];
-        endHead = entryBytes[5];
-        endCylinderSector = ( ( entryBytes[7] << 8 ) | entryBytes[6] ); // combine
-        // bytes
-        // 7 + 6
-        // (backwards)
+            for( int i = 0; i < PARTITION_ENTRY_SIZE; i++ )
+                entryBytes[i] = (byte) pe[i];
+
+        reset( ByteBuffer.wrap( entryBytes ), 0 );
+    }
 
-        relativeSector = ( ( entryBytes[11] & 0xFF ) << 24 ) // combine bytes
-                // 8-11 (backwards)
-                | ( ( entryBytes[10] & 0xFF ) << 16 )
-                | ( ( entryBytes[9] & 0xFF ) << 8 ) | ( entryBytes[8] & 0xFF );
+    /**
+     * constructor for a view over an entry inside a buffer, the bytes are not
+     * copied so the buffer must not change while the entry is in use
+     * 
+     * @param buf
+     *            the buffer holding the entry
+     * @param offset
+     *            the absolute index of the entry in buf
+     */
+    public PartitionEntry( ByteBuffer buf, int offset ) {
+
+        reset( buf, offset );
+    }
+
+    /**
+     * constructor for a view over an entry of an extended boot record
+     * 
+     * @param buf
+     *            the buffer holding the entry
+     * @param offset
+     *            the absolute index of the entry in buf
+     * @param baseSector
+     *            the sector the entry's relative sector counts from
+     */
+    public PartitionEntry( ByteBuffer buf, int offset, long baseSector ) {
+
+        reset( buf, offset );
+        this.baseSector = baseSector;
+    }
 
-        numSectors = ( ( entryBytes[15] & 0xFF ) << 24 ) // combine bytes 12-15
-                // (backwards)
-                | ( ( entryBytes[14] & 0xFF ) << 16 )
-                | ( ( entryBytes[13] & 0xFF ) << 8 ) | ( entryBytes[12] & 0xFF );
+    /**
+     * points this entry to another 16 bytes, allowing a single instance to
+     * be reused when scanning many candidates; the entry counts from the
+     * start of the disk again
+     * 
+     * @param buf
+     *            the buffer holding the entry
+     * @param offset
+     *            the absolute index of the entry in buf
+     * @return this entry
+     */
+    public PartitionEntry reset( ByteBuffer buf, int offset ) {
 
-        setNumHeads( beginHead + endHead );
-        numCylinders = getCylinder( beginCylinderSector )
-                + getCylinder( endCylinderSector );
+        if( offset < 0 || offset + PARTITION_ENTRY_SIZE > buf.limit( ) )
+            throw new IndexOutOfBoundsException( "partition entry at "
+                    + offset + " exceeds buffer" );
 
+        this.entry = buf;
+        this.offset = offset;
+        this.numHeadsSet = false;
+        this.baseSector = 0;
+        return this;
+    }
+
+    /**
+     * unsigned byte of the entry
+     */
+    private int u8( int i ) {
+
+        return entry.get( offset + i ) & 0xFF;
+    }
+
+    /**
+     * little endian unsigned 16 bit value of the entry
+     */
+    private int u16( int i ) {
+
+        return ( u8( i + 1 ) << 8 ) | u8( i ); // combine bytes (backwards)
+    }
+
+    /**
+     * little endian unsigned 32 bit value of the entry
+     */
+    private long u32( int i ) {
+
+        return ( (long) u16( i + 2 ) << 16 ) | u16( i ); // combine bytes
+        // (backwards)
     }
 
     /**
@@ -159,7 +223,7 @@ public class PartitionEntry {
      */
     public int getBeginCylinder( ) {
 
-        return getCylinder( beginCylinderSector );
+        return getCylinder( u16( BEGIN_CYL_SECTOR ) );
     }
 
     /**
@@ -169,7 +233,7 @@ public class PartitionEntry {
      */
     public int getBeginSector( ) {
 
-        return getSector( beginCylinderSector );
+        return getSector( u16( BEGIN_CYL_SECTOR ) );
     }
 
     /**
@@ -179,7 +243,7 @@ public class PartitionEntry {
      */
     public int getBeginHead( ) {
 
-        return beginHead;
+        return u8( BEGIN_HEAD );
     }
 
     /**
@@ -189,7 +253,7 @@ public class PartitionEntry {
      */
     public long getEndCylinder( ) {
 
-        return getCylinder( endCylinderSector );
+        return getCylinder( u16( END_CYL_SECTOR ) );
     }
 
     /**
@@ -199,7 +263,7 @@ public class PartitionEntry {
      */
     public long getEndSector( ) {
 
-        return getSector( endCylinderSector );
+        return getSector( u16( END_CYL_SECTOR ) );
     }
 
     /**
@@ -209,16 +273,19 @@ public class PartitionEntry {
      */
     public int getEndHead( ) {
 
-        return endHead;
+        return u8( END_HEAD );
     }
 
     /**
      * inspector for entryBytes
      * 
-     * @return the entryBytes datamember
+     * @return a copy of the 16 entry bytes
      */
     public int[] getEntryBytes( ) {
 
+        int[] entryBytes = new int[ PARTITION_ENTRY_SIZE ];
+        for( int i = 0; i < PARTITION_ENTRY_SIZE; i++ )
+            entryBytes[i] = u8( i );
         return entryBytes;
     }
 
@@ -229,7 +296,7 @@ public class PartitionEntry {
      */
     public long getNumSectors( ) {
 
-        return numSectors;
+        return u32( NUM_SECTORS );
     }
 
     /**
@@ -239,7 +306,7 @@ public class PartitionEntry {
      */
     public int getPartitionType( ) {
 
-        return partitionType;
+        return u8( PARTITION_TYPE );
     }
 
     /**
@@ -249,7 +316,7 @@ public class PartitionEntry {
      */
     public long getRelativeSector( ) {
 
-        return relativeSector;
+        return u32( RELATIVE_SECTOR );
     }
 
     /**
@@ -259,7 +326,7 @@ public class PartitionEntry {
      */
     public int getState( ) {
 
-        return state;
+        return u8( STATE );
     }
 
     /**
@@ -269,7 +336,7 @@ public class PartitionEntry {
      */
     public boolean isBootable( ) {
 
-        return state == 0x80; // flag 0x80 means partition is bootable
+        return getState( ) == 0x80; // flag 0x80 means partition is bootable
     }
 
     /**
@@ -280,6 +347,7 @@ public class PartitionEntry {
      */
     public boolean isValidPartition( ) {
 
+        int partitionType = getPartitionType( );
         for( int i = 0; i < validPartitionTypes.length; i++ ) {
             if( validPartitionTypes[i] == partitionType )
                 return true;
@@ -295,6 +363,7 @@ public class PartitionEntry {
      */
     public boolean isNotWindowsBased( ) {
 
+        int partitionType = getPartitionType( );
         if( partitionType == 0x07 || // NTFS
                 partitionType == 0x0b || // FAT32 CHS
                 partitionType == 0x0c || // FAT32 LBA
@@ -313,6 +382,7 @@ public class PartitionEntry {
      */
     public boolean isFAT( ) {
 
+        int partitionType = getPartitionType( );
         return( partitionType == 0x0b || partitionType == 0x0c || partitionType == 0x06 );
     }
 
@@ -323,7 +393,30 @@ public class PartitionEntry {
      */
     public boolean isNTFS( ) {
 
-        return( partitionType == 0x07 );
+        return( getPartitionType( ) == 0x07 );
+    }
+
+    /**
+     * checks if this partition is an extended partition container (DOS,
+     * Windows LBA or Linux extended)
+     * 
+     * @return true if it's extended, false otherwise
+     */
+    public boolean isExtended( ) {
+
+        int partitionType = getPartitionType( );
+        return( partitionType == 0x05 || partitionType == 0x0f || partitionType == 0x85 );
+    }
+
+    /**
+     * gets the first sector of the partition counted from the start of the
+     * disk, for logical partitions relativeSector counts from their EBR
+     * 
+     * @return the absolute first sector
+     */
+    public long getAbsoluteSector( ) {
+
+        return baseSector + getRelativeSector( );
     }
 
     /**
@@ -336,28 +429,28 @@ public class PartitionEntry {
         StringBuffer sb = new StringBuffer( );
         sb.append( "Is Bootable: " + isBootable( )
                 + System.getProperty( "line.separator" ) );
-        sb.append( "Begin Head: " + beginHead
+        sb.append( "Begin Head: " + getBeginHead( )
                 + System.getProperty( "line.separator" ) );
-        sb.append( "Begin Cylinder: " + getCylinder( beginCylinderSector )
+        sb.append( "Begin Cylinder: " + getBeginCylinder( )
                 + System.getProperty( "line.separator" ) );
-        sb.append( "Begin Sector: " + getSector( beginCylinderSector )
+        sb.append( "Begin Sector: " + getBeginSector( )
                 + System.getProperty( "line.separator" ) );
         sb.append( "Partition Type: " + "0x"
-                + Integer.toHexString( partitionType )
+                + Integer.toHexString( getPartitionType( ) )
                 + System.getProperty( "line.separator" ) );
-        sb.append( "End Head: " + endHead
+        sb.append( "End Head: " + getEndHead( )
                 + System.getProperty( "line.separator" ) );
-        sb.append( "End Cylinder: " + getCylinder( endCylinderSector )
+        sb.append( "End Cylinder: " + getEndCylinder( )
                 + System.getProperty( "line.separator" ) );
-        sb.append( "End Sector: " + getSector( endCylinderSector )
+        sb.append( "End Sector: " + getEndSector( )
                 + System.getProperty( "line.separator" ) );
-        sb.append( "Relative Sector: " + relativeSector
+        sb.append( "Relative Sector: " + getRelativeSector( )
                 + System.getProperty( "line.separator" ) );
-        sb.append( "Num Sectors: " + numSectors
+        sb.append( "Num Sectors: " + getNumSectors( )
                 + System.getProperty( "line.separator" ) );
         sb.append( "Num Heads: " + getNumHeads( )
                 + System.getProperty( "line.separator" ) );
-        sb.append( "Num Cylinders: " + numCylinders
+        sb.append( "Num Cylinders: " + getNumCylinders( )
                 + System.getProperty( "line.separator" ) );
 
         return sb.toString( );
@@ -370,6 +463,7 @@ public class PartitionEntry {
     public void setNumHeads( int numHeads ) {
 
         this.numHeads = numHeads;
+        this.numHeadsSet = true;
     }
 
     /**
@@ -377,7 +471,16 @@ public class PartitionEntry {
      */
     public int getNumHeads( ) {
 
-        return numHeads;
+        return numHeadsSet ? numHeads : getBeginHead( ) + getEndHead( );
+    }
+
+    /**
+     * @return the sum of the begin and end cylinders
+     */
+    private int getNumCylinders( ) {
+
+        return getCylinder( u16( BEGIN_CYL_SECTOR ) )
+                + getCylinder( u16( END_CYL_SECTOR ) );
     }
 
 }
@@ -0,0 +1,348 @@
+package segfault.raw2vmdk;
+
+/*
+ * AllocationMap.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * <p>Immutable map of the populated regions of an image.</p>
+ * <p>The image is divided in units of {@link #getGranularity()} bytes (a
+ * grain by default) and a unit is allocated unless it is all zeros. The map
+ * is built by memory-mapping chunks of the image on worker threads and
+ * comparing it eight bytes at a time, stopping at the first non-zero word of
+ * a unit; it costs a bit per unit and is read as runs of zero and non-zero
+ * units.<br/>
+ * The sparse writers take a map to skip zero runs without reading them.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public final class AllocationMap {
+
+    /**
+     * the default unit size, a grain
+     */
+    public static final int DEFAULT_GRANULARITY = (int) ( SparseExtentHeader.DEFAULT_GRAIN_SIZE
+            * SparseExtentHeader.SECTOR_SIZE );
+
+    /**
+     * units scanned by a single task, a multiple of 64 so that tasks fill
+     * whole words of the bit set
+     */
+    static final int        UNITS_PER_TASK      = 1024;
+
+    /**
+     * bytes per unit
+     */
+    private final int       granularity;
+
+    /**
+     * size of the image in bytes
+     */
+    private final long      size;
+
+    /**
+     * the units that aren't all zeros
+     */
+    private final BitSet    allocated;
+
+    /**
+     * A run of units that are either all zero or all allocated
+     */
+    public static final class Run {
+
+        /**
+         * byte offset of the run
+         */
+        public final long    offset;
+
+        /**
+         * length of the run in bytes
+         */
+        public final long    length;
+
+        /**
+         * true if the run holds data
+         */
+        public final boolean allocated;
+
+        Run( long offset, long length, boolean allocated ) {
+
+            this.offset    = offset;
+            this.length    = length;
+            this.allocated = allocated;
+        }
+
+        public String toString( ) {
+
+            return offset + " " + length + " " + ( allocated ? "data" : "zero" );
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    private AllocationMap( int granularity, long size, BitSet allocated ) {
+
+        this.granularity = granularity;
+        this.size        = size;
+        this.allocated   = allocated;
+    }
+
+    /**
+     * Scans an image for zero units
+     *
+     * @param image         the (possibly split) image, left open
+     * @param granularity   bytes per unit, a multiple of 8
+     * @param threads       the number of scanning threads
+     *
+     * @return  the map
+     *
+     * @throws IOException  on read errors
+     */
+    public static AllocationMap scan( final ImageReader image,
+            final int granularity, int threads ) throws IOException {
+
+        if( granularity <= 0 || granularity % 8 != 0 ) {
+            throw new IllegalArgumentException( "granularity must be a positive multiple of 8" );
+        }
+
+        long units = ( image.size( ) + granularity - 1 ) / granularity;
+        if( units > Integer.MAX_VALUE ) {
+            throw new IOException( "Image too large for a " + granularity
+                    + " byte granularity." );
+        }
+
+        final long[] words = new long[ (int) ( ( units + 63 ) / 64 ) ];
+        ExecutorService scanners = Executors.newFixedThreadPool( threads );
+        List<Future<Object>> pending = new ArrayList<Future<Object>>( );
+
+        try {
+            for( long unit = 0; unit < units; unit += UNITS_PER_TASK ) {
+                final long first = unit;
+                final long last = Math.min( units, unit + UNITS_PER_TASK );
+
+                pending.add( scanners.submit( new Callable<Object>( ) {
+
+                    public Object call( ) throws IOException {
+
+                        scanUnits( image, granularity, first, last, words );
+                        return null;
+                    }
+                } ) );
+            }
+
+            for( Future<Object> f: pending ) SparseVMDKWriter.await( f );
+        } finally {
+            scanners.shutdownNow( );
+        }
+
+        return new AllocationMap( granularity, image.size( ), BitSet.valueOf( words ) );
+    }
+
+    /**
+     * Scans a range of units, setting the bits of allocated ones in words
+     */
+    private static void scanUnits( ImageReader image, int granularity,
+            long first, long last, long[] words ) throws IOException {
+
+        long offset = first * granularity;
+        long end = Math.min( image.size( ), last * granularity );
+        long unit = first;
+
+        while( offset < end ) {
+            // mappings stop at segment ends, which may split a unit
+            ByteBuffer chunk = image.map( offset, (int) Math.min( end - offset,
+                    (long) UNITS_PER_TASK * granularity ) );
+            if( !chunk.hasRemaining( ) ) break;
+
+            int limit = chunk.limit( );
+            int pos = 0;
+            while( pos < limit ) {
+                long unitEnd = ( unit + 1 ) * granularity - offset;
+                int stop = (int) Math.min( limit, unitEnd );
+
+                if( !isZero( chunk, pos, stop ) ) {
+                    words[(int) ( unit >>> 6 )] |= 1L << ( unit & 63 );
+                }
+
+                pos = stop;
+                if( stop == unitEnd ) unit++;
+            }
+
+            offset += limit;
+        }
+    }
+
+    /**
+     * Checks if a range of a buffer is all zeros, a long at a time
+     */
+    static boolean isZero( ByteBuffer buf, int from, int to ) {
+
+        int i = from;
+        for( ; i + 8 <= to; i += 8 ) {
+            if( buf.getLong( i ) != 0 ) return false;
+        }
+        for( ; i < to; i++ ) {
+            if( buf.get( i ) != 0 ) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if any unit overlapping a byte range holds data
+     *
+     * @param offset    byte offset of the range
+     * @param length    length of the range in bytes
+     *
+     * @return  true if the range may hold data, false if it is all zeros
+     */
+    public boolean isAllocated( long offset, long length ) {
+
+        if( length <= 0 || offset >= size ) return false;
+
+        int first = (int) ( offset / granularity );
+        long last = ( Math.min( size, offset + length ) - 1 ) / granularity;
+        int next = allocated.nextSetBit( first );
+
+        return next >= 0 && next <= last;
+    }
+
+    /**
+     * Lists the runs of zero and non-zero units
+     *
+     * @return  the runs, in image order, covering the whole image
+     */
+    public List<Run> getRuns( ) {
+
+        List<Run> runs = new ArrayList<Run>( );
+        long units = ( size + granularity - 1 ) / granularity;
+
+        for( int unit = 0; unit < units; ) {
+            boolean data = allocated.get( unit );
+            int next = data ? allocated.nextClearBit( unit ) : allocated.nextSetBit( unit );
+            if( next < 0 || next > units ) next = (int) units;
+
+            long offset = (long) unit * granularity;
+            runs.add( new Run( offset, Math.min( size, (long) next * granularity ) - offset, data ) );
+            unit = next;
+        }
+
+        return runs;
+    }
+
+    /**
+     * Writes the runs as text, one "offset length data|zero" line each
+     *
+     * @param out   where to write them
+     *
+     * @throws IOException  on write errors
+     */
+    public void write( Writer out ) throws IOException {
+
+        String eol = System.getProperty( "line.separator" );
+
+        out.write( "# offset length data|zero, in bytes, " + granularity
+                + " byte units" + eol );
+        for( Run run: getRuns( ) ) {
+            out.write( run + eol );
+        }
+    }
+
+    /**
+     * @return bytes per unit
+     */
+    public int getGranularity( ) {
+
+        return granularity;
+    }
+
+    /**
+     * @return size of the image in bytes
+     */
+    public long getSize( ) {
+
+        return size;
+    }
+
+    /**
+     * @return bytes in units holding data
+     */
+    public long getAllocatedBytes( ) {
+
+        long bytes = (long) allocated.cardinality( ) * granularity;
+
+        // the last unit may be short
+        long units = ( size + granularity - 1 ) / granularity;
+        if( units > 0 && allocated.get( (int) ( units - 1 ) ) ) {
+            bytes -= units * granularity - size;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * @return bytes in all-zero units
+     */
+    public long getZeroBytes( ) {
+
+        return size - getAllocatedBytes( );
+    }
+
+    /**
+     * @return number of runs of zero and non-zero units
+     */
+    public int getRunCount( ) {
+
+        int runs = 0;
+        long units = ( size + granularity - 1 ) / granularity;
+
+        for( int unit = 0; unit < units; runs++ ) {
+            int next = allocated.get( unit ) ? allocated.nextClearBit( unit )
+                    : allocated.nextSetBit( unit );
+            unit = next < 0 ? (int) units : next;
+        }
+
+        return runs;
+    }
+
+    public String toString( ) {
+
+        long data = getAllocatedBytes( );
+
+        return data + " of " + size + " bytes allocated ("
+                + ( size == 0 ? 0 : data * 100 / size ) + "%) in "
+                + getRunCount( ) + " runs";
+    }
+}
@@ -0,0 +1,414 @@
+package segfault.raw2vmdk;
+
+/*
+ * AnalysisCache.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Cache of analysed images.</p>
+ * <p>Remembers the geometry and partition table found for every image along
+ * with the identity of the image at the time, so an image that didn't change
+ * since isn't analysed again. Entries are kept in memory by path and, if the
+ * cache has a file, appended to it as one tab separated line each; a later
+ * line for the same path supersedes the earlier ones, so the file survives
+ * being killed mid-write and restarts pick up where they left off.</p>
+ * <p>The watch folder keeps one in its output directory, -Dindex=&lt;file&gt;
+ * hands one to the {@link Converter} of any mode. Loading reads the file
+ * once into a hash map, so checking an archive costs one lookup and one
+ * sector read per image; a file holding more superseded lines than live
+ * ones is compacted on load.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public class AnalysisCache {
+
+    private static final Charset UTF8   = Charset.forName( "UTF-8" );
+
+    /**
+     * number of fields of a line
+     */
+    private static final int     FIELDS = 11;
+
+    /**
+     * <p>Analysis of a single image.</p>
+     */
+    public static final class Entry {
+
+        private final ImageIdentity identity;
+
+        private final String        diskType;
+
+        private final String        vmdk;
+
+        private final long          numOfSectors;
+
+        private final long          numOfCylinders;
+
+        private final int           headsPerTrack;
+
+        private final long          sectorsPerTrack;
+
+        private final String        partitionTable;
+
+        /**
+         * Constructor
+         *
+         * @param identity  the image as it was analysed
+         * @param result    the successful outcome of its conversion
+         */
+        public Entry( ImageIdentity identity, ConversionResult result ) {
+
+            this( identity, result.getRequest( ).getDiskType( ),
+                    result.getRequest( ).getOutFile( ), result.getNumOfSectors( ), result.getNumOfCylinders( ),
+                    result.getHeadsPerTrack( ), result.getSectorsPerTrack( ),
+                    result.getPartitionTable( ) );
+        }
+
+        /**
+         * Constructor
+         *
+         * @param identity          the image as it was analysed
+         * @param diskType          the adapter type the geometry is for
+         * @param vmdk              the VMDK file written, empty if none
+         * @param numOfSectors      total number of sectors
+         * @param numOfCylinders    total number of cylinders
+         * @param headsPerTrack     heads per track
+         * @param sectorsPerTrack   sectors per track
+         * @param partitionTable    summary of the partition table
+         */
+        Entry( ImageIdentity identity, String diskType, String vmdk,
+                long numOfSectors, long numOfCylinders, int headsPerTrack,
+                long sectorsPerTrack, String partitionTable ) {
+
+            this.identity        = identity;
+            this.diskType        = diskType;
+            this.vmdk            = vmdk;
+            this.numOfSectors    = numOfSectors;
+            this.numOfCylinders  = numOfCylinders;
+            this.headsPerTrack   = headsPerTrack;
+            this.sectorsPerTrack = sectorsPerTrack;
+            this.partitionTable  = partitionTable;
+        }
+
+        /**
+         * @return the image as it was analysed
+         */
+        public ImageIdentity getIdentity( ) {
+
+            return identity;
+        }
+
+        /**
+         * @return the adapter type the geometry is for, the geometry of GPT
+         *         disks depends on it
+         */
+        public String getDiskType( ) {
+
+            return diskType;
+        }
+
+        /**
+         * @return the VMDK file written for the image, null if it was only
+         *         analysed
+         */
+        public File getVmdk( ) {
+
+            return vmdk.length( ) == 0 ? null : new File( vmdk );
+        }
+
+        /**
+         * @return total number of sectors
+         */
+        public long getNumOfSectors( ) {
+
+            return numOfSectors;
+        }
+
+        /**
+         * @return total number of cylinders
+         */
+        public long getNumOfCylinders( ) {
+
+            return numOfCylinders;
+        }
+
+        /**
+         * @return heads per track
+         */
+        public int getHeadsPerTrack( ) {
+
+            return headsPerTrack;
+        }
+
+        /**
+         * @return sectors per track
+         */
+        public long getSectorsPerTrack( ) {
+
+            return sectorsPerTrack;
+        }
+
+        /**
+         * @return summary of the partition table
+         */
+        public String getPartitionTable( ) {
+
+            return partitionTable;
+        }
+
+        public String toString( ) {
+
+            return identity.getPath( ) + " [" + numOfSectors + " sectors, "
+                    + numOfCylinders + "/" + headsPerTrack + "/"
+                    + sectorsPerTrack + " C/H/S]";
+        }
+    }
+
+    /**
+     * latest entry of every image by path
+     */
+    private final ConcurrentHashMap<String, Entry> entries =
+            new ConcurrentHashMap<String, Entry>( );
+
+    /**
+     * the file entries are appended to, null if only kept in memory
+     */
+    private final File   file;
+
+    /**
+     * open appender of the file
+     */
+    private Writer       out;
+
+    /**
+     * Constructor <br/>
+     * Creates a cache kept in memory only.
+     */
+    public AnalysisCache( ) {
+
+        this.file = null;
+    }
+
+    /**
+     * Constructor <br/>
+     * Loads the entries of a cache file, which is created on the first record
+     * if missing. Unreadable lines, i.e. the last one after a crash, are
+     * skipped, and a file not ending in a complete line is compacted so that
+     * new entries aren't appended to the torn one.
+     *
+     * @param file  the cache file
+     *
+     * @throws IOException  if the file exists but can't be read
+     */
+    public AnalysisCache( File file ) throws IOException {
+
+        this.file = file;
+        if( !file.isFile( ) ) return;
+
+        int lines = 0;
+        try( BufferedReader in = new BufferedReader( new InputStreamReader(
+                new FileInputStream( file ), UTF8 ) ) ) {
+
+            String line;
+            while( ( line = in.readLine( ) ) != null ) {
+                lines++;
+                Entry entry = parse( line );
+                if( entry != null ) {
+                    entries.put( entry.identity.getPath( ), entry );
+                }
+            }
+        }
+
+        if( lines > 2 * entries.size( ) || isTorn( file ) ) {
+            compact( );
+        }
+    }
+
+    /**
+     * Looks up the analysis of an image
+     *
+     * @param identity  the image as it is now
+     *
+     * @return  the entry, null if the image wasn't analysed or changed since
+     */
+    public Entry lookup( ImageIdentity identity ) {
+
+        Entry entry = entries.get( identity.getPath( ) );
+
+        return entry != null && entry.identity.equals( identity ) ? entry : null;
+    }
+
+    /**
+     * Records the analysis of an image, replacing any earlier one
+     *
+     * @param entry the analysis
+     *
+     * @throws IOException  if the entry can't be appended to the file
+     */
+    public void record( Entry entry ) throws IOException {
+
+        entries.put( entry.identity.getPath( ), entry );
+        if( file == null ) return;
+
+        String line = format( entry );
+        synchronized( this ) {
+            if( out == null ) {
+                out = new OutputStreamWriter( new FileOutputStream( file, true ),
+                        UTF8 );
+            }
+            out.write( line );
+            out.flush( );
+        }
+    }
+
+    /**
+     * @return the number of images in the cache
+     */
+    public int size( ) {
+
+        return entries.size( );
+    }
+
+    /**
+     * Closes the cache file
+     *
+     * @throws IOException  on write errors
+     */
+    public synchronized void close( ) throws IOException {
+
+        if( out != null ) {
+            out.close( );
+            out = null;
+        }
+    }
+
+    /**
+     * Rewrites the cache file with the live entries only, replacing it
+     * atomically so a crash leaves either file intact
+     */
+    private void compact( ) throws IOException {
+
+        File tmp = new File( file.getPath( ) + ".tmp" );
+
+        try( Writer w = new OutputStreamWriter( new FileOutputStream( tmp ),
+                UTF8 ) ) {
+            for( Entry entry: entries.values( ) ) {
+                w.write( format( entry ) );
+            }
+        }
+
+        Files.move( tmp.toPath( ), file.toPath( ),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    /**
+     * Checks if a file ends in a partly written line
+     */
+    private static boolean isTorn( File file ) throws IOException {
+
+        try( RandomAccessFile in = new RandomAccessFile( file, "r" ) ) {
+            if( in.length( ) == 0 ) return false;
+
+            in.seek( in.length( ) - 1 );
+            return in.read( ) != '\n';
+        }
+    }
+
+    /**
+     * Formats an entry as a line of the cache file
+     */
+    private static String format( Entry e ) {
+
+        ImageIdentity id = e.identity;
+
+        return escape( id.getPath( ) ) + '\t' + id.getSize( ) + '\t'
+                + id.getMtime( ) + '\t' + id.getFingerprint( ) + '\t'
+                + e.diskType + '\t' + escape( e.vmdk ) + '\t'
+                + e.numOfSectors + '\t' + e.numOfCylinders + '\t'
+                + e.headsPerTrack + '\t' + e.sectorsPerTrack + '\t'
+                + escape( e.partitionTable ) + '\n';
+    }
+
+    /**
+     * Parses a line of the cache file
+     *
+     * @return  the entry, null if the line is malformed
+     */
+    private static Entry parse( String line ) {
+
+        String[] f = line.split( "\t", -1 );
+        if( f.length != FIELDS ) return null;
+
+        try {
+            ImageIdentity id = new ImageIdentity( unescape( f[0] ),
+                    Long.parseLong( f[1] ), Long.parseLong( f[2] ), f[3] );
+
+            return new Entry( id, f[4], unescape( f[5] ), Long.parseLong( f[6] ),
+                    Long.parseLong( f[7] ), Integer.parseInt( f[8] ),
+                    Long.parseLong( f[9] ), unescape( f[10] ) );
+        } catch( IllegalArgumentException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Escapes the backslashes, tabs and line breaks of a field
+     */
+    private static String escape( String s ) {
+
+        return s.replace( "\\", "\\\\" ).replace( "\t", "\\t" )
+                .replace( "\n", "\\n" ).replace( "\r", "\\r" );
+    }
+
+    /**
+     * Reverses {@link #escape(String)}
+     */
+    private static String unescape( String s ) {
+
+        StringBuilder sb = new StringBuilder( s.length( ) );
+        for( int i = 0; i < s.length( ); i++ ) {
+            char c = s.charAt( i );
+            if( c != '\\' || i + 1 == s.length( ) ) {
+                sb.append( c );
+                continue;
+            }
+
+            c = s.charAt( ++i );
+            sb.append( c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c );
+        }
+
+        return sb.toString( );
+    }
+}
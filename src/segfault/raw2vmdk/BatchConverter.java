@@ -0,0 +1,328 @@
+package segfault.raw2vmdk;
+
+/*
+ * BatchConverter.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>Batch driver.</p>
+ * <p>Converts a whole set of raw images inside a single JVM using a bounded
+ * pool of worker threads.<br/>
+ * The set of images can be given as a directory, a glob (i.e. /evidence/*.dd)
+ * or a manifest file holding one image path per line.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.Raw2VMDK
+ */
+public class BatchConverter {
+
+    /**
+     * Exit status when one or more images failed to convert
+     */
+    static final int EXIT_PARTIAL_FAILURE = 5;
+
+    /**
+     * The options used for all images, its image and output are ignored
+     */
+    private final ConversionRequest options;
+
+    /**
+     * The maximum number of images converted at the same time
+     */
+    private final int               threads;
+
+    /**
+     * The converter shared by all workers
+     */
+    private final Converter         converter;
+
+    /**
+     * Constructor
+     *
+     * @param converter the converter shared by all workers
+     * @param diskType  the VMDK adapter type
+     * @param format    the output format
+     * @param threads   the number of worker threads
+     */
+    public BatchConverter( Converter converter, String diskType, String format,
+            int threads ) {
+
+        this( converter, new ConversionRequest( "", "", null, diskType )
+                .withFormat( format ), threads );
+    }
+
+    /**
+     * Constructor
+     *
+     * @param converter the converter shared by all workers
+     * @param options   the adapter type, format, hashing... of all images;
+     *                  its image and output are ignored
+     * @param threads   the number of worker threads
+     */
+    public BatchConverter( Converter converter, ConversionRequest options,
+            int threads ) {
+
+        this.converter = converter;
+        this.options   = options;
+        this.threads   = threads;
+    }
+
+    /**
+     * Converts every image in the source and writes the .vmdk files in outDir.
+     *
+     * @param source    a directory, a glob or a manifest file
+     * @param outDir    the directory to write the .vmdk files to
+     *
+     * @return  the aggregated exit status, 0 if all images were converted
+     */
+    public int run( String source, String outDir ) {
+
+        List<File> images;
+        try {
+            images = collectImages( source );
+        } catch( IOException e ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: " + e.getMessage( ) );
+            return 3;
+        }
+
+        File out = new File( outDir );
+        if( !out.isDirectory( ) && !out.mkdirs( ) ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: Could not create output directory " + outDir );
+            return 4;
+        }
+
+        System.out.println( "Converting " + images.size( ) + " images using "
+                + threads + " threads..." );
+        System.out.println( );
+
+        ExecutorService pool = Executors.newFixedThreadPool( threads );
+        List<Future<ConversionResult>> results =
+                new ArrayList<Future<ConversionResult>>( );
+        Set<String> outNames = new HashSet<String>( );
+
+        for( File image: images ) {
+            // two images with the same base name would overwrite each other
+            if( !outNames.add( outName( image, options.getFormat( ) ) ) ) {
+                results.add( pool.submit( duplicate( image ) ) );
+                continue;
+            }
+            results.add( pool.submit( task( image, out ) ) );
+        }
+        pool.shutdown( );
+
+        int failed = 0;
+        for( int i = 0; i < results.size( ); i++ ) {
+            try {
+                ConversionResult result = results.get( i ).get( );
+
+                if( result.isSuccess( ) ) {
+                    System.out.println( "[OK] " + result );
+                } else {
+                    failed++;
+                    System.out.println( "[FAILED] " + result );
+                }
+            } catch( ExecutionException e ) {
+                failed++;
+                System.out.println( "[FAILED] " + images.get( i ) + ": "
+                        + e.getCause( ).getMessage( ) );
+            } catch( InterruptedException e ) {
+                pool.shutdownNow( );
+                Thread.currentThread( ).interrupt( );
+                return 1;
+            }
+        }
+
+        System.out.println( );
+        System.out.println( ( images.size( ) - failed ) + " converted, "
+                + failed + " failed." );
+
+        return failed == 0 ? 0 : EXIT_PARTIAL_FAILURE;
+    }
+
+    /**
+     * Creates the conversion task of a single image
+     *
+     * @param image     the raw image
+     * @param outDir    the directory to write the .vmdk file to
+     *
+     * @return  a task returning the outcome of the conversion
+     */
+    private Callable<ConversionResult> task( File image, File outDir ) {
+
+        final ConversionRequest request = options.forImage( image.getPath( ),
+                new File( outDir, outName( image, options.getFormat( ) ) ).getPath( ),
+                image.getAbsolutePath( ) );
+
+        return new Callable<ConversionResult>( ) {
+
+            public ConversionResult call( ) {
+
+                return converter.convert( request );
+            }
+        };
+    }
+
+    /**
+     * Creates a task failing an image whose .vmdk name is already taken
+     *
+     * @param image     the raw image
+     *
+     * @return  a task that always fails
+     */
+    private Callable<ConversionResult> duplicate( final File image ) {
+
+        return new Callable<ConversionResult>( ) {
+
+            public ConversionResult call( ) throws Exception {
+
+                throw new IOException( "Another image already writes to "
+                        + outName( image, options.getFormat( ) ) );
+            }
+        };
+    }
+
+    /**
+     * Derives the name of the .vmdk file from the name of the image
+     *
+     * @param image the raw image
+     *
+     * @return  the image name with its extension replaced by .vmdk, along
+     *          with the .gz or .zst of compressed images
+     */
+    static String vmdkName( File image ) {
+
+        String name = image.getName( );
+        if( name.endsWith( ".gz" ) || name.endsWith( ".zst" ) ) {
+            name = name.substring( 0, name.lastIndexOf( '.' ) );
+        }
+        int dot = name.lastIndexOf( '.' );
+
+        return ( dot > 0 ? name.substring( 0, dot ) : name ) + ".vmdk";
+    }
+
+    /**
+     * Derives the name of the output file from the name of the image
+     *
+     * @param image     the raw image
+     * @param format    the output format
+     *
+     * @return  the image name with its extension replaced by .qcow2 for
+     *          QCOW2 images, .vmdk otherwise
+     */
+    static String outName( File image, String format ) {
+
+        String vmdk = vmdkName( image );
+
+        return format.equals( ConversionRequest.FORMAT_QCOW2 )
+                ? vmdk.substring( 0, vmdk.length( ) - 5 ) + ".qcow2" : vmdk;
+    }
+
+    /**
+     * Expands the batch source to the list of images to convert
+     *
+     * @param source    a directory, a glob or a manifest file
+     *
+     * @return  the images, in a stable order
+     *
+     * @throws IOException  if the source can not be read
+     */
+    static List<File> collectImages( String source ) throws IOException {
+
+        File src = new File( source );
+        List<File> images = new ArrayList<File>( );
+
+        if( src.isDirectory( ) ) {
+            // every regular file in the directory except our own output and
+            // the later segments of split images
+            for( File f: listFiles( src ) ) {
+                if( f.isFile( ) && !f.getName( ).endsWith( ".vmdk" )
+                        && !f.getName( ).endsWith( ".qcow2" )
+                        && !SegmentSet.isContinuation( f ) ) {
+                    images.add( f );
+                }
+            }
+        } else if( src.isFile( ) ) {
+            // manifest, one image per line, '#' starts a comment
+            BufferedReader reader = new BufferedReader( new FileReader( src ) );
+            try {
+                String line;
+                while( ( line = reader.readLine( ) ) != null ) {
+                    line = line.trim( );
+                    if( line.length( ) == 0 || line.startsWith( "#" ) ) continue;
+                    images.add( new File( line ) );
+                }
+            } finally {
+                reader.close( );
+            }
+        } else {
+            // glob, matched against the files of its parent directory
+            File dir = src.getParentFile( ) != null ? src.getParentFile( )
+                    : new File( "." );
+            PathMatcher matcher = FileSystems.getDefault( ).getPathMatcher(
+                    "glob:" + src.getName( ) );
+
+            for( File f: listFiles( dir ) ) {
+                Path name = f.toPath( ).getFileName( );
+                if( f.isFile( ) && matcher.matches( name )
+                        && !SegmentSet.isContinuation( f ) ) {
+                    images.add( f );
+                }
+            }
+
+            if( images.isEmpty( ) ) {
+                throw new IOException( "No images match " + source );
+            }
+        }
+
+        return images;
+    }
+
+    /**
+     * Lists the files of a directory sorted by name
+     *
+     * @param dir   the directory
+     *
+     * @return  the sorted files
+     *
+     * @throws IOException  if the directory can not be listed
+     */
+    private static File[] listFiles( File dir ) throws IOException {
+
+        File[] files = dir.listFiles( );
+        if( files == null ) {
+            throw new IOException( "Could not list directory " + dir );
+        }
+
+        Arrays.sort( files );
+        return files;
+    }
+}
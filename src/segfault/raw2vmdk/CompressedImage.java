@@ -0,0 +1,430 @@
+package segfault.raw2vmdk;
+
+/*
+ * CompressedImage.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.zip.GZIPInputStream;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * <p>A raw image compressed with gzip or zstd, decompressed as a stream.</p>
+ * <p>The image is never decompressed to disk: the first {@link #HEAD_SIZE}
+ * decompressed bytes are kept in memory, so the MBR and GPT can be read
+ * through {@link #head()} before the rest is streamed, and
+ * {@link #getStream()} yields the whole image once, head included.<br/>
+ * gzip is inflated by the JDK; zstd, which the JDK lacks, by the external
+ * "zstd" program, on a process of its own. The size recorded by the stream
+ * (the ISIZE trailer of gzip, modulo 2^32, or the content size of the first
+ * zstd frame) is only a hint: the image is as long as its decompressed
+ * bytes.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public class CompressedImage implements Closeable {
+
+    public static final String GZIP      = "gzip";
+
+    public static final String ZSTD      = "zstd";
+
+    /**
+     * decompressed bytes kept for the partition tables, enough for a GPT
+     */
+    static final int           HEAD_SIZE = 1024 * 1024;
+
+    /**
+     * the compressed file
+     */
+    private final File         file;
+
+    /**
+     * GZIP or ZSTD
+     */
+    private final String       compression;
+
+    /**
+     * the external decompressor, null if inflated in process
+     */
+    private final Process      process;
+
+    /**
+     * the decompressed bytes following the head
+     */
+    private final InputStream  rest;
+
+    /**
+     * the size recorded by the stream, -1 if unknown
+     */
+    private final long         sizeHint;
+
+    /**
+     * the first decompressed bytes
+     */
+    private final byte[]       head;
+
+    /**
+     * the number of bytes in head, less than HEAD_SIZE for small images
+     */
+    private int                headLength;
+
+    /**
+     * Constructor
+     */
+    private CompressedImage( File file, String compression, Process process,
+            InputStream decompressed, long sizeHint ) throws IOException {
+
+        this.file        = file;
+        this.compression = compression;
+        this.process     = process;
+        this.rest        = new Checked( decompressed );
+        this.sizeHint    = sizeHint;
+        this.head        = new byte[ HEAD_SIZE ];
+
+        while( headLength < head.length ) {
+            int n = rest.read( head, headLength, head.length - headLength );
+            if( n < 0 ) break;
+            headLength += n;
+        }
+    }
+
+    /**
+     * Opens a compressed image and decompresses its head
+     *
+     * @param file  the compressed image
+     *
+     * @return  the image, positioned at its start
+     *
+     * @throws IOException  if the file isn't compressed or can't be
+     *                      decompressed
+     */
+    public static CompressedImage open( File file ) throws IOException {
+
+        String compression = compressionOf( file );
+
+        if( GZIP.equals( compression ) ) {
+            InputStream in = new FileInputStream( file );
+            try {
+                return new CompressedImage( file, compression, null,
+                        new GZIPInputStream( in, 64 * 1024 ), gzipSize( file ) );
+            } catch( IOException e ) {
+                in.close( );
+                throw e;
+            }
+        }
+
+        if( ZSTD.equals( compression ) ) {
+            Process process;
+            try {
+                process = new ProcessBuilder( "zstd", "-dcq", "--", file.getPath( ) )
+                        .redirectError( ProcessBuilder.Redirect.INHERIT ).start( );
+            } catch( IOException e ) {
+                throw new IOException( "zstd is needed to read " + file
+                        + ": " + e.getMessage( ) );
+            }
+
+            try {
+                return new CompressedImage( file, compression, process,
+                        new BufferedInputStream( process.getInputStream( ), 64 * 1024 ),
+                        zstdSize( file ) );
+            } catch( IOException e ) {
+                process.destroy( );
+                throw e;
+            }
+        }
+
+        throw new IOException( file + " is neither gzip nor zstd compressed." );
+    }
+
+    /**
+     * Tells whether a file is a compressed image, from its magic number
+     *
+     * @param file  the file
+     *
+     * @return  true for gzip and zstd files
+     */
+    public static boolean isCompressed( File file ) {
+
+        try {
+            return file.isFile( ) && compressionOf( file ) != null;
+        } catch( IOException e ) {
+            return false;
+        }
+    }
+
+    /**
+     * Identifies the compression of a file from its magic number
+     *
+     * @param file  the file
+     *
+     * @return  GZIP, ZSTD or null if neither
+     *
+     * @throws IOException  if the file can't be read
+     */
+    static String compressionOf( File file ) throws IOException {
+
+        byte[] magic = new byte[ 4 ];
+        try( RandomAccessFile in = new RandomAccessFile( file, "r" ) ) {
+            if( in.length( ) < magic.length ) return null;
+            in.readFully( magic );
+        }
+
+        if( ( magic[0] & 0xFF ) == 0x1F && ( magic[1] & 0xFF ) == 0x8B ) {
+            return GZIP;
+        }
+
+        if( ( magic[0] & 0xFF ) == 0x28 && ( magic[1] & 0xFF ) == 0xB5
+                && ( magic[2] & 0xFF ) == 0x2F && ( magic[3] & 0xFF ) == 0xFD ) {
+            return ZSTD;
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the ISIZE trailer of a gzip file, the size of its last member
+     * modulo 2^32
+     */
+    private static long gzipSize( File file ) throws IOException {
+
+        try( RandomAccessFile in = new RandomAccessFile( file, "r" ) ) {
+            if( in.length( ) < 18 ) return -1;
+
+            byte[] isize = new byte[ 4 ];
+            in.seek( in.length( ) - 4 );
+            in.readFully( isize );
+
+            return littleEndian( isize, 0, 4 );
+        }
+    }
+
+    /**
+     * Gets the content size from the header of the first zstd frame
+     */
+    private static long zstdSize( File file ) throws IOException {
+
+        byte[] frame = new byte[ 18 ];
+        try( RandomAccessFile in = new RandomAccessFile( file, "r" ) ) {
+            in.readFully( frame, 0, (int) Math.min( frame.length, in.length( ) ) );
+        }
+
+        int descriptor = frame[4] & 0xFF;
+        boolean singleSegment = ( descriptor & 0x20 ) != 0;
+        int fcsFlag = descriptor >> 6;
+        int[] dictionaryIdSizes = { 0, 1, 2, 4 };
+        int[] fcsSizes = { singleSegment ? 1 : 0, 2, 4, 8 };
+
+        int offset = 5 + ( singleSegment ? 0 : 1 )
+                + dictionaryIdSizes[descriptor & 0x3];
+        int length = fcsSizes[fcsFlag];
+        if( length == 0 ) return -1;
+
+        long size = littleEndian( frame, offset, length );
+        return length == 2 ? size + 256 : size;
+    }
+
+    private static long littleEndian( byte[] bytes, int offset, int length ) {
+
+        long value = 0;
+        for( int i = length - 1; i >= 0; i-- ) {
+            value = value << 8 | ( bytes[offset + i] & 0xFF );
+        }
+
+        return value;
+    }
+
+    /**
+     * Reads the head of the image, i.e. for the partition tables
+     *
+     * @return  a reader of the first decompressed bytes only, its size is
+     *          that of the head
+     *
+     * @throws IOException  if the reader can't be created
+     */
+    public ImageReader head( ) throws IOException {
+
+        return new ImageReader( file, new HeadChannel(
+                ByteBuffer.wrap( head, 0, headLength ).slice( ) ) );
+    }
+
+    /**
+     * Gets the decompressed image, to be read once
+     *
+     * @return  the whole image from its first byte; its end fails if the
+     *          external decompressor did
+     */
+    public InputStream getStream( ) {
+
+        return new SequenceInputStream(
+                new ByteArrayInputStream( head, 0, headLength ), rest );
+    }
+
+    /**
+     * @return  GZIP or ZSTD
+     */
+    public String getCompression( ) {
+
+        return compression;
+    }
+
+    /**
+     * @return  the size recorded by the stream, -1 if unknown; a hint only,
+     *          i.e. gzip records it modulo 2^32
+     */
+    public long getSizeHint( ) {
+
+        return sizeHint;
+    }
+
+    /**
+     * Closes the stream and stops the external decompressor
+     */
+    public void close( ) throws IOException {
+
+        try {
+            rest.close( );
+        } finally {
+            if( process != null ) process.destroy( );
+        }
+    }
+
+    /**
+     * The decompressed bytes, ending in an error if the external
+     * decompressor failed
+     */
+    private class Checked extends FilterInputStream {
+
+        Checked( InputStream in ) {
+
+            super( in );
+        }
+
+        public int read( ) throws IOException {
+
+            int b = super.read( );
+            if( b < 0 ) checkExit( );
+            return b;
+        }
+
+        public int read( byte[] b, int off, int len ) throws IOException {
+
+            int n = super.read( b, off, len );
+            if( n < 0 ) checkExit( );
+            return n;
+        }
+
+        private void checkExit( ) throws IOException {
+
+            if( process == null ) return;
+
+            try {
+                int status = process.waitFor( );
+                if( status != 0 ) {
+                    throw new IOException( "zstd failed to decompress " + file
+                            + " (exit status " + status + ")." );
+                }
+            } catch( InterruptedException e ) {
+                Thread.currentThread( ).interrupt( );
+                throw new IOException( "Interrupted while decompressing." );
+            }
+        }
+    }
+
+    /**
+     * A read-only channel over the head of the image
+     */
+    private static class HeadChannel implements SeekableByteChannel {
+
+        private final ByteBuffer bytes;
+
+        private long             position;
+
+        private boolean          open = true;
+
+        HeadChannel( ByteBuffer bytes ) {
+
+            this.bytes = bytes;
+        }
+
+        public int read( ByteBuffer dst ) {
+
+            if( position >= bytes.limit( ) ) return -1;
+
+            ByteBuffer src = bytes.duplicate( );
+            src.position( (int) position );
+            if( src.remaining( ) > dst.remaining( ) ) {
+                src.limit( src.position( ) + dst.remaining( ) );
+            }
+
+            int n = src.remaining( );
+            dst.put( src );
+            position += n;
+            return n;
+        }
+
+        public int write( ByteBuffer src ) {
+
+            throw new NonWritableChannelException( );
+        }
+
+        public long position( ) {
+
+            return position;
+        }
+
+        public SeekableByteChannel position( long newPosition ) {
+
+            position = newPosition;
+            return this;
+        }
+
+        public long size( ) {
+
+            return bytes.limit( );
+        }
+
+        public SeekableByteChannel truncate( long size ) {
+
+            throw new NonWritableChannelException( );
+        }
+
+        public boolean isOpen( ) {
+
+            return open;
+        }
+
+        public void close( ) {
+
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package segfault.raw2vmdk;
+
+/*
+ * ConversionRequest.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.File;
+
+/**
+ * <p>Immutable description of a single raw image to VMDK conversion.</p>
+ * <p>Passed to {@link Converter#convert(ConversionRequest)}; it holds no
+ * state of its own so it can be handed between threads freely.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.Converter
+ */
+public final class ConversionRequest {
+
+    /**
+     * a monolithicFlat descriptor pointing at the raw image
+     */
+    public static final String FORMAT_FLAT   = "flat";
+
+    /**
+     * a monolithicSparse VMDK holding the non-zero grains of the image
+     */
+    public static final String FORMAT_SPARSE = "sparse";
+
+    /**
+     * a streamOptimized VMDK holding the deflated non-zero grains
+     */
+    public static final String FORMAT_STREAM = "streamOptimized";
+
+    /**
+     * a QCOW2 image using the raw image as its external data file
+     */
+    public static final String FORMAT_QCOW2  = "qcow2";
+
+    /**
+     * The supported output formats
+     */
+    static final String[]      FORMATS       = { FORMAT_FLAT, FORMAT_SPARSE,
+            FORMAT_STREAM, FORMAT_QCOW2 };
+
+    /**
+     *  the location of the raw image
+     */
+    private final String rawImageLocation;
+
+    /**
+     *  where to write the .vmdk file
+     */
+    private final String outFile;
+
+    /**
+     *  the location of the raw image as written to the VMDK
+     */
+    private final String rawImageLocationInVmdk;
+
+    /**
+     *  the VMDK adapter type
+     */
+    private final String diskType;
+
+    /**
+     *  the output format, one of {@link #FORMATS}
+     */
+    private final String format;
+
+    /**
+     *  the hash algorithms to record in the VMDK, none by default
+     */
+    private final String[] hashes;
+
+    /**
+     *  true for parallel tree digests instead of plain ones
+     */
+    private final boolean treeHash;
+
+    /**
+     *  true to write a {@link MerkleSidecar} next to the VMDK
+     */
+    private final boolean merkle;
+
+    /**
+     *  true to scan the image for zero regions before writing
+     */
+    private final boolean scan;
+
+    /**
+     *  the partition to describe as a disk of its own, 0 for the whole disk
+     */
+    private final int     partition;
+
+    /**
+     *  true to write the descriptor read-only along with a delta disk
+     */
+    private final boolean snapshot;
+
+    /**
+     * Constructor <br/>
+     * The image is referenced in the VMDK by rawImageLocation and the
+     * adapter type defaults to "ide".
+     *
+     * @param rawImageLocation  the location of the raw image
+     * @param outFile           where to write the .vmdk file
+     */
+    public ConversionRequest( String rawImageLocation, String outFile ) {
+
+        this( rawImageLocation, outFile, rawImageLocation, "ide" );
+    }
+
+    /**
+     * Constructor
+     *
+     * @param rawImageLocation          the location of the raw image
+     * @param outFile                   where to write the .vmdk file
+     * @param rawImageLocationInVmdk    the image location to write in the VMDK
+     * @param diskType                  the VMDK adapter type
+     */
+    public ConversionRequest( String rawImageLocation, String outFile,
+            String rawImageLocationInVmdk, String diskType ) {
+
+        this( rawImageLocation, outFile, rawImageLocationInVmdk, diskType,
+                FORMAT_FLAT, new String[ 0 ], false, false, false, 0, false );
+    }
+
+    /**
+     * Constructor
+     */
+    private ConversionRequest( String rawImageLocation, String outFile,
+            String rawImageLocationInVmdk, String diskType, String format,
+            String[] hashes, boolean treeHash, boolean merkle, boolean scan,
+            int partition, boolean snapshot ) {
+
+        if( rawImageLocation == null || outFile == null ) {
+            throw new IllegalArgumentException( "image and output file are required" );
+        }
+
+        this.rawImageLocation       = rawImageLocation;
+        this.outFile                = outFile;
+        this.rawImageLocationInVmdk = rawImageLocationInVmdk != null
+                ? rawImageLocationInVmdk : rawImageLocation;
+        this.diskType               = diskType != null ? diskType : "ide";
+        this.format                 = format != null ? format : FORMAT_FLAT;
+        this.hashes                 = hashes != null ? hashes.clone( )
+                : new String[ 0 ];
+        this.treeHash               = treeHash;
+        this.merkle                 = merkle;
+        this.scan                   = scan;
+        this.partition              = partition;
+        this.snapshot               = snapshot;
+    }
+
+    /**
+     * Creates a copy of this request with another output format
+     *
+     * @param format    one of {@link #FORMATS}
+     *
+     * @return  the new request
+     */
+    public ConversionRequest withFormat( String format ) {
+
+        return new ConversionRequest( rawImageLocation, outFile,
+                rawImageLocationInVmdk, diskType, format, hashes, treeHash,
+                merkle, scan, partition, snapshot );
+    }
+
+    /**
+     * Creates a copy of this request with another adapter type
+     *
+     * @param diskType  the VMDK adapter type
+     *
+     * @return  the new request
+     */
+    public ConversionRequest withDiskType( String diskType ) {
+
+        return new ConversionRequest( rawImageLocation, outFile,
+                rawImageLocationInVmdk, diskType, format, hashes, treeHash,
+                merkle, scan, partition, snapshot );
+    }
+
+    /**
+     * Creates a copy of this request hashing the image
+     *
+     * @param hashes    the algorithms, see {@link ImageHasher#parseAlgorithms(String)}
+     * @param treeHash  true for parallel tree digests instead of plain ones
+     *
+     * @return  the new request
+     */
+    public ConversionRequest withHashes( String[] hashes, boolean treeHash ) {
+
+        return new ConversionRequest( rawImageLocation, outFile,
+                rawImageLocationInVmdk, diskType, format, hashes, treeHash,
+                merkle, scan, partition, snapshot );
+    }
+
+    /**
+     * Creates a copy of this request writing a hash index of the image next
+     * to the VMDK, see {@link MerkleSidecar}
+     *
+     * @param merkle    true to write the index
+     *
+     * @return  the new request
+     */
+    public ConversionRequest withMerkle( boolean merkle ) {
+
+        return new ConversionRequest( rawImageLocation, outFile,
+                rawImageLocationInVmdk, diskType, format, hashes, treeHash,
+                merkle, scan, partition, snapshot );
+    }
+
+    /**
+     * Creates a copy of this request scanning the image for zero regions
+     * before writing it; the map is reported in the result and sparse
+     * output skips the zero regions without reading them
+     *
+     * @param scan  true to scan the image
+     *
+     * @return  the new request
+     */
+    public ConversionRequest withScan( boolean scan ) {
+
+        return new ConversionRequest( rawImageLocation, outFile,
+                rawImageLocationInVmdk, diskType, format, hashes, treeHash,
+                merkle, scan, partition, snapshot );
+    }
+
+    /**
+     * Creates a copy of this request describing a single partition of the
+     * image as a disk of its own; the descriptor points into the image at
+     * the offset of the partition, nothing is copied
+     *
+     * @param partition the partition number, 1-4 for MBR primaries and 5 on
+     *                  for logical partitions, 1 on for GPT entries; 0 for
+     *                  the whole disk
+     *
+     * @return  the new request
+     */
+    public ConversionRequest withPartition( int partition ) {
+
+        return new ConversionRequest( rawImageLocation, outFile,
+                rawImageLocationInVmdk, diskType, format, hashes, treeHash,
+                merkle, scan, partition, snapshot );
+    }
+
+    /**
+     * Creates a copy of this request writing the flat descriptor with
+     * read-only extents along with an empty monolithicSparse delta disk on
+     * top of it, see {@link #getSnapshotFile()}; VMs booted from the delta
+     * never write to the image
+     *
+     * @param snapshot  true to write the delta disk
+     *
+     * @return  the new request
+     */
+    public ConversionRequest withSnapshot( boolean snapshot ) {
+
+        return new ConversionRequest( rawImageLocation, outFile,
+                rawImageLocationInVmdk, diskType, format, hashes, treeHash,
+                merkle, scan, partition, snapshot );
+    }
+
+    /**
+     * Creates a request for another image with the options of this one
+     *
+     * @param rawImageLocation          the location of the raw image
+     * @param outFile                   where to write the .vmdk file
+     * @param rawImageLocationInVmdk    the image location to write in the VMDK
+     *
+     * @return  the new request
+     */
+    public ConversionRequest forImage( String rawImageLocation, String outFile,
+            String rawImageLocationInVmdk ) {
+
+        return new ConversionRequest( rawImageLocation, outFile,
+                rawImageLocationInVmdk, diskType, format, hashes, treeHash,
+                merkle, scan, partition, snapshot );
+    }
+
+    /**
+     * @return the location of the raw image
+     */
+    public String getRawImageLocation( ) {
+
+        return rawImageLocation;
+    }
+
+    /**
+     * @return the raw image
+     */
+    public File getRawImage( ) {
+
+        return new File( rawImageLocation );
+    }
+
+    /**
+     * @return where to write the .vmdk file
+     */
+    public String getOutFile( ) {
+
+        return outFile;
+    }
+
+    /**
+     * @return the location of the raw image as written to the VMDK
+     */
+    public String getRawImageLocationInVmdk( ) {
+
+        return rawImageLocationInVmdk;
+    }
+
+    /**
+     * @return the VMDK adapter type
+     */
+    public String getDiskType( ) {
+
+        return diskType;
+    }
+
+    /**
+     * @return the output format
+     */
+    public String getFormat( ) {
+
+        return format;
+    }
+
+    /**
+     * @return the hash algorithms to record in the VMDK, may be empty
+     */
+    public String[] getHashes( ) {
+
+        return hashes.clone( );
+    }
+
+    /**
+     * @return true for parallel tree digests instead of plain ones
+     */
+    public boolean isTreeHash( ) {
+
+        return treeHash;
+    }
+
+    /**
+     * @return true to write a hash index next to the VMDK
+     */
+    public boolean isMerkle( ) {
+
+        return merkle;
+    }
+
+    /**
+     * @return true to scan the image for zero regions before writing
+     */
+    public boolean isScan( ) {
+
+        return scan;
+    }
+
+    /**
+     * @return the partition described as a disk of its own, 0 for the whole
+     *         disk
+     */
+    public int getPartition( ) {
+
+        return partition;
+    }
+
+    /**
+     * @return true to write the descriptor read-only along with a delta disk
+     */
+    public boolean isSnapshot( ) {
+
+        return snapshot;
+    }
+
+    /**
+     * @return where the delta disk of a snapshot goes, the output file
+     *         followed by "-000001" as VMware names them
+     */
+    public String getSnapshotFile( ) {
+
+        int dot = outFile.toLowerCase( ).endsWith( ".vmdk" ) ? outFile.length( ) - 5
+                : outFile.length( );
+
+        return outFile.substring( 0, dot ) + "-000001.vmdk";
+    }
+
+    /**
+     * Checks if the output references the raw image instead of copying it
+     *
+     * @return  true for flat descriptors and QCOW2 images
+     */
+    public boolean isReferencing( ) {
+
+        return format.equals( FORMAT_FLAT ) || format.equals( FORMAT_QCOW2 );
+    }
+
+    /**
+     * Checks if an output format is supported
+     *
+     * @param format    the output format
+     *
+     * @return  true if supported, false otherwise
+     */
+    public static boolean isValidFormat( String format ) {
+
+        for( String s: FORMATS ) {
+            if( s.equals( format ) ) return true;
+        }
+
+        return false;
+    }
+
+    public String toString( ) {
+
+        return rawImageLocation + " -> " + outFile;
+    }
+}
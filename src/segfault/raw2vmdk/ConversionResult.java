@@ -0,0 +1,338 @@
+package segfault.raw2vmdk;
+
+/*
+ * ConversionResult.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Immutable outcome of a {@link ConversionRequest}.</p>
+ * <p>Holds either the geometry written to the VMDK or the reason the
+ * conversion failed, along with the exit status the command line driver
+ * reports for it.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.Converter
+ */
+public final class ConversionResult {
+
+    /**
+     * Exit status of a successful conversion
+     */
+    public static final int OK              = 0;
+
+    /**
+     * Exit status of an unsupported disk type
+     */
+    public static final int INVALID_TYPE    = 2;
+
+    /**
+     * Exit status of a missing raw image
+     */
+    public static final int MISSING_IMAGE   = 3;
+
+    /**
+     * Exit status of a failure to write the VMDK
+     */
+    public static final int WRITE_FAILED    = 4;
+
+    /**
+     *  the request this is the outcome of
+     */
+    private final ConversionRequest request;
+
+    /**
+     *  one of the exit status constants
+     */
+    private final int               status;
+
+    /**
+     *  why the conversion failed, null on success
+     */
+    private final String            error;
+
+    /**
+     *  size of the raw image in bytes
+     */
+    private final long              fileSizeBytes;
+
+    /**
+     * total number of sectors
+     */
+    private final long              numOfSectors;
+
+    /**
+     * total number of cylinders
+     */
+    private final long              numOfCylinders;
+
+    /**
+     *  heads per track
+     */
+    private final int               headsPerTrack;
+
+    /**
+     *  sectors per track
+     */
+    private final long              sectorsPerTrack;
+
+    /**
+     *  summary of the partition table the geometry was derived from
+     */
+    private final String            partitionTable;
+
+    /**
+     *  hex digests of the image by algorithm, empty if not hashed
+     */
+    private final Map<String, String> digests;
+
+    /**
+     *  the populated regions of the image, null if it wasn't scanned
+     */
+    private final AllocationMap     allocationMap;
+
+    /**
+     *  true if the geometry came from the analysis index
+     */
+    private final boolean           indexed;
+
+    /**
+     * Constructor
+     */
+    private ConversionResult( ConversionRequest request, int status,
+            String error, long fileSizeBytes, long numOfSectors,
+            long numOfCylinders, int headsPerTrack, long sectorsPerTrack,
+            String partitionTable, Map<String, String> digests,
+            AllocationMap allocationMap, boolean indexed ) {
+
+        this.request         = request;
+        this.status          = status;
+        this.error           = error;
+        this.fileSizeBytes   = fileSizeBytes;
+        this.numOfSectors    = numOfSectors;
+        this.numOfCylinders  = numOfCylinders;
+        this.headsPerTrack   = headsPerTrack;
+        this.sectorsPerTrack = sectorsPerTrack;
+        this.partitionTable  = partitionTable;
+        this.digests         = Collections.unmodifiableMap(
+                new LinkedHashMap<String, String>( digests ) );
+        this.allocationMap   = allocationMap;
+        this.indexed         = indexed;
+    }
+
+    /**
+     * Creates the result of a successful conversion
+     *
+     * @param request           the converted request
+     * @param fileSizeBytes     size of the raw image in bytes
+     * @param numOfSectors      total number of sectors
+     * @param numOfCylinders    total number of cylinders
+     * @param headsPerTrack     heads per track
+     * @param sectorsPerTrack   sectors per track
+     * @param partitionTable    summary of the partition table
+     *
+     * @return  the result
+     */
+    static ConversionResult success( ConversionRequest request,
+            long fileSizeBytes, long numOfSectors, long numOfCylinders,
+            int headsPerTrack, long sectorsPerTrack, String partitionTable ) {
+
+        return new ConversionResult( request, OK, null, fileSizeBytes,
+                numOfSectors, numOfCylinders, headsPerTrack, sectorsPerTrack,
+                partitionTable, Collections.<String, String>emptyMap( ), null,
+                false );
+    }
+
+    /**
+     * Creates a copy of this result carrying the digests of the image
+     *
+     * @param digests   hex digests by algorithm
+     *
+     * @return  the new result
+     */
+    ConversionResult withDigests( Map<String, String> digests ) {
+
+        return new ConversionResult( request, status, error, fileSizeBytes,
+                numOfSectors, numOfCylinders, headsPerTrack, sectorsPerTrack,
+                partitionTable, digests, allocationMap, indexed );
+    }
+
+    /**
+     * Creates a copy of this result carrying the allocation map of the image
+     *
+     * @param allocationMap the map, may be null
+     *
+     * @return  the new result
+     */
+    ConversionResult withAllocationMap( AllocationMap allocationMap ) {
+
+        return new ConversionResult( request, status, error, fileSizeBytes,
+                numOfSectors, numOfCylinders, headsPerTrack, sectorsPerTrack,
+                partitionTable, digests, allocationMap, indexed );
+    }
+
+    /**
+     * Creates a copy of this result marked as analysed from the index
+     *
+     * @return  the new result
+     */
+    ConversionResult asIndexed( ) {
+
+        return new ConversionResult( request, status, error, fileSizeBytes,
+                numOfSectors, numOfCylinders, headsPerTrack, sectorsPerTrack,
+                partitionTable, digests, allocationMap, true );
+    }
+
+    /**
+     * Creates the result of a failed conversion
+     *
+     * @param request   the failed request
+     * @param status    one of the exit status constants
+     * @param error     why it failed
+     *
+     * @return  the result
+     */
+    static ConversionResult failure( ConversionRequest request, int status,
+            String error ) {
+
+        return new ConversionResult( request, status, error, 0, 0, 0, 0, 0,
+                null, Collections.<String, String>emptyMap( ), null, false );
+    }
+
+    /**
+     * @return the request this is the outcome of
+     */
+    public ConversionRequest getRequest( ) {
+
+        return request;
+    }
+
+    /**
+     * @return true if the VMDK was written
+     */
+    public boolean isSuccess( ) {
+
+        return status == OK;
+    }
+
+    /**
+     * @return the exit status for the command line driver
+     */
+    public int getStatus( ) {
+
+        return status;
+    }
+
+    /**
+     * @return why the conversion failed, null on success
+     */
+    public String getError( ) {
+
+        return error;
+    }
+
+    /**
+     * @return size of the raw image in bytes
+     */
+    public long getFileSizeBytes( ) {
+
+        return fileSizeBytes;
+    }
+
+    /**
+     * @return total number of sectors
+     */
+    public long getNumOfSectors( ) {
+
+        return numOfSectors;
+    }
+
+    /**
+     * @return total number of cylinders
+     */
+    public long getNumOfCylinders( ) {
+
+        return numOfCylinders;
+    }
+
+    /**
+     * @return heads per track
+     */
+    public int getHeadsPerTrack( ) {
+
+        return headsPerTrack;
+    }
+
+    /**
+     * @return sectors per track
+     */
+    public long getSectorsPerTrack( ) {
+
+        return sectorsPerTrack;
+    }
+
+    /**
+     * @return summary of the partition table the geometry was derived from
+     */
+    public String getPartitionTable( ) {
+
+        return partitionTable;
+    }
+
+    /**
+     * @return hex digests of the image by algorithm ("sha256", or
+     *         "sha256.tree" for tree digests), empty if not hashed
+     */
+    public Map<String, String> getDigests( ) {
+
+        return digests;
+    }
+
+    /**
+     * @return the populated regions of the image, null if it wasn't scanned
+     */
+    public AllocationMap getAllocationMap( ) {
+
+        return allocationMap;
+    }
+
+    /**
+     * @return true if the geometry came from the analysis index instead of
+     *         the partition table, see {@link AnalysisCache}
+     */
+    public boolean isIndexed( ) {
+
+        return indexed;
+    }
+
+    public String toString( ) {
+
+        if( !isSuccess( ) ) {
+            return request + ": " + error;
+        }
+
+        return request + " [" + numOfSectors + " sectors, " + numOfCylinders
+                + "/" + headsPerTrack + "/" + sectorsPerTrack + " C/H/S"
+                + ( indexed ? ", indexed" : "" ) + "]";
+    }
+}
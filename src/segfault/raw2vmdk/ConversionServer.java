@@ -0,0 +1,557 @@
+package segfault.raw2vmdk;
+
+/*
+ * ConversionServer.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * <p>Server driver.</p>
+ * <p>Keeps a converter resident and accepts JSON conversion requests over
+ * HTTP on the loopback interface, so a request costs an analysis instead of
+ * a JVM start.<br/>
+ * At most <i>concurrency</i> requests are converted at the same time and up
+ * to <i>queue</i> more wait for a worker; beyond that requests are turned
+ * away with 503 right away instead of piling up.<br/>
+ * Web pages can make browsers post to the loopback interface too, so every
+ * request must carry the token printed at startup
+ * ("Authorization: Bearer &lt;token&gt;"), name the server as its Host and
+ * post application/json; outputs are confined to the output directory and
+ * may not be the image.</p>
+ * <pre>
+ *  POST /convert  {"image": "/evidence/disk.dd", "output": "/vm/disk.vmdk",
+ *                  "imgLocation": ..., "type": "lsilogic", "format": "sparse",
+ *                  "hash": ["sha256"], "hashMode": "tree", "merkle": true,
+ *                  "scan": true, "partition": 2, "snapshot": true}
+ *  POST /analyse  {"image": "/evidence/disk.dd"}
+ *  GET  /status
+ * </pre>
+ * <p>Omitted fields take the values the server was started with (-Dtype,
+ * -Dformat...). Responses are JSON objects holding the geometry and the
+ * path of the written descriptor, or the exit status and error of a failed
+ * conversion.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.Converter
+ */
+public class ConversionServer {
+
+    /**
+     * The default port to listen on
+     */
+    static final int DEFAULT_PORT  = 8632;
+
+    /**
+     * The default number of requests waiting for a worker
+     */
+    static final int DEFAULT_QUEUE = 64;
+
+    /**
+     * The largest request body accepted
+     */
+    static final int MAX_BODY      = 64 * 1024;
+
+    /**
+     * The converter shared by all workers
+     */
+    private final Converter         converter;
+
+    /**
+     * The options of requests that don't give their own
+     */
+    private final ConversionRequest defaults;
+
+    /**
+     * The conversion workers
+     */
+    private final ExecutorService   workers;
+
+    /**
+     * Permits for requests running or waiting for a worker
+     */
+    private final Semaphore         admission;
+
+    private final AtomicInteger     running   = new AtomicInteger( );
+
+    private final AtomicLong        completed = new AtomicLong( );
+
+    private final AtomicLong        failed    = new AtomicLong( );
+
+    private final AtomicLong        rejected  = new AtomicLong( );
+
+    private final int               concurrency;
+
+    private final int               queue;
+
+    /**
+     * The directory all outputs are written in
+     */
+    private final File              outDir;
+
+    /**
+     * The secret every request must present
+     */
+    private final String            token;
+
+    private HttpServer              server;
+
+    /**
+     * Constructor
+     *
+     * @param converter     the converter shared by all workers
+     * @param defaults      the options of requests that don't give their
+     *                      own; its image and output are ignored
+     * @param concurrency   the number of requests converted at the same time
+     * @param queue         the number of requests waiting for a worker
+     * @param outDir        the directory all outputs are written in,
+     *                      relative outputs are relative to it
+     */
+    public ConversionServer( Converter converter, ConversionRequest defaults,
+            int concurrency, int queue, File outDir ) {
+
+        this.converter   = converter;
+        this.defaults    = defaults;
+        this.concurrency = concurrency;
+        this.queue       = queue;
+        this.outDir      = outDir;
+        this.token       = newToken( );
+        this.workers     = Executors.newFixedThreadPool( concurrency );
+        this.admission   = new Semaphore( concurrency + queue );
+    }
+
+    /**
+     * Starts listening on the loopback interface
+     *
+     * @param port  the port, 0 for any free one
+     *
+     * @return  the address listened on
+     *
+     * @throws IOException  if the port can't be bound
+     */
+    public InetSocketAddress start( int port ) throws IOException {
+
+        server = HttpServer.create( new InetSocketAddress(
+                InetAddress.getLoopbackAddress( ), port ), concurrency + queue );
+
+        server.createContext( "/convert", new ConversionHandler( true ) );
+        server.createContext( "/analyse", new ConversionHandler( false ) );
+        server.createContext( "/status", new HttpHandler( ) {
+
+            public void handle( HttpExchange exchange ) throws IOException {
+
+                if( !authorize( exchange ) ) return;
+                respond( exchange, 200, status( ) );
+            }
+        } );
+
+        // connections are only parsed here, admission limits the real work
+        server.setExecutor( Executors.newCachedThreadPool( ) );
+        server.start( );
+
+        return server.getAddress( );
+    }
+
+    /**
+     * @return  the secret every request must present as
+     *          "Authorization: Bearer &lt;token&gt;"
+     */
+    public String getToken( ) {
+
+        return token;
+    }
+
+    /**
+     * Stops listening, letting running conversions finish
+     */
+    public void stop( ) {
+
+        if( server != null ) server.stop( 0 );
+        workers.shutdown( );
+    }
+
+    /**
+     * Handles /convert and /analyse
+     */
+    private class ConversionHandler implements HttpHandler {
+
+        private final boolean write;
+
+        ConversionHandler( boolean write ) {
+
+            this.write = write;
+        }
+
+        public void handle( HttpExchange exchange ) throws IOException {
+
+            if( !authorize( exchange ) ) return;
+
+            if( !exchange.getRequestMethod( ).equals( "POST" ) ) {
+                respond( exchange, 405, error( 1, "Use POST." ) );
+                return;
+            }
+
+            // forms and text/plain posts can be sent by any web page
+            String type = exchange.getRequestHeaders( ).getFirst( "Content-Type" );
+            if( type == null || !type.split( ";" )[0].trim( )
+                    .equalsIgnoreCase( "application/json" ) ) {
+                respond( exchange, 415, error( 1, "Use Content-Type: application/json." ) );
+                return;
+            }
+
+            final ConversionRequest request;
+            try {
+                request = parse( readBody( exchange ), write );
+            } catch( IllegalArgumentException e ) {
+                respond( exchange, 400, error( 1, e.getMessage( ) ) );
+                return;
+            }
+
+            if( !admission.tryAcquire( ) ) {
+                rejected.incrementAndGet( );
+                exchange.getResponseHeaders( ).set( "Retry-After", "1" );
+                respond( exchange, 503, error( 1, "Too many requests queued." ) );
+                return;
+            }
+
+            ConversionResult result;
+            try {
+                Future<ConversionResult> pending = workers.submit( new Callable<ConversionResult>( ) {
+
+                    public ConversionResult call( ) {
+
+                        running.incrementAndGet( );
+                        try {
+                            return write ? converter.convert( request )
+                                    : converter.analyse( request );
+                        } finally {
+                            running.decrementAndGet( );
+                        }
+                    }
+                } );
+                result = pending.get( );
+            } catch( InterruptedException e ) {
+                Thread.currentThread( ).interrupt( );
+                respond( exchange, 503, error( 1, "Server is shutting down." ) );
+                return;
+            } catch( ExecutionException e ) {
+                result = ConversionResult.failure( request,
+                        ConversionResult.WRITE_FAILED, String.valueOf( e.getCause( ) ) );
+            } finally {
+                admission.release( );
+            }
+
+            ( result.isSuccess( ) ? completed : failed ).incrementAndGet( );
+            respond( exchange, result.isSuccess( ) ? 200 : 422, toJson( result, write ) );
+        }
+    }
+
+    /**
+     * Checks that a request names this server as its Host, which DNS
+     * rebinding pages can't, and carries the token
+     *
+     * @return  true if the request may proceed, false if it was turned away
+     */
+    private boolean authorize( HttpExchange exchange ) throws IOException {
+
+        int port = server.getAddress( ).getPort( );
+        String host = exchange.getRequestHeaders( ).getFirst( "Host" );
+
+        if( !( "127.0.0.1:" + port ).equals( host )
+                && !( "localhost:" + port ).equals( host ) ) {
+            respond( exchange, 403, error( 1, "Host not allowed." ) );
+            return false;
+        }
+
+        String auth = exchange.getRequestHeaders( ).getFirst( "Authorization" );
+        if( auth == null || !MessageDigest.isEqual( auth.getBytes( "UTF-8" ),
+                ( "Bearer " + token ).getBytes( "UTF-8" ) ) ) {
+            respond( exchange, 401, error( 1, "Missing or wrong token." ) );
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Resolves the output of a request inside the output directory
+     *
+     * @param output    the requested output, relative to the output directory
+     * @param image     the image of the request, which must not be written
+     *
+     * @return  the canonical path of the output
+     *
+     * @throws IllegalArgumentException if the output is outside the output
+     *                                  directory or is the image
+     */
+    String confine( String output, String image ) {
+
+        File out = new File( output );
+        if( !out.isAbsolute( ) ) out = new File( outDir, output );
+
+        try {
+            File dir = outDir.getCanonicalFile( );
+            File canonical = out.getCanonicalFile( );
+
+            if( canonical.equals( dir ) || !canonical.toPath( ).startsWith( dir.toPath( ) ) ) {
+                throw new IllegalArgumentException( "'output' must be inside " + dir + "." );
+            }
+
+            if( canonical.equals( new File( image ).getCanonicalFile( ) ) ) {
+                throw new IllegalArgumentException( "'output' can't be the image." );
+            }
+
+            return canonical.getPath( );
+        } catch( IOException e ) {
+            throw new IllegalArgumentException( "'output' is incorrect: " + e.getMessage( ) );
+        }
+    }
+
+    /**
+     * Builds a request from its JSON form
+     *
+     * @throws IllegalArgumentException if the request is malformed
+     */
+    ConversionRequest parse( String body, boolean write ) {
+
+        Object parsed = Json.parse( body );
+        if( !( parsed instanceof Map ) ) {
+            throw new IllegalArgumentException( "Expected a JSON object." );
+        }
+
+        Map<?, ?> json = (Map<?, ?>) parsed;
+        String image = string( json, "image" );
+        String output = string( json, "output" );
+
+        if( image == null ) throw new IllegalArgumentException( "'image' is required." );
+        if( write && output == null ) throw new IllegalArgumentException( "'output' is required." );
+        if( output != null ) output = confine( output, image );
+
+        // the location is written into the descriptor as a quoted string
+        String location = string( json, "imgLocation" );
+        if( location != null && !isPlainText( location ) ) {
+            throw new IllegalArgumentException(
+                    "'imgLocation' can't hold quotes or control characters." );
+        }
+        ConversionRequest request = defaults.forImage( image,
+                output != null ? output : image, location != null ? location : image );
+
+        if( json.containsKey( "type" ) ) {
+            request = request.withDiskType( string( json, "type" ) );
+        }
+        if( json.containsKey( "format" ) ) {
+            request = request.withFormat( string( json, "format" ) );
+        }
+        if( json.containsKey( "hash" ) || json.containsKey( "hashMode" ) ) {
+            Object hash = json.get( "hash" );
+            String[] hashes = request.getHashes( );
+
+            if( hash instanceof List ) {
+                StringBuilder sb = new StringBuilder( );
+                for( Object o: (List<?>) hash ) sb.append( o ).append( ',' );
+                hashes = ImageHasher.parseAlgorithms( sb.toString( ) );
+            } else if( hash != null ) {
+                hashes = ImageHasher.parseAlgorithms( hash.toString( ) );
+            }
+
+            String mode = json.containsKey( "hashMode" ) ? string( json, "hashMode" )
+                    : request.isTreeHash( ) ? "tree" : "linear";
+            if( !"tree".equals( mode ) && !"linear".equals( mode ) ) {
+                throw new IllegalArgumentException( "Hash mode is incorrect." );
+            }
+            request = request.withHashes( hashes, "tree".equals( mode ) );
+        }
+        if( json.containsKey( "merkle" ) ) {
+            request = request.withMerkle( Boolean.TRUE.equals( json.get( "merkle" ) ) );
+        }
+        if( json.containsKey( "scan" ) ) {
+            request = request.withScan( Boolean.TRUE.equals( json.get( "scan" ) ) );
+        }
+        if( json.containsKey( "snapshot" ) ) {
+            request = request.withSnapshot( Boolean.TRUE.equals( json.get( "snapshot" ) ) );
+        }
+        if( json.containsKey( "partition" ) ) {
+            Object partition = json.get( "partition" );
+            if( !( partition instanceof Long ) ) {
+                throw new IllegalArgumentException( "'partition' must be an integer." );
+            }
+            request = request.withPartition( ( (Long) partition ).intValue( ) );
+        }
+
+        return request;
+    }
+
+    /**
+     * @return  true if the text holds no quotes or control characters
+     */
+    private static boolean isPlainText( String text ) {
+
+        for( int i = 0; i < text.length( ); i++ ) {
+            char c = text.charAt( i );
+            if( c < 0x20 || c == 0x7F || c == '"' ) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return  a new random token of 128 bits, in hex
+     */
+    private static String newToken( ) {
+
+        byte[] bytes = new byte[ 16 ];
+        new SecureRandom( ).nextBytes( bytes );
+        return ImageHasher.toHex( bytes );
+    }
+
+    private static String string( Map<?, ?> json, String key ) {
+
+        Object value = json.get( key );
+        if( value != null && !( value instanceof String ) ) {
+            throw new IllegalArgumentException( "'" + key + "' must be a string." );
+        }
+
+        return (String) value;
+    }
+
+    /**
+     * Renders a result as JSON
+     */
+    static String toJson( ConversionResult result, boolean written ) {
+
+        ConversionRequest request = result.getRequest( );
+        StringBuilder sb = new StringBuilder( "{" );
+
+        sb.append( "\"status\":" ).append( result.getStatus( ) );
+        sb.append( ",\"image\":" ).append( Json.quote( request.getRawImageLocation( ) ) );
+
+        if( !result.isSuccess( ) ) {
+            sb.append( ",\"error\":" ).append( Json.quote( result.getError( ) ) );
+            return sb.append( '}' ).toString( );
+        }
+
+        if( written ) {
+            sb.append( ",\"descriptor\":" ).append( Json.quote(
+                    new File( request.getOutFile( ) ).getAbsolutePath( ) ) );
+            sb.append( ",\"format\":" ).append( Json.quote( request.getFormat( ) ) );
+        }
+        sb.append( ",\"sizeBytes\":" ).append( result.getFileSizeBytes( ) );
+        sb.append( ",\"sectors\":" ).append( result.getNumOfSectors( ) );
+        sb.append( ",\"cylinders\":" ).append( result.getNumOfCylinders( ) );
+        sb.append( ",\"heads\":" ).append( result.getHeadsPerTrack( ) );
+        sb.append( ",\"sectorsPerTrack\":" ).append( result.getSectorsPerTrack( ) );
+        sb.append( ",\"partitionTable\":" ).append( Json.quote( result.getPartitionTable( ) ) );
+
+        if( !result.getDigests( ).isEmpty( ) ) {
+            sb.append( ",\"digests\":{" );
+            String sep = "";
+            for( Map.Entry<String, String> e: result.getDigests( ).entrySet( ) ) {
+                sb.append( sep ).append( Json.quote( e.getKey( ) ) ).append( ':' )
+                  .append( Json.quote( e.getValue( ) ) );
+                sep = ",";
+            }
+            sb.append( '}' );
+        }
+
+        AllocationMap map = result.getAllocationMap( );
+        if( map != null ) {
+            sb.append( ",\"allocatedBytes\":" ).append( map.getAllocatedBytes( ) );
+            sb.append( ",\"zeroBytes\":" ).append( map.getZeroBytes( ) );
+            sb.append( ",\"runs\":" ).append( map.getRunCount( ) );
+        }
+
+        return sb.append( '}' ).toString( );
+    }
+
+    /**
+     * @return the counters of the server as JSON
+     */
+    String status( ) {
+
+        int admitted = concurrency + queue - admission.availablePermits( );
+        int busy = running.get( );
+
+        return "{\"running\":" + busy + ",\"queued\":" + Math.max( 0, admitted - busy )
+                + ",\"completed\":" + completed.get( ) + ",\"failed\":" + failed.get( )
+                + ",\"rejected\":" + rejected.get( ) + ",\"concurrency\":" + concurrency
+                + ",\"queue\":" + queue + "}";
+    }
+
+    private static String error( int status, String message ) {
+
+        return "{\"status\":" + status + ",\"error\":" + Json.quote( message ) + "}";
+    }
+
+    /**
+     * Reads a request body of at most {@link #MAX_BODY} bytes
+     */
+    private static String readBody( HttpExchange exchange ) throws IOException {
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream( );
+        byte[] buf = new byte[ 4096 ];
+
+        try( InputStream in = exchange.getRequestBody( ) ) {
+            int n;
+            while( ( n = in.read( buf ) ) > 0 ) {
+                body.write( buf, 0, n );
+                if( body.size( ) > MAX_BODY ) {
+                    throw new IllegalArgumentException( "Request body too large." );
+                }
+            }
+        }
+
+        return body.toString( "UTF-8" );
+    }
+
+    private static void respond( HttpExchange exchange, int code, String json )
+            throws IOException {
+
+        byte[] bytes = ( json + "\n" ).getBytes( "UTF-8" );
+
+        exchange.getResponseHeaders( ).set( "Content-Type", "application/json; charset=utf-8" );
+        exchange.sendResponseHeaders( code, bytes.length );
+        try( OutputStream out = exchange.getResponseBody( ) ) {
+            out.write( bytes );
+        }
+    }
+}
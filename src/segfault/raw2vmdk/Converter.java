@@ -0,0 +1,866 @@
+package segfault.raw2vmdk;
+
+/*
+ * Converter.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cert.forensics.gpt.GptPartitionEntry;
+import cert.forensics.gpt.GuidPartitionTable;
+import cert.forensics.mbr.ImageReader;
+import cert.forensics.mbr.MasterBootRecord;
+import cert.forensics.mbr.PartitionEntry;
+
+/**
+ * <p>Reusable converter.</p>
+ * <p>Analyses a raw image with cert.forensics.mbr.MasterBootRecord (and
+ * cert.forensics.gpt.GuidPartitionTable for GPT disks) and writes its VMDK
+ * file with segfault.raw2vmdk.VMDKTemplate.<br/>
+ * Images split into numbered segments (image.001, image.002, ...) are
+ * analysed and described in place, one extent per segment, given the first
+ * segment.<br/>
+ * gzip and zstd compressed images are converted to sparse and
+ * streamOptimized VMDKs in a single pass as they are decompressed, see
+ * segfault.raw2vmdk.CompressedImage.<br/>
+ * Requested digests of the image are recorded in the Disk Data Base of the
+ * VMDK as "ddb.image.&lt;algorithm&gt;" entries, and a per-block
+ * segfault.raw2vmdk.MerkleSidecar can be written next to it.<br/>
+ * Instances keep no per-conversion state, so a single converter can be shared
+ * by any number of threads without locking. Errors are reported through
+ * {@link ConversionResult}, never by exiting the process.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.ConversionRequest
+ * @see segfault.raw2vmdk.ConversionResult
+ */
+public class Converter {
+
+    /**
+     * The supported VMDK adapter types
+     */
+    static final String[]      ACCEPTED_TYPES = { "ide", "buslogic",
+            "lsilogic", "legacyESX" };
+
+    /**
+     * the VMDK template
+     */
+    private final VMDKTemplate vmdkTpl;
+
+    /**
+     * writer of monolithicSparse VMDK files
+     */
+    private final SparseVMDKWriter sparseWriter;
+
+    /**
+     * writer of streamOptimized VMDK files
+     */
+    private final StreamOptimizedVMDKWriter streamWriter;
+
+    /**
+     * writer of QCOW2 images over the raw image
+     */
+    private final QCOW2Writer qcow2Writer;
+
+    /**
+     * hasher of images for the chain of custody
+     */
+    private final ImageHasher hasher;
+
+    /**
+     * threads scanning images for zero regions
+     */
+    private final int         threads;
+
+    /**
+     * analyses of earlier runs, null to analyse every image
+     */
+    private final AnalysisCache index;
+
+    /**
+     * byte budget of the grain cache of every VMDK image
+     */
+    private final long        vmdkCacheBytes;
+
+    /**
+     * Constructor <br/>
+     * Uses the default "vmdk.tpl" template.
+     */
+    public Converter( ) {
+
+        this( new VMDKTemplate( "vmdk.tpl" ) );
+    }
+
+    /**
+     * Constructor <br/>
+     * Compresses streamOptimized grains and hashes images on one thread per
+     * processor.
+     *
+     * @param vmdkTpl   the template to write the VMDK files with
+     */
+    public Converter( VMDKTemplate vmdkTpl ) {
+
+        this( vmdkTpl, Runtime.getRuntime( ).availableProcessors( ) );
+    }
+
+    /**
+     * Constructor
+     *
+     * @param vmdkTpl               the template to write the VMDK files with
+     * @param compressionThreads    threads compressing streamOptimized grains
+     *                              and hashing images, shared by all
+     *                              conversions
+     */
+    public Converter( VMDKTemplate vmdkTpl, int compressionThreads ) {
+
+        this( vmdkTpl, compressionThreads, null );
+    }
+
+    /**
+     * Constructor <br/>
+     * Images found unchanged in the index take their geometry and partition
+     * table summary from it instead of being analysed again, the others are
+     * recorded in it.
+     *
+     * @param vmdkTpl               the template to write the VMDK files with
+     * @param compressionThreads    threads compressing streamOptimized grains
+     *                              and hashing images, shared by all
+     *                              conversions
+     * @param index                 analyses of earlier runs, may be null
+     */
+    public Converter( VMDKTemplate vmdkTpl, int compressionThreads,
+            AnalysisCache index ) {
+
+        this( vmdkTpl, compressionThreads, index, SparseVMDKChannel.DEFAULT_CACHE_BYTES );
+    }
+
+    /**
+     * Constructor <br/>
+     * Sparse and streamOptimized VMDK images are read as their virtual
+     * disk, through a grain cache of vmdkCacheBytes each.
+     *
+     * @param vmdkTpl               the template to write the VMDK files with
+     * @param compressionThreads    threads compressing streamOptimized grains
+     *                              and hashing images, shared by all
+     *                              conversions
+     * @param index                 analyses of earlier runs, may be null
+     * @param vmdkCacheBytes        byte budget of the grain cache of a VMDK
+     *                              image
+     */
+    public Converter( VMDKTemplate vmdkTpl, int compressionThreads,
+            AnalysisCache index, long vmdkCacheBytes ) {
+
+        VMDKTemplate sparseTpl = new VMDKTemplate( "vmdk-sparse.tpl" );
+
+        this.vmdkTpl      = vmdkTpl;
+        this.sparseWriter = new SparseVMDKWriter( sparseTpl );
+        this.streamWriter = new StreamOptimizedVMDKWriter( sparseTpl,
+                compressionThreads );
+        this.qcow2Writer  = new QCOW2Writer( );
+        this.hasher       = new ImageHasher( compressionThreads );
+        this.threads      = compressionThreads;
+        this.index        = index;
+        this.vmdkCacheBytes = vmdkCacheBytes;
+    }
+
+    /**
+     * Creates a verifier sharing the hashing threads of this converter
+     *
+     * @param samples   random blocks re-hashed per unchanged segment
+     * @param full      true to re-hash every block
+     *
+     * @return  the verifier
+     */
+    public ImageVerifier verifier( int samples, boolean full ) {
+
+        return new ImageVerifier( hasher, samples, full );
+    }
+
+    /**
+     * Checks if a VMDK adapter type is supported
+     *
+     * @param diskType  the adapter type
+     *
+     * @return  true if supported, false otherwise
+     */
+    public static boolean isValidDiskType( String diskType ) {
+
+        for( String s: ACCEPTED_TYPES ) {
+            if( s.equals( diskType ) ) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if an MBR only protects a GUID Partition Table
+     *
+     * @param MBR   the master boot record
+     *
+     * @return  true if any primary entry is of the protective 0xEE type
+     */
+    static boolean isProtectiveMBR( MasterBootRecord MBR ) {
+
+        return MBR.getPartitionEntry1( ).getPartitionType( ) == GuidPartitionTable.PROTECTIVE_MBR_TYPE
+                || MBR.getPartitionEntry2( ).getPartitionType( ) == GuidPartitionTable.PROTECTIVE_MBR_TYPE
+                || MBR.getPartitionEntry3( ).getPartitionType( ) == GuidPartitionTable.PROTECTIVE_MBR_TYPE
+                || MBR.getPartitionEntry4( ).getPartitionType( ) == GuidPartitionTable.PROTECTIVE_MBR_TYPE;
+    }
+
+    /**
+     * Derives the geometry of a disk from its partition table
+     *
+     * @param MBR           the master boot record
+     * @param protective    whether the MBR is protective, even if no GPT
+     *                      could be read after it
+     * @param numOfSectors  the size of the disk in sectors
+     * @param diskType      the VMDK adapter type
+     *
+     * @return  the geometry
+     */
+    static Geometry geometryOf( MasterBootRecord MBR, boolean protective,
+            long numOfSectors, String diskType ) {
+
+        if( protective ) {
+            // the protective MBR only holds placeholder CHS values
+            return Geometry.fromCapacity( numOfSectors, diskType );
+        }
+
+        return new Geometry( MBR.largestCylinderValOnDisk( ),
+                MBR.getPartitionEntry1( ).getNumHeads( ),
+                MBR.getPartitionEntry1( ).getEndSector( ) );
+    }
+
+    /**
+     * Sizes the sparse extent of an image, whose last sector is zero padded
+     * if partial
+     *
+     * @param bytes the size of the image in bytes
+     *
+     * @return  the capacity in sectors
+     */
+    static long sparseSectorsOf( long bytes ) {
+
+        return ( bytes + ImageReader.BYTES_PER_SECTOR - 1 ) / ImageReader.BYTES_PER_SECTOR;
+    }
+
+    /**
+     * Describes the partition table of a disk
+     *
+     * @param MBR   the master boot record
+     * @param GPT   the GUID partition table, null for MBR disks
+     *
+     * @return  i.e. "GPT, 4 partitions" or "MBR, 2 logical partitions"
+     */
+    static String partitionTableOf( MasterBootRecord MBR, GuidPartitionTable GPT ) {
+
+        if( GPT != null ) {
+            return "GPT, " + GPT.getPartitions( ).size( )
+                    + " partitions" + ( GPT.isPrimaryValid( ) ? ""
+                    : GPT.isBackupValid( ) ? " (primary table corrupt, using backup)"
+                    : " (CRC mismatch)" );
+        }
+
+        return "MBR, " + MBR.getLogicalPartitions( ).size( ) + " logical partitions";
+    }
+
+    /**
+     * Analyses the raw image of the request and writes its VMDK file
+     *
+     * @param request   what to convert
+     *
+     * @return  the outcome of the conversion
+     */
+    public ConversionResult convert( ConversionRequest request ) {
+
+        return run( request, true );
+    }
+
+    /**
+     * Analyses the raw image of the request without writing anything: the
+     * geometry and partition table along with the allocation map of the
+     * image, see {@link ConversionResult#getAllocationMap()}
+     *
+     * @param request   what to analyse, its output file is ignored
+     *
+     * @return  the outcome of the analysis
+     */
+    public ConversionResult analyse( ConversionRequest request ) {
+
+        return run( request, false );
+    }
+
+    /**
+     * Assembles a disk from the fragments it was carved into, see
+     * {@link FragmentMap}: writes a flat descriptor mapping every fragment
+     * to its place on the disk with ZERO extents in the gaps, copying
+     * nothing.
+     *
+     * @param request       the map file as the image and the descriptor to
+     *                      write, only the flat format is supported
+     * @param diskSectors   the size of the disk in sectors, 0 to end it with
+     *                      the last fragment
+     *
+     * @return  the outcome of the assembly
+     */
+    public ConversionResult assemble( ConversionRequest request, long diskSectors ) {
+
+        if( !isValidDiskType( request.getDiskType( ) ) ) {
+            return ConversionResult.failure( request,
+                    ConversionResult.INVALID_TYPE, "Disk type is incorrect." );
+        }
+
+        if( !request.getFormat( ).equals( ConversionRequest.FORMAT_FLAT ) ) {
+            return ConversionResult.failure( request, ConversionResult.INVALID_TYPE,
+                    "Fragments can only be assembled by flat descriptors." );
+        }
+
+        if( !request.getRawImage( ).exists( ) ) {
+            return ConversionResult.failure( request,
+                    ConversionResult.MISSING_IMAGE, "Fragment map does not exist." );
+        }
+
+        try {
+            FragmentMap fragments = FragmentMap.read( request.getRawImage( ) );
+
+            // relative fragment files are relative to the descriptor
+            fragments.validate( new File( request.getOutFile( ) )
+                    .getAbsoluteFile( ).getParentFile( ) );
+
+            List<Extent> extents = fragments.extents( diskSectors );
+            long numOfSectors = Math.max( diskSectors, fragments.getEndSector( ) );
+            Geometry geometry = Geometry.fromCapacity( numOfSectors,
+                    request.getDiskType( ) );
+
+            HashMap<String, String> vmdkData = new HashMap<String, String>( );
+
+            vmdkData.put( "diskType", request.getDiskType( ) );
+            vmdkData.put( "numOfSectors", Long.toString( numOfSectors ) );
+            vmdkData.put( "numOfCylinders", Long.toString( geometry.getCylinders( ) ) );
+            vmdkData.put( "headsPerTrack", Integer.toString( geometry.getHeads( ) ) );
+            vmdkData.put( "sectorsPerTrack", Long.toString( geometry.getSectors( ) ) );
+            vmdkData.put( "ddb.image.fragments",
+                    Integer.toString( fragments.getFragments( ).size( ) ) );
+
+            vmdkTpl.write( vmdkData, extents, request.getOutFile( ) );
+
+            int gaps = extents.size( ) - fragments.getFragments( ).size( );
+            return ConversionResult.success( request,
+                    numOfSectors * ImageReader.BYTES_PER_SECTOR, numOfSectors,
+                    geometry.getCylinders( ), geometry.getHeads( ),
+                    geometry.getSectors( ), "Assembled, "
+                    + fragments.getFragments( ).size( ) + " fragments, "
+                    + gaps + " zero gaps" );
+        } catch( Exception e ) {
+            return ConversionResult.failure( request,
+                    ConversionResult.WRITE_FAILED, String.valueOf( e.getMessage( ) ) );
+        }
+    }
+
+    /**
+     * Validates the request and opens its image
+     */
+    private ConversionResult run( ConversionRequest request, boolean write ) {
+
+        if( !isValidDiskType( request.getDiskType( ) ) ) {
+            return ConversionResult.failure( request,
+                    ConversionResult.INVALID_TYPE, "Disk type is incorrect." );
+        }
+
+        if( !ConversionRequest.isValidFormat( request.getFormat( ) ) ) {
+            return ConversionResult.failure( request,
+                    ConversionResult.INVALID_TYPE, "Output format is incorrect." );
+        }
+
+        if( request.getPartition( ) < 0 ) {
+            return ConversionResult.failure( request,
+                    ConversionResult.INVALID_TYPE, "Partition number is incorrect." );
+        }
+
+        if( request.getPartition( ) > 0
+                && !request.getFormat( ).equals( ConversionRequest.FORMAT_FLAT ) ) {
+            return ConversionResult.failure( request, ConversionResult.INVALID_TYPE,
+                    "Partitions can only be described by flat descriptors." );
+        }
+
+        if( request.isSnapshot( )
+                && !request.getFormat( ).equals( ConversionRequest.FORMAT_FLAT ) ) {
+            return ConversionResult.failure( request, ConversionResult.INVALID_TYPE,
+                    "Snapshots are taken of flat descriptors." );
+        }
+
+        File imgFile = request.getRawImage( );
+
+        // check if the raw image file exists
+        if( !imgFile.exists( ) ) {
+            return ConversionResult.failure( request,
+                    ConversionResult.MISSING_IMAGE, "Image file does not exist." );
+        }
+
+        // compressed images are streamed, there's no random access to them
+        if( CompressedImage.isCompressed( imgFile ) ) {
+            return convertCompressed( request, write );
+        }
+
+        // a flat descriptor or QCOW2 data file would be the VMDK file, not
+        // its virtual disk
+        if( write && request.isReferencing( )
+                && SparseVMDKChannel.isSparseVMDK( imgFile ) ) {
+            return ConversionResult.failure( request, ConversionResult.INVALID_TYPE,
+                    "VMDK images can only be converted to sparse or streamOptimized." );
+        }
+
+        try( ImageReader reader = SegmentSet.discover( imgFile ).open( vmdkCacheBytes ) ) {
+            return convert( request, reader, write );
+        } catch( Exception e ) {
+            return ConversionResult.failure( request,
+                    ConversionResult.WRITE_FAILED, String.valueOf( e.getMessage( ) ) );
+        }
+    }
+
+    /**
+     * Validates the request of a compressed image and streams it
+     */
+    private ConversionResult convertCompressed( ConversionRequest request,
+            boolean write ) {
+
+        if( !write ) {
+            return ConversionResult.failure( request, ConversionResult.INVALID_TYPE,
+                    "Compressed images can be converted but not analysed." );
+        }
+
+        if( !request.getFormat( ).equals( ConversionRequest.FORMAT_SPARSE )
+                && !request.getFormat( ).equals( ConversionRequest.FORMAT_STREAM ) ) {
+            return ConversionResult.failure( request, ConversionResult.INVALID_TYPE,
+                    "Compressed images can only be converted to sparse or streamOptimized." );
+        }
+
+        if( request.isTreeHash( ) || request.isMerkle( ) || request.isScan( ) ) {
+            return ConversionResult.failure( request, ConversionResult.INVALID_TYPE,
+                    "Compressed images are read once, tree hashes, "
+                    + "Merkle sidecars and scans need random access." );
+        }
+
+        try( CompressedImage image = CompressedImage.open( request.getRawImage( ) ) ) {
+            return convert( request, image );
+        } catch( Exception e ) {
+            return ConversionResult.failure( request,
+                    ConversionResult.WRITE_FAILED, String.valueOf( e.getMessage( ) ) );
+        }
+    }
+
+    /**
+     * Writes the VMDK file of a compressed image in a single pass: the
+     * partition tables are read from the head of the image, the grains are
+     * written and the image hashed as it is decompressed, and the geometry
+     * is filled in once its end gives the size of the disk.
+     *
+     * @param request   what to convert, to a sparse or streamOptimized VMDK
+     * @param image     the opened compressed image
+     *
+     * @return  the outcome of the conversion
+     */
+    private ConversionResult convert( final ConversionRequest request,
+            final CompressedImage image ) throws Exception {
+
+        // logical partitions past the head aren't counted
+        final MasterBootRecord MBR;
+        GuidPartitionTable table = null;
+
+        try( ImageReader head = image.head( ) ) {
+            MBR = new MasterBootRecord( head );
+
+            if( isProtectiveMBR( MBR ) ) {
+                table = GuidPartitionTable.read( head );
+            }
+        }
+
+        final GuidPartitionTable GPT = table;
+        final boolean sparse = request.getFormat( ).equals( ConversionRequest.FORMAT_SPARSE );
+        final String cid = ImageIdentity.of( request.getRawImage( ) ).getCID( );
+        final String[] hashes = request.getHashes( );
+        final MessageDigest[] mds = ImageHasher.digests( hashes );
+        final Map<String, String> digests = new LinkedHashMap<String, String>( );
+
+        InputStream in = image.getStream( );
+        for( MessageDigest md: mds ) {
+            in = new DigestInputStream( in, md );
+        }
+
+        SparseVMDKWriter.Describer describer = new SparseVMDKWriter.Describer( ) {
+
+            public Map<String, String> describe( long size ) {
+
+                MBR.setFileSizeBytes( size );
+                long numOfSectors = sparseSectorsOf( size );
+                Geometry geometry = geometryOf( MBR, isProtectiveMBR( MBR ),
+                        numOfSectors, request.getDiskType( ) );
+
+                HashMap<String, String> vmdkData = new HashMap<String, String>( );
+
+                vmdkData.put( "diskType", request.getDiskType( ) );
+                vmdkData.put( "numOfSectors", Long.toString( numOfSectors ) );
+                vmdkData.put( "numOfCylinders", Long.toString( geometry.getCylinders( ) ) );
+                vmdkData.put( "headsPerTrack", Integer.toString( geometry.getHeads( ) ) );
+                vmdkData.put( "sectorsPerTrack", Long.toString( geometry.getSectors( ) ) );
+                vmdkData.put( "createType", sparse ? "monolithicSparse" : "streamOptimized" );
+                vmdkData.put( "CID", cid );
+                vmdkData.put( "fileName", new File( request.getOutFile( ) ).getName( ) );
+                vmdkData.put( "ddb.image.compression", image.getCompression( ) );
+
+                // the digests of the decompressed image
+                for( int i = 0; i < hashes.length; i++ ) {
+                    String hex = ImageHasher.toHex( mds[i].digest( ) );
+                    digests.put( hashes[i], hex );
+                    vmdkData.put( "ddb.image." + hashes[i], hex );
+                }
+
+                return vmdkData;
+            }
+        };
+
+        if( sparse ) {
+            sparseWriter.write( in, image.getSizeHint( ), describer, request.getOutFile( ) );
+        } else {
+            streamWriter.write( in, image.getSizeHint( ), describer, request.getOutFile( ) );
+        }
+
+        long numOfSectors = sparseSectorsOf( MBR.getFileSizeBytes( ) );
+        Geometry geometry = geometryOf( MBR, isProtectiveMBR( MBR ), numOfSectors,
+                request.getDiskType( ) );
+
+        return result( request, MBR.getFileSizeBytes( ), numOfSectors,
+                geometry.getCylinders( ), geometry.getHeads( ), geometry.getSectors( ),
+                partitionTableOf( MBR, GPT ) + ", " + image.getCompression( )
+                + " stream", false ).withDigests( digests );
+    }
+
+    /**
+     * Analyses an opened image and writes its VMDK file
+     *
+     * @param request   what to convert
+     * @param reader    the (possibly split) raw image
+     * @param write     false to only analyse the image
+     *
+     * @return  the outcome of the conversion
+     */
+    private ConversionResult convert( ConversionRequest request,
+            ImageReader reader, boolean write ) throws Exception {
+
+        // unchanged images take their geometry from the index, which only
+        // holds whole disks
+        ImageIdentity identity = null;
+        AnalysisCache.Entry indexed = null;
+
+        if( index != null && request.getPartition( ) == 0 ) {
+            identity = ImageIdentity.of( reader );
+            indexed  = index.lookup( identity );
+
+            if( indexed != null
+                    && !indexed.getDiskType( ).equals( request.getDiskType( ) ) ) {
+                indexed = null;
+            }
+        }
+
+        long numOfSectors;
+        long numOfCylinders;
+        int headsPerTrack;
+        long sectorsPerTrack;
+        String partitionTable;
+        long partitionStart = 0;
+
+        if( indexed != null ) {
+            numOfSectors    = indexed.getNumOfSectors( );
+            numOfCylinders  = indexed.getNumOfCylinders( );
+            headsPerTrack   = indexed.getHeadsPerTrack( );
+            sectorsPerTrack = indexed.getSectorsPerTrack( );
+            partitionTable  = indexed.getPartitionTable( );
+        } else {
+            // analyse the image, the MBR is in the first segment
+            MasterBootRecord MBR = new MasterBootRecord( reader );
+            GuidPartitionTable GPT = null;
+
+            if( isProtectiveMBR( MBR ) ) {
+                GPT = GuidPartitionTable.read( reader );
+            }
+
+            numOfSectors = MBR.totalSectorsOnDiskFromFile( );
+
+            Geometry geometry = geometryOf( MBR, isProtectiveMBR( MBR ),
+                    numOfSectors, request.getDiskType( ) );
+
+            numOfCylinders  = geometry.getCylinders( );
+            headsPerTrack   = geometry.getHeads( );
+            sectorsPerTrack = geometry.getSectors( );
+            partitionTable  = partitionTableOf( MBR, GPT );
+
+            // a single partition as a disk of its own, sized to fit it
+            if( request.getPartition( ) > 0 ) {
+                long[] bounds = partitionBounds( MBR, GPT, request.getPartition( ) );
+                geometry = Geometry.fromCapacity( bounds[1], request.getDiskType( ) );
+
+                partitionStart  = bounds[0];
+                numOfSectors    = bounds[1];
+                numOfCylinders  = geometry.getCylinders( );
+                headsPerTrack   = geometry.getHeads( );
+                sectorsPerTrack = geometry.getSectors( );
+                partitionTable += ", partition " + request.getPartition( )
+                        + " at sector " + partitionStart;
+            }
+        }
+
+        if( identity != null && indexed == null ) {
+            index.record( new AnalysisCache.Entry( identity, request.getDiskType( ),
+                    write ? request.getOutFile( ) : "", numOfSectors,
+                    numOfCylinders, headsPerTrack, sectorsPerTrack,
+                    partitionTable ) );
+        }
+
+        // find the populated regions, the sparse writers skip the others
+        AllocationMap map = null;
+        if( !write || request.isScan( ) ) {
+            map = AllocationMap.scan( reader, AllocationMap.DEFAULT_GRANULARITY,
+                    threads );
+        }
+
+        if( !write ) {
+            return result( request, reader.size( ), numOfSectors, numOfCylinders,
+                    headsPerTrack, sectorsPerTrack, partitionTable, indexed != null )
+                    .withAllocationMap( map );
+        }
+
+        // the sparse extents hold a trailing partial sector as well
+        if( request.getFormat( ).equals( ConversionRequest.FORMAT_SPARSE )
+                || request.getFormat( ).equals( ConversionRequest.FORMAT_STREAM ) ) {
+            numOfSectors = sparseSectorsOf( reader.size( ) );
+        }
+
+        // create hashmap holding data for the VMDK template
+        HashMap<String, String> vmdkData = new HashMap<String, String>( );
+
+        vmdkData.put( "diskType", request.getDiskType( ) );
+        vmdkData.put( "numOfSectors", Long.toString( numOfSectors ) );
+        vmdkData.put( "numOfCylinders", Long.toString( numOfCylinders ) );
+        vmdkData.put( "headsPerTrack", Integer.toString( headsPerTrack ) );
+        vmdkData.put( "sectorsPerTrack", Long.toString( sectorsPerTrack ) );
+        vmdkData.put( "imgLocation", request.getRawImageLocationInVmdk( ) );
+
+        // reruns keep the CID, deltas over the descriptor stay linked
+        vmdkData.put( "CID", ( identity != null ? identity
+                : ImageIdentity.of( reader ) ).getCID( ) );
+
+        if( request.getPartition( ) > 0 ) {
+            vmdkData.put( "ddb.image.partition",
+                    Integer.toString( request.getPartition( ) ) );
+            vmdkData.put( "ddb.image.partitionStartSector",
+                    Long.toString( partitionStart ) );
+        }
+
+        // hash the image for the chain of custody
+        Map<String, String> digests = new LinkedHashMap<String, String>( );
+        String[] hashes = request.getHashes( );
+
+        if( hashes.length > 0 ) {
+            String suffix = request.isTreeHash( ) ? ".tree" : "";
+            Map<String, String> hex = hasher.hash( reader, hashes,
+                    request.isTreeHash( ) );
+
+            for( Map.Entry<String, String> e: hex.entrySet( ) ) {
+                digests.put( e.getKey( ) + suffix, e.getValue( ) );
+                vmdkData.put( "ddb.image." + e.getKey( ) + suffix, e.getValue( ) );
+            }
+
+            if( request.isTreeHash( ) ) {
+                vmdkData.put( "ddb.image.treeLeafSize",
+                        Integer.toString( ImageHasher.TREE_LEAF_SIZE ) );
+            }
+        }
+
+        MerkleSidecar sidecar = null;
+        if( request.isMerkle( ) ) {
+            sidecar = MerkleSidecar.build( reader, hasher );
+            digests.put( "merkleRoot", sidecar.getRoot( ) );
+            vmdkData.put( "ddb.image.merkleRoot", sidecar.getRoot( ) );
+        }
+
+        // write VMDK file to disk
+        if( request.getFormat( ).equals( ConversionRequest.FORMAT_SPARSE ) ) {
+            vmdkData.put( "createType", "monolithicSparse" );
+            vmdkData.put( "fileName", new File( request.getOutFile( ) ).getName( ) );
+            sparseWriter.write( reader, map, vmdkData, request.getOutFile( ) );
+        } else if( request.getFormat( ).equals( ConversionRequest.FORMAT_STREAM ) ) {
+            vmdkData.put( "createType", "streamOptimized" );
+            vmdkData.put( "fileName", new File( request.getOutFile( ) ).getName( ) );
+            streamWriter.write( reader, map, vmdkData, request.getOutFile( ) );
+        } else if( request.getFormat( ).equals( ConversionRequest.FORMAT_QCOW2 ) ) {
+            // the data file is a single raw file, mapped cluster for cluster
+            if( reader.getSegments( ).size( ) > 1 ) {
+                throw new IOException( "QCOW2 data files can't be split, "
+                        + "join the segments or use the flat format." );
+            }
+            qcow2Writer.write( numOfSectors * ImageReader.BYTES_PER_SECTOR,
+                    request.getRawImageLocationInVmdk( ), request.getOutFile( ) );
+        } else {
+            // one extent per segment, each must be whole sectors
+            List<Extent> extents = new SegmentSet( reader.getSegments( ) )
+                    .extents( reader, request.getRawImageLocationInVmdk( ) );
+
+            if( request.getPartition( ) > 0 ) {
+                extents = Extent.slice( extents, partitionStart, numOfSectors );
+            }
+
+            // the image stays untouched, the VM writes to the delta disk
+            if( request.isSnapshot( ) ) {
+                List<Extent> readOnly = new ArrayList<Extent>( extents.size( ) );
+                for( Extent extent: extents ) {
+                    readOnly.add( extent.withAccess( Extent.ACCESS_RDONLY ) );
+                }
+                extents = readOnly;
+
+                // the delta holds what the VM wrote, never replace it
+                if( new File( request.getSnapshotFile( ) ).exists( ) ) {
+                    throw new IOException( "Delta disk " + request.getSnapshotFile( )
+                            + " already exists, move it away to take a new snapshot." );
+                }
+            }
+
+            vmdkTpl.write( vmdkData, extents, request.getOutFile( ) );
+
+            if( request.isSnapshot( ) ) {
+                writeDelta( request, vmdkData, extents );
+            }
+        }
+
+        if( sidecar != null ) {
+            sidecar.write( MerkleSidecar.sidecarOf( request.getOutFile( ) ) );
+        }
+
+        return result( request, reader.size( ), numOfSectors, numOfCylinders,
+                headsPerTrack, sectorsPerTrack, partitionTable, indexed != null )
+                .withDigests( digests ).withAllocationMap( map );
+    }
+
+    /**
+     * Writes the empty delta disk of a snapshot over the base descriptor
+     *
+     * @param request   the converted request
+     * @param base      the template data the base descriptor was written with
+     * @param extents   the extents of the base
+     */
+    private void writeDelta( ConversionRequest request, Map<String, String> base,
+            List<Extent> extents ) throws IOException {
+
+        long capacity = 0;
+        for( Extent extent: extents ) {
+            capacity += extent.getSectors( );
+        }
+
+        String deltaFile = request.getSnapshotFile( );
+        HashMap<String, String> delta = new HashMap<String, String>( );
+
+        delta.put( "diskType", base.get( "diskType" ) );
+        delta.put( "numOfSectors", Long.toString( capacity ) );
+        delta.put( "numOfCylinders", base.get( "numOfCylinders" ) );
+        delta.put( "headsPerTrack", base.get( "headsPerTrack" ) );
+        delta.put( "sectorsPerTrack", base.get( "sectorsPerTrack" ) );
+        delta.put( "createType", "monolithicSparse" );
+        delta.put( "fileName", new File( deltaFile ).getName( ) );
+        // both files are in the same directory
+        delta.put( "parentCID", base.get( "CID" ) );
+        delta.put( "parentFileNameHint", new File( request.getOutFile( ) ).getName( ) );
+
+        sparseWriter.writeDelta( capacity, delta, deltaFile );
+    }
+
+    /**
+     * Finds a partition of the image
+     *
+     * @param MBR       the master boot record
+     * @param GPT       the GUID partition table, null for MBR disks
+     * @param number    1-4 for MBR primaries, 5 on for logical partitions in
+     *                  chain order; the 1 based slot for GPT entries
+     *
+     * @return  the first sector and the number of sectors of the partition
+     *
+     * @throws IOException  if there's no such partition
+     */
+    static long[] partitionBounds( MasterBootRecord MBR, GuidPartitionTable GPT,
+            int number ) throws IOException {
+
+        if( GPT != null ) {
+            for( GptPartitionEntry entry: GPT.getPartitions( ) ) {
+                if( entry.getIndex( ) + 1 == number ) {
+                    return new long[]{ entry.getFirstLBA( ), entry.getNumSectors( ) };
+                }
+            }
+            throw new IOException( "No GPT partition " + number + "." );
+        }
+
+        PartitionEntry entry = null;
+        switch( number ) {
+            case 1: entry = MBR.getPartitionEntry1( ); break;
+            case 2: entry = MBR.getPartitionEntry2( ); break;
+            case 3: entry = MBR.getPartitionEntry3( ); break;
+            case 4: entry = MBR.getPartitionEntry4( ); break;
+            default:
+                if( number - 5 < MBR.getLogicalPartitions( ).size( ) ) {
+                    entry = MBR.getLogicalPartitions( ).get( number - 5 );
+                }
+        }
+
+        if( entry == null || entry.getPartitionType( ) == 0
+                || entry.getNumSectors( ) == 0 ) {
+            throw new IOException( "No partition " + number + "." );
+        }
+
+        // an extended partition holds logical ones, not a filesystem
+        if( entry.isExtended( ) ) {
+            throw new IOException( "Partition " + number
+                    + " is extended, pick one of its logical partitions." );
+        }
+
+        return new long[]{ entry.getAbsoluteSector( ), entry.getNumSectors( ) };
+    }
+
+    /**
+     * Creates the result of a successful conversion, marked if its geometry
+     * came from the index
+     */
+    private static ConversionResult result( ConversionRequest request,
+            long fileSizeBytes, long numOfSectors, long numOfCylinders,
+            int headsPerTrack, long sectorsPerTrack, String partitionTable,
+            boolean indexed ) {
+
+        ConversionResult result = ConversionResult.success( request,
+                fileSizeBytes, numOfSectors, numOfCylinders, headsPerTrack,
+                sectorsPerTrack, partitionTable );
+
+        return indexed ? result.asIndexed( ) : result;
+    }
+}
@@ -0,0 +1,433 @@
+package segfault.raw2vmdk;
+
+/*
+ * ExportedDisk.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * <p>A disk served over the network, made of runs of file bytes and zeros.</p>
+ * <p>The disk is laid out from a raw image (split into segments or not), the
+ * FLAT and ZERO extents of a descriptor written by raw2vmdk, or the virtual
+ * disk of a monolithicSparse or streamOptimized VMDK.<br/>
+ * Runs of files are sent with FileChannel.transferTo, so their bytes go
+ * from the page cache to the socket without being copied through the heap;
+ * zeros come from one shared buffer. Only sparse VMDKs, whose grains have
+ * to be inflated, are read through a heap buffer.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.NBDServer
+ */
+public final class ExportedDisk implements Closeable {
+
+    /**
+     * the first line of a descriptor written by raw2vmdk
+     */
+    private static final String DESCRIPTOR_MAGIC = "# Disk DescriptorFile";
+
+    /**
+     * the largest descriptor file read
+     */
+    private static final int    MAX_DESCRIPTOR   = 1 << 20;
+
+    /**
+     * bytes of zeros and of sparse VMDKs sent per write
+     */
+    private static final int    CHUNK            = 64 * 1024;
+
+    /**
+     * zeros shared by all transfers, only duplicates are ever read
+     */
+    private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect( CHUNK ).asReadOnlyBuffer( );
+
+    private static final ThreadLocal<ByteBuffer> CHUNKS = new ThreadLocal<ByteBuffer>( ) {
+
+        protected ByteBuffer initialValue( ) {
+
+            return ByteBuffer.allocate( CHUNK );
+        }
+    };
+
+    /**
+     * <p>A run of the disk, read from a channel or as zeros.</p>
+     */
+    private static final class Region {
+
+        /**
+         * byte offset of the run in the disk
+         */
+        final long                start;
+
+        final long                length;
+
+        /**
+         * the channel holding the run, null for zeros
+         */
+        final SeekableByteChannel channel;
+
+        /**
+         * byte offset of the run in the channel
+         */
+        final long                offset;
+
+        Region( long start, long length, SeekableByteChannel channel, long offset ) {
+
+            this.start   = start;
+            this.length  = length;
+            this.channel = channel;
+            this.offset  = offset;
+        }
+    }
+
+    /**
+     * the name the disk is exported as
+     */
+    private final String              name;
+
+    /**
+     * the runs of the disk, in disk order
+     */
+    private final List<Region>        regions  = new ArrayList<Region>( );
+
+    /**
+     * every channel opened, each once
+     */
+    private final List<SeekableByteChannel> channels = new ArrayList<SeekableByteChannel>( );
+
+    private long                      size;
+
+    /**
+     * Constructor
+     *
+     * @param name  the name the disk is exported as
+     */
+    private ExportedDisk( String name ) {
+
+        this.name = name;
+    }
+
+    /**
+     * Lays out the disk of an image
+     *
+     * @param image         a raw image or its first segment, a descriptor
+     *                      or a sparse VMDK
+     * @param cacheBytes    the byte budget of the grain cache of a sparse
+     *                      VMDK
+     *
+     * @return  the disk, its files are open until it is closed
+     *
+     * @throws IOException  if a file can not be opened or a descriptor holds
+     *                      extents that can't be exported
+     */
+    public static ExportedDisk open( File image, long cacheBytes ) throws IOException {
+
+        if( !image.isFile( ) ) {
+            throw new IOException( image + " does not exist." );
+        }
+
+        ExportedDisk disk = new ExportedDisk( image.getName( ) );
+        try {
+            if( SparseVMDKChannel.isSparseVMDK( image ) ) {
+                disk.addSparse( image, cacheBytes );
+            } else if( isDescriptor( image ) ) {
+                disk.addDescriptor( image );
+            } else {
+                for( File segment: SegmentSet.discover( image ).getSegments( ) ) {
+                    FileChannel channel = disk.openFile( segment );
+                    disk.add( channel.size( ), channel, 0 );
+                }
+            }
+        } catch( IOException e ) {
+            disk.close( );
+            throw e;
+        }
+
+        return disk;
+    }
+
+    /**
+     * @return the name the disk is exported as
+     */
+    public String getName( ) {
+
+        return name;
+    }
+
+    /**
+     * @return the size of the disk in bytes
+     */
+    public long size( ) {
+
+        return size;
+    }
+
+    /**
+     * Sends a run of the disk
+     *
+     * @param offset    byte offset in the disk
+     * @param length    bytes to send, the run must lie within the disk
+     * @param out       the channel to send to, in blocking mode
+     *
+     * @throws IOException  on read or write errors; part of the run may have
+     *                      been sent
+     */
+    public void transfer( long offset, long length, WritableByteChannel out )
+            throws IOException {
+
+        if( offset < 0 || length < 0 || offset > size - length ) {
+            throw new IllegalArgumentException( "Bytes " + offset + "+" + length
+                    + " are outside the disk (" + size + " bytes)" );
+        }
+
+        for( int i = regionAt( offset ); length > 0; i++ ) {
+            Region r = regions.get( i );
+            long within = offset - r.start;
+            long n = Math.min( length, r.length - within );
+
+            if( r.channel == null ) {
+                sendZeros( n, out );
+            } else if( r.channel instanceof FileChannel ) {
+                sendFile( (FileChannel) r.channel, r.offset + within, n, out );
+            } else {
+                sendSparse( (SparseVMDKChannel) r.channel, r.offset + within, n, out );
+            }
+
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Closes the files of the disk
+     */
+    public void close( ) throws IOException {
+
+        IOException failure = null;
+        for( SeekableByteChannel channel: channels ) {
+            try {
+                channel.close( );
+            } catch( IOException e ) {
+                failure = e;
+            }
+        }
+
+        if( failure != null ) throw failure;
+    }
+
+    /**
+     * Checks if a file is a descriptor from its first line
+     */
+    private static boolean isDescriptor( File file ) throws IOException {
+
+        if( file.length( ) > MAX_DESCRIPTOR ) {
+            return false;
+        }
+
+        byte[] head = new byte[ DESCRIPTOR_MAGIC.length( ) ];
+        try( InputStream in = Files.newInputStream( file.toPath( ) ) ) {
+            int n = 0;
+            while( n < head.length ) {
+                int r = in.read( head, n, head.length - n );
+                if( r < 0 ) return false;
+                n += r;
+            }
+        }
+
+        return new String( head, "US-ASCII" ).equals( DESCRIPTOR_MAGIC );
+    }
+
+    /**
+     * Lays out the virtual disk of a sparse VMDK
+     */
+    private void addSparse( File vmdk, long cacheBytes ) throws IOException {
+
+        SparseVMDKChannel channel = new SparseVMDKChannel( vmdk, cacheBytes );
+        channels.add( channel );
+
+        // a delta disk only holds the grains written since its parent
+        SparseExtentReader reader = new SparseExtentReader( vmdk );
+        try {
+            String descriptor = reader.getDescriptor( );
+            for( String line: descriptor.split( "\\r?\\n" ) ) {
+                if( line.startsWith( "parentCID=" )
+                        && !line.startsWith( "parentCID=" + VMDKTemplate.NO_PARENT_CID ) ) {
+                    throw new IOException( vmdk + " is a delta disk, export its parent." );
+                }
+            }
+        } finally {
+            reader.close( );
+        }
+
+        add( channel.size( ), channel, 0 );
+    }
+
+    /**
+     * Lays out the FLAT and ZERO extents of a descriptor
+     */
+    private void addDescriptor( File descriptor ) throws IOException {
+
+        String text = new String( Files.readAllBytes( descriptor.toPath( ) ), "UTF-8" );
+        List<Extent> extents = Extent.fromDescriptor( text );
+        if( extents.isEmpty( ) ) {
+            throw new IOException( descriptor + " describes no extents." );
+        }
+
+        File dir = descriptor.getAbsoluteFile( ).getParentFile( );
+        for( Extent e: extents ) {
+            long bytes = e.getSectors( ) * ImageReader.BYTES_PER_SECTOR;
+
+            if( e.getType( ).equals( Extent.TYPE_ZERO ) ) {
+                add( bytes, null, 0 );
+            } else if( e.getType( ).equals( Extent.TYPE_FLAT ) ) {
+                FileChannel channel = openFile( locate( dir, e.getFileName( ) ) );
+
+                // sectors past the end of a file (i.e. its partial last
+                // sector) read as zeros
+                long offset = e.getOffset( ) * ImageReader.BYTES_PER_SECTOR;
+                long available = Math.max( 0, Math.min( bytes, channel.size( ) - offset ) );
+                add( available, channel, offset );
+                add( bytes - available, null, 0 );
+            } else {
+                throw new IOException( e.getType( ) + " extents of " + descriptor
+                        + " can not be exported." );
+            }
+        }
+    }
+
+    /**
+     * Finds the file of an extent next to the descriptor, as VMware does,
+     * or else where it was given when the descriptor was written
+     */
+    private static File locate( File dir, String fileName ) {
+
+        File f = new File( fileName );
+        if( f.isAbsolute( ) ) {
+            return f;
+        }
+
+        File sibling = new File( dir, fileName );
+        return sibling.isFile( ) || !f.isFile( ) ? sibling : f;
+    }
+
+    private FileChannel openFile( File file ) throws IOException {
+
+        FileChannel channel = FileChannel.open( file.toPath( ), StandardOpenOption.READ );
+        channels.add( channel );
+
+        return channel;
+    }
+
+    /**
+     * Appends a run to the disk, merging it with the previous run of zeros
+     */
+    private void add( long length, SeekableByteChannel channel, long offset ) {
+
+        if( length <= 0 ) {
+            return;
+        }
+
+        Region last = regions.isEmpty( ) ? null : regions.get( regions.size( ) - 1 );
+        if( channel == null && last != null && last.channel == null ) {
+            regions.set( regions.size( ) - 1, new Region( last.start,
+                    last.length + length, null, 0 ) );
+        } else {
+            regions.add( new Region( size, length, channel, offset ) );
+        }
+        size += length;
+    }
+
+    /**
+     * Finds the run holding a byte by binary search
+     */
+    private int regionAt( long offset ) {
+
+        int low = 0;
+        int high = regions.size( ) - 1;
+
+        while( low < high ) {
+            int mid = ( low + high + 1 ) >>> 1;
+            if( regions.get( mid ).start <= offset ) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+    private static void sendZeros( long length, WritableByteChannel out ) throws IOException {
+
+        while( length > 0 ) {
+            ByteBuffer zeros = ZEROS.duplicate( );
+            zeros.limit( (int) Math.min( CHUNK, length ) );
+            length -= zeros.remaining( );
+
+            while( zeros.hasRemaining( ) ) out.write( zeros );
+        }
+    }
+
+    private static void sendFile( FileChannel file, long position, long length,
+            WritableByteChannel out ) throws IOException {
+
+        while( length > 0 ) {
+            long n = file.transferTo( position, length, out );
+            if( n <= 0 ) {
+                throw new IOException( "Unexpected end of file at byte " + position + "." );
+            }
+            position += n;
+            length -= n;
+        }
+    }
+
+    private static void sendSparse( SparseVMDKChannel sparse, long position,
+            long length, WritableByteChannel out ) throws IOException {
+
+        ByteBuffer buf = CHUNKS.get( );
+
+        while( length > 0 ) {
+            buf.clear( );
+            buf.limit( (int) Math.min( CHUNK, length ) );
+            if( sparse.read( buf, position ) <= 0 ) {
+                throw new IOException( "Unexpected end of disk at byte " + position + "." );
+            }
+            buf.flip( );
+            position += buf.remaining( );
+            length -= buf.remaining( );
+
+            while( buf.hasRemaining( ) ) out.write( buf );
+        }
+    }
+}
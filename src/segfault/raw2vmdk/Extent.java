@@ -0,0 +1,292 @@
+package segfault.raw2vmdk;
+
+/*
+ * Extent.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Immutable extent line of a VMDK descriptor.</p>
+ * <p>An extent maps the next run of sectors of the virtual disk to a file,
+ * i.e. <code>RW 4194304 FLAT "disk.001" 0</code>. Descriptors list their
+ * extents in disk order.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public final class Extent {
+
+    /**
+     * read/write access
+     */
+    public static final String ACCESS_RW     = "RW";
+
+    /**
+     * read only access
+     */
+    public static final String ACCESS_RDONLY = "RDONLY";
+
+    /**
+     * a raw file mapped as is
+     */
+    public static final String TYPE_FLAT     = "FLAT";
+
+    /**
+     * a hosted sparse file
+     */
+    public static final String TYPE_SPARSE   = "SPARSE";
+
+    /**
+     * sectors reading as zeros, backed by no file
+     */
+    public static final String TYPE_ZERO     = "ZERO";
+
+    /**
+     * access, sectors, type, then the quoted file and offset if any
+     */
+    private static final Pattern LINE = Pattern.compile(
+            "\\s*(RW|RDONLY|NOACCESS)\\s+(\\d+)\\s+(\\w+)(?:\\s+\"([^\"]*)\"(?:\\s+(\\d+))?)?\\s*" );
+
+    /**
+     * RW, RDONLY or NOACCESS
+     */
+    private final String access;
+
+    /**
+     * size of the extent in sectors
+     */
+    private final long   sectors;
+
+    /**
+     * FLAT, SPARSE, ZERO...
+     */
+    private final String type;
+
+    /**
+     * the file backing the extent, null for ZERO extents
+     */
+    private final String fileName;
+
+    /**
+     * offset of the extent in the file, in sectors
+     */
+    private final long   offset;
+
+    /**
+     * Constructor
+     *
+     * @param access    RW, RDONLY or NOACCESS
+     * @param sectors   size of the extent in sectors
+     * @param type      FLAT, SPARSE, ZERO...
+     * @param fileName  the file backing the extent, null for ZERO extents
+     * @param offset    offset of the extent in the file, in sectors
+     */
+    public Extent( String access, long sectors, String type, String fileName,
+            long offset ) {
+
+        this.access   = access;
+        this.sectors  = sectors;
+        this.type     = type;
+        this.fileName = fileName;
+        this.offset   = offset;
+    }
+
+    /**
+     * Creates a read/write FLAT extent over a whole file
+     *
+     * @param sectors   size of the file in sectors
+     * @param fileName  the file
+     *
+     * @return  the extent
+     */
+    public static Extent flat( long sectors, String fileName ) {
+
+        return new Extent( ACCESS_RW, sectors, TYPE_FLAT, fileName, 0 );
+    }
+
+    /**
+     * Cuts a run of sectors out of the extents of a disk, i.e. to describe a
+     * single partition of an image split into segments
+     *
+     * @param extents       the extents of the disk, in disk order
+     * @param firstSector   the first sector of the run
+     * @param sectors       the length of the run in sectors
+     *
+     * @return  the extents covering the run, FLAT offsets adjusted
+     *
+     * @throws IllegalArgumentException if the run ends past the disk
+     */
+    public static List<Extent> slice( List<Extent> extents, long firstSector,
+            long sectors ) {
+
+        List<Extent> slice = new ArrayList<Extent>( );
+        long start = 0;
+        long end = firstSector + sectors;
+
+        for( Extent e: extents ) {
+            long from = Math.max( start, firstSector );
+            long to = Math.min( start + e.sectors, end );
+
+            if( from < to ) {
+                slice.add( new Extent( e.access, to - from, e.type, e.fileName,
+                        e.fileName == null ? 0 : e.offset + from - start ) );
+            }
+            start += e.sectors;
+        }
+
+        if( firstSector < 0 || sectors <= 0 || end > start ) {
+            throw new IllegalArgumentException( "Sectors " + firstSector + "-"
+                    + ( end - 1 ) + " are outside the disk (" + start + " sectors)" );
+        }
+
+        return slice;
+    }
+
+    /**
+     * Parses a line of the "Extent description" section of a descriptor
+     *
+     * @param line  the line
+     *
+     * @return  the extent, null if the line isn't an extent line
+     */
+    public static Extent parse( String line ) {
+
+        Matcher m = LINE.matcher( line );
+        if( !m.matches( ) ) {
+            return null;
+        }
+
+        try {
+            return new Extent( m.group( 1 ), Long.parseLong( m.group( 2 ) ),
+                    m.group( 3 ), m.group( 4 ),
+                    m.group( 5 ) == null ? 0 : Long.parseLong( m.group( 5 ) ) );
+        } catch( NumberFormatException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses the extents of a descriptor, skipping every other line
+     *
+     * @param descriptor    the descriptor text
+     *
+     * @return  the extents, in disk order
+     */
+    public static List<Extent> fromDescriptor( String descriptor ) {
+
+        List<Extent> extents = new ArrayList<Extent>( );
+
+        for( String line: descriptor.split( "\\r?\\n" ) ) {
+            Extent extent = parse( line );
+            if( extent != null ) extents.add( extent );
+        }
+
+        return extents;
+    }
+
+    /**
+     * Renders extents as the "Extent description" section of a descriptor
+     *
+     * @param extents   the extents, in disk order
+     *
+     * @return  one line per extent
+     */
+    public static String toDescriptor( List<Extent> extents ) {
+
+        StringBuilder sb = new StringBuilder( );
+        String eol = System.getProperty( "line.separator" );
+
+        for( Extent extent: extents ) {
+            if( sb.length( ) > 0 ) sb.append( eol );
+            sb.append( extent );
+        }
+
+        return sb.toString( );
+    }
+
+    /**
+     * Creates a copy of this extent with another access, i.e. RDONLY for the
+     * base of a delta disk
+     *
+     * @param access    RW, RDONLY or NOACCESS
+     *
+     * @return  the new extent
+     */
+    public Extent withAccess( String access ) {
+
+        return new Extent( access, sectors, type, fileName, offset );
+    }
+
+    /**
+     * @return RW, RDONLY or NOACCESS
+     */
+    public String getAccess( ) {
+
+        return access;
+    }
+
+    /**
+     * @return size of the extent in sectors
+     */
+    public long getSectors( ) {
+
+        return sectors;
+    }
+
+    /**
+     * @return FLAT, SPARSE, ZERO...
+     */
+    public String getType( ) {
+
+        return type;
+    }
+
+    /**
+     * @return the file backing the extent, null for ZERO extents
+     */
+    public String getFileName( ) {
+
+        return fileName;
+    }
+
+    /**
+     * @return offset of the extent in the file, in sectors
+     */
+    public long getOffset( ) {
+
+        return offset;
+    }
+
+    /**
+     * @return the descriptor line of the extent
+     */
+    public String toString( ) {
+
+        if( fileName == null ) {
+            return access + " " + sectors + " " + type;
+        }
+
+        // only FLAT extents carry an offset
+        return access + " " + sectors + " " + type + " \"" + fileName + "\""
+                + ( TYPE_FLAT.equals( type ) ? " " + offset : "" );
+    }
+}
@@ -0,0 +1,203 @@
+package segfault.raw2vmdk;
+
+/*
+ * FixedVHDWriter.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * <p>Turns raw images into fixed VHDs.</p>
+ * <p>A fixed VHD is the raw disk followed by a {@link VHDFooter}, so an image
+ * whose size is a whole number of sectors becomes one by appending 512
+ * bytes to it, in place. The append is undone, by the writer on failure or
+ * later on request, by truncating the image back to its original size after
+ * checking that what is removed is a footer for exactly the rest of the
+ * file.<br/>
+ * Images that can't be changed, are split or aren't whole sectors are
+ * copied instead, zero padded to a sector.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.VHDFooter
+ */
+public class FixedVHDWriter {
+
+    /**
+     * bytes copied per read
+     */
+    private static final int CHUNK = 1 << 20;
+
+    /**
+     * Appends a footer to an image
+     *
+     * @param image the raw image, its size a multiple of 512
+     * @param size  the size of the disk as analysed, must still be the size
+     *              of the file
+     *
+     * @return  the footer appended
+     *
+     * @throws IOException  if the image changed size, already ends with a
+     *                      footer or can't be written; the image is then
+     *                      left as it was
+     */
+    public VHDFooter appendInPlace( File image, long size ) throws IOException {
+
+        if( size % VHDFooter.SIZE != 0 ) {
+            throw new IOException( image + " is " + size + " bytes, not whole sectors; "
+                    + "write a copy instead." );
+        }
+
+        try( FileChannel out = FileChannel.open( image.toPath( ),
+                     StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+
+            if( out.size( ) != size ) {
+                throw new IOException( image + " changed size since it was analysed." );
+            }
+            if( size >= VHDFooter.SIZE && VHDFooter.isFooter( readSector( out, size - VHDFooter.SIZE ) ) ) {
+                throw new IOException( image + " already ends with a VHD footer." );
+            }
+
+            VHDFooter footer = VHDFooter.fixed( size );
+            try {
+                ByteBuffer buf = footer.toBuffer( );
+                while( buf.hasRemaining( ) ) {
+                    out.write( buf, size + buf.position( ) );
+                }
+                out.force( true );
+
+                // read back what the disk now holds
+                VHDFooter.parse( readSector( out, size ) );
+            } catch( IOException e ) {
+                out.truncate( size );
+                out.force( true );
+                throw e;
+            }
+
+            return footer;
+        }
+    }
+
+    /**
+     * Removes the footer appended to an image
+     *
+     * @param vhd   the fixed VHD
+     *
+     * @return  the footer removed
+     *
+     * @throws IOException  if the file doesn't end with the footer of a
+     *                      fixed disk of the rest of the file
+     */
+    public VHDFooter rollback( File vhd ) throws IOException {
+
+        try( FileChannel out = FileChannel.open( vhd.toPath( ),
+                     StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+
+            long size = out.size( ) - VHDFooter.SIZE;
+            if( size < 0 ) {
+                throw new IOException( vhd + " is too small to be a VHD." );
+            }
+
+            VHDFooter footer = VHDFooter.parse( readSector( out, size ) );
+            if( footer.getDiskType( ) != VHDFooter.TYPE_FIXED || footer.getCurrentSize( ) != size ) {
+                throw new IOException( vhd + " isn't a fixed VHD of " + size + " bytes, left untouched." );
+            }
+
+            out.truncate( size );
+            out.force( true );
+
+            return footer;
+        }
+    }
+
+    /**
+     * Copies an image to a new fixed VHD, zero padding it to a sector
+     *
+     * @param reader    the (possibly split) image
+     * @param vhd       the VHD to write
+     *
+     * @return  the footer written
+     *
+     * @throws IOException  on read or write errors, or if the VHD is one of
+     *                      the segments of the image
+     */
+    public VHDFooter copy( ImageReader reader, File vhd ) throws IOException {
+
+        long size = reader.size( );
+        if( size == 0 ) {
+            throw new IOException( "The image is empty." );
+        }
+
+        // truncating the VHD would destroy the image being copied
+        File target = vhd.getCanonicalFile( );
+        for( File segment: reader.getSegments( ) ) {
+            if( target.equals( segment.getCanonicalFile( ) ) ) {
+                throw new IOException( "The VHD can't be the image, write it elsewhere." );
+            }
+        }
+        long padded = ( size + VHDFooter.SIZE - 1 ) / VHDFooter.SIZE * VHDFooter.SIZE;
+
+        try( FileChannel out = FileChannel.open( vhd.toPath( ),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING ) ) {
+
+            ByteBuffer buf = ByteBuffer.allocateDirect( CHUNK );
+            long pos = 0;
+            while( pos < size ) {
+                buf.clear( );
+                int n = reader.read( buf, pos );
+                if( n <= 0 ) {
+                    throw new IOException( "Unexpected end of image at byte " + pos + "." );
+                }
+                buf.flip( );
+                while( buf.hasRemaining( ) ) {
+                    out.write( buf, pos + buf.position( ) );
+                }
+                pos += n;
+            }
+
+            // the padding reads as zeros
+            VHDFooter footer = VHDFooter.fixed( padded );
+            ByteBuffer footerBuf = footer.toBuffer( );
+            while( footerBuf.hasRemaining( ) ) {
+                out.write( footerBuf, padded + footerBuf.position( ) );
+            }
+
+            return footer;
+        }
+    }
+
+    private static ByteBuffer readSector( FileChannel in, long offset ) throws IOException {
+
+        ByteBuffer buf = ByteBuffer.allocate( VHDFooter.SIZE );
+        while( buf.hasRemaining( ) ) {
+            if( in.read( buf, offset + buf.position( ) ) < 0 ) break;
+        }
+        buf.flip( );
+
+        return buf;
+    }
+}
@@ -0,0 +1,291 @@
+package segfault.raw2vmdk;
+
+/*
+ * FragmentMap.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * <p>Map of the fragments a disk was carved into.</p>
+ * <p>Every fragment places a run of sectors of a file at a sector of the
+ * virtual disk; the sectors no fragment covers read as zeros. The map is
+ * turned into FLAT extents with ZERO extents in the gaps, so the disk is
+ * assembled without copying a byte.</p>
+ * <p>Map files hold one fragment per line, '#' starts a comment:</p>
+ * <pre>
+ *  # disk sector  sectors  file offset  file
+ *  0              2048     0            mbr.bin
+ *  2048           409600   0            carved/part1.raw
+ *  1050624        204800   64           carved/part2.raw
+ * </pre>
+ * <p>The file is the rest of the line so it may contain spaces; relative
+ * paths are written to the descriptor as they are, i.e. relative to it.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public final class FragmentMap {
+
+    /**
+     * <p>A run of sectors of a file placed on the disk.</p>
+     */
+    public static final class Fragment {
+
+        private final long   diskSector;
+
+        private final long   sectors;
+
+        private final long   fileOffset;
+
+        private final String fileName;
+
+        /**
+         * Constructor
+         *
+         * @param diskSector    the first sector of the fragment on the disk
+         * @param sectors       the length of the fragment in sectors
+         * @param fileOffset    the first sector of the fragment in the file
+         * @param fileName      the file holding the fragment
+         */
+        public Fragment( long diskSector, long sectors, long fileOffset,
+                String fileName ) {
+
+            if( diskSector < 0 || sectors <= 0 || fileOffset < 0 ) {
+                throw new IllegalArgumentException( "Fragment " + diskSector
+                        + "+" + sectors + " of " + fileName + " is incorrect." );
+            }
+
+            this.diskSector = diskSector;
+            this.sectors    = sectors;
+            this.fileOffset = fileOffset;
+            this.fileName   = fileName;
+        }
+
+        /**
+         * @return the first sector of the fragment on the disk
+         */
+        public long getDiskSector( ) {
+
+            return diskSector;
+        }
+
+        /**
+         * @return the length of the fragment in sectors
+         */
+        public long getSectors( ) {
+
+            return sectors;
+        }
+
+        /**
+         * @return the first sector of the fragment in the file
+         */
+        public long getFileOffset( ) {
+
+            return fileOffset;
+        }
+
+        /**
+         * @return the file holding the fragment
+         */
+        public String getFileName( ) {
+
+            return fileName;
+        }
+
+        public String toString( ) {
+
+            return "sectors " + diskSector + "-" + ( diskSector + sectors - 1 )
+                    + " (" + fileName + " at " + fileOffset + ")";
+        }
+    }
+
+    /**
+     * the fragments, in disk order
+     */
+    private final List<Fragment> fragments;
+
+    /**
+     * Constructor
+     *
+     * @param fragments the fragments, in any order
+     *
+     * @throws IllegalArgumentException if two fragments overlap on the disk
+     */
+    public FragmentMap( List<Fragment> fragments ) {
+
+        List<Fragment> sorted = new ArrayList<Fragment>( fragments );
+        Collections.sort( sorted, new Comparator<Fragment>( ) {
+
+            public int compare( Fragment a, Fragment b ) {
+
+                return Long.compare( a.diskSector, b.diskSector );
+            }
+        } );
+
+        for( int i = 1; i < sorted.size( ); i++ ) {
+            Fragment previous = sorted.get( i - 1 );
+            Fragment current = sorted.get( i );
+
+            if( previous.diskSector + previous.sectors > current.diskSector ) {
+                throw new IllegalArgumentException( "Fragments overlap: "
+                        + previous + " and " + current + "." );
+            }
+        }
+
+        this.fragments = Collections.unmodifiableList( sorted );
+    }
+
+    /**
+     * Reads a map file
+     *
+     * @param map   the map file
+     *
+     * @return  the map
+     *
+     * @throws IOException  if the file can't be read or a line is malformed
+     * @throws IllegalArgumentException if two fragments overlap
+     */
+    public static FragmentMap read( File map ) throws IOException {
+
+        List<Fragment> fragments = new ArrayList<Fragment>( );
+
+        try( BufferedReader in = new BufferedReader( new InputStreamReader(
+                new FileInputStream( map ), "UTF-8" ) ) ) {
+
+            String line;
+            int number = 0;
+            while( ( line = in.readLine( ) ) != null ) {
+                number++;
+                line = line.trim( );
+                if( line.length( ) == 0 || line.startsWith( "#" ) ) continue;
+
+                String[] f = line.split( "\\s+", 4 );
+                try {
+                    if( f.length < 4 ) throw new NumberFormatException( );
+
+                    fragments.add( new Fragment( Long.parseLong( f[0] ),
+                            Long.parseLong( f[1] ), Long.parseLong( f[2] ), f[3] ) );
+                } catch( IllegalArgumentException e ) {
+                    throw new IOException( map + ":" + number
+                            + ": expected <disk sector> <sectors> <file offset> <file>" );
+                }
+            }
+        }
+
+        if( fragments.isEmpty( ) ) {
+            throw new IOException( map + " holds no fragments." );
+        }
+
+        return new FragmentMap( fragments );
+    }
+
+    /**
+     * Checks that every fragment lies within its file
+     *
+     * @param base  the directory relative file names are resolved against
+     *
+     * @throws IOException  if a file is missing or too short
+     */
+    public void validate( File base ) throws IOException {
+
+        for( Fragment f: fragments ) {
+            File file = new File( f.fileName );
+            if( !file.isAbsolute( ) ) file = new File( base, f.fileName );
+
+            if( !file.isFile( ) ) {
+                throw new IOException( "Fragment file " + file + " does not exist." );
+            }
+
+            long fileSectors = file.length( ) / ImageReader.BYTES_PER_SECTOR;
+            if( f.fileOffset + f.sectors > fileSectors ) {
+                throw new IOException( "Fragment " + f + " runs past the end of "
+                        + file + " (" + fileSectors + " sectors)." );
+            }
+        }
+    }
+
+    /**
+     * Lays the fragments out as extents
+     *
+     * @param diskSectors   the size of the disk in sectors, 0 to end it with
+     *                      the last fragment
+     *
+     * @return  FLAT extents for the fragments and ZERO extents in between,
+     *          in disk order
+     *
+     * @throws IllegalArgumentException if the fragments don't fit the disk
+     */
+    public List<Extent> extents( long diskSectors ) {
+
+        List<Extent> extents = new ArrayList<Extent>( );
+        long next = 0;
+
+        for( Fragment f: fragments ) {
+            if( f.diskSector > next ) {
+                extents.add( new Extent( Extent.ACCESS_RW, f.diskSector - next,
+                        Extent.TYPE_ZERO, null, 0 ) );
+            }
+            extents.add( new Extent( Extent.ACCESS_RW, f.sectors,
+                    Extent.TYPE_FLAT, f.fileName, f.fileOffset ) );
+            next = f.diskSector + f.sectors;
+        }
+
+        if( diskSectors > 0 && diskSectors < next ) {
+            throw new IllegalArgumentException( "Fragments end at sector " + next
+                    + ", past the end of the disk (" + diskSectors + " sectors)." );
+        }
+
+        if( diskSectors > next ) {
+            extents.add( new Extent( Extent.ACCESS_RW, diskSectors - next,
+                    Extent.TYPE_ZERO, null, 0 ) );
+        }
+
+        return extents;
+    }
+
+    /**
+     * @return the fragments, in disk order
+     */
+    public List<Fragment> getFragments( ) {
+
+        return fragments;
+    }
+
+    /**
+     * @return the sector following the last fragment
+     */
+    public long getEndSector( ) {
+
+        Fragment last = fragments.get( fragments.size( ) - 1 );
+
+        return last.diskSector + last.sectors;
+    }
+}
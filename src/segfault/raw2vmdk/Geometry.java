@@ -0,0 +1,128 @@
+package segfault.raw2vmdk;
+
+/*
+ * Geometry.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+/**
+ * <p>Immutable cylinders/heads/sectors geometry of a virtual disk.</p>
+ * <p>Used when the partition table carries no usable CHS values (GPT disks,
+ * partition-only disks) so the geometry has to be derived from the capacity
+ * the way VMware does it for each adapter type.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public final class Geometry {
+
+    /**
+     * the largest cylinder count an IDE disk can report
+     */
+    static final long  MAX_IDE_CYLINDERS = 16383;
+
+    /**
+     * total number of cylinders
+     */
+    private final long cylinders;
+
+    /**
+     *  heads per track
+     */
+    private final int  heads;
+
+    /**
+     *  sectors per track
+     */
+    private final long sectors;
+
+    /**
+     * Constructor
+     *
+     * @param cylinders total number of cylinders
+     * @param heads     heads per track
+     * @param sectors   sectors per track
+     */
+    public Geometry( long cylinders, int heads, long sectors ) {
+
+        this.cylinders = cylinders;
+        this.heads     = heads;
+        this.sectors   = sectors;
+    }
+
+    /**
+     * Derives the geometry of a disk from its capacity
+     *
+     * @param numOfSectors  the capacity in 512 byte sectors
+     * @param diskType      the VMDK adapter type
+     *
+     * @return  the geometry
+     */
+    public static Geometry fromCapacity( long numOfSectors, String diskType ) {
+
+        if( "ide".equals( diskType ) ) {
+            return new Geometry( Math.max( 1, Math.min( numOfSectors / ( 16 * 63 ),
+                    MAX_IDE_CYLINDERS ) ), 16, 63 );
+        }
+
+        // SCSI adapters translate depending on the size of the disk
+        int heads;
+        long sectors;
+        if( numOfSectors < 2L * 1024 * 1024 ) {
+            heads   = 64;
+            sectors = 32;
+        } else if( numOfSectors < 4L * 1024 * 1024 ) {
+            heads   = 128;
+            sectors = 32;
+        } else {
+            heads   = 255;
+            sectors = 63;
+        }
+
+        return new Geometry( Math.max( 1, numOfSectors / ( heads * sectors ) ),
+                heads, sectors );
+    }
+
+    /**
+     * @return total number of cylinders
+     */
+    public long getCylinders( ) {
+
+        return cylinders;
+    }
+
+    /**
+     * @return heads per track
+     */
+    public int getHeads( ) {
+
+        return heads;
+    }
+
+    /**
+     * @return sectors per track
+     */
+    public long getSectors( ) {
+
+        return sectors;
+    }
+
+    public String toString( ) {
+
+        return cylinders + "/" + heads + "/" + sectors + " C/H/S";
+    }
+}
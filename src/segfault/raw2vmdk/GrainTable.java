@@ -0,0 +1,119 @@
+package segfault.raw2vmdk;
+
+/*
+ * GrainTable.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>The grain tables of a sparse extent being written, as one little endian
+ * run of grain table entries.</p>
+ * <p>The table grows as grains past its end are allocated, so images whose
+ * size is only known once they have been read, i.e. decompressed streams,
+ * can be written in a single pass.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+class GrainTable {
+
+    /**
+     * the last sector a grain table entry can point at, entries are 32 bit
+     */
+    static final long MAX_SECTOR = 0xFFFFFFFFL;
+
+    /**
+     * the grain table entries, 4 bytes per grain
+     */
+    private ByteBuffer entries;
+
+    /**
+     * Constructor
+     *
+     * @param numGrains the number of grains expected, the table grows past it
+     *                  if needed
+     */
+    GrainTable( long numGrains ) {
+
+        entries = allocate( Math.max( numGrains, SparseExtentHeader.DEFAULT_GTES_PER_GT ) );
+    }
+
+    /**
+     * Points a grain at the sector it was written to
+     *
+     * @param grain     the grain number
+     * @param sector    the sector of the grain in the extent
+     *
+     * @throws IOException  if the sector is past the reach of an entry
+     */
+    void set( long grain, long sector ) throws IOException {
+
+        if( sector > MAX_SECTOR ) {
+            throw new IOException( "Image too large for a sparse extent." );
+        }
+
+        if( ( grain + 1 ) * 4 > entries.capacity( ) ) {
+            ByteBuffer grown = allocate( Math.max( grain + 1, entries.capacity( ) / 4 * 2L ) );
+            entries.clear( );
+            grown.put( entries );
+            entries = grown;
+        }
+
+        entries.putInt( (int) ( grain * 4 ), (int) sector );
+    }
+
+    /**
+     * Gets the grain tables of an extent
+     *
+     * @param header    the header of the extent, its capacity final
+     *
+     * @return  the entries of all grain tables of the extent, unallocated
+     *          grains zeroed, ready to be written
+     */
+    ByteBuffer toBuffer( SparseExtentHeader header ) {
+
+        int bytes = (int) ( header.numGTs( ) * header.gtSectors( )
+                * SparseExtentHeader.SECTOR_SIZE );
+
+        if( entries.capacity( ) != bytes ) {
+            ByteBuffer fitted = ByteBuffer.allocate( bytes ).order( ByteOrder.LITTLE_ENDIAN );
+            ByteBuffer used = entries.duplicate( );
+            used.clear( ).limit( Math.min( bytes, used.capacity( ) ) );
+            fitted.put( used );
+            entries = fitted;
+        }
+
+        entries.clear( );
+        return entries;
+    }
+
+    /**
+     * Allocates room for a number of grain table entries
+     */
+    private static ByteBuffer allocate( long numGrains ) {
+
+        if( numGrains * 4 > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException( "Too many grains: " + numGrains );
+        }
+
+        return ByteBuffer.allocate( (int) ( numGrains * 4 ) ).order( ByteOrder.LITTLE_ENDIAN );
+    }
+}
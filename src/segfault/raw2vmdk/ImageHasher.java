@@ -0,0 +1,376 @@
+package segfault.raw2vmdk;
+
+/*
+ * ImageHasher.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * <p>Hashes raw images for the chain of custody.</p>
+ * <p>The image is memory-mapped in large windows and hashed with any of
+ * MD5, SHA-1 and SHA-256. A plain digest is inherently sequential, so in
+ * linear mode each algorithm streams the image on a thread of its own and
+ * the digests match those of md5sum/sha1sum/sha256sum.<br/>
+ * In tree mode the image is cut into {@link #TREE_LEAF_SIZE} leaves hashed
+ * in parallel, and the digest is the hash of the concatenated leaf digests,
+ * in image order. It scales with the number of threads but is only
+ * comparable to other tree digests of the same leaf size.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public class ImageHasher {
+
+    /**
+     * The supported algorithms, as accepted by -Dhash
+     */
+    static final String[]         ALGORITHMS     = { "md5", "sha1", "sha256" };
+
+    /**
+     * The JCA names of {@link #ALGORITHMS}
+     */
+    private static final String[] JCA_NAMES     = { "MD5", "SHA-1", "SHA-256" };
+
+    /**
+     * bytes mapped at a time in linear mode
+     */
+    static final int              WINDOW_SIZE    = 64 * 1024 * 1024;
+
+    /**
+     * bytes hashed by a single task in tree mode
+     */
+    public static final int       TREE_LEAF_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * the hashing threads, shared by concurrent conversions
+     */
+    private final ExecutorService hashers;
+
+    /**
+     * the number of hashing threads
+     */
+    private final int             threads;
+
+    /**
+     * Constructor
+     *
+     * @param threads   the number of hashing threads
+     */
+    public ImageHasher( int threads ) {
+
+        this.threads = threads;
+        this.hashers = Executors.newFixedThreadPool( threads, new ThreadFactory( ) {
+
+            public Thread newThread( Runnable r ) {
+
+                Thread t = new Thread( r, "image-hash" );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+    }
+
+    /**
+     * Checks if a hash algorithm is supported
+     *
+     * @param algorithm the algorithm, i.e. "sha256"
+     *
+     * @return  true if supported, false otherwise
+     */
+    public static boolean isValidAlgorithm( String algorithm ) {
+
+        return jcaName( algorithm ) != null;
+    }
+
+    /**
+     * Splits a comma separated list of algorithms, as given to -Dhash
+     *
+     * @param list  i.e. "md5,sha256"
+     *
+     * @return  the algorithms, lower case and without duplicates
+     *
+     * @throws IllegalArgumentException if an algorithm isn't supported
+     */
+    public static String[] parseAlgorithms( String list ) {
+
+        List<String> algorithms = new ArrayList<String>( );
+
+        for( String s: list.split( "," ) ) {
+            String algorithm = s.trim( ).toLowerCase( ).replace( "-", "" );
+            if( algorithm.length( ) == 0 || algorithms.contains( algorithm ) ) continue;
+
+            if( !isValidAlgorithm( algorithm ) ) {
+                throw new IllegalArgumentException( "Unsupported hash algorithm '"
+                        + s.trim( ) + "'." );
+            }
+            algorithms.add( algorithm );
+        }
+
+        return algorithms.toArray( new String[ algorithms.size( ) ] );
+    }
+
+    /**
+     * Hashes a (possibly split) image
+     *
+     * @param image         the image, left open
+     * @param algorithms    the algorithms, see {@link #ALGORITHMS}
+     * @param tree          true for parallel tree digests
+     *
+     * @return  the hex digests by algorithm, in the order given
+     *
+     * @throws IOException  on read errors
+     */
+    public Map<String, String> hash( ImageReader image, String[] algorithms,
+            boolean tree ) throws IOException {
+
+        byte[][] digests = tree ? treeHash( image, algorithms )
+                : linearHash( image, algorithms );
+
+        Map<String, String> hex = new LinkedHashMap<String, String>( );
+        for( int i = 0; i < algorithms.length; i++ ) {
+            hex.put( algorithms[i], toHex( digests[i] ) );
+        }
+
+        return hex;
+    }
+
+    /**
+     * Hashes fixed size blocks of an image with SHA-256, in parallel. Each
+     * digest covers a 0x00 byte followed by the block, the leaf hash of
+     * {@link MerkleSidecar}; the last block may be short.
+     *
+     * @param image     the image, left open
+     * @param blockSize the block size in bytes
+     * @param blocks    the indexes of the blocks to hash
+     *
+     * @return  the 32 byte digests, in the order of blocks
+     *
+     * @throws IOException  on read errors
+     */
+    public byte[] hashBlocks( final ImageReader image, final int blockSize,
+            final long[] blocks ) throws IOException {
+
+        final byte[] digests = new byte[ blocks.length * MerkleSidecar.HASH_SIZE ];
+        int chunk = Math.max( 16, blocks.length / ( threads * 8 ) + 1 );
+        List<Future<Object>> pending = new ArrayList<Future<Object>>( );
+
+        try {
+            for( int start = 0; start < blocks.length; start += chunk ) {
+                final int from = start;
+                final int to = Math.min( blocks.length, start + chunk );
+
+                pending.add( hashers.submit( new Callable<Object>( ) {
+
+                    public Object call( ) throws Exception {
+
+                        MessageDigest md = digest( "sha256" );
+                        MessageDigest[] mds = { md };
+
+                        for( int i = from; i < to; i++ ) {
+                            long offset = blocks[i] * blockSize;
+                            md.update( MerkleSidecar.LEAF_PREFIX );
+                            update( mds, image, offset, Math.max( 0,
+                                    Math.min( blockSize, image.size( ) - offset ) ) );
+                            md.digest( digests, i * MerkleSidecar.HASH_SIZE,
+                                    MerkleSidecar.HASH_SIZE );
+                        }
+                        return null;
+                    }
+                } ) );
+            }
+
+            for( Future<Object> f: pending ) await( f );
+        } finally {
+            for( Future<Object> f: pending ) f.cancel( true );
+        }
+
+        return digests;
+    }
+
+    /**
+     * Streams the whole image through each digest, one thread per algorithm
+     */
+    private byte[][] linearHash( final ImageReader image, String[] algorithms )
+            throws IOException {
+
+        List<Future<byte[]>> pending = new ArrayList<Future<byte[]>>( );
+
+        for( final String algorithm: algorithms ) {
+            pending.add( hashers.submit( new Callable<byte[]>( ) {
+
+                public byte[] call( ) throws IOException {
+
+                    MessageDigest md = digest( algorithm );
+                    update( new MessageDigest[]{ md }, image, 0, image.size( ) );
+                    return md.digest( );
+                }
+            } ) );
+        }
+
+        byte[][] digests = new byte[ algorithms.length ][];
+        try {
+            for( int i = 0; i < digests.length; i++ ) {
+                digests[i] = await( pending.get( i ) );
+            }
+        } finally {
+            for( Future<byte[]> f: pending ) f.cancel( true );
+        }
+
+        return digests;
+    }
+
+    /**
+     * Hashes the leaves in parallel and feeds their digests, in order, into
+     * the root digests
+     */
+    private byte[][] treeHash( final ImageReader image, final String[] algorithms )
+            throws IOException {
+
+        MessageDigest[] roots = digests( algorithms );
+        long size = image.size( );
+
+        // bounded so that hashing can't run away from the root digests
+        Deque<Future<byte[][]>> pending = new ArrayDeque<Future<byte[][]>>( );
+
+        try {
+            for( long offset = 0; offset < size || !pending.isEmpty( ); ) {
+                if( offset < size && pending.size( ) < threads * 2 ) {
+                    final long leaf = offset;
+                    final long length = Math.min( TREE_LEAF_SIZE, size - offset );
+
+                    pending.add( hashers.submit( new Callable<byte[][]>( ) {
+
+                        public byte[][] call( ) throws IOException {
+
+                            MessageDigest[] mds = digests( algorithms );
+                            update( mds, image, leaf, length );
+
+                            byte[][] leaves = new byte[ mds.length ][];
+                            for( int i = 0; i < mds.length; i++ ) leaves[i] = mds[i].digest( );
+                            return leaves;
+                        }
+                    } ) );
+                    offset += length;
+                    continue;
+                }
+
+                byte[][] leaves = await( pending.poll( ) );
+                for( int i = 0; i < roots.length; i++ ) roots[i].update( leaves[i] );
+            }
+        } finally {
+            for( Future<byte[][]> f: pending ) f.cancel( true );
+        }
+
+        byte[][] digests = new byte[ roots.length ][];
+        for( int i = 0; i < roots.length; i++ ) digests[i] = roots[i].digest( );
+        return digests;
+    }
+
+    /**
+     * Feeds a region of the image into digests, mapping it a window at a time
+     */
+    private static void update( MessageDigest[] mds, ImageReader image,
+            long offset, long length ) throws IOException {
+
+        long end = offset + length;
+
+        while( offset < end ) {
+            ByteBuffer window = image.map( offset, (int) Math.min( WINDOW_SIZE, end - offset ) );
+            if( !window.hasRemaining( ) ) break;
+
+            for( MessageDigest md: mds ) {
+                md.update( window.duplicate( ) );
+            }
+            offset += window.remaining( );
+        }
+    }
+
+    static MessageDigest[] digests( String[] algorithms ) {
+
+        MessageDigest[] mds = new MessageDigest[ algorithms.length ];
+        for( int i = 0; i < mds.length; i++ ) mds[i] = digest( algorithms[i] );
+        return mds;
+    }
+
+    private static MessageDigest digest( String algorithm ) {
+
+        try {
+            return MessageDigest.getInstance( jcaName( algorithm ) );
+        } catch( NoSuchAlgorithmException e ) {
+            // every JRE has to provide MD5, SHA-1 and SHA-256
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static String jcaName( String algorithm ) {
+
+        for( int i = 0; i < ALGORITHMS.length; i++ ) {
+            if( ALGORITHMS[i].equals( algorithm ) ) return JCA_NAMES[i];
+        }
+
+        return null;
+    }
+
+    /**
+     * Waits for a hashing task, rethrowing its failure
+     */
+    private static <T> T await( Future<T> task ) throws IOException {
+
+        try {
+            return task.get( );
+        } catch( InterruptedException e ) {
+            Thread.currentThread( ).interrupt( );
+            throw new IOException( "Interrupted while hashing." );
+        } catch( ExecutionException e ) {
+            if( e.getCause( ) instanceof IOException ) {
+                throw (IOException) e.getCause( );
+            }
+            throw new IOException( "Hashing failed: " + e.getCause( ), e.getCause( ) );
+        }
+    }
+
+    static String toHex( byte[] bytes ) {
+
+        StringBuilder sb = new StringBuilder( bytes.length * 2 );
+        for( byte b: bytes ) {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) )
+              .append( Character.forDigit( b & 0xf, 16 ) );
+        }
+
+        return sb.toString( );
+    }
+}
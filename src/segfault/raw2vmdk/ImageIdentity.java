@@ -0,0 +1,202 @@
+package segfault.raw2vmdk;
+
+/*
+ * ImageIdentity.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * <p>Immutable identity of a raw image: its path, size, modification time
+ * and a fingerprint of its first sector (the MBR).</p>
+ * <p>Two identities are equal if the image is most likely unchanged; size and
+ * mtime catch appended or rewritten images, the fingerprint catches a
+ * partition table edited in place with the mtime restored. Split images are
+ * identified by their first segment, their total size and the latest mtime
+ * of their segments.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public final class ImageIdentity {
+
+    /**
+     * absolute path of the image or of its first segment
+     */
+    private final String path;
+
+    /**
+     * size in bytes
+     */
+    private final long   size;
+
+    /**
+     * latest modification time of the image, in ms
+     */
+    private final long   mtime;
+
+    /**
+     * hex SHA-256 of the first sector
+     */
+    private final String fingerprint;
+
+    /**
+     * Constructor
+     *
+     * @param path          absolute path of the image
+     * @param size          size in bytes
+     * @param mtime         modification time in ms
+     * @param fingerprint   hex SHA-256 of the first sector
+     */
+    public ImageIdentity( String path, long size, long mtime, String fingerprint ) {
+
+        this.path        = path;
+        this.size        = size;
+        this.mtime       = mtime;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Identifies an opened image
+     *
+     * @param reader    the (possibly split) image
+     *
+     * @return  the identity
+     *
+     * @throws IOException  if the first sector can't be read
+     */
+    public static ImageIdentity of( ImageReader reader ) throws IOException {
+
+        long mtime = 0;
+        for( File segment: reader.getSegments( ) ) {
+            mtime = Math.max( mtime, segment.lastModified( ) );
+        }
+
+        ByteBuffer mbr = reader.readSectors( 0, 1 );
+        try {
+            MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+            md.update( mbr );
+
+            return new ImageIdentity( reader.getSegments( ).get( 0 )
+                    .getAbsolutePath( ), reader.size( ), mtime,
+                    ImageHasher.toHex( md.digest( ) ) );
+        } catch( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e );
+        } finally {
+            ImageReader.release( mbr );
+        }
+    }
+
+    /**
+     * Identifies an image, opening its segments
+     *
+     * @param image the image or its first segment
+     *
+     * @return  the identity
+     *
+     * @throws IOException  if the image can't be read
+     */
+    public static ImageIdentity of( File image ) throws IOException {
+
+        try( ImageReader reader = SegmentSet.discover( image ).open( ) ) {
+            return of( reader );
+        }
+    }
+
+    /**
+     * @return absolute path of the image or of its first segment
+     */
+    public String getPath( ) {
+
+        return path;
+    }
+
+    /**
+     * @return size in bytes
+     */
+    public long getSize( ) {
+
+        return size;
+    }
+
+    /**
+     * @return latest modification time, in ms
+     */
+    public long getMtime( ) {
+
+        return mtime;
+    }
+
+    /**
+     * @return hex SHA-256 of the first sector
+     */
+    public String getFingerprint( ) {
+
+        return fingerprint;
+    }
+
+    /**
+     * Derives the content ID (CID) of descriptors of the image, the same for
+     * every conversion of the unchanged image so the parentCID of delta
+     * disks over it stays valid
+     *
+     * @return  the CID as 8 hex digits, never ffffffff (no parent)
+     */
+    public String getCID( ) {
+
+        try {
+            MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+            byte[] digest = md.digest( ( path + "|" + size + "|" + mtime + "|"
+                    + fingerprint ).getBytes( StandardCharsets.UTF_8 ) );
+
+            String cid = ImageHasher.toHex( new byte[]{ digest[0], digest[1],
+                    digest[2], digest[3] } );
+            return cid.equals( VMDKTemplate.NO_PARENT_CID ) ? "fffffffe" : cid;
+        } catch( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    public boolean equals( Object o ) {
+
+        if( !( o instanceof ImageIdentity ) ) return false;
+
+        ImageIdentity other = (ImageIdentity) o;
+        return size == other.size && mtime == other.mtime
+                && path.equals( other.path ) && fingerprint.equals( other.fingerprint );
+    }
+
+    public int hashCode( ) {
+
+        return path.hashCode( ) * 31 + (int) ( size ^ ( size >>> 32 ) );
+    }
+
+    public String toString( ) {
+
+        return path + " [" + size + " bytes, mtime " + mtime + ", MBR "
+                + fingerprint.substring( 0, Math.min( 16, fingerprint.length( ) ) ) + "]";
+    }
+}
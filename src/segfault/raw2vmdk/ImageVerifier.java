@@ -0,0 +1,294 @@
+package segfault.raw2vmdk;
+
+/*
+ * ImageVerifier.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * <p>Verify driver.</p>
+ * <p>Checks an image against the {@link MerkleSidecar} written when it was
+ * converted, without re-reading all of it: every block of a segment whose
+ * size or modification time changed is re-hashed, while unchanged segments
+ * only have their first and last blocks plus a random sample re-hashed. A
+ * sampled block that doesn't match makes the whole segment suspect and it is
+ * re-hashed too. The blocks that diverge are reported as byte ranges.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.MerkleSidecar
+ */
+public class ImageVerifier {
+
+    /**
+     * Exit status when the image doesn't match its index
+     */
+    static final int          EXIT_DIVERGED   = 6;
+
+    /**
+     * Random blocks re-hashed per unchanged segment by default
+     */
+    static final int          DEFAULT_SAMPLES = 64;
+
+    /**
+     * the hasher to re-hash blocks with
+     */
+    private final ImageHasher hasher;
+
+    /**
+     * random blocks re-hashed per unchanged segment
+     */
+    private final int         samples;
+
+    /**
+     * true to re-hash every block regardless of the metadata
+     */
+    private final boolean     full;
+
+    private final Random      random = new SecureRandom( );
+
+    /**
+     * Constructor
+     *
+     * @param hasher    the hasher to re-hash blocks with
+     * @param samples   random blocks re-hashed per unchanged segment
+     * @param full      true to re-hash every block
+     */
+    public ImageVerifier( ImageHasher hasher, int samples, boolean full ) {
+
+        this.hasher  = hasher;
+        this.samples = samples;
+        this.full    = full;
+    }
+
+    /**
+     * Verifies an image against its index and prints the outcome
+     *
+     * @param image     the raw image or its first segment
+     * @param vmdk      the .vmdk file the index was written next to, or the
+     *                  index itself
+     *
+     * @return  0 if the image matches, {@link #EXIT_DIVERGED} if it doesn't
+     *          and the usual exit status on errors
+     */
+    public int run( String image, String vmdk ) {
+
+        String eol = System.getProperty( "line.separator" );
+        File sidecarFile = MerkleSidecar.sidecarOf( vmdk );
+
+        if( !new File( image ).exists( ) ) {
+            System.out.println( eol + "Error: Image file does not exist." );
+            return ConversionResult.MISSING_IMAGE;
+        }
+
+        MerkleSidecar sidecar;
+        try {
+            sidecar = MerkleSidecar.read( sidecarFile );
+        } catch( IOException e ) {
+            System.out.println( eol + "Error: " + e.getMessage( ) );
+            return ConversionResult.MISSING_IMAGE;
+        }
+
+        System.out.println( "Verifying " + image + " against " + sidecarFile );
+        System.out.println( "Merkle root:\t" + sidecar.getRoot( ) );
+
+        if( !sidecar.isTreeIntact( ) ) {
+            System.out.println( eol + "The hash index itself is corrupt, its tree doesn't match its leaves." );
+            return EXIT_DIVERGED;
+        }
+
+        try( ImageReader reader = SegmentSet.discover( new File( image ) ).open( ) ) {
+            BitSet diverged = verify( reader, sidecar );
+            report( diverged, sidecar, reader.size( ) );
+
+            return diverged.isEmpty( ) ? 0 : EXIT_DIVERGED;
+        } catch( IOException e ) {
+            System.out.println( eol + "Error: " + e.getMessage( ) );
+            return ConversionResult.WRITE_FAILED;
+        }
+    }
+
+    /**
+     * Re-hashes the suspect and sampled blocks
+     *
+     * @return  the blocks that diverge from the index
+     */
+    BitSet verify( ImageReader reader, MerkleSidecar sidecar ) throws IOException {
+
+        int blockSize = sidecar.getBlockSize( );
+        long blocks = Math.max( sidecar.numLeaves( ),
+                MerkleSidecar.numBlocks( reader.size( ), blockSize ) );
+        BitSet diverged = new BitSet( );
+
+        List<MerkleSidecar.Segment> recorded = sidecar.getSegments( );
+        List<File> segments = reader.getSegments( );
+        boolean layoutChanged = full || recorded.size( ) != segments.size( )
+                || reader.size( ) != sidecar.getImageSize( );
+
+        if( layoutChanged ) {
+            System.out.println( full ? "Re-hashing every block."
+                    : "Segment layout changed, re-hashing every block." );
+            check( reader, sidecar, range( 0, blocks ), diverged );
+            return diverged;
+        }
+
+        BitSet sampled = new BitSet( );
+        BitSet[] sampledBySegment = new BitSet[ segments.size( ) ];
+        long start = 0;
+
+        for( int i = 0; i < segments.size( ); i++ ) {
+            long size = reader.getSegmentSize( i );
+            long first = start / blockSize;
+            long last = ( start + size - 1 ) / blockSize;
+            start += size;
+
+            if( size == 0 ) {
+                sampledBySegment[i] = new BitSet( );
+                continue;
+            }
+
+            MerkleSidecar.Segment s = recorded.get( i );
+            if( !s.name.equals( segments.get( i ).getName( ) )
+                    || s.isChanged( segments.get( i ) ) ) {
+                System.out.println( "Segment " + segments.get( i ).getName( )
+                        + ": size or mtime changed, re-hashing "
+                        + ( last - first + 1 ) + " blocks" );
+                check( reader, sidecar, range( first, last + 1 ), diverged );
+                sampledBySegment[i] = new BitSet( );
+                continue;
+            }
+
+            BitSet picks = sample( first, last );
+            System.out.println( "Segment " + segments.get( i ).getName( )
+                    + ": unchanged, sampling " + picks.cardinality( ) + " blocks" );
+            sampled.or( picks );
+            sampledBySegment[i] = picks;
+        }
+
+        BitSet sampleDiverged = new BitSet( );
+        check( reader, sidecar, sampled, sampleDiverged );
+
+        // a bad sample makes the whole segment suspect
+        start = 0;
+        for( int i = 0; i < segments.size( ); i++ ) {
+            long size = reader.getSegmentSize( i );
+            long first = start / blockSize;
+            long last = ( start + size - 1 ) / blockSize;
+            start += size;
+
+            if( !sampledBySegment[i].intersects( sampleDiverged ) ) continue;
+
+            System.out.println( "Segment " + segments.get( i ).getName( )
+                    + ": sampled blocks differ, re-hashing "
+                    + ( last - first + 1 ) + " blocks" );
+            check( reader, sidecar, range( first, last + 1 ), diverged );
+        }
+
+        diverged.or( sampleDiverged );
+        return diverged;
+    }
+
+    /**
+     * Re-hashes blocks and marks those not matching the index
+     */
+    private void check( ImageReader reader, MerkleSidecar sidecar,
+            BitSet blocks, BitSet diverged ) throws IOException {
+
+        long present = MerkleSidecar.numBlocks( reader.size( ), sidecar.getBlockSize( ) );
+        long[] indexes = new long[ blocks.cardinality( ) ];
+        int n = 0;
+
+        for( int b = blocks.nextSetBit( 0 ); b >= 0; b = blocks.nextSetBit( b + 1 ) ) {
+            // blocks the image no longer has can't match
+            if( b >= present ) {
+                diverged.set( b );
+                continue;
+            }
+            indexes[n++] = b;
+        }
+
+        long[] hashed = new long[ n ];
+        System.arraycopy( indexes, 0, hashed, 0, n );
+        byte[] digests = hasher.hashBlocks( reader, sidecar.getBlockSize( ), hashed );
+
+        for( int i = 0; i < n; i++ ) {
+            if( !sidecar.matches( hashed[i], digests, i ) ) diverged.set( (int) hashed[i] );
+        }
+    }
+
+    /**
+     * Picks the first and last blocks of a segment and random ones between
+     */
+    private BitSet sample( long first, long last ) {
+
+        BitSet picks = new BitSet( );
+        picks.set( (int) first );
+        picks.set( (int) last );
+
+        long span = last - first + 1;
+        for( int i = 0; i < samples && picks.cardinality( ) < span; i++ ) {
+            picks.set( (int) ( first + (long) ( random.nextDouble( ) * span ) ) );
+        }
+
+        return picks;
+    }
+
+    private static BitSet range( long from, long to ) {
+
+        BitSet blocks = new BitSet( );
+        blocks.set( (int) from, (int) to );
+        return blocks;
+    }
+
+    /**
+     * Prints the diverging blocks as runs of byte ranges
+     */
+    private static void report( BitSet diverged, MerkleSidecar sidecar, long size ) {
+
+        long blockSize = sidecar.getBlockSize( );
+        System.out.println( );
+
+        if( diverged.isEmpty( ) ) {
+            System.out.println( "Image matches its hash index." );
+            return;
+        }
+
+        System.out.println( "Diverging blocks (" + blockSize + " bytes each):" );
+        for( int b = diverged.nextSetBit( 0 ); b >= 0; ) {
+            int end = diverged.nextClearBit( b );
+            System.out.println( "  blocks " + b + "-" + ( end - 1 ) + "\tbytes "
+                    + b * blockSize + "-" + ( end * blockSize - 1 ) );
+            b = diverged.nextSetBit( end );
+        }
+
+        System.out.println( );
+        System.out.println( diverged.cardinality( ) + " of "
+                + Math.max( sidecar.numLeaves( ), MerkleSidecar.numBlocks( size,
+                        sidecar.getBlockSize( ) ) ) + " blocks diverge." );
+    }
+}
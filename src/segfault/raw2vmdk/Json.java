@@ -0,0 +1,237 @@
+package segfault.raw2vmdk;
+
+/*
+ * Json.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Minimal JSON reader and string quoting for the server mode.</p>
+ * <p>Objects are read as Maps, arrays as Lists, numbers as Doubles (Longs
+ * if integral), strings, booleans and nulls as themselves.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+final class Json {
+
+    private final String text;
+
+    private int          pos;
+
+    private Json( String text ) {
+
+        this.text = text;
+    }
+
+    /**
+     * Parses a JSON document
+     *
+     * @param text  the document
+     *
+     * @return  the value
+     *
+     * @throws IllegalArgumentException if the document isn't valid JSON
+     */
+    static Object parse( String text ) {
+
+        Json json = new Json( text );
+        Object value = json.value( );
+
+        json.skipSpace( );
+        if( json.pos != text.length( ) ) throw json.error( "trailing characters" );
+
+        return value;
+    }
+
+    /**
+     * Quotes a string as a JSON string literal, null as null
+     *
+     * @param s the string
+     *
+     * @return  the literal
+     */
+    static String quote( String s ) {
+
+        if( s == null ) return "null";
+
+        StringBuilder sb = new StringBuilder( s.length( ) + 2 ).append( '"' );
+        for( int i = 0; i < s.length( ); i++ ) {
+            char c = s.charAt( i );
+            switch( c ) {
+                case '"':  sb.append( "\\\"" ); break;
+                case '\\': sb.append( "\\\\" ); break;
+                case '\n': sb.append( "\\n" ); break;
+                case '\r': sb.append( "\\r" ); break;
+                case '\t': sb.append( "\\t" ); break;
+                default:
+                    if( c < 0x20 ) {
+                        sb.append( String.format( "\\u%04x", (int) c ) );
+                    } else {
+                        sb.append( c );
+                    }
+            }
+        }
+
+        return sb.append( '"' ).toString( );
+    }
+
+    private Object value( ) {
+
+        skipSpace( );
+        if( pos >= text.length( ) ) throw error( "unexpected end" );
+
+        char c = text.charAt( pos );
+        switch( c ) {
+            case '{': return object( );
+            case '[': return array( );
+            case '"': return string( );
+            case 't': return literal( "true", Boolean.TRUE );
+            case 'f': return literal( "false", Boolean.FALSE );
+            case 'n': return literal( "null", null );
+            default:  return number( );
+        }
+    }
+
+    private Map<String, Object> object( ) {
+
+        Map<String, Object> map = new LinkedHashMap<String, Object>( );
+        pos++;
+
+        skipSpace( );
+        if( peek( '}' ) ) return map;
+
+        do {
+            skipSpace( );
+            if( pos >= text.length( ) || text.charAt( pos ) != '"' ) throw error( "expected a key" );
+            String key = string( );
+
+            skipSpace( );
+            if( !peek( ':' ) ) throw error( "expected ':'" );
+            map.put( key, value( ) );
+
+            skipSpace( );
+        } while( peek( ',' ) );
+
+        if( !peek( '}' ) ) throw error( "expected '}'" );
+        return map;
+    }
+
+    private List<Object> array( ) {
+
+        List<Object> list = new ArrayList<Object>( );
+        pos++;
+
+        skipSpace( );
+        if( peek( ']' ) ) return list;
+
+        do {
+            list.add( value( ) );
+            skipSpace( );
+        } while( peek( ',' ) );
+
+        if( !peek( ']' ) ) throw error( "expected ']'" );
+        return list;
+    }
+
+    private String string( ) {
+
+        StringBuilder sb = new StringBuilder( );
+        pos++;
+
+        while( pos < text.length( ) ) {
+            char c = text.charAt( pos++ );
+            if( c == '"' ) return sb.toString( );
+            if( c != '\\' ) {
+                sb.append( c );
+                continue;
+            }
+
+            if( pos >= text.length( ) ) break;
+            char e = text.charAt( pos++ );
+            switch( e ) {
+                case 'b': sb.append( '\b' ); break;
+                case 'f': sb.append( '\f' ); break;
+                case 'n': sb.append( '\n' ); break;
+                case 'r': sb.append( '\r' ); break;
+                case 't': sb.append( '\t' ); break;
+                case 'u':
+                    if( pos + 4 > text.length( ) ) throw error( "bad escape" );
+                    try {
+                        sb.append( (char) Integer.parseInt( text.substring( pos, pos + 4 ), 16 ) );
+                    } catch( NumberFormatException ex ) {
+                        throw error( "bad escape" );
+                    }
+                    pos += 4;
+                    break;
+                default: sb.append( e );
+            }
+        }
+
+        throw error( "unterminated string" );
+    }
+
+    private Object number( ) {
+
+        int start = pos;
+        while( pos < text.length( ) && "+-0123456789.eE".indexOf( text.charAt( pos ) ) >= 0 ) {
+            pos++;
+        }
+
+        String n = text.substring( start, pos );
+        try {
+            if( n.indexOf( '.' ) < 0 && n.indexOf( 'e' ) < 0 && n.indexOf( 'E' ) < 0 ) {
+                return Long.valueOf( n );
+            }
+            return Double.valueOf( n );
+        } catch( NumberFormatException e ) {
+            throw error( "unexpected '" + ( start < text.length( ) ? text.charAt( start ) : ' ' ) + "'" );
+        }
+    }
+
+    private Object literal( String word, Object value ) {
+
+        if( !text.startsWith( word, pos ) ) throw error( "unexpected '" + text.charAt( pos ) + "'" );
+        pos += word.length( );
+        return value;
+    }
+
+    private boolean peek( char c ) {
+
+        if( pos < text.length( ) && text.charAt( pos ) == c ) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipSpace( ) {
+
+        while( pos < text.length( ) && Character.isWhitespace( text.charAt( pos ) ) ) pos++;
+    }
+
+    private IllegalArgumentException error( String what ) {
+
+        return new IllegalArgumentException( "Invalid JSON at " + pos + ": " + what );
+    }
+}
@@ -0,0 +1,414 @@
+package segfault.raw2vmdk;
+
+/*
+ * MerkleSidecar.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * <p>Per-block hash index of an image, written next to its VMDK.</p>
+ * <p>Holds the SHA-256 of every {@link #BLOCK_SIZE} block of the image and a
+ * Merkle tree over those hashes, along with the size and modification time
+ * of every segment when the index was built, so that a later verification
+ * only has to re-read the parts of the image that may have changed.</p>
+ * <p>Leaves are SHA-256(0x00 | block) and nodes SHA-256(0x01 | left | right);
+ * the last node of an odd level is carried up unchanged. The file is little
+ * endian:</p>
+ * <pre>
+ *  magic "R2VMERKL", version, block size, image size, segment count,
+ *  per segment: size, mtime, name length and UTF-8 name,
+ *  leaf count, then every level of the tree from the leaves to the root
+ * </pre>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public final class MerkleSidecar {
+
+    /**
+     * extension appended to the name of the .vmdk file
+     */
+    public static final String  EXTENSION   = ".merkle";
+
+    /**
+     * bytes covered by a leaf
+     */
+    public static final int     BLOCK_SIZE  = 1024 * 1024;
+
+    /**
+     * size of a SHA-256 digest
+     */
+    static final int            HASH_SIZE   = 32;
+
+    static final byte[]         LEAF_PREFIX = { 0 };
+
+    static final byte[]         NODE_PREFIX = { 1 };
+
+    private static final byte[] MAGIC       = "R2VMERKL".getBytes( Charset.forName( "US-ASCII" ) );
+
+    private static final int    VERSION     = 1;
+
+    private static final Charset UTF8       = Charset.forName( "UTF-8" );
+
+    /**
+     * Size and modification time of a segment when it was hashed
+     */
+    static final class Segment {
+
+        final String name;
+
+        final long   size;
+
+        final long   mtime;
+
+        Segment( String name, long size, long mtime ) {
+
+            this.name  = name;
+            this.size  = size;
+            this.mtime = mtime;
+        }
+
+        /**
+         * @return true if the file no longer has this size and mtime
+         */
+        boolean isChanged( File file ) {
+
+            return file.length( ) != size || file.lastModified( ) != mtime;
+        }
+    }
+
+    /**
+     * bytes covered by a leaf
+     */
+    private final int           blockSize;
+
+    /**
+     * size of the image in bytes
+     */
+    private final long          imageSize;
+
+    /**
+     * the segments of the image, in order
+     */
+    private final List<Segment> segments;
+
+    /**
+     * every level of the tree, leaves first, root last
+     */
+    private final List<byte[]>  levels;
+
+    /**
+     * Constructor
+     */
+    private MerkleSidecar( int blockSize, long imageSize,
+            List<Segment> segments, List<byte[]> levels ) {
+
+        this.blockSize = blockSize;
+        this.imageSize = imageSize;
+        this.segments  = Collections.unmodifiableList( segments );
+        this.levels    = levels;
+    }
+
+    /**
+     * Hashes every block of an image and builds the tree
+     *
+     * @param image     the (possibly split) image, left open
+     * @param hasher    the hasher to scan the blocks with
+     *
+     * @return  the index
+     *
+     * @throws IOException  on read errors
+     */
+    public static MerkleSidecar build( ImageReader image, ImageHasher hasher )
+            throws IOException {
+
+        // taken before hashing, so changes made meanwhile show up later
+        List<Segment> segments = new ArrayList<Segment>( );
+        for( int i = 0; i < image.getSegments( ).size( ); i++ ) {
+            File f = image.getSegments( ).get( i );
+            segments.add( new Segment( f.getName( ), image.getSegmentSize( i ),
+                    f.lastModified( ) ) );
+        }
+
+        long[] blocks = new long[ (int) numBlocks( image.size( ), BLOCK_SIZE ) ];
+        for( int i = 0; i < blocks.length; i++ ) blocks[i] = i;
+
+        byte[] leaves = hasher.hashBlocks( image, BLOCK_SIZE, blocks );
+
+        return new MerkleSidecar( BLOCK_SIZE, image.size( ), segments,
+                tree( leaves ) );
+    }
+
+    /**
+     * Builds the levels of the tree above the leaves
+     *
+     * @param leaves    the concatenated leaf hashes
+     *
+     * @return  all levels, leaves first, root last
+     */
+    static List<byte[]> tree( byte[] leaves ) {
+
+        MessageDigest md = sha256( );
+        List<byte[]> levels = new ArrayList<byte[]>( );
+        levels.add( leaves );
+
+        byte[] level = leaves;
+        while( level.length > HASH_SIZE ) {
+            int nodes = level.length / HASH_SIZE;
+            byte[] parent = new byte[ ( nodes + 1 ) / 2 * HASH_SIZE ];
+
+            for( int i = 0; i < nodes; i += 2 ) {
+                if( i + 1 == nodes ) {
+                    System.arraycopy( level, i * HASH_SIZE, parent,
+                            i / 2 * HASH_SIZE, HASH_SIZE );
+                    continue;
+                }
+
+                md.update( NODE_PREFIX );
+                md.update( level, i * HASH_SIZE, 2 * HASH_SIZE );
+                System.arraycopy( md.digest( ), 0, parent, i / 2 * HASH_SIZE,
+                        HASH_SIZE );
+            }
+
+            levels.add( parent );
+            level = parent;
+        }
+
+        return levels;
+    }
+
+    /**
+     * Writes the index
+     *
+     * @param file  where to write it
+     *
+     * @throws IOException  on write errors
+     */
+    public void write( File file ) throws IOException {
+
+        int headerSize = MAGIC.length + 4 + 4 + 8 + 4 + 8;
+        for( Segment s: segments ) headerSize += 8 + 8 + 4 + s.name.getBytes( UTF8 ).length;
+
+        ByteBuffer header = ByteBuffer.allocate( headerSize ).order( ByteOrder.LITTLE_ENDIAN );
+        header.put( MAGIC ).putInt( VERSION ).putInt( blockSize ).putLong( imageSize );
+        header.putInt( segments.size( ) );
+        for( Segment s: segments ) {
+            byte[] name = s.name.getBytes( UTF8 );
+            header.putLong( s.size ).putLong( s.mtime ).putInt( name.length ).put( name );
+        }
+        header.putLong( numLeaves( ) );
+        header.flip( );
+
+        ByteBuffer[] body = new ByteBuffer[ levels.size( ) + 1 ];
+        body[0] = header;
+        for( int i = 0; i < levels.size( ); i++ ) body[i + 1] = ByteBuffer.wrap( levels.get( i ) );
+
+        try( FileChannel out = FileChannel.open( file.toPath( ),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            long remaining = 0;
+            for( ByteBuffer b: body ) remaining += b.remaining( );
+            while( remaining > 0 ) remaining -= out.write( body );
+        }
+    }
+
+    /**
+     * Reads an index
+     *
+     * @param file  the index
+     *
+     * @return  the index
+     *
+     * @throws IOException  if it can't be read or isn't an index
+     */
+    public static MerkleSidecar read( File file ) throws IOException {
+
+        try( FileChannel in = FileChannel.open( file.toPath( ), StandardOpenOption.READ ) ) {
+            if( in.size( ) > Integer.MAX_VALUE ) {
+                throw new IOException( file + " is too large for a hash index." );
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate( (int) in.size( ) ).order( ByteOrder.LITTLE_ENDIAN );
+            while( buf.hasRemaining( ) && in.read( buf ) >= 0 ) { }
+            buf.flip( );
+
+            try {
+                byte[] magic = new byte[ MAGIC.length ];
+                buf.get( magic );
+                if( !Arrays.equals( magic, MAGIC ) || buf.getInt( ) != VERSION ) {
+                    throw new IOException( file + " is not a hash index." );
+                }
+
+                int blockSize = buf.getInt( );
+                long imageSize = buf.getLong( );
+                int count = buf.getInt( );
+
+                List<Segment> segments = new ArrayList<Segment>( );
+                for( int i = 0; i < count; i++ ) {
+                    long size = buf.getLong( );
+                    long mtime = buf.getLong( );
+                    byte[] name = new byte[ buf.getInt( ) ];
+                    buf.get( name );
+                    segments.add( new Segment( new String( name, UTF8 ), size, mtime ) );
+                }
+
+                long leaves = buf.getLong( );
+                if( blockSize <= 0 || leaves != numBlocks( imageSize, blockSize ) ) {
+                    throw new IOException( file + " is corrupt." );
+                }
+
+                List<byte[]> levels = new ArrayList<byte[]>( );
+                for( long nodes = leaves; ; nodes = ( nodes + 1 ) / 2 ) {
+                    byte[] level = new byte[ (int) ( nodes * HASH_SIZE ) ];
+                    buf.get( level );
+                    levels.add( level );
+                    if( nodes <= 1 ) break;
+                }
+
+                return new MerkleSidecar( blockSize, imageSize, segments, levels );
+            } catch( RuntimeException e ) {
+                // BufferUnderflowException, NegativeArraySizeException...
+                throw new IOException( file + " is truncated or corrupt." );
+            }
+        }
+    }
+
+    /**
+     * Recomputes the tree from the stored leaves
+     *
+     * @return  true if every stored node matches, i.e. the index itself
+     *          hasn't been tampered with
+     */
+    public boolean isTreeIntact( ) {
+
+        List<byte[]> rebuilt = tree( levels.get( 0 ) );
+        if( rebuilt.size( ) != levels.size( ) ) return false;
+
+        for( int i = 0; i < levels.size( ); i++ ) {
+            if( !Arrays.equals( rebuilt.get( i ), levels.get( i ) ) ) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks a freshly computed leaf against the stored one
+     *
+     * @param block     the block index
+     * @param digests   the computed leaf hashes
+     * @param index     the index of the leaf in digests
+     *
+     * @return  true if they match
+     */
+    boolean matches( long block, byte[] digests, int index ) {
+
+        if( block >= numLeaves( ) ) return false;
+
+        byte[] leaves = levels.get( 0 );
+        int stored = (int) block * HASH_SIZE;
+        for( int i = 0; i < HASH_SIZE; i++ ) {
+            if( leaves[stored + i] != digests[index * HASH_SIZE + i] ) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the location of the index of a VMDK file
+     *
+     * @param vmdk  the .vmdk file
+     *
+     * @return  the index file
+     */
+    public static File sidecarOf( String vmdk ) {
+
+        return new File( vmdk.endsWith( EXTENSION ) ? vmdk : vmdk + EXTENSION );
+    }
+
+    static long numBlocks( long size, int blockSize ) {
+
+        return ( size + blockSize - 1 ) / blockSize;
+    }
+
+    private static MessageDigest sha256( ) {
+
+        try {
+            return MessageDigest.getInstance( "SHA-256" );
+        } catch( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * @return the hex root of the tree, over the hash of an empty image for
+     *         empty images
+     */
+    public String getRoot( ) {
+
+        byte[] root = levels.get( levels.size( ) - 1 );
+        return ImageHasher.toHex( root.length > 0 ? root : sha256( ).digest( ) );
+    }
+
+    /**
+     * @return bytes covered by a leaf
+     */
+    public int getBlockSize( ) {
+
+        return blockSize;
+    }
+
+    /**
+     * @return size of the image in bytes when it was hashed
+     */
+    public long getImageSize( ) {
+
+        return imageSize;
+    }
+
+    /**
+     * @return the segments of the image when it was hashed
+     */
+    List<Segment> getSegments( ) {
+
+        return segments;
+    }
+
+    /**
+     * @return the number of blocks hashed
+     */
+    public long numLeaves( ) {
+
+        return levels.get( 0 ).length / HASH_SIZE;
+    }
+}
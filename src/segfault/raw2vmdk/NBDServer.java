@@ -0,0 +1,599 @@
+package segfault.raw2vmdk;
+
+/*
+ * NBDServer.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Exports a disk read-only over the Network Block Device protocol.</p>
+ * <p>Listens on the loopback interface and speaks the fixed newstyle
+ * handshake (NBD_OPT_EXPORT_NAME, NBD_OPT_GO, NBD_OPT_INFO and
+ * NBD_OPT_LIST) followed by simple replies. The disk is exported under its
+ * file name, or the empty name; writes and trims fail with EPERM.</p>
+ * <p>Every client is served by two threads: one reads its requests as they
+ * are pipelined, up to {@link #MAX_IN_FLIGHT} ahead, the other sends the
+ * replies in order straight from the files of the disk. Any number of
+ * clients may be connected at the same time.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.ExportedDisk
+ */
+public class NBDServer {
+
+    /**
+     * The default port to listen on, the one assigned to NBD
+     */
+    static final int DEFAULT_PORT  = 10809;
+
+    /**
+     * Requests of a client read ahead of the replies sent
+     */
+    static final int MAX_IN_FLIGHT = 64;
+
+    /**
+     * The longest read served
+     */
+    static final int MAX_READ      = 32 << 20;
+
+    /**
+     * The longest option accepted during the handshake
+     */
+    static final int MAX_OPTION    = 4096;
+
+    private static final long NBDMAGIC           = 0x4e42444d41474943L;
+
+    private static final long IHAVEOPT           = 0x49484156454f5054L;
+
+    private static final long OPTION_REPLY_MAGIC = 0x3e889045565a9L;
+
+    private static final int  REQUEST_MAGIC      = 0x25609513;
+
+    private static final int  REPLY_MAGIC        = 0x67446698;
+
+    // handshake flags, sent and received
+    private static final int  FLAG_FIXED_NEWSTYLE = 1;
+
+    private static final int  FLAG_NO_ZEROES      = 2;
+
+    // transmission flags
+    private static final int  FLAG_HAS_FLAGS      = 1;
+
+    private static final int  FLAG_READ_ONLY      = 2;
+
+    private static final int  FLAG_CAN_MULTI_CONN = 1 << 8;
+
+    // options
+    private static final int  OPT_EXPORT_NAME    = 1;
+
+    private static final int  OPT_ABORT          = 2;
+
+    private static final int  OPT_LIST           = 3;
+
+    private static final int  OPT_INFO           = 6;
+
+    private static final int  OPT_GO             = 7;
+
+    // option replies
+    private static final int  REP_ACK            = 1;
+
+    private static final int  REP_SERVER         = 2;
+
+    private static final int  REP_INFO           = 3;
+
+    private static final int  REP_ERR_UNSUP      = 0x80000001;
+
+    private static final int  REP_ERR_INVALID    = 0x80000003;
+
+    private static final int  REP_ERR_UNKNOWN    = 0x80000006;
+
+    private static final short INFO_EXPORT       = 0;
+
+    // commands
+    private static final int  CMD_READ           = 0;
+
+    private static final int  CMD_WRITE          = 1;
+
+    private static final int  CMD_DISC           = 2;
+
+    private static final int  CMD_FLUSH          = 3;
+
+    private static final int  CMD_TRIM           = 4;
+
+    // errors
+    private static final int  EPERM              = 1;
+
+    private static final int  EIO                = 5;
+
+    private static final int  EINVAL             = 22;
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+    /**
+     * <p>A reply queued for the sender of a connection.</p>
+     */
+    private static final class Reply {
+
+        /**
+         * ends the queue of a client that disconnected
+         */
+        static final Reply LAST = new Reply( 0, 0, 0, 0 );
+
+        final long handle;
+
+        final int  error;
+
+        /**
+         * the run of the disk to send after the reply, if no error
+         */
+        final long offset;
+
+        final long length;
+
+        Reply( long handle, int error, long offset, long length ) {
+
+            this.handle = handle;
+            this.error  = error;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The exported disk
+     */
+    private final ExportedDisk    disk;
+
+    /**
+     * Threads reading requests and sending replies, two per client
+     */
+    private final ExecutorService clients = Executors.newCachedThreadPool( );
+
+    private final AtomicLong      connected = new AtomicLong( );
+
+    private final AtomicLong      sent      = new AtomicLong( );
+
+    private ServerSocketChannel   server;
+
+    /**
+     * Constructor
+     *
+     * @param disk  the disk to export, left open
+     */
+    public NBDServer( ExportedDisk disk ) {
+
+        this.disk = disk;
+    }
+
+    /**
+     * Starts listening on the loopback interface
+     *
+     * @param port  the port, 0 for any free one
+     *
+     * @return  the address listened on
+     *
+     * @throws IOException  if the port can't be bound
+     */
+    public InetSocketAddress start( int port ) throws IOException {
+
+        server = ServerSocketChannel.open( );
+        server.bind( new InetSocketAddress( InetAddress.getLoopbackAddress( ), port ) );
+
+        clients.execute( new Runnable( ) {
+
+            public void run( ) {
+
+                accept( );
+            }
+        } );
+
+        return (InetSocketAddress) server.getLocalAddress( );
+    }
+
+    /**
+     * Stops listening and disconnects every client
+     */
+    public void stop( ) {
+
+        try {
+            if( server != null ) server.close( );
+        } catch( IOException e ) {
+            // closing anyway
+        }
+        clients.shutdownNow( );
+    }
+
+    /**
+     * @return the number of clients that connected
+     */
+    public long getConnected( ) {
+
+        return connected.get( );
+    }
+
+    /**
+     * @return the bytes of the disk sent
+     */
+    public long getSent( ) {
+
+        return sent.get( );
+    }
+
+    /**
+     * Accepts clients until the server is stopped
+     */
+    private void accept( ) {
+
+        while( server.isOpen( ) ) {
+            final SocketChannel client;
+            try {
+                client = server.accept( );
+            } catch( IOException e ) {
+                return;
+            }
+
+            connected.incrementAndGet( );
+            clients.execute( new Runnable( ) {
+
+                public void run( ) {
+
+                    serve( client );
+                }
+            } );
+        }
+    }
+
+    /**
+     * Negotiates with a client and serves its requests until it
+     * disconnects
+     */
+    private void serve( SocketChannel client ) {
+
+        Future<?> sender = null;
+        BlockingQueue<Reply> replies = new ArrayBlockingQueue<Reply>( MAX_IN_FLIGHT );
+        try {
+            client.socket( ).setTcpNoDelay( true );
+            if( !handshake( client ) ) return;
+
+            sender = clients.submit( sender( client, replies ) );
+
+            readRequests( client, replies, sender );
+
+            // let the replies already queued go out before disconnecting
+            queue( replies, Reply.LAST, sender );
+            sender.get( );
+        } catch( IOException e ) {
+            // the client went away
+        } catch( ExecutionException e ) {
+            // the sender failed, the connection is unusable
+        } catch( InterruptedException e ) {
+            Thread.currentThread( ).interrupt( );
+        } finally {
+            // never interrupt the sender, that would close the channels of
+            // the disk shared by all clients: closing the socket fails its
+            // writes and the last reply wakes it up if it is waiting
+            try {
+                client.close( );
+            } catch( IOException e ) {
+                // closing anyway
+            }
+            if( sender != null ) {
+                replies.clear( );
+                replies.offer( Reply.LAST );
+                sender.cancel( false );
+            }
+        }
+    }
+
+    /**
+     * Runs the handshake and option haggling
+     *
+     * @return  true if the client chose the export, false if it aborted
+     */
+    private boolean handshake( SocketChannel client ) throws IOException {
+
+        ByteBuffer hello = ByteBuffer.allocate( 18 );
+        hello.putLong( NBDMAGIC ).putLong( IHAVEOPT )
+                .putShort( (short) ( FLAG_FIXED_NEWSTYLE | FLAG_NO_ZEROES ) );
+        write( client, hello );
+
+        int clientFlags = read( client, 4 ).getInt( );
+        boolean noZeroes = ( clientFlags & FLAG_NO_ZEROES ) != 0;
+
+        while( true ) {
+            ByteBuffer header = read( client, 16 );
+            if( header.getLong( ) != IHAVEOPT ) return false;
+
+            int option = header.getInt( );
+            int length = header.getInt( );
+            if( length < 0 || length > MAX_OPTION ) return false;
+
+            ByteBuffer data = read( client, length );
+
+            switch( option ) {
+                case OPT_EXPORT_NAME:
+                    // no way to fail but hanging up
+                    if( !exports( new String( data.array( ), UTF8 ) ) ) return false;
+
+                    ByteBuffer export = ByteBuffer.allocate( noZeroes ? 10 : 134 );
+                    export.putLong( disk.size( ) ).putShort( transmissionFlags( ) );
+                    export.position( export.capacity( ) ); // 124 zeros unless declined
+                    write( client, export );
+                    return true;
+
+                case OPT_ABORT:
+                    optionReply( client, option, REP_ACK, null );
+                    return false;
+
+                case OPT_LIST:
+                    if( length != 0 ) {
+                        optionReply( client, option, REP_ERR_INVALID, null );
+                        break;
+                    }
+                    byte[] name = disk.getName( ).getBytes( UTF8 );
+                    ByteBuffer server = ByteBuffer.allocate( 4 + name.length );
+                    server.putInt( name.length ).put( name );
+                    optionReply( client, option, REP_SERVER, server );
+                    optionReply( client, option, REP_ACK, null );
+                    break;
+
+                case OPT_INFO:
+                case OPT_GO:
+                    String requested = exportName( data );
+                    if( requested == null ) {
+                        optionReply( client, option, REP_ERR_INVALID, null );
+                        break;
+                    }
+                    if( !exports( requested ) ) {
+                        optionReply( client, option, REP_ERR_UNKNOWN, null );
+                        break;
+                    }
+
+                    ByteBuffer info = ByteBuffer.allocate( 12 );
+                    info.putShort( INFO_EXPORT ).putLong( disk.size( ) )
+                            .putShort( transmissionFlags( ) );
+                    optionReply( client, option, REP_INFO, info );
+                    optionReply( client, option, REP_ACK, null );
+                    if( option == OPT_GO ) return true;
+                    break;
+
+                default:
+                    optionReply( client, option, REP_ERR_UNSUP, null );
+            }
+        }
+    }
+
+    /**
+     * Reads requests and queues their replies until the client disconnects
+     */
+    private void readRequests( SocketChannel client, BlockingQueue<Reply> replies,
+            Future<?> sender ) throws IOException, InterruptedException {
+
+        ByteBuffer request = ByteBuffer.allocate( 28 );
+        long size = disk.size( );
+
+        while( true ) {
+            request.clear( );
+            readFully( client, request );
+            request.flip( );
+
+            if( request.getInt( ) != REQUEST_MAGIC ) {
+                throw new IOException( "Bad request magic." );
+            }
+            request.getShort( ); // command flags
+            int type = request.getShort( ) & 0xFFFF;
+            long handle = request.getLong( );
+            long offset = request.getLong( );
+            long length = request.getInt( ) & 0xFFFFFFFFL;
+
+            switch( type ) {
+                case CMD_READ:
+                    if( offset < 0 || length > MAX_READ || offset > size - length ) {
+                        queue( replies, new Reply( handle, EINVAL, 0, 0 ), sender );
+                    } else {
+                        queue( replies, new Reply( handle, 0, offset, length ), sender );
+                    }
+                    break;
+
+                case CMD_WRITE:
+                    skip( client, length );
+                    queue( replies, new Reply( handle, EPERM, 0, 0 ), sender );
+                    break;
+
+                case CMD_DISC:
+                    return;
+
+                case CMD_FLUSH:
+                    // nothing is ever written
+                    queue( replies, new Reply( handle, 0, 0, 0 ), sender );
+                    break;
+
+                case CMD_TRIM:
+                    queue( replies, new Reply( handle, EPERM, 0, 0 ), sender );
+                    break;
+
+                default:
+                    queue( replies, new Reply( handle, EINVAL, 0, 0 ), sender );
+            }
+        }
+    }
+
+    /**
+     * Queues a reply, waiting for room while the sender is still sending
+     *
+     * @throws IOException  if the sender stopped, nothing would ever make
+     *                      room again
+     */
+    private static void queue( BlockingQueue<Reply> replies, Reply reply,
+            Future<?> sender ) throws IOException, InterruptedException {
+
+        while( !replies.offer( reply, 100, TimeUnit.MILLISECONDS ) ) {
+            if( sender.isDone( ) ) {
+                throw new IOException( "Replies can no longer be sent." );
+            }
+        }
+    }
+
+    /**
+     * Creates the task sending the queued replies of a client in order
+     */
+    private Callable<Void> sender( final SocketChannel client,
+            final BlockingQueue<Reply> replies ) {
+
+        return new Callable<Void>( ) {
+
+            public Void call( ) throws IOException, InterruptedException {
+
+                ByteBuffer header = ByteBuffer.allocate( 16 );
+
+                try {
+                    for( Reply reply = replies.take( ); reply != Reply.LAST; reply = replies.take( ) ) {
+                        header.clear( );
+                        header.putInt( REPLY_MAGIC ).putInt( reply.error ).putLong( reply.handle );
+                        write( client, header );
+
+                        if( reply.error == 0 && reply.length > 0 ) {
+                            disk.transfer( reply.offset, reply.length, client );
+                            sent.addAndGet( reply.length );
+                        }
+                    }
+                } catch( IOException e ) {
+                    // a reply may have been cut short, the stream can't go on;
+                    // closing it wakes up the reader too
+                    client.close( );
+                    throw e;
+                }
+
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Checks if a name chosen by a client is the exported disk
+     */
+    private boolean exports( String name ) {
+
+        return name.isEmpty( ) || name.equals( disk.getName( ) );
+    }
+
+    private static short transmissionFlags( ) {
+
+        return (short) ( FLAG_HAS_FLAGS | FLAG_READ_ONLY | FLAG_CAN_MULTI_CONN );
+    }
+
+    /**
+     * Parses the export name of NBD_OPT_INFO and NBD_OPT_GO
+     *
+     * @return  the name, null if the option is malformed
+     */
+    private static String exportName( ByteBuffer data ) {
+
+        if( data.remaining( ) < 4 ) return null;
+
+        int length = data.getInt( );
+        if( length < 0 || length > data.remaining( ) - 2 ) return null;
+
+        String name = new String( data.array( ), data.position( ), length, UTF8 );
+        data.position( data.position( ) + length );
+
+        // the information requests, the export information is always sent
+        int requests = data.getShort( ) & 0xFFFF;
+        if( data.remaining( ) != 2 * requests ) return null;
+
+        return name;
+    }
+
+    private static void optionReply( SocketChannel client, int option, int type,
+            ByteBuffer data ) throws IOException {
+
+        int length = data == null ? 0 : data.position( );
+        ByteBuffer reply = ByteBuffer.allocate( 20 + length );
+        reply.putLong( OPTION_REPLY_MAGIC ).putInt( option ).putInt( type ).putInt( length );
+        if( data != null ) {
+            data.flip( );
+            reply.put( data );
+        }
+
+        write( client, reply );
+    }
+
+    /**
+     * Reads exactly length bytes
+     *
+     * @return  a buffer of the bytes, ready to get
+     */
+    private static ByteBuffer read( SocketChannel client, int length ) throws IOException {
+
+        ByteBuffer buf = ByteBuffer.allocate( length );
+        readFully( client, buf );
+        buf.flip( );
+
+        return buf;
+    }
+
+    private static void readFully( SocketChannel client, ByteBuffer dst ) throws IOException {
+
+        while( dst.hasRemaining( ) ) {
+            if( client.read( dst ) < 0 ) throw new EOFException( );
+        }
+    }
+
+    /**
+     * Discards the payload of a write
+     */
+    private static void skip( SocketChannel client, long length ) throws IOException {
+
+        ByteBuffer scratch = ByteBuffer.allocate( (int) Math.min( length, 64 * 1024 ) );
+        while( length > 0 ) {
+            scratch.clear( );
+            scratch.limit( (int) Math.min( scratch.capacity( ), length ) );
+            readFully( client, scratch );
+            length -= scratch.limit( );
+        }
+    }
+
+    /**
+     * Writes a whole buffer, flipping it first
+     */
+    private static void write( SocketChannel client, ByteBuffer src ) throws IOException {
+
+        src.flip( );
+        while( src.hasRemaining( ) ) client.write( src );
+    }
+}
@@ -0,0 +1,253 @@
+package segfault.raw2vmdk;
+
+/*
+ * QCOW2Writer.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>Writes QCOW2 images whose data is a raw image left where it is.</p>
+ * <p>The image is a version 3 QCOW2 file with an external data file
+ * (incompatible feature bit 2) marked data_file_raw (autoclear bit 1): the
+ * raw image is the disk as is and the QCOW2 file only holds the metadata,
+ * the counterpart of a monolithicFlat descriptor for KVM/QEMU.<br/>
+ * Every L2 table is preallocated and maps guest cluster n to cluster n of
+ * the data file, so nothing is ever allocated or copied; the refcounts
+ * cover the metadata clusters, which are all there is in the file.</p>
+ * <pre>
+ * cluster 0        header, data file name extension
+ * then             refcount table, refcount blocks, L1 table, L2 tables
+ * </pre>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.VMDKTemplate
+ */
+public class QCOW2Writer {
+
+    /**
+     * 64KB clusters, as qemu-img creates them
+     */
+    public static final int  DEFAULT_CLUSTER_BITS = 16;
+
+    /**
+     * "QFI\xfb"
+     */
+    private static final int  MAGIC                = 0x514649fb;
+
+    private static final int  VERSION              = 3;
+
+    private static final int  HEADER_LENGTH        = 104;
+
+    /**
+     * 16 bit refcounts
+     */
+    private static final int  REFCOUNT_ORDER       = 4;
+
+    private static final long INCOMPAT_DATA_FILE   = 1L << 2;
+
+    private static final long AUTOCLEAR_DATA_RAW   = 1L << 1;
+
+    private static final int  EXT_DATA_FILE        = 0x44415441;
+
+    /**
+     * the L2 entry of a cluster in use by this image only, which may have
+     * host offset 0 when the data is external
+     */
+    private static final long OFLAG_COPIED         = 1L << 63;
+
+    /**
+     * L2 tables filled per write
+     */
+    private static final int  L2_PER_WRITE         = 16;
+
+    private final int         clusterBits;
+
+    /**
+     * Constructor <br/>
+     * Uses 64KB clusters.
+     */
+    public QCOW2Writer( ) {
+
+        this( DEFAULT_CLUSTER_BITS );
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clusterBits   log2 of the cluster size, 9 to 21
+     */
+    public QCOW2Writer( int clusterBits ) {
+
+        if( clusterBits < 9 || clusterBits > 21 ) {
+            throw new IllegalArgumentException( "Unsupported cluster size: 2^"
+                    + clusterBits );
+        }
+
+        this.clusterBits = clusterBits;
+    }
+
+    /**
+     * Writes the QCOW2 file of a raw image
+     *
+     * @param size      the size of the disk in bytes
+     * @param dataFile  the raw image as written in the QCOW2 file, relative
+     *                  names are found next to the QCOW2 file
+     * @param outFile   the QCOW2 file
+     *
+     * @throws IOException  if the file can't be written or the name of the
+     *                      data file doesn't fit in the header
+     */
+    public void write( long size, String dataFile, String outFile ) throws IOException {
+
+        long clusterSize = 1L << clusterBits;
+        byte[] name = dataFile.getBytes( "UTF-8" );
+
+        // header, extension header and name padded to 8 bytes, end of extensions
+        if( HEADER_LENGTH + 8 + align( name.length, 8 ) + 8 > clusterSize ) {
+            throw new IOException( "The data file name is too long for the QCOW2 header." );
+        }
+
+        long l2Entries = clusterSize / 8;
+        long clusters = ( size + clusterSize - 1 ) / clusterSize;
+        long l2Tables = ( clusters + l2Entries - 1 ) / l2Entries;
+        long l1Clusters = Math.max( 1, align( l2Tables * 8, clusterSize ) / clusterSize );
+
+        // the refcounts cover themselves, grow them until they do
+        long refcountsPerBlock = clusterSize * 8 / ( 1 << REFCOUNT_ORDER );
+        long blocks = 1;
+        long tableClusters = 1;
+        long metadata;
+        while( true ) {
+            metadata = 1 + tableClusters + blocks + l1Clusters + l2Tables;
+            long needBlocks = ( metadata + refcountsPerBlock - 1 ) / refcountsPerBlock;
+            long needTable = align( needBlocks * 8, clusterSize ) / clusterSize;
+            if( needBlocks == blocks && needTable == tableClusters ) break;
+            blocks = needBlocks;
+            tableClusters = needTable;
+        }
+
+        long refcountTable = clusterSize;
+        long refcountBlocks = refcountTable + tableClusters * clusterSize;
+        long l1Table = refcountBlocks + blocks * clusterSize;
+        long l2Start = l1Table + l1Clusters * clusterSize;
+
+        try( FileChannel out = FileChannel.open( new File( outFile ).toPath( ),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING ) ) {
+
+            ByteBuffer header = ByteBuffer.allocate( (int) clusterSize );
+            header.putInt( MAGIC ).putInt( VERSION )
+                    .putLong( 0 ).putInt( 0 )           // no backing file
+                    .putInt( clusterBits ).putLong( size )
+                    .putInt( 0 )                        // no encryption
+                    .putInt( (int) l2Tables ).putLong( l1Table )
+                    .putLong( refcountTable ).putInt( (int) tableClusters )
+                    .putInt( 0 ).putLong( 0 )           // no snapshots
+                    .putLong( INCOMPAT_DATA_FILE ).putLong( 0 )
+                    .putLong( AUTOCLEAR_DATA_RAW )
+                    .putInt( REFCOUNT_ORDER ).putInt( HEADER_LENGTH );
+            header.putInt( EXT_DATA_FILE ).putInt( name.length ).put( name );
+            header.position( HEADER_LENGTH + 8 + (int) align( name.length, 8 ) );
+            header.putInt( 0 ).putInt( 0 );
+            header.clear( );
+            writeFully( out, header, 0 );
+
+            ByteBuffer table = ByteBuffer.allocate( (int) ( tableClusters * clusterSize ) );
+            for( long i = 0; i < blocks; i++ ) {
+                table.putLong( refcountBlocks + i * clusterSize );
+            }
+            table.clear( );
+            writeFully( out, table, refcountTable );
+
+            // every metadata cluster is referenced once
+            ByteBuffer refcounts = ByteBuffer.allocate( (int) ( blocks * clusterSize ) );
+            for( long i = 0; i < metadata; i++ ) {
+                refcounts.putShort( (short) 1 );
+            }
+            refcounts.clear( );
+            writeFully( out, refcounts, refcountBlocks );
+
+            ByteBuffer l1 = ByteBuffer.allocate( (int) ( l1Clusters * clusterSize ) );
+            for( long i = 0; i < l2Tables; i++ ) {
+                l1.putLong( ( l2Start + i * clusterSize ) | OFLAG_COPIED );
+            }
+            l1.clear( );
+            writeFully( out, l1, l1Table );
+
+            writeL2Tables( out, l2Start, clusters );
+
+            // a disk of no clusters still ends after its L1 table
+            if( out.size( ) < l2Start ) {
+                out.write( ByteBuffer.allocate( 1 ), l2Start - 1 );
+            }
+        }
+    }
+
+    /**
+     * Writes the L2 tables mapping every guest cluster to the same cluster
+     * of the data file, {@link #L2_PER_WRITE} tables per write
+     */
+    private void writeL2Tables( FileChannel out, long l2Start, long clusters )
+            throws IOException {
+
+        long clusterSize = 1L << clusterBits;
+        int l2Entries = (int) ( clusterSize / 8 );
+        ByteBuffer batch = ByteBuffer.allocateDirect( (int) clusterSize * L2_PER_WRITE );
+        LongBuffer entries = batch.asLongBuffer( );
+
+        long position = l2Start;
+        for( long cluster = 0; cluster < clusters; ) {
+            long end = Math.min( clusters, cluster + (long) l2Entries * L2_PER_WRITE );
+            int tables = (int) ( ( end - cluster + l2Entries - 1 ) / l2Entries );
+
+            entries.clear( );
+            for( ; cluster < end; cluster++ ) {
+                entries.put( ( cluster << clusterBits ) | OFLAG_COPIED );
+            }
+            // the rest of the last table maps nothing
+            while( entries.position( ) < tables * l2Entries ) entries.put( 0 );
+
+            batch.clear( );
+            batch.limit( tables * (int) clusterSize );
+            writeFully( out, batch, position );
+            position += batch.limit( );
+        }
+    }
+
+    private static long align( long value, long to ) {
+
+        return ( value + to - 1 ) / to * to;
+    }
+
+    private static void writeFully( FileChannel out, ByteBuffer src, long position )
+            throws IOException {
+
+        while( src.hasRemaining( ) ) {
+            position += out.write( src, position );
+        }
+    }
+}
@@ -20,21 +20,30 @@ package segfault.raw2vmdk;
  * Place, Suite 330, Boston, MA 02111-1307 USA
  */
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.util.*;
-
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.Map;
+
+import cert.forensics.mbr.ImageReader;
 import cert.forensics.mbr.MasterBootRecord;
 
 /**
  * <p>Main class.</p>
  * <p>Drives the cert.forensics.mbr.MasterBootRecord and
- * segfault.raw2vmdk.VMDKTemplate classes.</p>
+ * segfault.raw2vmdk.VMDKTemplate classes through
+ * segfault.raw2vmdk.Converter.</p>
  *
  * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
  * @version 0.1.3.2
  *
  * @see cert.forensics.mbr.MasterBootRecord
  * @see segfault.raw2vmdk.VMDKTemplate
+ * @see segfault.raw2vmdk.Converter
  */
 public class Raw2VMDK {
 
@@ -50,41 +59,11 @@ public class Raw2VMDK {
      */
     private static final String SVN_REV = "$Rev$";
 
-    /**
-     * total number of sectors
-     */
-    static long                 numOfSectors;
-
-    /**
-     * total number of cylinders
-     */
-    static long                 numOfCylinders;
-
-    /**
-     *  heads per track
-     */
-    static int                  headsPerTrack;
-
-    /**
-     *  sectors per track
-     */
-    static long                 sectorsPerTrack;
-
     /**
      * the VMDK template
      */
     static String               tpl     = "vmdk.tpl";
 
-    /**
-     *  the location of the raw image
-     */
-    static String               rawImageLocation;
-    
-    /**
-     *  the location of the raw image as written to the VMDK (defaults to the same as rawImageLocation)
-     */
-    static String               rawImageLocationInVmdk;
-    
     /**
      * <p>Main method</p>
      * <p>Drives the cert.forensics.mbr.MasterBootRecord and
@@ -99,13 +78,18 @@ public class Raw2VMDK {
 
         banner( );
 
-        if( args.length == 0 ) {
+        String mode = System.getProperty( "mode", "convert" );
+
+        if( args.length == 0 && !mode.equals( "server" ) ) {
             usage( );
             System.exit(1);
             return;
         }
 
-        if( args.length < 2 ) {
+        // the analysis, NBD export and in place VHDs need no output file, the
+        // server no arguments at all
+        if( args.length < 2 && !mode.equals( "analyse" ) && !mode.equals( "server" )
+                && !mode.equals( "nbd" ) && !mode.equals( "vhd" ) ) {
             usage( );
             System.out.println( System.getProperty( "line.separator" )
                     + "Error: raw2vmdk expects at least 2 arguments." );
@@ -114,89 +98,414 @@ public class Raw2VMDK {
         }
 
         String diskType = System.getProperty( "type", "ide" );
-        String[] acceptedTypes = { "ide", "buslogic", "lsilogic", "legacyESX" };
 
-        if( !inArray( acceptedTypes, diskType ) ) {
+        if( !Converter.isValidDiskType( diskType ) ) {
             System.out.println( System.getProperty( "line.separator" )
                     + "Error: Disk type is incorrect." );
             usage( );
-            System.exit(2);
+            System.exit( ConversionResult.INVALID_TYPE );
             return;
         }
 
-        // parse arguments 
-        rawImageLocation   = args[0];
-        String outFile = args[1];
-        if (args.length > 2) {
-            // an explicit filename for the RAW file referenced in the header VMDK has been specified, so use it
-            rawImageLocationInVmdk = args[2];
-        } else {
-            // use same filename as the source RAW filename
-            rawImageLocationInVmdk = rawImageLocation;
+        String format = System.getProperty( "format", ConversionRequest.FORMAT_FLAT );
+
+        if( !ConversionRequest.isValidFormat( format ) ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: Output format is incorrect." );
+            usage( );
+            System.exit( ConversionResult.INVALID_TYPE );
+            return;
         }
 
-        File imgFile = new File( rawImageLocation );
+        String[] hashes;
 
-        // check if the raw image file exists
-        if( !imgFile.exists( ) ) {
+        try {
+            hashes = ImageHasher.parseAlgorithms( System.getProperty( "hash", "" ) );
+        } catch( IllegalArgumentException e ) {
             System.out.println( System.getProperty( "line.separator" )
-                    + "Error: Image file does not exist." );
-            System.exit(3);
+                    + "Error: " + e.getMessage( ) );
+            usage( );
+            System.exit( ConversionResult.INVALID_TYPE );
             return;
         }
 
-        System.out.print( "Analysing image:"
-                + System.getProperty( "line.separator" ) + rawImageLocation );
+        String hashMode = System.getProperty( "hashMode", "linear" );
+
+        if( !hashMode.equals( "linear" ) && !hashMode.equals( "tree" ) ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: Hash mode is incorrect." );
+            usage( );
+            System.exit( ConversionResult.INVALID_TYPE );
+            return;
+        }
 
-        // analyse the image
-        MasterBootRecord MBR = new MasterBootRecord( imgFile );
+        int partition = Integer.getInteger( "partition", 0 );
 
-        System.out.println( " [" + MBR.getFileSizeBytes( ) + " bytes]" );
+        if( partition < 0 ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: Partition number is incorrect." );
+            usage( );
+            System.exit( ConversionResult.INVALID_TYPE );
+            return;
+        }
+
+        int threads = Integer.getInteger( "threads", Runtime.getRuntime( )
+                .availableProcessors( ) );
+
+        if( threads < 1 ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: threads must be at least 1." );
+            System.exit(1);
+            return;
+        }
+
+        // grain cache of VMDK images, in MB
+        long vmdkCache = Long.getLong( "vmdkCache",
+                SparseVMDKChannel.DEFAULT_CACHE_BYTES >> 20 );
+
+        if( vmdkCache < 0 ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: vmdkCache can not be negative." );
+            System.exit(1);
+            return;
+        }
+
+        // analyses of earlier runs, unchanged images aren't analysed again
+        AnalysisCache index = null;
+        String indexFile = System.getProperty( "index" );
+
+        if( indexFile != null ) {
+            try {
+                index = new AnalysisCache( new File( indexFile ) );
+            } catch( IOException e ) {
+                System.out.println( System.getProperty( "line.separator" )
+                        + "Error: Could not read index " + indexFile + ": "
+                        + e.getMessage( ) );
+                System.exit(1);
+                return;
+            }
+        }
+
+        Converter converter = new Converter( new VMDKTemplate( tpl ), threads,
+                index, vmdkCache << 20 );
+        // parse arguments, an explicit filename for the RAW file referenced
+        // in the header VMDK may have been specified
+        String image = args.length > 0 ? args[0] : "";
+        ConversionRequest request = new ConversionRequest( image,
+                args.length > 1 ? args[1] : image,
+                args.length > 2 ? args[2] : image, diskType ).withFormat( format )
+                .withHashes( hashes, hashMode.equals( "tree" ) )
+                .withMerkle( Boolean.getBoolean( "merkle" ) )
+                .withScan( Boolean.getBoolean( "scan" ) )
+                .withPartition( partition )
+                .withSnapshot( Boolean.getBoolean( "snapshot" ) );
+
+        if( mode.equals( "batch" ) ) {
+            BatchConverter batch = new BatchConverter( converter, request, threads );
+            System.exit( batch.run( args[0], args[1] ) );
+            return;
+        } else if( mode.equals( "watch" ) ) {
+            WatchFolder watch = new WatchFolder( converter, request, threads,
+                    Integer.getInteger( "settle", WatchFolder.DEFAULT_SETTLE ) );
+            System.exit( watch.run( args[0], args[1] ) );
+            return;
+        } else if( mode.equals( "export" ) ) {
+            System.exit( export( new RawExporter( threads ), args[0], args[1] ) );
+            return;
+        } else if( mode.equals( "verify" ) ) {
+            ImageVerifier verifier = converter.verifier( Integer.getInteger(
+                    "samples", ImageVerifier.DEFAULT_SAMPLES ), System
+                    .getProperty( "verify", "sampled" ).equals( "full" ) );
+            System.exit( verifier.run( args[0], args[1] ) );
+            return;
+        } else if( mode.equals( "server" ) ) {
+            ConversionServer server = new ConversionServer( converter, request,
+                    threads, Integer.getInteger( "queue", ConversionServer.DEFAULT_QUEUE ),
+                    new File( System.getProperty( "outDir", "." ) ) );
+            try {
+                InetSocketAddress address = server.start( Integer.getInteger(
+                        "port", ConversionServer.DEFAULT_PORT ) );
+                System.out.println( "Listening on http://"
+                        + address.getAddress( ).getHostAddress( ) + ":"
+                        + address.getPort( ) + "/" );
+                System.out.println( "Token: " + server.getToken( ) );
+            } catch( IOException e ) {
+                System.out.println( System.getProperty( "line.separator" )
+                        + "Error: " + e.getMessage( ) );
+                System.exit(1);
+            }
+            return;
+        } else if( mode.equals( "vhd" ) ) {
+            System.exit( vhd( new FixedVHDWriter( ), new File( args[0] ),
+                    args.length > 1 ? args[1] : null, Boolean.getBoolean( "inplace" ),
+                    Boolean.getBoolean( "rollback" ) ) );
+            return;
+        } else if( mode.equals( "nbd" ) ) {
+            int status = nbd( new File( args[0] ), Integer.getInteger( "port",
+                    NBDServer.DEFAULT_PORT ), vmdkCache << 20 );
+            if( status != 0 ) System.exit( status );
+            return;
+        } else if( !mode.equals( "convert" ) && !mode.equals( "analyse" )
+                && !mode.equals( "assemble" ) ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: Unknown mode '" + mode + "'." );
+            usage( );
+            System.exit(1);
+            return;
+        }
+
+        System.out.print( ( mode.equals( "assemble" ) ? "Assembling fragments:"
+                : "Analysing image:" )
+                + System.getProperty( "line.separator" )
+                + request.getRawImageLocation( ) );
+
+        // analyse the image and write the VMDK file
+        boolean analyse = mode.equals( "analyse" );
+        ConversionResult result = analyse ? converter.analyse( request )
+                : mode.equals( "assemble" ) ? converter.assemble( request,
+                        Long.getLong( "sectors", 0 ) )
+                : converter.convert( request );
+
+        if( !result.isSuccess( ) ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + System.getProperty( "line.separator" ) + "Error: "
+                    + result.getError( ) );
+            System.exit( result.getStatus( ) );
+            return;
+        }
+
+        System.out.println( " [" + result.getFileSizeBytes( ) + " bytes]" );
         System.out.println( );
 
-        numOfSectors = MBR.totalSectorsOnDiskFromFile( );
-        System.out.println( "Number of sectors:\t" + numOfSectors );
+        System.out.println( "Partition table:\t" + result.getPartitionTable( )
+                + ( result.isIndexed( ) ? " (unchanged, from index)" : "" ) );
+        System.out.println( "Number of sectors:\t" + result.getNumOfSectors( ) );
+        System.out.println( "Number of cylinders:\t" + result.getNumOfCylinders( ) );
+        System.out.println( "Heads per track:\t" + result.getHeadsPerTrack( ) );
+        System.out.println( "Sectors per track:\t" + result.getSectorsPerTrack( ) );
+
+        AllocationMap map = result.getAllocationMap( );
+        if( map != null ) {
+            System.out.println( "Allocated bytes:\t" + map.getAllocatedBytes( )
+                    + " (" + ( map.getSize( ) == 0 ? 0 : map.getAllocatedBytes( ) * 100
+                    / map.getSize( ) ) + "%)" );
+            System.out.println( "Zero bytes:\t\t" + map.getZeroBytes( ) );
+            System.out.println( "Zero/data runs:\t\t" + map.getRunCount( ) );
+        }
 
-        numOfCylinders = MBR.largestCylinderValOnDisk( );
-        System.out.println( "Number of cylinders:\t" + numOfCylinders );
+        for( Map.Entry<String, String> digest: result.getDigests( ).entrySet( ) ) {
+            System.out.println( digest.getKey( ) + ":\t\t" + digest.getValue( ) );
+        }
 
-        headsPerTrack = MBR.getPartitionEntry1( ).getNumHeads( );
-        System.out.println( "Heads per track:\t" + headsPerTrack );
+        if( analyse ) {
+            if( args.length > 1 ) {
+                try {
+                    writeMap( map, args[1] );
+                } catch( IOException e ) {
+                    System.out.println( System.getProperty( "line.separator" )
+                            + "Error: " + e.getMessage( ) );
+                    System.exit( ConversionResult.WRITE_FAILED );
+                    return;
+                }
+                System.out.println( System.getProperty( "line.separator" )
+                        + "Wrote allocation map to: " + args[1] );
+            }
+        } else {
+            System.out.println( System.getProperty( "line.separator" )
+                    + ( format.equals( ConversionRequest.FORMAT_QCOW2 ) ? "Wrote QCOW2 file to: "
+                            : "Wrote VMDK file to: " ) + request.getOutFile( ) );
+            if( request.isSnapshot( ) ) {
+                System.out.println( "Wrote snapshot delta to: "
+                        + request.getSnapshotFile( ) + " (boot from this one)" );
+            }
+        }
 
-        sectorsPerTrack = MBR.getPartitionEntry1( ).getEndSector( );
-        System.out.println( "Sectors per track:\t" + sectorsPerTrack );
+        System.out
+                .println( "All done." + System.getProperty( "line.separator" ) );
+    }
 
-        // create hashmap holding data for the VMDK template
-        HashMap<String, String> vmdkData = new HashMap<String, String>( );
+    /**
+     * Makes a fixed VHD of an image, by copying it or appending a footer to
+     * it, or removes an appended footer again
+     *
+     * @param writer    the writer
+     * @param image     the raw image, or the VHD to roll back
+     * @param vhdFile   the VHD to copy the image to, null in place
+     * @param inPlace   true to append the footer to the image
+     * @param rollback  true to remove the footer from the image
+     *
+     * @return  the exit status
+     */
+    static int vhd( FixedVHDWriter writer, File image, String vhdFile,
+            boolean inPlace, boolean rollback ) {
 
-        vmdkData.put( "diskType", diskType );
-        vmdkData.put( "numOfSectors", Long.toString( numOfSectors ) );
-        vmdkData.put( "numOfCylinders", Long.toString( numOfCylinders ) );
-        vmdkData.put( "headsPerTrack", Integer.toString( headsPerTrack ) );
-        vmdkData.put( "sectorsPerTrack", Long.toString( sectorsPerTrack ) );
-        vmdkData.put( "imgLocation", rawImageLocationInVmdk );
+        if( !image.isFile( ) ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: Image file does not exist." );
+            return ConversionResult.MISSING_IMAGE;
+        }
+
+        if( !inPlace && !rollback && vhdFile == null ) {
+            usage( );
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: VHD copies need an output file, or -Dinplace=true." );
+            return 1;
+        }
+
+        VHDFooter footer;
+        try {
+            if( rollback ) {
+                footer = writer.rollback( image );
+                System.out.println( "Removed VHD footer:" + System.getProperty( "line.separator" )
+                        + image + " [" + footer.getCurrentSize( ) + " bytes]" );
+                System.out.println( "All done." + System.getProperty( "line.separator" ) );
+                return 0;
+            }
+
+            System.out.println( ( inPlace ? "Appending VHD footer:" : "Copying to fixed VHD:" )
+                    + System.getProperty( "line.separator" ) + image );
+
+            long size;
+            try( ImageReader reader = SegmentSet.discover( image ).open( ) ) {
+                size = new MasterBootRecord( reader ).getFileSizeBytes( );
+
+                if( inPlace && ( reader.getSegments( ).size( ) > 1
+                        || SparseVMDKChannel.isSparseVMDK( image ) ) ) {
+                    throw new IOException( "Only a single raw file can become a VHD in place, "
+                            + "write a copy instead." );
+                }
+                footer = inPlace ? null : writer.copy( reader, new File( vhdFile ) );
+            }
+
+            // the image is written once the reader is closed
+            if( inPlace ) {
+                footer = writer.appendInPlace( image, size );
+            }
+        } catch( IOException e ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: " + e.getMessage( ) );
+            return ConversionResult.WRITE_FAILED;
+        }
 
+        System.out.println( );
+        System.out.println( "Disk size:\t\t" + footer.getCurrentSize( ) );
+        System.out.println( "Number of cylinders:\t" + footer.getCylinders( ) );
+        System.out.println( "Heads per track:\t" + footer.getHeads( ) );
+        System.out.println( "Sectors per track:\t" + footer.getSectorsPerTrack( ) );
+        System.out.println( "Unique id:\t\t" + footer.getUniqueId( ) );
         System.out.println( System.getProperty( "line.separator" )
-                + "Loading VMDK template..." );
+                + ( inPlace ? "Appended VHD footer to: " + image
+                        + " (undo with -Drollback=true)" : "Wrote VHD file to: " + vhdFile ) );
+        System.out.println( "All done." + System.getProperty( "line.separator" ) );
+
+        return 0;
+    }
+
+    /**
+     * Exports an image over NBD, the server keeps running after returning
+     *
+     * @param image             a raw image, a descriptor or a sparse VMDK
+     * @param port              the port to listen on
+     * @param vmdkCacheBytes    byte budget of the grain cache of a VMDK
+     *
+     * @return  the exit status, 0 if the server is running
+     */
+    static int nbd( File image, int port, long vmdkCacheBytes ) {
+
+        if( !image.isFile( ) ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: Image file does not exist." );
+            return ConversionResult.MISSING_IMAGE;
+        }
+
+        ExportedDisk disk;
+        try {
+            disk = ExportedDisk.open( image, vmdkCacheBytes );
+        } catch( IOException e ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: " + e.getMessage( ) );
+            return ConversionResult.INVALID_TYPE;
+        }
 
         try {
-            // load VMDK template file
-            VMDKTemplate vmdkTpl = new VMDKTemplate( tpl );
+            InetSocketAddress address = new NBDServer( disk ).start( port );
+            System.out.println( "Exporting image:" + System.getProperty( "line.separator" )
+                    + image + " [" + disk.size( ) + " bytes]" );
+            System.out.println( "Listening on nbd://"
+                    + address.getAddress( ).getHostAddress( ) + ":"
+                    + address.getPort( ) + "/" + disk.getName( ) );
+        } catch( IOException e ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: " + e.getMessage( ) );
+            try {
+                disk.close( );
+            } catch( IOException ignored ) {
+                // exiting anyway
+            }
+            return 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Exports a sparse VMDK as a raw image
+     *
+     * @param exporter  the exporter
+     * @param vmdk      the monolithicSparse or streamOptimized VMDK
+     * @param rawFile   the raw image to write
+     *
+     * @return  the exit status
+     */
+    static int export( RawExporter exporter, String vmdk, String rawFile ) {
+
+        File in = new File( vmdk );
+        if( !in.isFile( ) ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: VMDK file does not exist." );
+            return ConversionResult.MISSING_IMAGE;
+        }
 
-            System.out.print( "Writing VMDK file to: " );
+        System.out.println( "Exporting VMDK:" + System.getProperty( "line.separator" )
+                + vmdk );
 
-            // write VMDK file to disk
-            vmdkTpl.write( vmdkData, outFile );
-            System.out.println( outFile );
-        } catch( Exception e ) {
+        long size;
+        long written;
+        try {
+            written = exporter.export( in, new File( rawFile ) );
+            size = new File( rawFile ).length( );
+        } catch( IOException e ) {
             System.out.println( System.getProperty( "line.separator" )
                     + "Error: " + e.getMessage( ) );
-            System.exit(4);
-            return;
+            return ConversionResult.WRITE_FAILED;
         }
 
-        System.out
-                .println( "All done." + System.getProperty( "line.separator" ) );
+        System.out.println( );
+        System.out.println( "Disk size:\t\t" + size );
+        System.out.println( "Data bytes:\t\t" + Math.min( written, size ) );
+        System.out.println( "Holes:\t\t\t" + Math.max( 0, size - written ) );
+        System.out.println( System.getProperty( "line.separator" )
+                + "Wrote raw image to: " + rawFile );
+        System.out.println( "All done." + System.getProperty( "line.separator" ) );
+
+        return ConversionResult.OK;
+    }
+
+    /**
+     * Writes the runs of an allocation map to a text file
+     *
+     * @param map       the allocation map
+     * @param outFile   where to write it
+     */
+    static void writeMap( AllocationMap map, String outFile ) throws IOException {
+
+        Writer out = new BufferedWriter( new OutputStreamWriter(
+                new FileOutputStream( outFile ), "UTF-8" ) );
+        try {
+            map.write( out );
+        } finally {
+            out.close( );
+        }
     }
 
     /**
@@ -221,17 +530,83 @@ public class Raw2VMDK {
         System.out
             .println( "java -jar -Dtype=<ide|buslogic|lsilogic|legacyESX> raw2vmdk.jar <raw image> <vmdk outfile> (imgLocation)" );
 
-        System.out.println( "\ntype defaults to 'ide'" );
-    }
+        System.out
+            .println( "java -Dmode=batch (-Dthreads=<n>) -Dtype=<ide|buslogic|lsilogic|legacyESX> -jar raw2vmdk.jar <image dir|glob|manifest> <vmdk outdir>" );
 
-    private static Boolean inArray( String[] arr, String str ) {
+        System.out.println( "\n-Dformat=<flat|sparse|streamOptimized|qcow2> selects the output:" );
+        System.out.println( "  flat             a descriptor pointing at the raw image (default)" );
+        System.out.println( "  sparse           a monolithicSparse copy holding only the non-zero grains" );
+        System.out.println( "  streamOptimized  a compressed copy, deflated on -Dthreads threads" );
+        System.out.println( "  qcow2            a QCOW2 image using the raw image as its data file, for KVM" );
+        System.out.println( "gzip (.gz) and zstd (.zst) images are decompressed while converting to sparse" );
+        System.out.println( "  or streamOptimized, in a single pass" );
 
-        for( String s: arr ) {
-          if( s.equals( str ) ) return true;
-        }
+        System.out.println( "\n-Dhash=<md5,sha1,sha256> records the digests of the image in the VMDK" );
+        System.out.println( "-DhashMode=<linear|tree> linear digests match sha256sum & co., tree digests" );
+        System.out.println( "  hash 4MB leaves on -Dthreads threads and hash their digests" );
+
+        System.out.println( "-Dmerkle=true writes a per-block hash index next to the VMDK (<vmdk outfile>.merkle)" );
+
+        System.out.println( "-Dpartition=<n> describes partition <n> alone (1-4 primary, 5+ logical, GPT slot)" );
+        System.out.println( "  as a flat disk pointing into the image at its offset, nothing is copied" );
 
-        return false;
+        System.out.println( "-Dsnapshot=true makes the descriptor read-only and writes an empty delta disk over it" );
+        System.out.println( "  (<vmdk outfile>-000001.vmdk) for VMs to write to" );
 
+        System.out
+            .println( "\njava -Dmode=verify (-Dverify=full) (-Dsamples=<n>) -jar raw2vmdk.jar <raw image> <vmdk file>" );
+        System.out.println( "  re-hashes the blocks of changed segments and <n> random blocks of the others (default 64)" );
+
+        System.out
+            .println( "\njava -Dmode=analyse -jar raw2vmdk.jar <raw image> (<map outfile>)" );
+        System.out.println( "  scans the image for zero regions and writes their run-length map" );
+        System.out.println( "-Dscan=true scans before converting, sparse output then skips the zero regions unread" );
+
+        System.out
+            .println( "\njava -Dmode=server (-Dport=<port>) (-Dthreads=<n>) (-Dqueue=<n>) (-DoutDir=<dir>) -jar raw2vmdk.jar" );
+        System.out.println( "  accepts JSON requests on http://127.0.0.1:<port>/convert, /analyse and /status" );
+        System.out.println( "  carrying the printed token, outputs are written inside <dir> (default .)" );
+        System.out.println( "  (default port " + ConversionServer.DEFAULT_PORT + "), converting <n> at a time with up to -Dqueue waiting" );
+
+        System.out
+            .println( "\njava -Dmode=watch (-Dsettle=<seconds>) (-Dthreads=<n>) -jar raw2vmdk.jar <drop dir> <vmdk outdir>" );
+        System.out.println( "  converts images copied into <drop dir> once unchanged for <seconds> (default "
+                + WatchFolder.DEFAULT_SETTLE + ")," );
+        System.out.println( "  images converted before are remembered in <vmdk outdir>/" + WatchFolder.CACHE_NAME );
+
+        System.out
+            .println( "\njava -Dmode=assemble (-Dsectors=<n>) -jar raw2vmdk.jar <fragment map> <vmdk outfile>" );
+        System.out.println( "  maps the carved fragments listed as '<disk sector> <sectors> <file offset> <file>'" );
+        System.out.println( "  lines to a disk of <n> sectors, unmapped sectors read as zeros" );
+
+        System.out
+            .println( "\njava -Dmode=export (-Dthreads=<n>) -jar raw2vmdk.jar <sparse vmdk> <raw outfile>" );
+        System.out.println( "  flattens a monolithicSparse or streamOptimized VMDK, inflating grains on <n> threads;" );
+        System.out.println( "  unallocated grains become holes" );
+
+        System.out
+            .println( "\njava -Dmode=vhd (-Dinplace=true|-Drollback=true) -jar raw2vmdk.jar <raw image> (<vhd outfile>)" );
+        System.out.println( "  makes a fixed VHD, a copy of the image or, with -Dinplace=true, the image itself" );
+        System.out.println( "  by appending a 512 byte footer; -Drollback=true truncates the footer again" );
+
+        System.out
+            .println( "\njava -Dmode=nbd (-Dport=<port>) -jar raw2vmdk.jar <raw image|vmdk>" );
+        System.out.println( "  exports the image read-only over NBD on 127.0.0.1:<port> (default "
+                + NBDServer.DEFAULT_PORT + "); raw and split images," );
+        System.out.println( "  flat descriptors and sparse VMDKs are served as the disk they hold" );
+
+        System.out.println( "\n-Dindex=<file> records the geometry of every image in <file>, later runs of any mode" );
+        System.out.println( "  only analyse the images that changed since" );
+
+        System.out.println( "\nmonolithicSparse and streamOptimized VMDK files can be given as the image of the" );
+        System.out.println( "convert (sparse or streamOptimized format) and analyse modes, they are read as their" );
+        System.out.println( "virtual disk; -DvmdkCache=<MB> bounds the cache of their grains (default "
+                + ( SparseVMDKChannel.DEFAULT_CACHE_BYTES >> 20 ) + ")" );
+
+        System.out.println( "\nSplit images (image.001, image.002, ...) are converted in place by passing the first segment." );
+
+        System.out.println( "\ntype defaults to 'ide'" );
+        System.out.println( "threads defaults to the number of available processors" );
     }
 
 }
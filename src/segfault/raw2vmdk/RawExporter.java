@@ -0,0 +1,270 @@
+package segfault.raw2vmdk;
+
+/*
+ * RawExporter.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>Exports a monolithicSparse or streamOptimized VMDK as a raw image.</p>
+ * <p>Grains are decoded in batches of {@link #BATCH_GRAINS} on a pool of
+ * threads, a bounded number of batches ahead of the writer, and written in
+ * disk order with one positional write per run of data grains. Unallocated
+ * and all-zero grains are skipped over, so they end up as holes in the
+ * output and a sparse disk stays sparse.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.SparseExtentReader
+ */
+public class RawExporter {
+
+    /**
+     * grains decoded per task, 4MB with the default grain size
+     */
+    static final int BATCH_GRAINS = 64;
+
+    /**
+     * <p>A decoded batch of grains.</p>
+     */
+    private static final class Batch {
+
+        final long       firstGrain;
+
+        final ByteBuffer data;
+
+        // bit i is set if grain i holds data
+        final long       present;
+
+        Batch( long firstGrain, ByteBuffer data, long present ) {
+
+            this.firstGrain = firstGrain;
+            this.data       = data;
+            this.present    = present;
+        }
+    }
+
+    /**
+     * threads decoding grains
+     */
+    private final int threads;
+
+    /**
+     * Constructor
+     *
+     * @param threads   threads decoding (inflating) grains
+     */
+    public RawExporter( int threads ) {
+
+        this.threads = threads;
+    }
+
+    /**
+     * Exports a VMDK as a raw image
+     *
+     * @param vmdk  the monolithicSparse or streamOptimized VMDK
+     * @param raw   the raw image to write, must not exist
+     *
+     * @return  the number of data bytes written, the rest are holes
+     *
+     * @throws IOException  on read/write errors, a corrupt VMDK or if the
+     *                      raw image already exists
+     */
+    public long export( File vmdk, File raw ) throws IOException {
+
+        if( raw.exists( ) ) {
+            if( Files.isSameFile( vmdk.toPath( ), raw.toPath( ) ) ) {
+                throw new IOException( "The raw image would overwrite the VMDK." );
+            }
+            throw new IOException( "Raw image already exists: " + raw );
+        }
+
+        try( SparseExtentReader in = new SparseExtentReader( vmdk ) ) {
+            boolean done = false;
+            try( FileChannel out = FileChannel.open( raw.toPath( ),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE ) ) {
+
+                long written = copyGrains( in, out );
+
+                // the holes at the end of the disk, or the tail of a partial
+                // last grain
+                if( out.size( ) < in.size( ) ) {
+                    out.write( ByteBuffer.allocate( 1 ), in.size( ) - 1 );
+                } else {
+                    out.truncate( in.size( ) );
+                }
+                done = true;
+                return written;
+            } finally {
+                // don't leave a partial image behind
+                if( !done ) Files.deleteIfExists( raw.toPath( ) );
+            }
+        }
+    }
+
+    /**
+     * Decodes the allocated grains ahead of the writer and writes them in
+     * order
+     */
+    private long copyGrains( SparseExtentReader in, FileChannel out )
+            throws IOException {
+
+        SparseExtentHeader header = in.getHeader( );
+        int grainBytes = header.grainBytes( );
+        long numGrains = header.numGrains( );
+        int perGT = header.numGTEsPerGT;
+
+        ExecutorService pool = Executors.newFixedThreadPool( threads );
+        Deque<Future<Batch>> window = new ArrayDeque<Future<Batch>>( );
+        int gtIndex = -1;
+        long[] gt = null;
+        long written = 0;
+        long next = 0;
+
+        try {
+            while( next < numGrains || !window.isEmpty( ) ) {
+                // keep the pool busy, a bounded number of batches ahead
+                while( next < numGrains && window.size( ) < 2 * threads ) {
+                    int count = (int) Math.min( BATCH_GRAINS, numGrains - next );
+                    long[] sectors = new long[ count ];
+                    boolean allocated = false;
+
+                    for( int i = 0; i < count; i++ ) {
+                        long grain = next + i;
+                        if( grain / perGT != gtIndex ) {
+                            gtIndex = (int) ( grain / perGT );
+                            gt = in.readGrainTable( gtIndex );
+                        }
+
+                        sectors[i] = gt == null ? 0 : gt[(int) ( grain % perGT )];
+                        allocated |= sectors[i] != 0;
+                    }
+
+                    // nothing but holes
+                    if( allocated ) {
+                        window.add( pool.submit( decode( in, next, sectors ) ) );
+                    }
+                    next += count;
+                }
+
+                if( window.isEmpty( ) ) break;
+                written += write( out, get( window.poll( ) ), grainBytes );
+            }
+        } finally {
+            pool.shutdownNow( );
+        }
+
+        return written;
+    }
+
+    /**
+     * Creates the task decoding a batch of grains
+     */
+    private static Callable<Batch> decode( final SparseExtentReader in,
+            final long firstGrain, final long[] sectors ) {
+
+        return new Callable<Batch>( ) {
+
+            public Batch call( ) throws IOException {
+
+                int grainBytes = in.getHeader( ).grainBytes( );
+                ByteBuffer data = ByteBuffer.allocate( sectors.length * grainBytes );
+                long present = 0;
+
+                for( int i = 0; i < sectors.length; i++ ) {
+                    if( sectors[i] == 0 ) continue;
+
+                    data.position( i * grainBytes );
+                    in.readGrain( sectors[i], data );
+
+                    if( !SparseVMDKWriter.isZero( data, i * grainBytes, grainBytes ) ) {
+                        present |= 1L << i;
+                    }
+                }
+
+                data.clear( );
+                return new Batch( firstGrain, data, present );
+            }
+        };
+    }
+
+    /**
+     * Writes the runs of data grains of a batch at their place on the disk
+     *
+     * @return  the number of bytes written
+     */
+    private static long write( FileChannel out, Batch batch, int grainBytes )
+            throws IOException {
+
+        long written = 0;
+        long present = batch.present;
+
+        while( present != 0 ) {
+            int from = Long.numberOfTrailingZeros( present );
+            int to = from;
+            while( to < Long.SIZE && ( present & ( 1L << to ) ) != 0 ) to++;
+
+            // clear the run
+            present &= to == Long.SIZE ? 0 : -1L << to;
+
+            ByteBuffer run = batch.data.duplicate( );
+            run.limit( to * grainBytes ).position( from * grainBytes );
+
+            long position = ( batch.firstGrain + from ) * grainBytes;
+            while( run.hasRemaining( ) ) {
+                position += out.write( run, position );
+            }
+            written += ( to - from ) * (long) grainBytes;
+        }
+
+        return written;
+    }
+
+    /**
+     * Waits for a decoded batch, rethrowing its failure
+     */
+    private static Batch get( Future<Batch> batch ) throws IOException {
+
+        try {
+            return batch.get( );
+        } catch( ExecutionException e ) {
+            if( e.getCause( ) instanceof IOException ) {
+                throw (IOException) e.getCause( );
+            }
+            throw new IOException( e.getCause( ) );
+        } catch( InterruptedException e ) {
+            Thread.currentThread( ).interrupt( );
+            throw new IOException( "Interrupted while exporting." );
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package segfault.raw2vmdk;
+
+/*
+ * SegmentSet.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * <p>Immutable, ordered set of the segments of a split raw image.</p>
+ * <p>Acquisition tools split images into numbered segments (image.001,
+ * image.002, ...). Given the first one, the rest are found with a single
+ * listing of its directory, and the whole set is described with one FLAT
+ * extent per segment so it can be mounted without concatenating it.<br/>
+ * Only three digit numbers starting at 000 or 001 make a set, so that
+ * images merely named after a year or a case number (case.2023,
+ * case.2024) aren't joined; any other image is a set of one.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public final class SegmentSet {
+
+    /**
+     * name of a numbered segment: base name, '.', 3 digits
+     */
+    private static final Pattern NUMBERED = Pattern.compile( "(.*\\.)(\\d{3})" );
+
+    /**
+     * the segments, in order
+     */
+    private final List<File>     segments;
+
+    /**
+     * Constructor
+     *
+     * @param segments  the segments, in order
+     */
+    public SegmentSet( List<File> segments ) {
+
+        this.segments = Collections.unmodifiableList( new ArrayList<File>( segments ) );
+    }
+
+    /**
+     * Finds the segments following an image
+     *
+     * @param image the image or its first segment
+     *
+     * @return  the segment set, just the image if it isn't numbered 000
+     *          or 001
+     *
+     * @throws IOException  if the directory of the image can not be listed
+     */
+    public static SegmentSet discover( File image ) throws IOException {
+
+        if( !isFirst( image.getName( ) ) ) {
+            return new SegmentSet( Collections.singletonList( image ) );
+        }
+
+        File dir = image.getAbsoluteFile( ).getParentFile( );
+        String[] names = dir.list( );
+        if( names == null ) {
+            throw new IOException( "Could not list directory " + dir );
+        }
+
+        Set<String> siblings = new HashSet<String>( Arrays.asList( names ) );
+        List<File> segments = new ArrayList<File>( );
+        segments.add( image );
+
+        for( int i = 1; ; i++ ) {
+            String next = renumber( image.getName( ), i );
+            if( next == null || !siblings.contains( next ) ) break;
+            segments.add( new File( image.getParentFile( ), next ) );
+        }
+
+        return new SegmentSet( segments );
+    }
+
+    /**
+     * Checks if an image is a later segment of a split image, i.e. batch
+     * conversions should skip image.002 when image.001 is present
+     *
+     * @param image the image
+     *
+     * @return  true if the image has a preceding segment and the set starts
+     *          at 000 or 001
+     */
+    public static boolean isContinuation( File image ) {
+
+        return !firstOf( image ).equals( image );
+    }
+
+    /**
+     * Finds the first segment of the split image a segment belongs to
+     *
+     * @param segment   any segment, or a plain image
+     *
+     * @return  the first segment, or the file itself if it isn't a
+     *          continuation
+     */
+    public static File firstOf( File segment ) {
+
+        File first = segment;
+        String previous;
+        while( ( previous = renumber( first.getName( ), -1 ) ) != null
+                && new File( first.getParentFile( ), previous ).isFile( ) ) {
+            first = new File( first.getParentFile( ), previous );
+        }
+
+        // a run of numbered files that doesn't start at 000/001 isn't a set
+        return isFirst( first.getName( ) ) ? first : segment;
+    }
+
+    /**
+     * Checks if a name is the one of the first segment of a set
+     *
+     * @param name  the name
+     *
+     * @return  true if the name is numbered 000 or 001
+     */
+    private static boolean isFirst( String name ) {
+
+        Matcher m = NUMBERED.matcher( name );
+
+        return m.matches( ) && Integer.parseInt( m.group( 2 ) ) <= 1;
+    }
+
+    /**
+     * Opens the segments as a single image
+     *
+     * @return  the reader, its segments are opened and sized concurrently
+     *
+     * @throws IOException  if a segment can not be opened
+     */
+    public ImageReader open( ) throws IOException {
+
+        return open( SparseVMDKChannel.DEFAULT_CACHE_BYTES );
+    }
+
+    /**
+     * Opens the segments as a single image, a sparse VMDK is opened as its
+     * virtual disk
+     *
+     * @param cacheBytes    the byte budget of the grain cache of a sparse
+     *                      VMDK
+     *
+     * @return  the reader, its segments are opened and sized concurrently
+     *
+     * @throws IOException  if a segment can not be opened
+     */
+    public ImageReader open( long cacheBytes ) throws IOException {
+
+        if( segments.size( ) == 1 && SparseVMDKChannel.isSparseVMDK( segments.get( 0 ) ) ) {
+            return new ImageReader( segments.get( 0 ),
+                    new SparseVMDKChannel( segments.get( 0 ), cacheBytes ) );
+        }
+
+        return new ImageReader( segments );
+    }
+
+    /**
+     * Describes the segments of an opened image as FLAT extents
+     *
+     * @param reader        the reader returned by {@link #open()}
+     * @param imgLocation   the location of the first segment as written in
+     *                      the VMDK, the others are located next to it
+     *
+     * @return  one extent per segment
+     *
+     * @throws IOException  if a segment of a split image isn't made of whole
+     *                      sectors
+     */
+    public List<Extent> extents( ImageReader reader, String imgLocation )
+            throws IOException {
+
+        List<Extent> extents = new ArrayList<Extent>( );
+
+        // a trailing partial sector of an unsplit image is simply left out
+        if( segments.size( ) == 1 ) {
+            extents.add( Extent.flat( reader.size( ) / ImageReader.BYTES_PER_SECTOR,
+                    imgLocation ) );
+            return extents;
+        }
+
+        for( int i = 0; i < segments.size( ); i++ ) {
+            long bytes = reader.getSegmentSize( i );
+
+            if( bytes % ImageReader.BYTES_PER_SECTOR != 0 ) {
+                throw new IOException( "Segment " + segments.get( i ) + " is "
+                        + bytes + " bytes, not a multiple of "
+                        + ImageReader.BYTES_PER_SECTOR + "." );
+            }
+
+            extents.add( Extent.flat( bytes / ImageReader.BYTES_PER_SECTOR,
+                    locationOf( imgLocation, i ) ) );
+        }
+
+        return extents;
+    }
+
+    /**
+     * Derives the location of a segment from the location of the first one
+     *
+     * @param imgLocation   the location of the first segment
+     * @param index         the index of the segment
+     *
+     * @return  the location of the segment
+     */
+    String locationOf( String imgLocation, int index ) {
+
+        if( index == 0 ) return imgLocation;
+
+        File first = new File( imgLocation );
+        String renumbered = renumber( first.getName( ), index );
+        String name = renumbered != null ? renumbered
+                : segments.get( index ).getName( );
+
+        return first.getParent( ) != null
+                ? new File( first.getParent( ), name ).getPath( ) : name;
+    }
+
+    /**
+     * Shifts the number of a segment name, keeping its width
+     *
+     * @param name  the segment name
+     * @param delta how much to add to the number
+     *
+     * @return  the new name, null if the name isn't numbered or the number
+     *          would be negative
+     */
+    private static String renumber( String name, int delta ) {
+
+        Matcher m = NUMBERED.matcher( name );
+        if( !m.matches( ) ) return null;
+
+        String digits = m.group( 2 );
+        long number = Long.parseLong( digits ) + delta;
+        if( number < 0 ) return null;
+
+        StringBuilder sb = new StringBuilder( Long.toString( number ) );
+        while( sb.length( ) < digits.length( ) ) sb.insert( 0, '0' );
+
+        return m.group( 1 ) + sb;
+    }
+
+    /**
+     * @return the segments, in order
+     */
+    public List<File> getSegments( ) {
+
+        return segments;
+    }
+
+    /**
+     * @return the number of segments
+     */
+    public int size( ) {
+
+        return segments.size( );
+    }
+}
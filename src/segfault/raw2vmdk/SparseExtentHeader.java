@@ -0,0 +1,231 @@
+package segfault.raw2vmdk;
+
+/*
+ * SparseExtentHeader.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>The 512 byte header of a hosted sparse extent (monolithicSparse and
+ * streamOptimized VMDK files).</p>
+ * <p>Laid out as in the VMware Virtual Disk Format 1.1 specification, all
+ * values little endian.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public class SparseExtentHeader {
+
+    /**
+     * "KDMV"
+     */
+    public static final int  MAGIC                  = 0x564d444b;
+
+    /**
+     * size of a sector in bytes
+     */
+    public static final int  SECTOR_SIZE            = 512;
+
+    /**
+     * the valid newline detection test is used
+     */
+    public static final int  FLAG_NEWLINE_TEST      = 1;
+
+    /**
+     * a redundant grain directory is present
+     */
+    public static final int  FLAG_REDUNDANT_GD      = 1 << 1;
+
+    /**
+     * a grain table entry of 1 stands for a grain of zeros
+     */
+    public static final int  FLAG_ZERO_GTE          = 1 << 2;
+
+    /**
+     * grains are compressed
+     */
+    public static final int  FLAG_COMPRESSED        = 1 << 16;
+
+    /**
+     * the extent contains markers (streamOptimized)
+     */
+    public static final int  FLAG_MARKERS           = 1 << 17;
+
+    /**
+     * grains are deflate compressed
+     */
+    public static final int  COMPRESSION_DEFLATE    = 1;
+
+    /**
+     * gdOffset value meaning the grain directory is found via the footer
+     */
+    public static final long GD_AT_END              = -1L;
+
+    /**
+     * default grain size in sectors (64KB)
+     */
+    public static final long DEFAULT_GRAIN_SIZE     = 128;
+
+    /**
+     * default number of entries per grain table
+     */
+    public static final int  DEFAULT_GTES_PER_GT    = 512;
+
+    /**
+     * default number of sectors reserved for the embedded descriptor
+     */
+    public static final long DEFAULT_DESCRIPTOR_SIZE = 20;
+
+    public int               version                = 1;
+
+    public int               flags                  = FLAG_NEWLINE_TEST;
+
+    public long              capacity;
+
+    public long              grainSize              = DEFAULT_GRAIN_SIZE;
+
+    public long              descriptorOffset;
+
+    public long              descriptorSize;
+
+    public int               numGTEsPerGT           = DEFAULT_GTES_PER_GT;
+
+    public long              rgdOffset;
+
+    public long              gdOffset;
+
+    public long              overHead;
+
+    public boolean           uncleanShutdown;
+
+    public int               compressAlgorithm;
+
+    /**
+     * @return the number of grains needed to cover the capacity
+     */
+    public long numGrains( ) {
+
+        return ( capacity + grainSize - 1 ) / grainSize;
+    }
+
+    /**
+     * @return the number of grain tables needed to cover the capacity
+     */
+    public long numGTs( ) {
+
+        return ( numGrains( ) + numGTEsPerGT - 1 ) / numGTEsPerGT;
+    }
+
+    /**
+     * @return the size of a grain in bytes
+     */
+    public int grainBytes( ) {
+
+        return (int) ( grainSize * SECTOR_SIZE );
+    }
+
+    /**
+     * @return the size of one grain table in whole sectors
+     */
+    public long gtSectors( ) {
+
+        return ( numGTEsPerGT * 4L + SECTOR_SIZE - 1 ) / SECTOR_SIZE;
+    }
+
+    /**
+     * @return the size of the grain directory in whole sectors
+     */
+    public long gdSectors( ) {
+
+        return ( numGTs( ) * 4 + SECTOR_SIZE - 1 ) / SECTOR_SIZE;
+    }
+
+    /**
+     * Serialises the header into a new 512 byte buffer
+     *
+     * @return  the header, positioned at 0
+     */
+    public ByteBuffer toBuffer( ) {
+
+        ByteBuffer buf = ByteBuffer.allocate( SECTOR_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+
+        buf.putInt( MAGIC );
+        buf.putInt( version );
+        buf.putInt( flags );
+        buf.putLong( capacity );
+        buf.putLong( grainSize );
+        buf.putLong( descriptorOffset );
+        buf.putLong( descriptorSize );
+        buf.putInt( numGTEsPerGT );
+        buf.putLong( rgdOffset );
+        buf.putLong( gdOffset );
+        buf.putLong( overHead );
+        buf.put( (byte) ( uncleanShutdown ? 1 : 0 ) );
+        buf.put( (byte) '\n' );
+        buf.put( (byte) ' ' );
+        buf.put( (byte) '\r' );
+        buf.put( (byte) '\n' );
+        buf.putShort( (short) compressAlgorithm );
+
+        buf.clear( );
+        return buf;
+    }
+
+    /**
+     * Parses a header
+     *
+     * @param sector    the first sector of the extent (or the footer)
+     *
+     * @return  the header
+     *
+     * @throws IOException  if the magic number or the layout is invalid
+     */
+    public static SparseExtentHeader parse( ByteBuffer sector ) throws IOException {
+
+        ByteBuffer buf = sector.duplicate( ).order( ByteOrder.LITTLE_ENDIAN );
+        if( buf.remaining( ) < 79 || buf.getInt( ) != MAGIC ) {
+            throw new IOException( "Not a hosted sparse extent." );
+        }
+
+        SparseExtentHeader h = new SparseExtentHeader( );
+
+        h.version           = buf.getInt( );
+        h.flags             = buf.getInt( );
+        h.capacity          = buf.getLong( );
+        h.grainSize         = buf.getLong( );
+        h.descriptorOffset  = buf.getLong( );
+        h.descriptorSize    = buf.getLong( );
+        h.numGTEsPerGT      = buf.getInt( );
+        h.rgdOffset         = buf.getLong( );
+        h.gdOffset          = buf.getLong( );
+        h.overHead          = buf.getLong( );
+        h.uncleanShutdown   = buf.get( ) != 0;
+        buf.position( buf.position( ) + 4 ); // newline detection characters
+        h.compressAlgorithm = buf.getShort( ) & 0xFFFF;
+
+        if( h.grainSize < 8 || ( h.grainSize & ( h.grainSize - 1 ) ) != 0
+                || h.grainSize > 2048 || h.numGTEsPerGT <= 0 || h.capacity < 0 ) {
+            throw new IOException( "Unsupported sparse extent layout." );
+        }
+
+        return h;
+    }
+}
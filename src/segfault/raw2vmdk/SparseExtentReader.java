@@ -0,0 +1,311 @@
+package segfault.raw2vmdk;
+
+/*
+ * SparseExtentReader.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Reads the grains of a hosted sparse extent (monolithicSparse and
+ * streamOptimized VMDK files).</p>
+ * <p>The header is read on open, from the footer if the grain directory is
+ * at the end of a stream; the grain directory is small and kept in memory,
+ * grain tables are read on demand. Compressed grains are inflated on the
+ * calling thread with a per-thread Inflater and all reads are positional,
+ * so one reader may be shared by threads.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.SparseExtentHeader
+ */
+public class SparseExtentReader implements Closeable {
+
+    /**
+     * size of the lba and size fields of a grain marker
+     */
+    private static final int MARKER_HEADER = 12;
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>( ) {
+
+        protected Inflater initialValue( ) {
+
+            return new Inflater( );
+        }
+    };
+
+    /**
+     * the VMDK file
+     */
+    private final File               file;
+
+    /**
+     * the open VMDK file
+     */
+    private final FileChannel        channel;
+
+    /**
+     * the header, or the footer of a stream
+     */
+    private final SparseExtentHeader header;
+
+    /**
+     * sector offset of every grain table, 0 if unallocated
+     */
+    private final long[]             gd;
+
+    /**
+     * Constructor
+     *
+     * @param vmdk  the monolithicSparse or streamOptimized VMDK file
+     *
+     * @throws IOException  if it isn't a hosted sparse extent or is
+     *                      truncated
+     */
+    public SparseExtentReader( File vmdk ) throws IOException {
+
+        this.file    = vmdk;
+        this.channel = FileChannel.open( vmdk.toPath( ), StandardOpenOption.READ );
+
+        try {
+            SparseExtentHeader h = SparseExtentHeader.parse( read( 0,
+                    SparseExtentHeader.SECTOR_SIZE ) );
+
+            if( h.gdOffset == SparseExtentHeader.GD_AT_END ) {
+                // footer, then the end-of-stream marker
+                long footer = channel.size( ) - 2 * SparseExtentHeader.SECTOR_SIZE;
+                if( footer < SparseExtentHeader.SECTOR_SIZE ) {
+                    throw new IOException( vmdk + " is truncated, its footer is missing." );
+                }
+                h = SparseExtentHeader.parse( read( footer, SparseExtentHeader.SECTOR_SIZE ) );
+            }
+
+            if( h.gdOffset <= 0 ) {
+                throw new IOException( vmdk + " has no grain directory." );
+            }
+
+            this.header = h;
+            this.gd     = readGrainDirectory( );
+        } catch( IOException e ) {
+            channel.close( );
+            throw e;
+        }
+    }
+
+    /**
+     * @return the header, or the footer of a stream
+     */
+    public SparseExtentHeader getHeader( ) {
+
+        return header;
+    }
+
+    /**
+     * @return the VMDK file
+     */
+    public File getFile( ) {
+
+        return file;
+    }
+
+    /**
+     * @return the size of the virtual disk in bytes
+     */
+    public long size( ) {
+
+        return header.capacity * SparseExtentHeader.SECTOR_SIZE;
+    }
+
+    /**
+     * Reads the embedded descriptor
+     *
+     * @return  the descriptor text, empty if there is none
+     *
+     * @throws IOException  on read errors
+     */
+    public String getDescriptor( ) throws IOException {
+
+        if( header.descriptorOffset == 0 || header.descriptorSize == 0 ) {
+            return "";
+        }
+
+        ByteBuffer buf = read( header.descriptorOffset * SparseExtentHeader.SECTOR_SIZE,
+                (int) ( header.descriptorSize * SparseExtentHeader.SECTOR_SIZE ) );
+
+        int end = 0;
+        while( end < buf.limit( ) && buf.get( end ) != 0 ) end++;
+
+        return new String( buf.array( ), 0, end, "UTF-8" );
+    }
+
+    /**
+     * Reads a grain table
+     *
+     * @param index the index of the grain table
+     *
+     * @return  the sector offset of every grain, 0 if unallocated; null if
+     *          the whole table is unallocated
+     *
+     * @throws IOException  on read errors
+     */
+    public long[] readGrainTable( int index ) throws IOException {
+
+        if( index < 0 || index >= gd.length || gd[index] == 0 ) {
+            return null;
+        }
+
+        ByteBuffer buf = read( gd[index] * SparseExtentHeader.SECTOR_SIZE,
+                header.numGTEsPerGT * 4 );
+        boolean zeroGTE = ( header.flags & SparseExtentHeader.FLAG_ZERO_GTE ) != 0;
+        long[] gt = new long[ header.numGTEsPerGT ];
+
+        for( int i = 0; i < gt.length && buf.remaining( ) >= 4; i++ ) {
+            long sector = buf.getInt( ) & 0xFFFFFFFFL;
+            gt[i] = zeroGTE && sector == 1 ? 0 : sector;
+        }
+
+        return gt;
+    }
+
+    /**
+     * Reads a grain, inflating it if the extent is compressed
+     *
+     * @param sector    the sector offset of the grain (or of its marker)
+     * @param dst       receives the grain from its position, at most
+     *                  {@link SparseExtentHeader#grainBytes()} bytes
+     *
+     * @throws IOException  on read errors or corrupt grains
+     */
+    public void readGrain( long sector, ByteBuffer dst ) throws IOException {
+
+        long offset = sector * SparseExtentHeader.SECTOR_SIZE;
+        int grainBytes = header.grainBytes( );
+        int length = Math.min( dst.remaining( ), grainBytes );
+
+        if( ( header.flags & SparseExtentHeader.FLAG_COMPRESSED ) == 0 ) {
+            ByteBuffer slice = dst.duplicate( );
+            slice.limit( slice.position( ) + length );
+            readFully( slice, offset );
+
+            // a grain cut short by the end of the file reads as zeros
+            while( slice.hasRemaining( ) ) slice.put( (byte) 0 );
+            dst.position( dst.position( ) + length );
+            return;
+        }
+
+        ByteBuffer marker = read( offset, MARKER_HEADER );
+        int size = marker.remaining( ) == MARKER_HEADER ? marker.getInt( 8 ) : -1;
+        if( size <= 0 || size > 2 * grainBytes + 1024 ) {
+            throw new IOException( "Corrupt grain marker at sector " + sector
+                    + " of " + file + "." );
+        }
+
+        ByteBuffer compressed = read( offset + MARKER_HEADER, size );
+        if( compressed.remaining( ) < size ) {
+            throw new IOException( file + " is truncated at the grain of sector "
+                    + sector + "." );
+        }
+        byte[] grain = new byte[ grainBytes ];
+        int inflated = 0;
+
+        Inflater inflater = INFLATER.get( );
+        inflater.reset( );
+        inflater.setInput( compressed.array( ), 0, compressed.limit( ) );
+        try {
+            while( inflated < grainBytes && !inflater.finished( ) ) {
+                int n = inflater.inflate( grain, inflated, grainBytes - inflated );
+                if( n == 0 && ( inflater.needsInput( ) || inflater.needsDictionary( ) ) ) break;
+                inflated += n;
+            }
+        } catch( DataFormatException e ) {
+            throw new IOException( "Corrupt grain at sector " + sector + " of "
+                    + file + ": " + e.getMessage( ) );
+        }
+
+        // the rest of a short grain reads as zeros
+        dst.put( grain, 0, length );
+    }
+
+    /**
+     * Closes the VMDK file
+     */
+    public void close( ) throws IOException {
+
+        channel.close( );
+    }
+
+    /**
+     * Reads the grain directory
+     */
+    private long[] readGrainDirectory( ) throws IOException {
+
+        long numGTs = header.numGTs( );
+        if( numGTs > Integer.MAX_VALUE / 4 ) {
+            throw new IOException( file + " is too large." );
+        }
+
+        ByteBuffer buf = read( header.gdOffset * SparseExtentHeader.SECTOR_SIZE,
+                (int) numGTs * 4 );
+        if( buf.remaining( ) < numGTs * 4 ) {
+            throw new IOException( file + " is truncated, its grain directory is incomplete." );
+        }
+
+        long[] gd = new long[ (int) numGTs ];
+        for( int i = 0; i < gd.length; i++ ) {
+            gd[i] = buf.getInt( ) & 0xFFFFFFFFL;
+        }
+
+        return gd;
+    }
+
+    /**
+     * Reads a region of the file into a new buffer
+     *
+     * @return  a little endian heap buffer limited to the bytes read
+     */
+    private ByteBuffer read( long offset, int length ) throws IOException {
+
+        ByteBuffer buf = ByteBuffer.allocate( length ).order( ByteOrder.LITTLE_ENDIAN );
+        readFully( buf, offset );
+        buf.flip( );
+
+        return buf;
+    }
+
+    /**
+     * Reads from offset until the buffer is full or the file ends
+     */
+    private void readFully( ByteBuffer dst, long offset ) throws IOException {
+
+        while( dst.hasRemaining( ) ) {
+            int n = channel.read( dst, offset );
+            if( n < 0 ) break;
+            offset += n;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package segfault.raw2vmdk;
+
+/*
+ * SparseVMDKChannel.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Reads the virtual disk of a hosted sparse extent (monolithicSparse and
+ * streamOptimized VMDK files) as if it were a flat raw image.</p>
+ * <p>Grain tables and grains, inflated if the extent is compressed, are kept
+ * in a least recently used cache bounded by a byte budget, so repeated small
+ * reads of the same metadata don't read and inflate the same grain again.
+ * Unallocated grains read as zeros and take no room in the cache.<br/>
+ * The channel is read-only and its methods are synchronized, a channel
+ * shared by threads serializes their reads.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.SparseExtentReader
+ */
+public class SparseVMDKChannel implements SeekableByteChannel {
+
+    /**
+     * Default byte budget of the cache
+     */
+    public static final long DEFAULT_CACHE_BYTES = 64L << 20;
+
+    /**
+     * "KDMV", the magic number of a hosted sparse extent, little endian
+     */
+    private static final int MAGIC = 0x564d444b;
+
+    /**
+     * cache entry of a grain table that is unallocated as a whole
+     */
+    private static final long[] NO_TABLE = new long[ 0 ];
+
+    /**
+     * the sparse extent
+     */
+    private final SparseExtentReader reader;
+
+    /**
+     * size of the virtual disk in bytes
+     */
+    private final long               size;
+
+    /**
+     * bytes of a grain
+     */
+    private final int                grainBytes;
+
+    /**
+     * the byte budget of the cache
+     */
+    private final long               cacheBytes;
+
+    /**
+     * grains (byte[]) keyed by grain index and grain tables (long[]) keyed
+     * by -(table index + 1), in access order
+     */
+    private final LinkedHashMap<Long, Object> cache =
+            new LinkedHashMap<Long, Object>( 16, 0.75f, true );
+
+    /**
+     * bytes held by the cache
+     */
+    private long                     cached;
+
+    private long                     position;
+
+    private long                     hits;
+
+    private long                     misses;
+
+    private boolean                  open = true;
+
+    /**
+     * Constructor
+     *
+     * @param vmdk  the monolithicSparse or streamOptimized VMDK file
+     *
+     * @throws IOException  if it isn't a hosted sparse extent or is
+     *                      truncated
+     */
+    public SparseVMDKChannel( File vmdk ) throws IOException {
+
+        this( vmdk, DEFAULT_CACHE_BYTES );
+    }
+
+    /**
+     * Constructor
+     *
+     * @param vmdk          the monolithicSparse or streamOptimized VMDK file
+     * @param cacheBytes    the byte budget of the grain cache, 0 disables it
+     *
+     * @throws IOException  if it isn't a hosted sparse extent or is
+     *                      truncated
+     */
+    public SparseVMDKChannel( File vmdk, long cacheBytes ) throws IOException {
+
+        if( cacheBytes < 0 ) {
+            throw new IllegalArgumentException( "Negative cache size: " + cacheBytes );
+        }
+
+        this.reader     = new SparseExtentReader( vmdk );
+        this.size       = reader.size( );
+        this.grainBytes = reader.getHeader( ).grainBytes( );
+        this.cacheBytes = cacheBytes;
+    }
+
+    /**
+     * Tells whether a file is a hosted sparse extent, from its magic number
+     *
+     * @param file  the file
+     *
+     * @return  true if the file starts with "KDMV"
+     */
+    public static boolean isSparseVMDK( File file ) {
+
+        if( !file.isFile( ) ) {
+            return false;
+        }
+
+        byte[] magic = new byte[ 4 ];
+        try( InputStream in = new FileInputStream( file ) ) {
+            int n = 0;
+            while( n < magic.length ) {
+                int r = in.read( magic, n, magic.length - n );
+                if( r < 0 ) return false;
+                n += r;
+            }
+        } catch( IOException e ) {
+            return false;
+        }
+
+        return ( ( magic[0] & 0xFF ) | ( magic[1] & 0xFF ) << 8
+                | ( magic[2] & 0xFF ) << 16 | ( magic[3] & 0xFF ) << 24 ) == MAGIC;
+    }
+
+    /**
+     * Reads from the current position, which is advanced by the bytes read
+     *
+     * @return  the bytes read, -1 at the end of the disk
+     */
+    public synchronized int read( ByteBuffer dst ) throws IOException {
+
+        int n = read( dst, position );
+        if( n > 0 ) position += n;
+
+        return n;
+    }
+
+    /**
+     * Reads from a position, leaving the current position alone
+     *
+     * @param dst   receives the bytes
+     * @param pos   the byte offset in the virtual disk
+     *
+     * @return  the bytes read, -1 at the end of the disk
+     *
+     * @throws IOException  on read errors or corrupt grains
+     */
+    public synchronized int read( ByteBuffer dst, long pos ) throws IOException {
+
+        ensureOpen( );
+        if( pos >= size ) {
+            return -1;
+        }
+
+        int total = 0;
+        while( dst.hasRemaining( ) && pos < size ) {
+            long grain = pos / grainBytes;
+            int within = (int) ( pos % grainBytes );
+            int length = (int) Math.min( Math.min( dst.remaining( ),
+                    grainBytes - within ), size - pos );
+
+            byte[] bytes = grain( grain );
+            if( bytes == null ) {
+                for( int i = 0; i < length; i++ ) dst.put( (byte) 0 );
+            } else {
+                dst.put( bytes, within, length );
+            }
+
+            pos   += length;
+            total += length;
+        }
+
+        return total;
+    }
+
+    /**
+     * @throws NonWritableChannelException  always, the channel is read-only
+     */
+    public int write( ByteBuffer src ) {
+
+        throw new NonWritableChannelException( );
+    }
+
+    /**
+     * @throws NonWritableChannelException  always, the channel is read-only
+     */
+    public SeekableByteChannel truncate( long size ) {
+
+        throw new NonWritableChannelException( );
+    }
+
+    public synchronized long position( ) throws IOException {
+
+        ensureOpen( );
+        return position;
+    }
+
+    public synchronized SeekableByteChannel position( long newPosition ) throws IOException {
+
+        ensureOpen( );
+        if( newPosition < 0 ) {
+            throw new IllegalArgumentException( "Negative position: " + newPosition );
+        }
+        position = newPosition;
+
+        return this;
+    }
+
+    /**
+     * @return the size of the virtual disk in bytes
+     */
+    public long size( ) throws IOException {
+
+        ensureOpen( );
+        return size;
+    }
+
+    public synchronized boolean isOpen( ) {
+
+        return open;
+    }
+
+    /**
+     * Closes the VMDK file and drops the cache
+     */
+    public synchronized void close( ) throws IOException {
+
+        if( !open ) return;
+
+        open = false;
+        cache.clear( );
+        cached = 0;
+        reader.close( );
+    }
+
+    /**
+     * @return the reads served by the cache
+     */
+    public synchronized long getHits( ) {
+
+        return hits;
+    }
+
+    /**
+     * @return the reads of grains and grain tables from the file
+     */
+    public synchronized long getMisses( ) {
+
+        return misses;
+    }
+
+    /**
+     * Gets the bytes of a grain
+     *
+     * @return  the grain, null if it is unallocated
+     */
+    private byte[] grain( long grain ) throws IOException {
+
+        byte[] bytes = (byte[]) cache.get( grain );
+        if( bytes != null ) {
+            hits++;
+            return bytes;
+        }
+
+        int perTable = reader.getHeader( ).numGTEsPerGT;
+        long[] table = table( (int) ( grain / perTable ) );
+        long sector = table.length == 0 ? 0 : table[(int) ( grain % perTable )];
+        if( sector == 0 ) {
+            return null;
+        }
+
+        misses++;
+        bytes = new byte[ grainBytes ];
+        reader.readGrain( sector, ByteBuffer.wrap( bytes ) );
+        put( grain, bytes, bytes.length );
+
+        return bytes;
+    }
+
+    /**
+     * Gets a grain table
+     *
+     * @return  the table, empty if it is unallocated as a whole
+     */
+    private long[] table( int index ) throws IOException {
+
+        Long key = -( index + 1L );
+        long[] table = (long[]) cache.get( key );
+        if( table != null ) {
+            hits++;
+            return table;
+        }
+
+        misses++;
+        table = reader.readGrainTable( index );
+        if( table == null ) table = NO_TABLE;
+        put( key, table, 8L * table.length + 16 );
+
+        return table;
+    }
+
+    /**
+     * Caches an entry and evicts the least recently used ones over budget
+     */
+    private void put( Long key, Object value, long bytes ) {
+
+        if( bytes > cacheBytes ) {
+            return;
+        }
+
+        cache.put( key, value );
+        cached += bytes;
+
+        Iterator<Map.Entry<Long, Object>> eldest = cache.entrySet( ).iterator( );
+        while( cached > cacheBytes && eldest.hasNext( ) ) {
+            Object evicted = eldest.next( ).getValue( );
+            eldest.remove( );
+            cached -= evicted instanceof byte[] ? ( (byte[]) evicted ).length
+                    : 8L * ( (long[]) evicted ).length + 16;
+        }
+    }
+
+    private void ensureOpen( ) throws IOException {
+
+        if( !open ) {
+            throw new ClosedChannelException( );
+        }
+    }
+}
@@ -0,0 +1,532 @@
+package segfault.raw2vmdk;
+
+/*
+ * SparseVMDKWriter.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * <p>Writes a raw image as a hosted monolithicSparse VMDK.</p>
+ * <p>The raw image is streamed once with large sequential reads. Grains that
+ * are all zeros are left unallocated; the others are written, straight from
+ * the read buffer, by a writer thread while the next chunk is being read
+ * into the second buffer. The layout is: header, embedded descriptor
+ * (rendered from "vmdk-sparse.tpl"), grain directory, grain tables and then
+ * the allocated grains.<br/>
+ * Streams, i.e. decompressed images, are written in the same single pass
+ * although their size is only known at their end: the grains follow the
+ * descriptor, the grain directory and tables follow the last grain, and the
+ * header and descriptor are written last.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public class SparseVMDKWriter {
+
+    /**
+     * bytes read from the raw image at a time, a multiple of the grain size
+     */
+    static final int           CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * the template of the embedded descriptor
+     */
+    private final VMDKTemplate descriptorTpl;
+
+    /**
+     * Fills in the descriptor of an image once its size is known
+     */
+    public interface Describer {
+
+        /**
+         * Gets the descriptor template data of an image
+         *
+         * @param size  the size of the image in bytes
+         *
+         * @return  the descriptor template data in a tplVarName => value
+         *
+         * @throws IOException  if the image can't be described
+         */
+        Map<String, String> describe( long size ) throws IOException;
+    }
+
+    /**
+     * Where the grains of an image are read from
+     */
+    interface GrainSource {
+
+        /**
+         * Reads from offset until the buffer is full or the image ends
+         *
+         * @param buf       the buffer to fill from its position
+         * @param offset    the byte offset in the image
+         *
+         * @throws IOException  on read errors
+         */
+        void read( ByteBuffer buf, long offset ) throws IOException;
+    }
+
+    /**
+     * The grains of a stream, read in order, counting its bytes
+     */
+    static class StreamSource implements GrainSource {
+
+        /**
+         * the stream
+         */
+        private final InputStream in;
+
+        /**
+         * bytes are copied from the stream through this array
+         */
+        private final byte[]      chunk = new byte[ 64 * 1024 ];
+
+        /**
+         * the bytes read so far
+         */
+        private long              size;
+
+        StreamSource( InputStream in ) {
+
+            this.in = in;
+        }
+
+        public void read( ByteBuffer buf, long offset ) throws IOException {
+
+            if( offset != size ) {
+                throw new IOException( "Streams can only be read in order." );
+            }
+
+            while( buf.hasRemaining( ) ) {
+                int n = in.read( chunk, 0, Math.min( chunk.length, buf.remaining( ) ) );
+                if( n < 0 ) break;
+
+                buf.put( chunk, 0, n );
+                size += n;
+            }
+        }
+
+        /**
+         * @return  the bytes read so far, the size of the image once it ended
+         */
+        long getSize( ) {
+
+            return size;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param descriptorTpl the template of the embedded descriptor
+     */
+    public SparseVMDKWriter( VMDKTemplate descriptorTpl ) {
+
+        this.descriptorTpl = descriptorTpl;
+    }
+
+    /**
+     * Creates the sparse VMDK
+     *
+     * @param rawImage  the raw image
+     * @param tplData   the descriptor template data in a tplVarName => value
+     * @param outFile   where to write the .vmdk file
+     *
+     * @return  the number of grains written (not all zeros)
+     *
+     * @throws IOException  on read/write errors
+     */
+    public long write( File rawImage, Map<String, String> tplData, String outFile )
+            throws IOException {
+
+        try( ImageReader in = new ImageReader( rawImage ) ) {
+            return write( in, tplData, outFile );
+        }
+    }
+
+    /**
+     * Creates the sparse VMDK of an opened (possibly split) image
+     *
+     * @param in        the raw image, left open
+     * @param tplData   the descriptor template data in a tplVarName => value
+     * @param outFile   where to write the .vmdk file
+     *
+     * @return  the number of grains written (not all zeros)
+     *
+     * @throws IOException  on read/write errors
+     */
+    public long write( ImageReader in, Map<String, String> tplData, String outFile )
+            throws IOException {
+
+        return write( in, null, tplData, outFile );
+    }
+
+    /**
+     * Creates the sparse VMDK of an opened (possibly split) image, skipping
+     * the regions an allocation map shows to be all zeros without reading
+     * them
+     *
+     * @param in        the raw image, left open
+     * @param map       the allocation map of the image, null to check every
+     *                  grain
+     * @param tplData   the descriptor template data in a tplVarName => value
+     * @param outFile   where to write the .vmdk file
+     *
+     * @return  the number of grains written (not all zeros)
+     *
+     * @throws IOException  on read/write errors, or if the image is too large
+     *                      for the grain tables to address
+     */
+    public long write( ImageReader in, AllocationMap map,
+            Map<String, String> tplData, String outFile ) throws IOException {
+
+        long size = in.size( );
+        SparseExtentHeader header = layout( ( size + SparseExtentHeader.SECTOR_SIZE - 1 )
+                / SparseExtentHeader.SECTOR_SIZE );
+
+        // fail before touching the output rather than after most of the copy
+        if( header.overHead + header.numGrains( ) * header.grainSize > GrainTable.MAX_SECTOR ) {
+            throw new IOException( "Image too large for a sparse extent." );
+        }
+
+        try( FileChannel out = FileChannel.open( new File( outFile ).toPath( ),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING ) ) {
+
+            out.write( header.toBuffer( ), 0 );
+            writeDescriptor( descriptorTpl, out, header, tplData );
+
+            GrainTable gt = new GrainTable( header.numGTs( ) * header.numGTEsPerGT );
+
+            long written = copyGrains( source( in ), map, size, out, header, gt );
+
+            writeGrainDirectory( out, header, gt.toBuffer( header ) );
+            return written;
+        }
+    }
+
+    /**
+     * Creates the sparse VMDK of a stream, in a single pass
+     *
+     * @param in        the raw image, read until it ends and left open
+     * @param sizeHint  the expected size of the image in bytes, -1 if unknown
+     * @param describer fills in the descriptor once the stream ended
+     * @param outFile   where to write the .vmdk file
+     *
+     * @return  the number of grains written (not all zeros)
+     *
+     * @throws IOException  on read/write errors
+     */
+    public long write( InputStream in, long sizeHint, Describer describer,
+            String outFile ) throws IOException {
+
+        try( FileChannel out = FileChannel.open( new File( outFile ).toPath( ),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING ) ) {
+
+            // without a capacity there are no tables, the grains follow the
+            // descriptor
+            SparseExtentHeader header = layout( 0 );
+            StreamSource source = new StreamSource( in );
+            GrainTable gt = new GrainTable( sizeHint < 0 ? 0
+                    : ( sizeHint + header.grainBytes( ) - 1 ) / header.grainBytes( ) );
+
+            long written = copyGrains( source, null, -1, out, header, gt );
+
+            header.capacity = ( source.getSize( ) + SparseExtentHeader.SECTOR_SIZE - 1 )
+                    / SparseExtentHeader.SECTOR_SIZE;
+            header.gdOffset = header.overHead + written * header.grainSize;
+
+            writeGrainDirectory( out, header, gt.toBuffer( header ) );
+
+            out.write( header.toBuffer( ), 0 );
+            writeDescriptor( descriptorTpl, out, header,
+                    describer.describe( source.getSize( ) ) );
+            return written;
+        }
+    }
+
+    /**
+     * Creates an empty monolithicSparse VMDK, i.e. the delta disk of a
+     * snapshot: every grain reads through to the parent until the VM writes
+     * it. The grain tables are preallocated, as VMware expects, but left as
+     * a hole in the file so they take no space.
+     *
+     * @param capacity  the capacity in sectors, that of the parent
+     * @param tplData   the descriptor template data in a tplVarName => value,
+     *                  "parentCID" and "parentFileNameHint" link the parent
+     * @param outFile   where to write the .vmdk file, which must not exist
+     *
+     * @throws IOException  on write errors or if outFile exists, it holds
+     *                      what the VM wrote
+     */
+    public void writeDelta( long capacity, Map<String, String> tplData,
+            String outFile ) throws IOException {
+
+        try( FileChannel out = FileChannel.open( new File( outFile ).toPath( ),
+                     StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE ) ) {
+
+            SparseExtentHeader header = layout( capacity );
+
+            out.write( header.toBuffer( ), 0 );
+            writeDescriptor( descriptorTpl, out, header, tplData );
+
+            long gtStart = header.gdOffset + header.gdSectors( );
+            ByteBuffer gd = ByteBuffer.allocate( (int) ( header.gdSectors( )
+                    * SparseExtentHeader.SECTOR_SIZE ) ).order( ByteOrder.LITTLE_ENDIAN );
+            for( int i = 0; i < header.numGTs( ); i++ ) {
+                gd.putInt( i * 4, (int) ( gtStart + i * header.gtSectors( ) ) );
+            }
+            out.write( gd, header.gdOffset * SparseExtentHeader.SECTOR_SIZE );
+
+            // extend the file over the zeroed grain tables
+            out.write( ByteBuffer.allocate( 1 ),
+                    header.overHead * SparseExtentHeader.SECTOR_SIZE - 1 );
+        }
+    }
+
+    /**
+     * Lays out a monolithicSparse extent of the given capacity: header,
+     * descriptor, grain directory and grain tables, rounded up to a grain
+     *
+     * @param capacity  the capacity in sectors
+     *
+     * @return  the header
+     */
+    static SparseExtentHeader layout( long capacity ) {
+
+        SparseExtentHeader header = new SparseExtentHeader( );
+
+        header.capacity         = capacity;
+        header.descriptorOffset = 1;
+        header.descriptorSize   = SparseExtentHeader.DEFAULT_DESCRIPTOR_SIZE;
+        header.gdOffset         = header.descriptorOffset + header.descriptorSize;
+
+        long metadataEnd = header.gdOffset + header.gdSectors( )
+                + header.numGTs( ) * header.gtSectors( );
+        header.overHead = ( metadataEnd + header.grainSize - 1 )
+                / header.grainSize * header.grainSize;
+
+        return header;
+    }
+
+    /**
+     * Renders and writes the embedded descriptor, its extent is sized to the
+     * capacity of the header so that both agree on a trailing partial sector
+     */
+    static void writeDescriptor( VMDKTemplate descriptorTpl, FileChannel out,
+            SparseExtentHeader header, Map<String, String> tplData )
+            throws IOException {
+
+        Map<String, String> data = new HashMap<String, String>( tplData );
+        data.put( "numOfSectors", Long.toString( header.capacity ) );
+
+        byte[] descriptor = descriptorTpl.render( data ).getBytes( "UTF-8" );
+        long room = header.descriptorSize * SparseExtentHeader.SECTOR_SIZE;
+
+        if( descriptor.length > room ) {
+            throw new IOException( "Descriptor does not fit in "
+                    + header.descriptorSize + " sectors." );
+        }
+
+        out.write( ByteBuffer.wrap( descriptor ), header.descriptorOffset
+                * SparseExtentHeader.SECTOR_SIZE );
+    }
+
+    /**
+     * Streams the raw image and writes its non-zero grains after the
+     * metadata, filling in the grain table entries
+     *
+     * @param size  the size of the image, -1 to read until it ends
+     *
+     * @return  the number of grains written
+     */
+    private long copyGrains( GrainSource in, AllocationMap map, long size,
+            final FileChannel out, SparseExtentHeader header, GrainTable gt )
+            throws IOException {
+
+        int grainBytes = header.grainBytes( );
+        ByteBuffer[] buffers = { ByteBuffer.allocateDirect( CHUNK_SIZE ),
+                ByteBuffer.allocateDirect( CHUNK_SIZE ) };
+        @SuppressWarnings( { "unchecked", "rawtypes" } )
+        Future<Object>[] pending = new Future[ 2 ];
+
+        ExecutorService writer = Executors.newSingleThreadExecutor( );
+        long sector = header.overHead;
+        long grain = 0;
+        long written = 0;
+        int current = 0;
+
+        out.position( header.overHead * SparseExtentHeader.SECTOR_SIZE );
+
+        try {
+            for( long offset = 0; size < 0 || offset < size; offset += CHUNK_SIZE ) {
+                if( map != null && !map.isAllocated( offset, CHUNK_SIZE ) ) {
+                    // all zeros, nothing to read or write
+                    grain += ( Math.min( CHUNK_SIZE, size - offset ) + grainBytes - 1 )
+                            / grainBytes;
+                    continue;
+                }
+
+                // the writer may still be busy with this buffer
+                await( pending[current] );
+
+                ByteBuffer buf = buffers[current];
+                buf.clear( );
+                in.read( buf, offset );
+
+                // zero pad the last, partial grain
+                int data = buf.position( );
+                if( data == 0 ) break;
+
+                int end = ( data + grainBytes - 1 ) / grainBytes * grainBytes;
+                while( buf.position( ) < end ) buf.put( (byte) 0 );
+
+                final List<ByteBuffer> grains = new ArrayList<ByteBuffer>( );
+                for( int pos = 0; pos < end; pos += grainBytes, grain++ ) {
+                    if( isZero( buf, pos, grainBytes ) ) continue;
+
+                    ByteBuffer slice = buf.duplicate( );
+                    slice.limit( pos + grainBytes ).position( pos );
+                    grains.add( slice );
+
+                    gt.set( grain, sector );
+                    sector += header.grainSize;
+                    written++;
+                }
+
+                pending[current] = writer.submit( new Callable<Object>( ) {
+
+                    public Object call( ) throws IOException {
+
+                        ByteBuffer[] slices = grains.toArray( new ByteBuffer[ grains.size( ) ] );
+                        long remaining = 0;
+                        for( ByteBuffer s: slices ) remaining += s.remaining( );
+                        while( remaining > 0 ) remaining -= out.write( slices );
+                        return null;
+                    }
+                } );
+
+                current ^= 1;
+
+                // a short read is the end of the image
+                if( data < CHUNK_SIZE ) break;
+            }
+
+            await( pending[0] );
+            await( pending[1] );
+        } finally {
+            writer.shutdownNow( );
+        }
+
+        return written;
+    }
+
+    /**
+     * Writes the grain directory followed by the grain tables
+     */
+    private void writeGrainDirectory( FileChannel out, SparseExtentHeader header,
+            ByteBuffer gt ) throws IOException {
+
+        long gtStart = header.gdOffset + header.gdSectors( );
+
+        ByteBuffer gd = ByteBuffer.allocate( (int) ( header.gdSectors( )
+                * SparseExtentHeader.SECTOR_SIZE ) ).order( ByteOrder.LITTLE_ENDIAN );
+        for( int i = 0; i < header.numGTs( ); i++ ) {
+            gd.putInt( i * 4, (int) ( gtStart + i * header.gtSectors( ) ) );
+        }
+
+        out.write( gd, header.gdOffset * SparseExtentHeader.SECTOR_SIZE );
+        gt.clear( );
+        out.write( gt, gtStart * SparseExtentHeader.SECTOR_SIZE );
+    }
+
+    /**
+     * Reads the grains of an opened image
+     *
+     * @param in    the raw image, left open
+     *
+     * @return  the image as a grain source
+     */
+    static GrainSource source( final ImageReader in ) {
+
+        return new GrainSource( ) {
+
+            public void read( ByteBuffer buf, long offset ) throws IOException {
+
+                in.read( buf, offset );
+            }
+        };
+    }
+
+    /**
+     * Checks if a range of a buffer is all zeros, eight bytes at a time
+     *
+     * @param buf       the buffer
+     * @param from      absolute index of the range
+     * @param length    length of the range, a multiple of 8
+     *
+     * @return  true if all bytes are zero
+     */
+    static boolean isZero( ByteBuffer buf, int from, int length ) {
+
+        for( int i = from; i < from + length; i += 8 ) {
+            if( buf.getLong( i ) != 0 ) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits for a pending write, rethrowing its failure
+     */
+    static void await( Future<?> pending ) throws IOException {
+
+        if( pending == null ) return;
+
+        try {
+            pending.get( );
+        } catch( InterruptedException e ) {
+            Thread.currentThread( ).interrupt( );
+            throw new IOException( "Interrupted while writing." );
+        } catch( ExecutionException e ) {
+            if( e.getCause( ) instanceof IOException ) {
+                throw (IOException) e.getCause( );
+            }
+            throw new IOException( e.getCause( ) );
+        }
+    }
+}
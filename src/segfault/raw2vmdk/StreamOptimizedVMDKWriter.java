@@ -0,0 +1,542 @@
+package segfault.raw2vmdk;
+
+/*
+ * StreamOptimizedVMDKWriter.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+
+import cert.forensics.mbr.ImageReader;
+
+/**
+ * <p>Writes a raw image as a streamOptimized (compressed) VMDK.</p>
+ * <p>Reading, compressing and writing overlap: a reader thread cuts the image
+ * into batches of grains, each batch is deflated on a shared pool of
+ * compression threads and the calling thread writes the compressed grain
+ * markers in image order as the batches complete. All-zero grains are left
+ * out. The grain tables, the grain directory, the footer and the
+ * end-of-stream marker follow the last grain, as the format requires.<br/>
+ * Streams, i.e. decompressed images, are written the same way until they
+ * end; their header and descriptor are rewritten once the capacity is
+ * known.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public class StreamOptimizedVMDKWriter {
+
+    /**
+     * grains compressed by a single task
+     */
+    static final int              GRAINS_PER_BATCH = 16;
+
+    static final int              MARKER_EOS       = 0;
+
+    static final int              MARKER_GT        = 1;
+
+    static final int              MARKER_GD        = 2;
+
+    static final int              MARKER_FOOTER    = 3;
+
+    /**
+     * the template of the embedded descriptor
+     */
+    private final VMDKTemplate    descriptorTpl;
+
+    /**
+     * the compression threads, shared by concurrent conversions
+     */
+    private final ExecutorService compressors;
+
+    /**
+     * the number of compression threads
+     */
+    private final int             threads;
+
+    /**
+     * the per-thread deflater, reset between grains
+     */
+    private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>( ) {
+
+        protected Deflater initialValue( ) {
+
+            return new Deflater( Deflater.DEFAULT_COMPRESSION );
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param descriptorTpl the template of the embedded descriptor
+     * @param threads       the number of compression threads
+     */
+    public StreamOptimizedVMDKWriter( VMDKTemplate descriptorTpl, int threads ) {
+
+        this.descriptorTpl = descriptorTpl;
+        this.threads       = threads;
+        this.compressors   = Executors.newFixedThreadPool( threads, new ThreadFactory( ) {
+
+            public Thread newThread( Runnable r ) {
+
+                Thread t = new Thread( r, "vmdk-deflate" );
+                t.setDaemon( true );
+                return t;
+            }
+        } );
+    }
+
+    /**
+     * A batch of grains after compression
+     */
+    static class CompressedBatch {
+
+        /**
+         * the grain markers, each padded to a whole sector
+         */
+        final ByteBuffer markers;
+
+        /**
+         * the grains of the batch that were written, in order
+         */
+        final long[]     grains;
+
+        /**
+         * the sector offset of each written grain's marker within markers
+         */
+        final long[]     offsets;
+
+        /**
+         * how many grains were written
+         */
+        final int        count;
+
+        CompressedBatch( ByteBuffer markers, long[] grains, long[] offsets, int count ) {
+
+            this.markers = markers;
+            this.grains  = grains;
+            this.offsets = offsets;
+            this.count   = count;
+        }
+    }
+
+    /**
+     * Creates the streamOptimized VMDK
+     *
+     * @param rawImage  the raw image
+     * @param tplData   the descriptor template data in a tplVarName => value
+     * @param outFile   where to write the .vmdk file
+     *
+     * @return  the number of grains written (not all zeros)
+     *
+     * @throws IOException  on read/write errors
+     */
+    public long write( File rawImage, Map<String, String> tplData, String outFile )
+            throws IOException {
+
+        try( ImageReader in = new ImageReader( rawImage ) ) {
+            return write( in, tplData, outFile );
+        }
+    }
+
+    /**
+     * Creates the streamOptimized VMDK of an opened (possibly split) image
+     *
+     * @param in        the raw image, left open
+     * @param tplData   the descriptor template data in a tplVarName => value
+     * @param outFile   where to write the .vmdk file
+     *
+     * @return  the number of grains written (not all zeros)
+     *
+     * @throws IOException  on read/write errors
+     */
+    public long write( ImageReader in, Map<String, String> tplData, String outFile )
+            throws IOException {
+
+        return write( in, null, tplData, outFile );
+    }
+
+    /**
+     * Creates the streamOptimized VMDK of an opened (possibly split) image, skipping
+     * the regions an allocation map shows to be all zeros without reading
+     * them
+     *
+     * @param in        the raw image, left open
+     * @param map       the allocation map of the image, null to check every
+     *                  grain
+     * @param tplData   the descriptor template data in a tplVarName => value
+     * @param outFile   where to write the .vmdk file
+     *
+     * @return  the number of grains written (not all zeros)
+     *
+     * @throws IOException  on read/write errors
+     */
+    public long write( ImageReader in, AllocationMap map,
+            Map<String, String> tplData, String outFile ) throws IOException {
+
+        try( FileChannel out = FileChannel.open( new File( outFile ).toPath( ),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING ) ) {
+
+            long size = in.size( );
+            SparseExtentHeader header = layout( ( size + SparseExtentHeader.SECTOR_SIZE - 1 )
+                    / SparseExtentHeader.SECTOR_SIZE );
+
+            out.write( header.toBuffer( ), 0 );
+            SparseVMDKWriter.writeDescriptor( descriptorTpl, out, header, tplData );
+
+            GrainTable gt = new GrainTable( header.numGTs( ) * header.numGTEsPerGT );
+            long written = copyGrains( SparseVMDKWriter.source( in ), map,
+                    header.numGrains( ), out, header, gt );
+
+            writeMetadata( out, header, gt.toBuffer( header ),
+                    out.position( ) / SparseExtentHeader.SECTOR_SIZE );
+            return written;
+        }
+    }
+
+    /**
+     * Creates the streamOptimized VMDK of a stream, in a single pass
+     *
+     * @param in        the raw image, read until it ends and left open
+     * @param sizeHint  the expected size of the image in bytes, -1 if unknown
+     * @param describer fills in the descriptor once the stream ended
+     * @param outFile   where to write the .vmdk file
+     *
+     * @return  the number of grains written (not all zeros)
+     *
+     * @throws IOException  on read/write errors
+     */
+    public long write( InputStream in, long sizeHint,
+            SparseVMDKWriter.Describer describer, String outFile ) throws IOException {
+
+        try( FileChannel out = FileChannel.open( new File( outFile ).toPath( ),
+                     StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING ) ) {
+
+            SparseExtentHeader header = layout( 0 );
+            SparseVMDKWriter.StreamSource source = new SparseVMDKWriter.StreamSource( in );
+            GrainTable gt = new GrainTable( sizeHint < 0 ? 0
+                    : ( sizeHint + header.grainBytes( ) - 1 ) / header.grainBytes( ) );
+
+            long written = copyGrains( source, null, -1, out, header, gt );
+
+            header.capacity = ( source.getSize( ) + SparseExtentHeader.SECTOR_SIZE - 1 )
+                    / SparseExtentHeader.SECTOR_SIZE;
+            writeMetadata( out, header, gt.toBuffer( header ),
+                    out.position( ) / SparseExtentHeader.SECTOR_SIZE );
+
+            out.write( header.toBuffer( ), 0 );
+            SparseVMDKWriter.writeDescriptor( descriptorTpl, out, header,
+                    describer.describe( source.getSize( ) ) );
+            return written;
+        }
+    }
+
+    /**
+     * Reads, compresses and writes the non-zero grains of an image after
+     * the descriptor, filling in the grain table entries
+     *
+     * @param numGrains the number of grains of the image, -1 to read until
+     *                  it ends
+     *
+     * @return  the number of grains written
+     */
+    private long copyGrains( final SparseVMDKWriter.GrainSource in,
+            final AllocationMap map, final long numGrains, FileChannel out,
+            final SparseExtentHeader header, GrainTable gt ) throws IOException {
+
+        final int grainBytes = header.grainBytes( );
+
+        // compressed batches, in image order; bounded so that reading
+        // can't run away from writing
+        final BlockingQueue<Future<CompressedBatch>> queue =
+                new ArrayBlockingQueue<Future<CompressedBatch>>( threads * 2 );
+        final Future<CompressedBatch> end = new FutureTask<CompressedBatch>(
+                new Callable<CompressedBatch>( ) {
+
+                    public CompressedBatch call( ) {
+
+                        return null;
+                    }
+                } );
+        final Throwable[] readError = new Throwable[ 1 ];
+
+        // set when the writer gives up; the reader is never interrupted as
+        // that would close the channels of the image it is reading
+        final AtomicBoolean cancelled = new AtomicBoolean( );
+
+        Thread reader = new Thread( new Runnable( ) {
+
+            public void run( ) {
+
+                try {
+                    for( long grain = 0; ( numGrains < 0 || grain < numGrains )
+                            && !cancelled.get( ); grain += GRAINS_PER_BATCH ) {
+                        int count = numGrains < 0 ? GRAINS_PER_BATCH
+                                : (int) Math.min( GRAINS_PER_BATCH, numGrains - grain );
+                        if( map != null && !map.isAllocated( grain * grainBytes,
+                                (long) count * grainBytes ) ) {
+                            continue; // all zeros, nothing to compress
+                        }
+
+                        byte[] batch = new byte[ count * grainBytes ];
+                        ByteBuffer buf = ByteBuffer.wrap( batch );
+                        in.read( buf, grain * grainBytes );
+                        if( buf.position( ) == 0 ) break;
+
+                        // the last, partial grain is zero padded
+                        int read = ( buf.position( ) + grainBytes - 1 ) / grainBytes;
+                        if( !enqueue( queue, compressors.submit( compressTask( batch,
+                                grain, read, header ) ), cancelled ) ) break;
+
+                        // a short read is the end of the image
+                        if( buf.hasRemaining( ) ) break;
+                    }
+                } catch( Throwable t ) {
+                    readError[0] = t;
+                } finally {
+                    // the writer waits for the end whatever happened
+                    try {
+                        enqueue( queue, end, cancelled );
+                    } catch( InterruptedException e ) {
+                        Thread.currentThread( ).interrupt( );
+                    }
+                }
+            }
+        }, "vmdk-reader" );
+
+        long sector = header.overHead;
+        long written = 0;
+        out.position( sector * SparseExtentHeader.SECTOR_SIZE );
+
+        reader.start( );
+        try {
+            while( true ) {
+                Future<CompressedBatch> next = queue.take( );
+                if( next == end ) break;
+
+                SparseVMDKWriter.await( next );
+                CompressedBatch batch = next.get( );
+
+                for( int i = 0; i < batch.count; i++ ) {
+                    gt.set( batch.grains[i], sector + batch.offsets[i] );
+                }
+                written += batch.count;
+
+                sector += batch.markers.remaining( ) / SparseExtentHeader.SECTOR_SIZE;
+                while( batch.markers.hasRemaining( ) ) out.write( batch.markers );
+            }
+        } catch( Exception e ) {
+            // the reader stops after its current batch
+            cancelled.set( true );
+            try {
+                reader.join( );
+            } catch( InterruptedException ie ) {
+                Thread.currentThread( ).interrupt( );
+            }
+
+            if( e instanceof IOException ) throw (IOException) e;
+            throw new IOException( e );
+        }
+
+        if( readError[0] instanceof IOException ) throw (IOException) readError[0];
+        if( readError[0] != null ) throw new IOException( readError[0] );
+
+        return written;
+    }
+
+    /**
+     * Queues a batch for the writer, waiting for room unless the writer
+     * gave up
+     *
+     * @return  false if the writer gave up
+     */
+    private static boolean enqueue( BlockingQueue<Future<CompressedBatch>> queue,
+            Future<CompressedBatch> batch, AtomicBoolean cancelled )
+            throws InterruptedException {
+
+        while( !queue.offer( batch, 100, TimeUnit.MILLISECONDS ) ) {
+            if( cancelled.get( ) ) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Lays out the header of a streamOptimized extent; grains start at the
+     * first grain boundary after the embedded descriptor
+     *
+     * @param capacity  the capacity in sectors
+     *
+     * @return  the header
+     */
+    static SparseExtentHeader layout( long capacity ) {
+
+        SparseExtentHeader header = new SparseExtentHeader( );
+
+        header.version           = 3;
+        header.flags             = SparseExtentHeader.FLAG_NEWLINE_TEST
+                | SparseExtentHeader.FLAG_COMPRESSED | SparseExtentHeader.FLAG_MARKERS;
+        header.compressAlgorithm = SparseExtentHeader.COMPRESSION_DEFLATE;
+        header.capacity          = capacity;
+        header.descriptorOffset  = 1;
+        header.descriptorSize    = SparseExtentHeader.DEFAULT_DESCRIPTOR_SIZE;
+        header.gdOffset          = SparseExtentHeader.GD_AT_END;
+        header.overHead          = ( header.descriptorOffset + header.descriptorSize
+                + header.grainSize - 1 ) / header.grainSize * header.grainSize;
+
+        return header;
+    }
+
+    /**
+     * Creates the task compressing a batch of grains into grain markers
+     */
+    private static Callable<CompressedBatch> compressTask( final byte[] batch,
+            final long firstGrain, final int count, final SparseExtentHeader header ) {
+
+        return new Callable<CompressedBatch>( ) {
+
+            public CompressedBatch call( ) {
+
+                int grainBytes = header.grainBytes( );
+                Deflater deflater = DEFLATER.get( );
+                ByteBuffer wrapped = ByteBuffer.wrap( batch );
+
+                ByteBuffer markers = ByteBuffer.allocate( count * ( grainBytes + grainBytes / 8
+                        + 2 * SparseExtentHeader.SECTOR_SIZE ) ).order( ByteOrder.LITTLE_ENDIAN );
+                long[] grains = new long[ count ];
+                long[] offsets = new long[ count ];
+                byte[] compressed = new byte[ grainBytes + grainBytes / 8 + 64 ];
+                int written = 0;
+
+                for( int i = 0; i < count; i++ ) {
+                    int from = i * grainBytes;
+                    if( SparseVMDKWriter.isZero( wrapped, from, grainBytes ) ) continue;
+
+                    deflater.reset( );
+                    deflater.setInput( batch, from, grainBytes );
+                    deflater.finish( );
+                    int length = 0;
+                    while( !deflater.finished( ) ) {
+                        length += deflater.deflate( compressed, length, compressed.length - length );
+                    }
+
+                    grains[written]  = firstGrain + i;
+                    offsets[written] = markers.position( ) / SparseExtentHeader.SECTOR_SIZE;
+                    written++;
+
+                    // grain marker: lba, size, data, padded to a sector
+                    markers.putLong( ( firstGrain + i ) * header.grainSize );
+                    markers.putInt( length );
+                    markers.put( compressed, 0, length );
+                    pad( markers );
+                }
+
+                markers.flip( );
+                return new CompressedBatch( markers, grains, offsets, written );
+            }
+        };
+    }
+
+    /**
+     * Writes the grain tables, the grain directory, the footer and the
+     * end-of-stream marker after the last grain
+     */
+    private static void writeMetadata( FileChannel out, SparseExtentHeader header,
+            ByteBuffer gt, long sector ) throws IOException {
+
+        long gtSectors = header.gtSectors( );
+        int gtBytes = (int) ( gtSectors * SparseExtentHeader.SECTOR_SIZE );
+
+        ByteBuffer gd = ByteBuffer.allocate( (int) ( header.gdSectors( )
+                * SparseExtentHeader.SECTOR_SIZE ) ).order( ByteOrder.LITTLE_ENDIAN );
+
+        for( int i = 0; i < header.numGTs( ); i++ ) {
+            ByteBuffer table = gt.duplicate( );
+            table.limit( ( i + 1 ) * gtBytes ).position( i * gtBytes );
+
+            // tables of unallocated grains are left out
+            if( SparseVMDKWriter.isZero( table, i * gtBytes, gtBytes ) ) continue;
+
+            sector = writeMarker( out, sector, gtSectors, MARKER_GT );
+            gd.putInt( i * 4, (int) sector );
+            out.write( table );
+            sector += gtSectors;
+        }
+
+        sector = writeMarker( out, sector, header.gdSectors( ), MARKER_GD );
+        long gdOffset = sector;
+        out.write( gd );
+        sector += header.gdSectors( );
+
+        // the footer is a copy of the header pointing at the grain directory
+        sector = writeMarker( out, sector, 1, MARKER_FOOTER );
+        long savedOffset = header.gdOffset;
+        header.gdOffset = gdOffset;
+        out.write( header.toBuffer( ) );
+        header.gdOffset = savedOffset;
+        sector++;
+
+        writeMarker( out, sector, 0, MARKER_EOS );
+    }
+
+    /**
+     * Writes a metadata marker at the current position
+     *
+     * @return  the sector following the marker
+     */
+    private static long writeMarker( FileChannel out, long sector, long numSectors,
+            int type ) throws IOException {
+
+        ByteBuffer marker = ByteBuffer.allocate( SparseExtentHeader.SECTOR_SIZE )
+                .order( ByteOrder.LITTLE_ENDIAN );
+        marker.putLong( numSectors );
+        marker.putInt( 0 );
+        marker.putInt( type );
+        marker.clear( );
+
+        out.write( marker );
+        return sector + 1;
+    }
+
+    /**
+     * Zero pads a buffer to the next sector boundary
+     */
+    private static void pad( ByteBuffer buf ) {
+
+        while( buf.position( ) % SparseExtentHeader.SECTOR_SIZE != 0 ) buf.put( (byte) 0 );
+    }
+}
@@ -0,0 +1,311 @@
+package segfault.raw2vmdk;
+
+/*
+ * VHDFooter.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * <p>The 512 byte footer of a fixed VHD.</p>
+ * <p>A fixed VHD is the raw disk followed by this footer, laid out as in the
+ * Virtual Hard Disk Image Format Specification, all values big endian. The
+ * CHS geometry is derived from the size with the algorithm of the
+ * specification, which differs from the one of VMDK descriptors.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ */
+public class VHDFooter {
+
+    /**
+     * size of the footer in bytes
+     */
+    public static final int  SIZE           = 512;
+
+    /**
+     * the disk type of a fixed VHD
+     */
+    public static final int  TYPE_FIXED     = 2;
+
+    private static final Charset ASCII      = Charset.forName( "US-ASCII" );
+
+    private static final byte[] COOKIE      = "conectix".getBytes( ASCII );
+
+    /**
+     * the reserved feature bit, always set
+     */
+    private static final int  FEATURES      = 2;
+
+    private static final int  FORMAT_VERSION = 0x00010000;
+
+    /**
+     * data offset of fixed disks, which have no dynamic header
+     */
+    private static final long NO_DATA_OFFSET = -1L;
+
+    /**
+     * "r2vm", the creator application
+     */
+    private static final byte[] CREATOR     = "r2vm".getBytes( ASCII );
+
+    /**
+     * 0.1, major and minor in 16 bits each
+     */
+    private static final int  CREATOR_VERSION = 0x00000001;
+
+    /**
+     * "Wi2k", the creator host OS Windows tools expect
+     */
+    private static final byte[] CREATOR_HOST = "Wi2k".getBytes( ASCII );
+
+    /**
+     * 2000-01-01 00:00:00 UTC, the epoch of VHD timestamps
+     */
+    private static final long EPOCH_MILLIS  = 946684800000L;
+
+    /**
+     * the largest number of sectors the geometry can address
+     */
+    private static final long MAX_CHS_SECTORS = 65535L * 16 * 255;
+
+    long   timestamp;
+
+    long   originalSize;
+
+    long   currentSize;
+
+    int    cylinders;
+
+    int    heads;
+
+    int    sectorsPerTrack;
+
+    int    diskType;
+
+    UUID   uniqueId;
+
+    /**
+     * Creates the footer of a fixed disk with a new unique id
+     *
+     * @param size  the size of the disk in bytes, a multiple of 512
+     *
+     * @return  the footer
+     */
+    public static VHDFooter fixed( long size ) {
+
+        if( size <= 0 || size % SIZE != 0 ) {
+            throw new IllegalArgumentException( "A fixed VHD holds whole sectors, not "
+                    + size + " bytes" );
+        }
+
+        VHDFooter f = new VHDFooter( );
+
+        f.timestamp    = ( System.currentTimeMillis( ) - EPOCH_MILLIS ) / 1000;
+        f.originalSize = size;
+        f.currentSize  = size;
+        f.diskType     = TYPE_FIXED;
+        f.uniqueId     = UUID.randomUUID( );
+
+        // the geometry algorithm of the specification
+        long totalSectors = Math.min( size / SIZE, MAX_CHS_SECTORS );
+        long cylinderTimesHeads;
+
+        if( totalSectors >= 65535L * 16 * 63 ) {
+            f.sectorsPerTrack = 255;
+            f.heads = 16;
+            cylinderTimesHeads = totalSectors / f.sectorsPerTrack;
+        } else {
+            f.sectorsPerTrack = 17;
+            cylinderTimesHeads = totalSectors / f.sectorsPerTrack;
+            f.heads = (int) Math.max( 4, ( cylinderTimesHeads + 1023 ) / 1024 );
+
+            if( cylinderTimesHeads >= f.heads * 1024L || f.heads > 16 ) {
+                f.sectorsPerTrack = 31;
+                f.heads = 16;
+                cylinderTimesHeads = totalSectors / f.sectorsPerTrack;
+            }
+            if( cylinderTimesHeads >= f.heads * 1024L ) {
+                f.sectorsPerTrack = 63;
+                f.heads = 16;
+                cylinderTimesHeads = totalSectors / f.sectorsPerTrack;
+            }
+        }
+        f.cylinders = (int) ( cylinderTimesHeads / f.heads );
+
+        return f;
+    }
+
+    /**
+     * Parses a footer
+     *
+     * @param sector    the 512 bytes of the footer
+     *
+     * @return  the footer
+     *
+     * @throws IOException  if the bytes aren't a footer or its checksum is
+     *                      wrong
+     */
+    public static VHDFooter parse( ByteBuffer sector ) throws IOException {
+
+        ByteBuffer buf = sector.duplicate( );
+        if( buf.remaining( ) < SIZE || !isFooter( buf ) ) {
+            throw new IOException( "Not a VHD footer." );
+        }
+
+        int base = buf.position( );
+        if( buf.getInt( base + 64 ) != checksum( buf ) ) {
+            throw new IOException( "The checksum of the VHD footer is wrong." );
+        }
+
+        VHDFooter f = new VHDFooter( );
+
+        f.timestamp       = buf.getInt( base + 24 ) & 0xFFFFFFFFL;
+        f.originalSize    = buf.getLong( base + 40 );
+        f.currentSize     = buf.getLong( base + 48 );
+        f.cylinders       = buf.getShort( base + 56 ) & 0xFFFF;
+        f.heads           = buf.get( base + 58 ) & 0xFF;
+        f.sectorsPerTrack = buf.get( base + 59 ) & 0xFF;
+        f.diskType        = buf.getInt( base + 60 );
+        f.uniqueId        = new UUID( buf.getLong( base + 68 ), buf.getLong( base + 76 ) );
+
+        return f;
+    }
+
+    /**
+     * Checks if a sector starts with the cookie of a footer
+     *
+     * @param sector    the sector, from its position
+     *
+     * @return  true if it starts with "conectix"
+     */
+    public static boolean isFooter( ByteBuffer sector ) {
+
+        if( sector.remaining( ) < COOKIE.length ) {
+            return false;
+        }
+
+        for( int i = 0; i < COOKIE.length; i++ ) {
+            if( sector.get( sector.position( ) + i ) != COOKIE[i] ) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Renders the footer with its checksum
+     *
+     * @return  a 512 byte buffer ready to be written
+     */
+    public ByteBuffer toBuffer( ) {
+
+        ByteBuffer buf = ByteBuffer.allocate( SIZE );
+
+        buf.put( COOKIE );
+        buf.putInt( FEATURES );
+        buf.putInt( FORMAT_VERSION );
+        buf.putLong( NO_DATA_OFFSET );
+        buf.putInt( (int) timestamp );
+        buf.put( CREATOR );
+        buf.putInt( CREATOR_VERSION );
+        buf.put( CREATOR_HOST );
+        buf.putLong( originalSize );
+        buf.putLong( currentSize );
+        buf.putShort( (short) cylinders );
+        buf.put( (byte) heads );
+        buf.put( (byte) sectorsPerTrack );
+        buf.putInt( diskType );
+        buf.putInt( 0 ); // checksum, below
+        buf.putLong( uniqueId.getMostSignificantBits( ) );
+        buf.putLong( uniqueId.getLeastSignificantBits( ) );
+        buf.put( (byte) 0 ); // saved state
+
+        buf.clear( );
+        buf.putInt( 64, checksum( buf ) );
+
+        return buf;
+    }
+
+    /**
+     * @return the size of the disk in bytes
+     */
+    public long getCurrentSize( ) {
+
+        return currentSize;
+    }
+
+    /**
+     * @return the number of cylinders
+     */
+    public int getCylinders( ) {
+
+        return cylinders;
+    }
+
+    /**
+     * @return the number of heads
+     */
+    public int getHeads( ) {
+
+        return heads;
+    }
+
+    /**
+     * @return the number of sectors per track
+     */
+    public int getSectorsPerTrack( ) {
+
+        return sectorsPerTrack;
+    }
+
+    /**
+     * @return FIXED, DYNAMIC or DIFFERENCING
+     */
+    public int getDiskType( ) {
+
+        return diskType;
+    }
+
+    /**
+     * @return the unique id of the disk
+     */
+    public UUID getUniqueId( ) {
+
+        return uniqueId;
+    }
+
+    /**
+     * The one's complement of the sum of the bytes of the footer, the
+     * checksum field left out
+     */
+    private static int checksum( ByteBuffer footer ) {
+
+        int base = footer.position( );
+        int sum = 0;
+
+        for( int i = 0; i < SIZE; i++ ) {
+            if( i < 64 || i >= 68 ) sum += footer.get( base + i ) & 0xFF;
+        }
+
+        return ~sum;
+    }
+}
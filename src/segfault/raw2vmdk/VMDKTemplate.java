@@ -1,11 +1,19 @@
 package segfault.raw2vmdk;
 
 import java.io.BufferedReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /*
  * VMDKTemplate.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
@@ -29,13 +37,53 @@ import java.util.Iterator;
 /**
  * <p>Template manager.</p>
  * <p>Loads the default VMDK template file, evaluates it and
- * creates new VMDK file based on {@link #write(HashMap, String)} parameters.</p>
+ * creates new VMDK file based on {@link #write(Map, String)} parameters.</p>
+ * <p>The template is parsed once into literal and "[variable]" segments and
+ * cached per resource, so rendering is a single pass into a per-thread
+ * buffer.</p>
+ * <p>The extent lines are the "[extents]" variable, see
+ * {@link #write(Map, List, String)}; templates given only "numOfSectors" and
+ * "imgLocation" get a single FLAT extent as before.<br/>
+ * Values under "ddb." keys the template doesn't reference are appended to
+ * the Disk Data Base as <code>ddb.key = "value"</code> lines, sorted by
+ * key.</p>
+ * <p>Every render gets a freshly generated "CID", "longContentID" and
+ * "uuid" unless tplData holds them, and "parentCID" defaults to ffffffff (no
+ * parent); a "parentFileNameHint" adds the line naming the parent of a
+ * delta disk.</p>
  *
  * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
- * @version 0.1.3.1
+ * @version 0.1.4
  */
 public class VMDKTemplate {
 
+    /**
+     * Compiled templates by resource location, shared by all instances
+     */
+    private static final ConcurrentHashMap<String, String[]> COMPILED =
+            new ConcurrentHashMap<String, String[]>( );
+
+    /**
+     * Per-thread render buffer, reused between renders
+     */
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>( ) {
+
+        protected StringBuilder initialValue( ) {
+
+            return new StringBuilder( 1024 );
+        }
+    };
+
+    /**
+     * CID of a disk without a parent
+     */
+    public static final String NO_PARENT_CID = "ffffffff";
+
+    /**
+     * Source of the generated identifiers
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     /**
      *  The VMDK template file
      */
@@ -43,7 +91,7 @@ public class VMDKTemplate {
 
     /**
      * Constructor <br/>
-     * Initialises {@link #tplFile} using the tplLocation parameter
+     * Initialises {@link #tplResourceLocation} using the tplLocation parameter
      *
      * @param tplLocation the location of the template file
      */
@@ -61,39 +109,298 @@ public class VMDKTemplate {
      * @param outFile
      *            where to write the .vmdk file
      */
-    public void write(HashMap<String, String> tplData, String outFile) throws IOException
+    public void write(Map<String, String> tplData, String outFile) throws IOException
+    {
+
+        StringBuilder vmdkText = renderToBuffer(tplData);
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(outFile), "UTF-8");
+        try {
+            writer.append(vmdkText);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Creates new VMDK file "outFile" describing the given extents
+     *
+     * @param tplData
+     *            the template data data in a tplVarName => value
+     * @param extents
+     *            the extents of the disk, in order
+     * @param outFile
+     *            where to write the .vmdk file
+     */
+    public void write(Map<String, String> tplData, List<Extent> extents, String outFile) throws IOException
+    {
+
+        Map<String, String> data = new HashMap<String, String>(tplData);
+        data.put("extents", Extent.toDescriptor(extents));
+
+        write(data, outFile);
+    }
+
+    /**
+     * Evaluates the template with the values of tplData
+     *
+     * @param tplData
+     *            the template data data in a tplVarName => value
+     * @return the evaluated template
+     */
+    public String render(Map<String, String> tplData) throws IOException
+    {
+
+        return renderToBuffer(tplData).toString();
+    }
+
+    /**
+     * Evaluates the template into the buffer of the calling thread. <br/>
+     * Variables without a value in tplData are left untouched.
+     *
+     * @param tplData
+     *            the template data data in a tplVarName => value
+     * @return the buffer holding the evaluated template
+     */
+    private StringBuilder renderToBuffer(Map<String, String> tplData) throws IOException
+    {
+
+        String[] segments = compiled();
+        tplData = withIdentifiers(tplData);
+
+        StringBuilder buf = BUFFER.get();
+        buf.setLength(0);
+
+        // even segments are literals, odd segments are variable names
+        for (int i = 0; i < segments.length; i++) {
+            if ((i & 1) == 0) {
+                buf.append(segments[i]);
+                continue;
+            }
+
+            String val = value(tplData, segments[i]);
+            if (val != null) {
+                buf.append(val);
+            } else {
+                buf.append('[').append(segments[i]).append(']');
+            }
+        }
+
+        appendDDB(buf, segments, tplData);
+
+        return buf;
+    }
+
+    /**
+     * Appends the "ddb." entries of tplData the template doesn't reference
+     */
+    private static void appendDDB(StringBuilder buf, String[] segments, Map<String, String> tplData)
+    {
+
+        TreeMap<String, String> extra = null;
+
+        for (Map.Entry<String, String> entry : tplData.entrySet()) {
+            if (entry.getKey().startsWith("ddb.") && entry.getValue() != null) {
+                if (extra == null) {
+                    extra = new TreeMap<String, String>();
+                }
+                extra.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (extra == null) {
+            return;
+        }
+
+        for (int i = 1; i < segments.length; i += 2) {
+            extra.remove(segments[i]);
+        }
+
+        String eol = System.getProperty("line.separator");
+        for (Map.Entry<String, String> entry : extra.entrySet()) {
+            buf.append(entry.getKey()).append(" = \"").append(entry.getValue()).append('"').append(eol);
+        }
+    }
+
+    /**
+     * Generates a content ID, any 32 bit value but the ones VMware reserves
+     *
+     * @return the CID as 8 hex digits
+     */
+    public static String newCID()
     {
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(this.getClass().getResourceAsStream(tplResourceLocation)));
+        int cid;
+        do {
+            cid = RANDOM.nextInt();
+        } while (cid == 0xffffffff || cid == 0xfffffffe);
 
-        String line = "", tplText = "";
+        return String.format("%08x", cid);
+    }
 
-        // read the template file and store it in vmdkTpl
-        while ((line = reader.readLine()) != null) {
-            tplText += line + System.getProperty("line.separator");
+    /**
+     * Generates a disk UUID
+     *
+     * @return the UUID as VMware writes it, i.e. "60 00 c2 91 8e 73 27 62-43 58 3b f8 05 ae 2e a0"
+     */
+    public static String newUUID()
+    {
+
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+
+        StringBuilder sb = new StringBuilder(47);
+        for (int i = 0; i < bytes.length; i++) {
+            if (i > 0) {
+                sb.append(i == 8 ? '-' : ' ');
+            }
+            sb.append(String.format("%02x", bytes[i] & 0xff));
         }
 
-        // System.out.println( tplText );
-        reader.close();
+        return sb.toString();
+    }
+
+    /**
+     * Fills in the identifiers tplData doesn't hold
+     *
+     * @return tplData or a copy of it holding all identifiers
+     */
+    private static Map<String, String> withIdentifiers(Map<String, String> tplData)
+    {
 
-        Iterator<String> it = tplData.keySet().iterator();
-        String vmdkText = tplText;
+        if (tplData.containsKey("CID") && tplData.containsKey("parentCID")
+                && tplData.containsKey("longContentID") && tplData.containsKey("uuid")) {
+            return tplData;
+        }
 
-        // replace template variables with actual values
-        while (it.hasNext()) {
-            String key = (String) it.next();
-            String val = tplData.get(key);
+        Map<String, String> data = new HashMap<String, String>(tplData);
+        if (!data.containsKey("CID")) {
+            data.put("CID", newCID());
+        }
+        if (!data.containsKey("parentCID")) {
+            data.put("parentCID", NO_PARENT_CID);
+        }
+        if (!data.containsKey("longContentID")) {
+            // VMware ends the long content ID with the CID
+            data.put("longContentID", newCID() + newCID() + newCID() + data.get("CID"));
+        }
+        if (!data.containsKey("uuid")) {
+            data.put("uuid", newUUID());
+        }
 
-            // System.out.println( key + "::" + val );
+        return data;
+    }
 
-            vmdkText = vmdkText.replaceAll("\\[" + key + "\\]", val);
+    /**
+     * Looks up a variable, deriving a missing "extents" from the single
+     * image variables
+     *
+     * @return the value or null if there is none
+     */
+    private static String value(Map<String, String> tplData, String name)
+    {
 
+        String val = tplData.get(name);
+        if (name.equals("parentFileNameHint")) {
+            // a line of its own, only delta disks have a parent
+            return val == null ? "" : System.getProperty("line.separator")
+                    + "parentFileNameHint=\"" + val + "\"";
         }
+        if (val == null && name.equals("extents") && tplData.containsKey("imgLocation")
+                && tplData.containsKey("numOfSectors")) {
+            val = Extent.flat(Long.parseLong(tplData.get("numOfSectors")),
+                    tplData.get("imgLocation")).toString();
+        }
+
+        return val;
+    }
 
-        // System.out.println( "vmdkText: " + vmdkText );
+    /**
+     * Returns the compiled template, loading and compiling it on first use
+     *
+     * @return the template segments
+     */
+    private String[] compiled() throws IOException
+    {
+
+        String[] segments = COMPILED.get(tplResourceLocation);
+        if (segments == null) {
+            segments = compile(load());
+            String[] raced = COMPILED.putIfAbsent(tplResourceLocation, segments);
+            if (raced != null) {
+                segments = raced;
+            }
+        }
+
+        return segments;
+    }
+
+    /**
+     * Reads the template resource
+     *
+     * @return the template text
+     */
+    private String load() throws IOException
+    {
+
+        InputStream in = this.getClass().getResourceAsStream(tplResourceLocation);
+        if (in == null) {
+            throw new IOException("Template file " + tplResourceLocation + " not found.");
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        StringBuilder tplText = new StringBuilder();
+        String line, eol = System.getProperty("line.separator");
+
+        try {
+            // read the template file and store it in tplText
+            while ((line = reader.readLine()) != null) {
+                tplText.append(line).append(eol);
+            }
+        } finally {
+            reader.close();
+        }
+
+        return tplText.toString();
+    }
+
+    /**
+     * Splits the template text into alternating literal and variable name
+     * segments. A variable is a "[name]" made of letters, digits, '_' and '.'.
+     *
+     * @param tplText
+     *            the template text
+     * @return the segments, starting and ending with a (possibly empty) literal
+     */
+    static String[] compile(String tplText)
+    {
+
+        List<String> segments = new ArrayList<String>();
+        int literalStart = 0;
+
+        for (int open = tplText.indexOf('['); open >= 0; open = tplText.indexOf('[', open + 1)) {
+            int close = open + 1;
+            while (close < tplText.length() && isNameChar(tplText.charAt(close))) {
+                close++;
+            }
+
+            if (close == open + 1 || close == tplText.length() || tplText.charAt(close) != ']') {
+                continue;
+            }
+
+            segments.add(tplText.substring(literalStart, open));
+            segments.add(tplText.substring(open + 1, close));
+            literalStart = close + 1;
+            open = close;
+        }
+        segments.add(tplText.substring(literalStart));
+
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    private static boolean isNameChar(char c)
+    {
 
-        FileWriter writer = new FileWriter(outFile);
-        writer.write(vmdkText);
-        writer.close();
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.';
     }
 }
@@ -0,0 +1,327 @@
+package segfault.raw2vmdk;
+
+/*
+ * WatchFolder.java Copyright (C) 2010 Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ *
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+ * Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Watch folder driver.</p>
+ * <p>Watches a drop directory and converts every image copied into it as soon
+ * as it has settled, i.e. once neither its size changed nor an event arrived
+ * for it (or any of its segments) for the settle period.<br/>
+ * Converted images are recorded in an {@link AnalysisCache} kept in the
+ * output directory, so repeated events and restarts skip images that didn't
+ * change since.</p>
+ *
+ * @author Tasos "Zapotek" Laskos <tasos.laskos@gmail.com>
+ * @version 0.1.4
+ *
+ * @see segfault.raw2vmdk.Raw2VMDK
+ */
+public class WatchFolder {
+
+    /**
+     * Default settle period in seconds
+     */
+    static final int    DEFAULT_SETTLE = 5;
+
+    /**
+     * Name of the cache file in the output directory
+     */
+    static final String CACHE_NAME     = ".raw2vmdk.cache";
+
+    /**
+     * How often settling images are checked, in ms
+     */
+    private static final long TICK     = 250;
+
+    /**
+     * <p>An image waiting to settle.</p>
+     */
+    private static final class Pending {
+
+        long size;
+
+        long since;
+
+        Pending( long size, long since ) {
+
+            this.size  = size;
+            this.since = since;
+        }
+    }
+
+    /**
+     * The options used for all images, its image and output are ignored
+     */
+    private final ConversionRequest options;
+
+    /**
+     * The maximum number of images converted at the same time
+     */
+    private final int               threads;
+
+    /**
+     * The converter shared by all workers
+     */
+    private final Converter         converter;
+
+    /**
+     * How long an image must stay unchanged before it's converted, in ms
+     */
+    private final long              settle;
+
+    /**
+     * Images waiting to settle by first segment, only used by the watcher
+     * thread
+     */
+    private final Map<File, Pending> pending = new HashMap<File, Pending>( );
+
+    /**
+     * Images being converted
+     */
+    private final Set<File>         converting = Collections
+            .newSetFromMap( new ConcurrentHashMap<File, Boolean>( ) );
+
+    /**
+     * Constructor
+     *
+     * @param converter the converter shared by all workers
+     * @param options   the adapter type, format, hashing... of all images;
+     *                  its image and output are ignored
+     * @param threads   the number of worker threads
+     * @param settle    how long an image must stay unchanged, in seconds
+     */
+    public WatchFolder( Converter converter, ConversionRequest options,
+            int threads, int settle ) {
+
+        this.converter = converter;
+        this.options   = options;
+        this.threads   = threads;
+        this.settle    = settle * 1000L;
+    }
+
+    /**
+     * Watches the drop directory until interrupted or the directory goes
+     * away. Images already in it are considered on start.
+     *
+     * @param dropDir   the directory images are copied into
+     * @param outDir    the directory to write the .vmdk files to
+     *
+     * @return  the exit status
+     */
+    public int run( String dropDir, String outDir ) {
+
+        File drop = new File( dropDir );
+        if( !drop.isDirectory( ) ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: " + dropDir + " is not a directory." );
+            return 3;
+        }
+
+        File out = new File( outDir );
+        if( !out.isDirectory( ) && !out.mkdirs( ) ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: Could not create output directory " + outDir );
+            return 4;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool( threads );
+
+        try( WatchService watcher = FileSystems.getDefault( ).newWatchService( ) ) {
+            AnalysisCache cache = new AnalysisCache( new File( out, CACHE_NAME ) );
+
+            Path dir = drop.toPath( );
+            dir.register( watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY );
+
+            System.out.println( "Watching " + drop + " (" + cache.size( )
+                    + " images cached, settle " + settle / 1000 + "s)..." );
+            System.out.println( );
+
+            // register first so nothing copied in meanwhile is missed
+            rescan( drop );
+
+            while( true ) {
+                WatchKey key = watcher.poll( TICK, TimeUnit.MILLISECONDS );
+
+                if( key != null ) {
+                    for( WatchEvent<?> event: key.pollEvents( ) ) {
+                        if( event.kind( ) == StandardWatchEventKinds.OVERFLOW ) {
+                            rescan( drop );
+                        } else {
+                            touch( dir.resolve( (Path) event.context( ) ).toFile( ) );
+                        }
+                    }
+
+                    if( !key.reset( ) ) {
+                        System.out.println( System.getProperty( "line.separator" )
+                                + "Error: " + dropDir + " is no longer accessible." );
+                        return 3;
+                    }
+                }
+
+                dispatch( pool, cache, out );
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread( ).interrupt( );
+            return 0;
+        } catch( ClosedWatchServiceException e ) {
+            return 0;
+        } catch( IOException e ) {
+            System.out.println( System.getProperty( "line.separator" )
+                    + "Error: " + e.getMessage( ) );
+            return 1;
+        } finally {
+            pool.shutdown( );
+        }
+    }
+
+    /**
+     * Considers every file of the drop directory
+     */
+    private void rescan( File drop ) {
+
+        File[] files = drop.listFiles( );
+        if( files == null ) return;
+
+        for( File f: files ) {
+            touch( f );
+        }
+    }
+
+    /**
+     * Notes a change to a file of the drop directory, restarting the settle
+     * period of the image it belongs to
+     */
+    private void touch( File f ) {
+
+        String name = f.getName( );
+
+        // our own output, sidecars and partial copies
+        if( name.startsWith( "." ) || name.endsWith( ".vmdk" ) || name.endsWith( ".qcow2" )
+                || name.endsWith( MerkleSidecar.EXTENSION ) || !f.isFile( ) ) {
+            return;
+        }
+
+        File image = SegmentSet.firstOf( f );
+        Pending p = pending.get( image );
+        long now = System.currentTimeMillis( );
+
+        if( p == null ) {
+            pending.put( image, new Pending( image.length( ), now ) );
+        } else {
+            p.since = now;
+        }
+    }
+
+    /**
+     * Submits the conversion of every image that settled
+     */
+    private void dispatch( ExecutorService pool, AnalysisCache cache, File out ) {
+
+        long now = System.currentTimeMillis( );
+
+        for( Iterator<Map.Entry<File, Pending>> i = pending.entrySet( ).iterator( );
+                i.hasNext( ); ) {
+
+            Map.Entry<File, Pending> e = i.next( );
+            File image = e.getKey( );
+            Pending p = e.getValue( );
+
+            // some filesystems don't report every write, watch the size too
+            long size = image.length( );
+            if( size != p.size ) {
+                p.size  = size;
+                p.since = now;
+                continue;
+            }
+
+            if( now - p.since < settle ) continue;
+
+            if( !image.isFile( ) ) {
+                i.remove( );
+                continue;
+            }
+
+            // changed again while being converted, try once that's done
+            if( !converting.add( image ) ) continue;
+
+            i.remove( );
+            pool.execute( task( image, cache, out ) );
+        }
+    }
+
+    /**
+     * Creates the conversion task of a settled image
+     */
+    private Runnable task( final File image, final AnalysisCache cache,
+            final File outDir ) {
+
+        final ConversionRequest request = options.forImage( image.getPath( ),
+                new File( outDir, BatchConverter.outName( image,
+                        options.getFormat( ) ) ).getPath( ),
+                image.getAbsolutePath( ) );
+
+        return new Runnable( ) {
+
+            public void run( ) {
+
+                try {
+                    ImageIdentity identity = ImageIdentity.of( image );
+                    AnalysisCache.Entry cached = cache.lookup( identity );
+
+                    if( cached != null && cached.getVmdk( ) != null
+                            && cached.getVmdk( ).isFile( ) ) {
+                        System.out.println( "[CACHED] " + cached );
+                        return;
+                    }
+
+                    ConversionResult result = converter.convert( request );
+                    if( !result.isSuccess( ) ) {
+                        System.out.println( "[FAILED] " + result );
+                        return;
+                    }
+
+                    cache.record( new AnalysisCache.Entry( identity, result ) );
+                    System.out.println( "[OK] " + result );
+                } catch( IOException e ) {
+                    System.out.println( "[FAILED] " + image + ": " + e.getMessage( ) );
+                } finally {
+                    converting.remove( image );
+                }
+            }
+        };
+    }
+}
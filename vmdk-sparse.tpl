@@ -0,0 +1,21 @@
+# Disk DescriptorFile
+version=1
+encoding="UTF-8"
+CID=[CID]
+parentCID=[parentCID][parentFileNameHint]
+isNativeSnapshot="no"
+createType="[createType]"
+
+# Extent description
+RW [numOfSectors] SPARSE "[fileName]"
+
+# The Disk Data Base
+#DDB
+
+ddb.virtualHWVersion = "7"
+ddb.longContentID = "[longContentID]"
+ddb.uuid = "[uuid]"
+ddb.geometry.cylinders = "[numOfCylinders]"
+ddb.geometry.heads = "[headsPerTrack]"
+ddb.geometry.sectors = "[sectorsPerTrack]"
+ddb.adapterType = "[diskType]"
@@ -1,20 +1,20 @@
 # Disk DescriptorFile
 version=1
 encoding="UTF-8"
-CID=fffffffe
-parentCID=ffffffff
+CID=[CID]
+parentCID=[parentCID][parentFileNameHint]
 isNativeSnapshot="no"
 createType="monolithicFlat"
 
 # Extent description
-RW [numOfSectors] FLAT "[imgLocation]" 0
+[extents]
 
 # The Disk Data Base
 #DDB
 
 ddb.virtualHWVersion = "7"
-ddb.longContentID = "29075898903f9855853610dffffffffe"
-ddb.uuid = "60 00 C2 91 8e 73 27 62-43 58 3b f8 05 ae 2e a0"
+ddb.longContentID = "[longContentID]"
+ddb.uuid = "[uuid]"
 ddb.geometry.cylinders = "[numOfCylinders]"
 ddb.geometry.heads = "[headsPerTrack]"
 ddb.geometry.sectors = "[sectorsPerTrack]"